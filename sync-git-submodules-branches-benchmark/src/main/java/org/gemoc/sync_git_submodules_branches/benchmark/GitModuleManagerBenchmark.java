@@ -0,0 +1,200 @@
+package org.gemoc.sync_git_submodules_branches.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import org.gemoc.sync_git_submodules_branches.gittool.CommitEngine;
+import org.gemoc.sync_git_submodules_branches.gittool.GitModuleManager;
+import org.gemoc.sync_git_submodules_branches.gittool.MarkdownReportSink;
+import org.gemoc.sync_git_submodules_branches.gittool.SyntheticRepositoryGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of each public phase of GitModuleManager, on repositories generated by SyntheticRepositoryGenerator.
+ *
+ * The phases modify the local clone and the remotes, so each iteration works on a fresh copy of a snapshot
+ * taken once per trial: "generated" (remotes only), "cloned" (remotes and clone)
+ * and "prepared" (after deleteBranchesNotIn and createMissingParentBranches).
+ *
+ * Run with <code>java -jar target/benchmarks.jar -p submodules=20 -p branches=50</code>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GitModuleManagerBenchmark {
+
+	@State(Scope.Benchmark)
+	public abstract static class SyntheticRepositories {
+
+		@Param("5")
+		int submodules;
+		@Param("10")
+		int branches;
+		@Param("20")
+		int commits;
+		@Param("0.2")
+		double inactiveBranchRatio;
+		@Param("90")
+		int inactivityThreshold;
+		@Param("CHECKOUT")
+		String commitEngine;
+
+		File root;
+		File workFolder;
+		String parentURL;
+		Set<String> relevantBranches;
+
+		@Setup(Level.Trial)
+		public void generate() throws Exception {
+			root = Files.createTempDirectory("SyncGitSubModulesBranchesBenchmark_").toFile();
+			workFolder = new File(root, "work");
+			SyntheticRepositoryGenerator generator = new SyntheticRepositoryGenerator();
+			generator.setSubmodules(submodules);
+			generator.setBranches(branches);
+			generator.setCommits(commits);
+			generator.setInactiveBranchRatio(inactiveBranchRatio);
+			generator.setInactiveDays(inactivityThreshold * 2);
+			parentURL = generator.generate(new File(workFolder, "remotes"));
+			snapshot("generated");
+
+			GitModuleManager gitManager = newManager();
+			gitManager.gitUpdateOrClone();
+			relevantBranches = gitManager.collectAllSubmodulesActiveRemoteBranches(inactivityThreshold);
+			snapshot("cloned");
+
+			gitManager.deleteBranchesNotIn(relevantBranches);
+			gitManager.createMissingParentBranches(relevantBranches);
+			gitManager.closeTransports();
+			snapshot("prepared");
+		}
+
+		@TearDown(Level.Trial)
+		public void delete() throws IOException {
+			FileUtils.deleteDirectory(root);
+		}
+
+		/**
+		 * @return a manager working on the current copy, the paths are identical in all the copies
+		 */
+		public GitModuleManager newManager() {
+			GitModuleManager gitManager = new GitModuleManager(parentURL, new File(workFolder, "clone").getAbsolutePath(),
+					new UsernamePasswordCredentialsProvider("", ""),
+					"benchmark",
+					"benchmark@localhost");
+			gitManager.setCommitEngine(CommitEngine.valueOf(commitEngine));
+			return gitManager;
+		}
+
+		protected void snapshot(String name) throws IOException {
+			FileUtils.copyDirectory(workFolder, new File(root, name));
+		}
+
+		protected void restore(String name) throws IOException {
+			FileUtils.deleteDirectory(workFolder);
+			FileUtils.copyDirectory(new File(root, name), workFolder);
+		}
+	}
+
+	public static class Generated extends SyntheticRepositories {
+		@Setup(Level.Iteration)
+		public void restore() throws IOException {
+			restore("generated");
+		}
+	}
+
+	public static class Cloned extends SyntheticRepositories {
+		@Setup(Level.Iteration)
+		public void restore() throws IOException {
+			restore("cloned");
+		}
+	}
+
+	public static class Prepared extends SyntheticRepositories {
+		@Setup(Level.Iteration)
+		public void restore() throws IOException {
+			restore("prepared");
+		}
+	}
+
+	@Benchmark
+	public GitModuleManager gitClone(Generated repositories) throws Exception {
+		GitModuleManager gitManager = repositories.newManager();
+		try {
+			gitManager.gitUpdateOrClone();
+		} finally {
+			gitManager.closeTransports();
+		}
+		return gitManager;
+	}
+
+	@Benchmark
+	public GitModuleManager gitUpdate(Cloned repositories) throws Exception {
+		GitModuleManager gitManager = repositories.newManager();
+		try {
+			gitManager.gitUpdateOrClone();
+		} finally {
+			gitManager.closeTransports();
+		}
+		return gitManager;
+	}
+
+	@Benchmark
+	public Set<String> collectAllSubmodulesActiveRemoteBranches(Cloned repositories) throws Exception {
+		return repositories.newManager().collectAllSubmodulesActiveRemoteBranches(repositories.inactivityThreshold);
+	}
+
+	@Benchmark
+	public GitModuleManager deleteBranchesNotIn(Cloned repositories) throws Exception {
+		GitModuleManager gitManager = repositories.newManager();
+		try {
+			gitManager.deleteBranchesNotIn(repositories.relevantBranches);
+		} finally {
+			gitManager.closeTransports();
+		}
+		return gitManager;
+	}
+
+	@Benchmark
+	public GitModuleManager createMissingParentBranches(Cloned repositories) throws Exception {
+		GitModuleManager gitManager = repositories.newManager();
+		try {
+			gitManager.createMissingParentBranches(repositories.relevantBranches);
+		} finally {
+			gitManager.closeTransports();
+		}
+		return gitManager;
+	}
+
+	@Benchmark
+	public StringBuilder updateAllBranchesModules(Prepared repositories) throws Exception {
+		StringBuilder report = new StringBuilder();
+		MarkdownReportSink reportSink = new MarkdownReportSink(report);
+		GitModuleManager gitManager = repositories.newManager();
+		try {
+			gitManager.updateAllBranchesModules(reportSink, false);
+			gitManager.pushPendingUpdates(reportSink);
+		} finally {
+			gitManager.closeTransports();
+		}
+		return report;
+	}
+}
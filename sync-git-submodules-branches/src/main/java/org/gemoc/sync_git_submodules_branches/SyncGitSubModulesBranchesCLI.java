@@ -1,10 +1,20 @@
 package org.gemoc.sync_git_submodules_branches;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.util.Set;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -12,8 +22,27 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import org.gemoc.sync_git_submodules_branches.gittool.BranchFilter;
+import org.gemoc.sync_git_submodules_branches.gittool.CommitEngine;
+import org.gemoc.sync_git_submodules_branches.gittool.ComponentMirrors;
+import org.gemoc.sync_git_submodules_branches.gittool.CompositeReportSink;
+import org.gemoc.sync_git_submodules_branches.gittool.DiscoveryMode;
+import org.gemoc.sync_git_submodules_branches.gittool.FetchMode;
+import org.gemoc.sync_git_submodules_branches.gittool.FleetSync;
 import org.gemoc.sync_git_submodules_branches.gittool.GitModuleManager;
+import org.gemoc.sync_git_submodules_branches.gittool.GitSyncError;
+import org.gemoc.sync_git_submodules_branches.gittool.MarkdownReportSink;
+import org.gemoc.sync_git_submodules_branches.gittool.NdjsonReportSink;
+import org.gemoc.sync_git_submodules_branches.gittool.PushBatch;
+import org.gemoc.sync_git_submodules_branches.gittool.ReportSink;
+import org.gemoc.sync_git_submodules_branches.gittool.SyncDaemon;
+import org.gemoc.sync_git_submodules_branches.gittool.SyncDaemon.SyncListener;
+import org.gemoc.sync_git_submodules_branches.gittool.SyncMetrics;
+import org.gemoc.sync_git_submodules_branches.gittool.UpdateMode;
+import org.gemoc.sync_git_submodules_branches.gittool.WebhookServer;
 
 public class SyncGitSubModulesBranchesCLI {
 
@@ -27,9 +56,46 @@ public class SyncGitSubModulesBranchesCLI {
 			.addOption("g", "gitURL", true, "git URL that will be cloned")
 			.addOption("c", "committerName", true, "name of the committer who'll sign the commit")
 			.addOption("e", "committerEmail", true, "email of the committer who'll sign the commit")
-			.addOption("d", "dryRun", false, "dryRun, do not commit and push the update")
+			.addOption("d", "dryRun", false, "dryRun, only compute and report the plan of the sync (no checkout, commit or push)")
+			.addOption(null, "planFile", true, "file that will contain the plan of the sync in JSON (branches to delete and create, tracked branch and gitlink of each submodule of each branch), written before applying it, eg. to compare successive runs")
 			.addOption("r", "reportFile", true, "file name tha will containt the markdown report")
-			.addOption("i", "inactivityThreshold", true, "number of days since the last commit of a specific branch before considering the branch as old/unmaintained/inactive (-1 for infinite duration)");
+			.addOption(null, "eventsFile", true, "file that will receive the events of the sync (tracked branch, old and new gitlink, commit, push status of each branch and submodule) as NDJSON lines as soon as they happen, - for the standard output")
+			.addOption("i", "inactivityThreshold", true, "number of days since the last commit of a specific branch before considering the branch as old/unmaintained/inactive (-1 for infinite duration)")
+			.addOption(null, "includeBranches", true, "comma separated patterns of the integration branches to synchronize (default all): globs (* within a path segment, ** across segments) or java regular expressions prefixed by regex:, checked against the branch names of the submodules before reading their commits; the master branch is always synchronized")
+			.addOption(null, "excludeBranches", true, "comma separated patterns of the branches to ignore, eg. dependabot/**,renovate/**; the excluded integration branches are neither created, updated nor deleted")
+			.addOption(null, "submoduleIncludeBranches", true, "additional include patterns for some submodules: <module>:<patterns>, separated by ; (eg. compA:feature/*,fix/*;compB:release/*), a filtered out branch of a submodule is not tracked")
+			.addOption(null, "submoduleExcludeBranches", true, "additional exclude patterns for some submodules: <module>:<patterns>, separated by ;")
+			.addOption(null, "discoveryThreads", true, "number of submodules analyzed concurrently when collecting their active branches (default 1)")
+			.addOption(null, "submoduleFetchThreads", true, "number of submodules fetched or cloned concurrently when cloning or updating the local repository (default 4)")
+			.addOption(null, "commitEngine", true, "strategy used to create the commits: CHECKOUT (default) or INMEMORY (no checkout, commits are written directly in the object database)")
+			.addOption(null, "batchPush", false, "collect the deletions, creations and updates of all branches and push them at the end of the run")
+			.addOption(null, "pushBatchSize", true, "maximum number of refs sent in a single push when batchPush is set (default 0, no limit)")
+			.addOption(null, "atomicPush", false, "when batchPush is set, ask the remote to apply all the refs of a push or none of them")
+			.addOption(null, "incrementalSync", false, "skip the integration branches whose inputs didn't change since their last successful sync (only useful when reusing the folder)")
+			.addOption(null, "fetchMode", true, "amount of history retrieved: FULL (default), SHALLOW (tip of each branch only) or SHALLOW_SINCE (commits of the inactivityThreshold window), shallow modes require git to be installed")
+			.addOption(null, "updateMode", true, "strategy used to refresh a reused folder: PULL (default, checkout and pull master, fails if the local state diverged) or FETCH (fetch and prune the parent and the submodules, reset the local branches to their remote tip, never merges)")
+			.addOption(null, "discoveryMode", true, "source of the submodule branches: CLONE (default, cloned submodules) or LS_REMOTE (branches advertised by the submodule remotes, requires git to be installed)")
+			.addOption(null, "commitMetadataCacheSize", true, "maximum number of commits kept in the commit metadata cache stored in the local repository (default 10000, 0 to disable it)")
+			.addOption(null, "singleCommitPerBranch", false, "gather all the submodule updates of a branch in a single commit instead of one commit per updated submodule")
+			.addOption(null, "pruneMergedBranches", false, "consider the submodule branches already merged in the master branch of the submodule as inactive, so their integration branch is deleted without waiting for the inactivity threshold")
+			.addOption(null, "shardIndex", true, "index of the shard of integration branches synchronized by this process, from 0 to shardCount - 1 (default 0)")
+			.addOption(null, "shardCount", true, "number of processes (eg. CI workers) sharing the integration branches by a stable hash of their name (default 1, no sharding)")
+			.addOption(null, "leaseRetries", true, "number of times a branch changed on the remote by another process since it was fetched is fetched, updated and pushed again (default 3)")
+			.addOption(null, "metricsFile", true, "file that will contain the timings and counters of the sync in JSON (default: next to the report file, with a .metrics.json extension)")
+			.addOption(null, "prometheusMetricsFile", true, "file that will contain the metrics in Prometheus text format (eg. for the node exporter textfile collector)")
+			.addOption(null, "watch", false, "keep running: poll the branches advertised by the remotes and synchronize when one of them changes (report and metrics are rewritten after each sync)")
+			.addOption(null, "watchInterval", true, "number of seconds between two polls of the remotes in watch mode (default 60)")
+			.addOption(null, "webhookPort", true, "keep running: listen on this port for the push events of the parent and submodule repositories and synchronize the affected branches (can be combined with watch)")
+			.addOption(null, "webhookDebounce", true, "number of seconds without push event before synchronizing the branches of the received events (default 5)")
+			.addOption(null, "webhookSecret", true, "secret of the webhooks, checked against the X-Hub-Signature-256 or X-Gitlab-Token header")
+			.addOption(null, "objectCache", true, "folder of the shared object cache: a mirror of each parent and submodule repository, whose objects are borrowed by the clones (git alternates) so only the missing objects are fetched; can be shared by several runs and processes (FULL fetchMode only)")
+			.addOption(null, "objectCacheRetention", true, "number of days a mirror of the object cache no longer used by any clone is kept (default 30)")
+			.addOption(null, "maxConnectionsPerHost", true, "maximum number of concurrent fetch, push or ls-remote on a given host (default 4, 0 for no limit), the connections are kept open and reused during a sync")
+			.addOption(null, "transportRetries", true, "number of retries of a fetch, push or ls-remote failing with a transient transport error such as a connection reset or a timeout (default 3)")
+			.addOption(null, "transportRetryDelay", true, "delay in milliseconds before the first retry of a transport operation, doubled for each following one (default 1000)")
+			.addOption(null, "cache", false, "keep the folder between runs instead of deleting it: the existing clone is checked (remote URL, refs, lock files, unfinished merge, submodules), repaired and updated, it is cloned again only if it cannot be repaired (requires folder)")
+			.addOption(null, "fleet", true, "properties file listing several integration repositories to synchronize in this process: <name>.gitURL=<git URL> and optionally <name>.<option>=<value> to override an option of the command line for this repository (each one is cloned in a <name> subfolder of folder)")
+			.addOption(null, "fleetThreads", true, "maximum number of integration repositories synchronized concurrently in fleet mode (default 2)");
 		
 		
 		
@@ -42,54 +108,271 @@ public class SyncGitSubModulesBranchesCLI {
 		String password = cmd.hasOption("p") ? cmd.getOptionValue("p") : "";
 		String parentGitURL = cmd.hasOption("g") ? cmd.getOptionValue("g") : "";
 		String directoryPath = cmd.hasOption("f") ? cmd.getOptionValue("f") : "";
-		String committerName = cmd.hasOption("c") ? cmd.getOptionValue("c") : "";
-		String committerEmail = cmd.hasOption("e") ? cmd.getOptionValue("e") : "";
 		String inactivityThreshold = cmd.hasOption("i") ? cmd.getOptionValue("i") : "90";
 		String reportFilePath = cmd.hasOption("r") ? cmd.getOptionValue("r") : "syncReport.md";
+		String metricsFilePath = cmd.hasOption("metricsFile") ? cmd.getOptionValue("metricsFile") : SyncMetrics.defaultJsonFile(new File(reportFilePath)).getPath();
+		String prometheusMetricsFilePath = cmd.hasOption("prometheusMetricsFile") ? cmd.getOptionValue("prometheusMetricsFile") : "";
+		String eventsFilePath = cmd.hasOption("eventsFile") ? cmd.getOptionValue("eventsFile") : "";
+		String watchInterval = cmd.hasOption("watchInterval") ? cmd.getOptionValue("watchInterval") : "60";
+		String webhookDebounce = cmd.hasOption("webhookDebounce") ? cmd.getOptionValue("webhookDebounce") : "5";
+		String fleetThreads = cmd.hasOption("fleetThreads") ? cmd.getOptionValue("fleetThreads") : "2";
+		String objectCacheRetention = cmd.hasOption("objectCacheRetention") ? cmd.getOptionValue("objectCacheRetention") : "30";
 		boolean dryRun = cmd.hasOption("d");
 		
-		if(parentGitURL.isEmpty()) {
+		if(parentGitURL.isEmpty() && !cmd.hasOption("fleet")) {
 			HelpFormatter formatter = new HelpFormatter();
 			formatter.printHelp("SyncGitSubModulesBranches", options);
 			System.exit(0);
 		}
-				
+		if(cmd.hasOption("cache") && directoryPath.isEmpty()) {
+			throw new IllegalArgumentException("The cache option requires a folder");
+		}
+		
 		File outputDirectory = !directoryPath.isEmpty() ? new File(directoryPath) : Files.createTempDirectory("SyncGitSubModulesBranches_").toFile();
 		
-		if(!directoryPath.isEmpty() && outputDirectory.exists()) {
+		if(!directoryPath.isEmpty() && outputDirectory.exists() && !cmd.hasOption("cache")) {
 			System.out.println("deleting "+outputDirectory.getPath());
 			FileUtils.deleteDirectory(outputDirectory);
 		}
-		// https://www.codeaffine.com/2014/12/09/jgit-authentication/
-		UsernamePasswordCredentialsProvider credProvider = new UsernamePasswordCredentialsProvider( userOrToken, password );
-		GitModuleManager gitManager = new GitModuleManager(parentGitURL, outputDirectory.getAbsolutePath(), credProvider,
-				committerName,
-				committerEmail);
-    	gitManager.gitUpdateOrClone();
-    	//gitManager.listAllBranches();
-    	//gitManager.listMasterSubModules();
-    	//gitManager.listAllSubmodulesBranches();
-    	Set<String> relevantBranches = gitManager.collectAllSubmodulesActiveRemoteBranches(Integer.parseInt(inactivityThreshold));
-    	gitManager.deleteBranchesNotIn(relevantBranches);
-    	gitManager.createMissingParentBranches(relevantBranches);
-    	StringBuffer sb = new StringBuffer();
-    	gitManager.updateAllBranchesModules(sb, dryRun);
-    	FileUtils.write(outputDirectory, sb.toString(), Charset.defaultCharset());
-    	writeReport(new File(reportFilePath), sb);
-    	if(directoryPath.isEmpty()) {
-    		// must delete the temp dir
-    		System.out.println("Deleting temp directory "+outputDirectory);
-    		FileUtils.deleteDirectory(outputDirectory);
-    	}
+		// kept open for all the syncs of the process, the events of successive syncs (watch mode) are appended
+		Writer eventsWriter = null;
+		ReportSink eventsSink = null;
+		if(!eventsFilePath.isEmpty()) {
+			eventsWriter = openEventsWriter(eventsFilePath);
+			eventsSink = new NdjsonReportSink(eventsWriter);
+		}
+		try {
+			if(cmd.hasOption("fleet")) {
+				Properties fleetSettings = new Properties();
+				try (Reader reader = Files.newBufferedReader(new File(cmd.getOptionValue("fleet")).toPath())) {
+					fleetSettings.load(reader);
+				}
+				ComponentMirrors componentMirrors = new ComponentMirrors(
+						cmd.hasOption("objectCache") ? new File(cmd.getOptionValue("objectCache")) : new File(outputDirectory, ".components"));
+				FleetSync fleet = new FleetSync(Integer.parseInt(fleetThreads), componentMirrors);
+				for (String name : new TreeSet<String>(fleetSettings.stringPropertyNames())) {
+					if (!name.endsWith(".gitURL")) {
+						continue;
+					}
+					String repositoryName = name.substring(0, name.length() - ".gitURL".length());
+					Properties repositorySettings = new Properties();
+					for (String key : fleetSettings.stringPropertyNames()) {
+						if (key.startsWith(repositoryName + ".")) {
+							repositorySettings.setProperty(key.substring(repositoryName.length() + 1), fleetSettings.getProperty(key));
+						}
+					}
+					fleet.addRepository(repositoryName, 
+							createManager(cmd, repositorySettings, repositorySettings.getProperty("gitURL"), new File(outputDirectory, repositoryName)), 
+							Integer.parseInt(getSetting(cmd, repositorySettings, "inactivityThreshold", "90")), 
+							isSet(cmd, repositorySettings, "dryRun"));
+				}
+				boolean succeeded;
+				try (Writer reportWriter = openReport(new File(reportFilePath))) {
+					succeeded = fleet.synchronizeAll(createReportSink(reportWriter, eventsSink));
+				} finally {
+					writeMetrics(fleet.getMetrics(), metricsFilePath, prometheusMetricsFilePath);
+				}
+				if(directoryPath.isEmpty()) {
+					// must delete the temp dir
+					System.out.println("Deleting temp directory "+outputDirectory);
+					FileUtils.deleteDirectory(outputDirectory);
+				}
+				if(cmd.hasOption("objectCache")) {
+					componentMirrors.cleanup(Integer.parseInt(objectCacheRetention));
+				}
+				if(!succeeded) {
+					throw new GitSyncError("Sync failed for " + fleet.getFailedRepositories() + ", see " + reportFilePath);
+				}
+				return;
+			}
+			GitModuleManager gitManager = createManager(cmd, new Properties(), parentGitURL, outputDirectory);
+			ComponentMirrors componentMirrors = null;
+			if(cmd.hasOption("objectCache")) {
+				componentMirrors = new ComponentMirrors(new File(cmd.getOptionValue("objectCache")));
+				gitManager.setComponentMirrors(componentMirrors);
+			}
+			ReportSink listenerEventsSink = eventsSink;
+			SyncListener listener = new SyncListener() {
+				Writer reportWriter;
+
+				@Override
+				public ReportSink syncStarted() throws IOException {
+					reportWriter = openReport(new File(reportFilePath));
+					return createReportSink(reportWriter, listenerEventsSink);
+				}
+
+				@Override
+				public void syncDone(SyncMetrics metrics, boolean succeeded) throws IOException {
+					reportWriter.close();
+					writeMetrics(metrics, metricsFilePath, prometheusMetricsFilePath);
+				}
+			};
+			if(cmd.hasOption("webhookPort")) {
+				WebhookServer webhookServer = new WebhookServer(gitManager, Integer.parseInt(inactivityThreshold), dryRun, 
+						TimeUnit.SECONDS.toMillis(Long.parseLong(webhookDebounce)), listener);
+				webhookServer.setSecret(cmd.getOptionValue("webhookSecret"));
+				if(cmd.hasOption("watch")) {
+					webhookServer.schedulePolling(new SyncDaemon(gitManager, Integer.parseInt(inactivityThreshold), dryRun, 0, listener),
+							TimeUnit.SECONDS.toMillis(Long.parseLong(watchInterval)));
+				}
+				// the server threads keep running and writing the events, the writer is closed when the process stops
+				webhookServer.start(Integer.parseInt(cmd.getOptionValue("webhookPort")));
+				if(eventsWriter != null) {
+					Writer serverEventsWriter = eventsWriter;
+					Runtime.getRuntime().addShutdownHook(new Thread(() -> IOUtils.closeQuietly(serverEventsWriter)));
+					eventsWriter = null;
+				}
+				return;
+			}
+			if(cmd.hasOption("watch")) {
+				SyncDaemon daemon = new SyncDaemon(gitManager, Integer.parseInt(inactivityThreshold), dryRun, 
+						TimeUnit.SECONDS.toMillis(Long.parseLong(watchInterval)), listener);
+				daemon.run();
+				return;
+			}
+	    	// the report is streamed: the branches already synchronized are in it even if the sync fails
+	    	try (Writer reportWriter = openReport(new File(reportFilePath))) {
+		    	//gitManager.listAllBranches();
+		    	//gitManager.listMasterSubModules();
+		    	//gitManager.listAllSubmodulesBranches();
+		    	gitManager.synchronize(Integer.parseInt(inactivityThreshold), createReportSink(reportWriter, eventsSink), dryRun);
+	    	} finally {
+	    		// also written when the sync fails, in order to find the phase that failed or took too long
+	    		writeMetrics(gitManager.getMetrics(), metricsFilePath, prometheusMetricsFilePath);
+	    	}
+	    	if(directoryPath.isEmpty()) {
+	    		// must delete the temp dir
+	    		System.out.println("Deleting temp directory "+outputDirectory);
+	    		FileUtils.deleteDirectory(outputDirectory);
+	    	}
+	    	if(componentMirrors != null) {
+	    		componentMirrors.cleanup(Integer.parseInt(objectCacheRetention));
+	    	}
+		} finally {
+			if(eventsWriter != null) {
+				// stdout is shielded, only an events file is closed
+				eventsWriter.close();
+			}
+		}
 	}
 	
-    protected static void writeReport(File reportFile, StringBuffer content) throws IOException {
+    /**
+     * Create a manager configured by the command line options, overridden by the repositorySettings (from the fleet file)
+     */
+    protected static GitModuleManager createManager(CommandLine cmd, Properties repositorySettings, String parentGitURL, File folder) {
+    	// https://www.codeaffine.com/2014/12/09/jgit-authentication/
+    	UsernamePasswordCredentialsProvider credProvider = new UsernamePasswordCredentialsProvider( 
+    			getSetting(cmd, repositorySettings, "user", ""), 
+    			getSetting(cmd, repositorySettings, "password", "") );
+    	GitModuleManager gitManager = new GitModuleManager(parentGitURL, folder.getAbsolutePath(), credProvider,
+    			getSetting(cmd, repositorySettings, "committerName", ""),
+    			getSetting(cmd, repositorySettings, "committerEmail", ""));
+    	gitManager.setDiscoveryThreads(Integer.parseInt(getSetting(cmd, repositorySettings, "discoveryThreads", "1")));
+    	gitManager.setSubmoduleFetchThreads(Integer.parseInt(getSetting(cmd, repositorySettings, "submoduleFetchThreads", "4")));
+    	gitManager.setCommitEngine(CommitEngine.valueOf(getSetting(cmd, repositorySettings, "commitEngine", "CHECKOUT").toUpperCase()));
+    	gitManager.setIncrementalSync(isSet(cmd, repositorySettings, "incrementalSync"));
+    	gitManager.setFetchMode(FetchMode.valueOf(getSetting(cmd, repositorySettings, "fetchMode", "FULL").toUpperCase()));
+    	gitManager.setUpdateMode(UpdateMode.valueOf(getSetting(cmd, repositorySettings, "updateMode", "PULL").toUpperCase()));
+    	gitManager.setDiscoveryMode(DiscoveryMode.valueOf(getSetting(cmd, repositorySettings, "discoveryMode", "CLONE").toUpperCase()));
+    	gitManager.setCommitMetadataCacheSize(Integer.parseInt(getSetting(cmd, repositorySettings, "commitMetadataCacheSize", "10000")));
+    	gitManager.setSingleCommitPerBranch(isSet(cmd, repositorySettings, "singleCommitPerBranch"));
+    	gitManager.setPruneMergedBranches(isSet(cmd, repositorySettings, "pruneMergedBranches"));
+    	gitManager.setShard(Integer.parseInt(getSetting(cmd, repositorySettings, "shardIndex", "0")), 
+    			Integer.parseInt(getSetting(cmd, repositorySettings, "shardCount", "1")));
+    	gitManager.setLeaseRetries(Integer.parseInt(getSetting(cmd, repositorySettings, "leaseRetries", "3")));
+    	gitManager.setShallowSinceDays(Integer.parseInt(getSetting(cmd, repositorySettings, "inactivityThreshold", "90")));
+    	gitManager.setBranchFilter(BranchFilter.parse(getSetting(cmd, repositorySettings, "includeBranches", ""), 
+    			getSetting(cmd, repositorySettings, "excludeBranches", "")));
+    	Map<String, BranchFilter> submoduleBranchFilters = BranchFilter.parseSubmoduleFilters(
+    			parseModuleSettings(getSetting(cmd, repositorySettings, "submoduleIncludeBranches", "")), 
+    			parseModuleSettings(getSetting(cmd, repositorySettings, "submoduleExcludeBranches", "")));
+    	for (Map.Entry<String, BranchFilter> submoduleBranchFilter : submoduleBranchFilters.entrySet()) {
+    		gitManager.setSubmoduleBranchFilter(submoduleBranchFilter.getKey(), submoduleBranchFilter.getValue());
+    	}
+    	String planFile = getSetting(cmd, repositorySettings, "planFile", "");
+    	if(!planFile.isEmpty()) {
+    		gitManager.setPlanFile(new File(planFile));
+    	}
+    	gitManager.setMaxConnectionsPerHost(Integer.parseInt(getSetting(cmd, repositorySettings, "maxConnectionsPerHost", "4")));
+    	gitManager.setRepairLocalRepository(isSet(cmd, repositorySettings, "cache"));
+    	gitManager.setTransportRetries(Integer.parseInt(getSetting(cmd, repositorySettings, "transportRetries", "3")), 
+    			Long.parseLong(getSetting(cmd, repositorySettings, "transportRetryDelay", "1000")));
+    	if(isSet(cmd, repositorySettings, "batchPush")) {
+    		gitManager.setPushBatch(new PushBatch(Integer.parseInt(getSetting(cmd, repositorySettings, "pushBatchSize", "0")), 
+    				isSet(cmd, repositorySettings, "atomicPush")));
+    	}
+    	return gitManager;
+    }
+    
+    /**
+     * @param value <module>:<value> entries separated by ;
+     * @return the values indexed by module
+     */
+    protected static Map<String, String> parseModuleSettings(String value) {
+    	Map<String, String> moduleSettings = new TreeMap<String, String>();
+    	for (String entry : value.split(";")) {
+    		int separator = entry.indexOf(':');
+    		if (separator > 0) {
+    			moduleSettings.put(entry.substring(0, separator).trim(), entry.substring(separator + 1));
+    		} else if (!entry.trim().isEmpty()) {
+    			throw new IllegalArgumentException("Invalid submodule setting " + entry + ", expected <module>:<value>");
+    		}
+    	}
+    	return moduleSettings;
+    }
+
+    /**
+     * @return the value of the long option name, or its value in repositorySettings if set
+     */
+    protected static String getSetting(CommandLine cmd, Properties repositorySettings, String name, String defaultValue) {
+    	if(repositorySettings.containsKey(name)) {
+    		return repositorySettings.getProperty(name);
+    	}
+    	return cmd.hasOption(name) ? cmd.getOptionValue(name) : defaultValue;
+    }
+    
+    /**
+     * @return true if the flag name is set on the command line, or set to true in repositorySettings
+     */
+    protected static boolean isSet(CommandLine cmd, Properties repositorySettings, String name) {
+    	if(repositorySettings.containsKey(name)) {
+    		return Boolean.parseBoolean(repositorySettings.getProperty(name));
+    	}
+    	return cmd.hasOption(name);
+    }
+    
+    protected static void writeMetrics(SyncMetrics metrics, String metricsFilePath, String prometheusMetricsFilePath) throws IOException {
+    	metrics.writeJson(new File(metricsFilePath));
+    	if(!prometheusMetricsFilePath.isEmpty()) {
+    		metrics.writePrometheus(new File(prometheusMetricsFilePath));
+    	}
+    }
+    
+    protected static Writer openReport(File reportFile) throws IOException {
     	// Ensure the parent directory exists
         File parentDir = reportFile.getParentFile();
         if (parentDir != null && !parentDir.exists()) {
            parentDir.mkdirs();
         }
-        FileUtils.write(reportFile, content.toString(), Charset.defaultCharset());
+        // unlike Files.newBufferedWriter, replaces the characters not supported by the charset
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(reportFile), Charset.defaultCharset()));
+    }
+    
+    protected static Writer openEventsWriter(String eventsFilePath) throws IOException {
+    	if(eventsFilePath.equals("-")) {
+    		return new OutputStreamWriter(new CloseShieldOutputStream(System.out), StandardCharsets.UTF_8);
+    	}
+    	File eventsFile = new File(eventsFilePath).getAbsoluteFile();
+    	eventsFile.getParentFile().mkdirs();
+    	return Files.newBufferedWriter(eventsFile.toPath(), StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * @return a sink streaming the markdown report to reportWriter and the events to eventsSink if not null
+     */
+    protected static ReportSink createReportSink(Writer reportWriter, ReportSink eventsSink) {
+    	ReportSink markdownSink = new MarkdownReportSink(reportWriter);
+    	return eventsSink != null ? new CompositeReportSink(markdownSink, eventsSink) : markdownSink;
     }
 
 }
@@ -1,12 +1,18 @@
 package org.gemoc.sync_git_submodules_branches;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import org.apache.commons.io.FileUtils;
-
 /*
  * Copyright 2001-2005 The Apache Software Foundation.
  *
@@ -29,7 +35,20 @@ import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import org.gemoc.sync_git_submodules_branches.gittool.BranchFilter;
+import org.gemoc.sync_git_submodules_branches.gittool.CommitEngine;
+import org.gemoc.sync_git_submodules_branches.gittool.ComponentMirrors;
+import org.gemoc.sync_git_submodules_branches.gittool.CompositeReportSink;
+import org.gemoc.sync_git_submodules_branches.gittool.DiscoveryMode;
+import org.gemoc.sync_git_submodules_branches.gittool.FetchMode;
 import org.gemoc.sync_git_submodules_branches.gittool.GitModuleManager;
+import org.gemoc.sync_git_submodules_branches.gittool.MarkdownReportSink;
+import org.gemoc.sync_git_submodules_branches.gittool.NdjsonReportSink;
+import org.gemoc.sync_git_submodules_branches.gittool.PushBatch;
+import org.gemoc.sync_git_submodules_branches.gittool.ReportSink;
+import org.gemoc.sync_git_submodules_branches.gittool.SyncMetrics;
+import org.gemoc.sync_git_submodules_branches.gittool.SyncPlan;
+import org.gemoc.sync_git_submodules_branches.gittool.UpdateMode;
 
 /**
  * Goal that updates a git repository having submodules in order to:
@@ -53,6 +72,20 @@ public class SyncGitSubmodulesBranchesMojo
     @Parameter( defaultValue = "${project.build.directory}/syncReport.md", property = "reportFile", required = true )
     private File reportFile;
     
+    /**
+     * Location of the NDJSON file receiving the events of the sync (tracked branch, old and new gitlink, commit, push status 
+     * of each branch and submodule) as soon as they happen, not written if not set
+     */
+    @Parameter(property = "eventsFile")
+    private File eventsFile;
+    
+    /**
+     * Location of the JSON plan of the sync (branches to delete and create, tracked branch and gitlink of each submodule of each branch), 
+     * written before applying it, not written if not set
+     */
+    @Parameter(property = "planFile")
+    private File planFile;
+    
     @Parameter(property="parentGitURL", required = true)
     private String parentGitURL;
     
@@ -80,6 +113,187 @@ public class SyncGitSubmodulesBranchesMojo
     @Parameter(defaultValue = "90", property = "inactivityThreshold")
     private Integer inactivityThreshold;
     
+    /**
+     * patterns of the integration branches to synchronize, all if empty: globs (* within a path segment, ** across segments) 
+     * or java regular expressions prefixed by regex:, checked against the branch names of the submodules before reading their commits.
+     * The master branch is always synchronized
+     */
+    @Parameter(property = "includeBranches")
+    private List<String> includeBranches;
+    
+    /**
+     * patterns of the branches to ignore, eg. dependabot/**, the excluded integration branches are neither created, updated nor deleted
+     */
+    @Parameter(property = "excludeBranches")
+    private List<String> excludeBranches;
+    
+    /**
+     * additional include patterns (comma separated) of the branches of some submodules, indexed by module name.
+     * A filtered out branch of a submodule is not tracked, the submodule stays on its master branch
+     */
+    @Parameter
+    private Map<String, String> submoduleIncludeBranches;
+    
+    /**
+     * additional exclude patterns (comma separated) of the branches of some submodules, indexed by module name
+     */
+    @Parameter
+    private Map<String, String> submoduleExcludeBranches;
+    
+    /**
+     * number of submodules analyzed concurrently when collecting their active branches
+     */
+    @Parameter(defaultValue = "1", property = "discoveryThreads")
+    private Integer discoveryThreads;
+    
+    /**
+     * number of submodules fetched or cloned concurrently when cloning or updating the local repository
+     */
+    @Parameter(defaultValue = "4", property = "submoduleFetchThreads")
+    private Integer submoduleFetchThreads;
+    
+    /**
+     * strategy used to create the commits in the branches of the parent repository:
+     * CHECKOUT (checkout and commit in the working tree) or INMEMORY (write the commits directly in the object database)
+     */
+    @Parameter(defaultValue = "CHECKOUT", property = "commitEngine")
+    private CommitEngine commitEngine;
+    
+    /**
+     * collect the deletions, creations and updates of all branches and push them at the end of the run
+     */
+    @Parameter(defaultValue = "false", property = "batchPush")
+    private boolean batchPush;
+    
+    /**
+     * maximum number of refs sent in a single push when batchPush is enabled (0 for no limit)
+     */
+    @Parameter(defaultValue = "0", property = "pushBatchSize")
+    private Integer pushBatchSize;
+    
+    /**
+     * when batchPush is enabled, ask the remote to apply all the refs of a push or none of them
+     */
+    @Parameter(defaultValue = "false", property = "atomicPush")
+    private boolean atomicPush;
+    
+    /**
+     * skip the integration branches whose inputs (parent branch tip, tracked submodule branches and their tips)
+     * didn't change since their last successful sync. The fingerprints are stored in the local repository.
+     */
+    @Parameter(defaultValue = "false", property = "incrementalSync")
+    private boolean incrementalSync;
+    
+    /**
+     * amount of history retrieved for the parent and the submodules: 
+     * FULL, SHALLOW (tip of each branch only) or SHALLOW_SINCE (commits of the inactivityThreshold window).
+     * The shallow modes require git to be installed
+     */
+    @Parameter(defaultValue = "FULL", property = "fetchMode")
+    private FetchMode fetchMode;
+    
+    /**
+     * strategy used to refresh the existing repository (FULL fetchMode): PULL (checkout and pull the master branch, 
+     * fails if the local state has diverged) or FETCH (fetch and prune the parent and the submodules, 
+     * reset the local branches to their remote tip, never merges)
+     */
+    @Parameter(defaultValue = "PULL", property = "updateMode")
+    private UpdateMode updateMode;
+    
+    /**
+     * source of the submodule branches: CLONE (remote branches of the cloned submodules) 
+     * or LS_REMOTE (branches advertised by the submodule remotes, only their tips are fetched, requires git to be installed)
+     */
+    @Parameter(defaultValue = "CLONE", property = "discoveryMode")
+    private DiscoveryMode discoveryMode;
+    
+    /**
+     * maximum number of commits kept in the commit metadata cache stored in the local repository (0 to disable it)
+     */
+    @Parameter(defaultValue = "10000", property = "commitMetadataCacheSize")
+    private Integer commitMetadataCacheSize;
+    
+    /**
+     * gather all the submodule updates of an integration branch in a single commit instead of one commit per updated submodule
+     */
+    @Parameter(defaultValue = "false", property = "singleCommitPerBranch")
+    private boolean singleCommitPerBranch;
+    
+    /**
+     * consider the submodule branches already merged in the master branch of the submodule as inactive, whatever their age
+     */
+    @Parameter(defaultValue = "false", property = "pruneMergedBranches")
+    private boolean pruneMergedBranches;
+    
+    /**
+     * index of the shard of integration branches synchronized by this build, from 0 to shardCount - 1
+     */
+    @Parameter(defaultValue = "0", property = "shardIndex")
+    private Integer shardIndex;
+    
+    /**
+     * number of builds (eg. CI workers) sharing the integration branches by a stable hash of their name, 1 for no sharding
+     */
+    @Parameter(defaultValue = "1", property = "shardCount")
+    private Integer shardCount;
+    
+    /**
+     * number of times a branch changed on the remote by another process since it was fetched is fetched, updated and pushed again
+     */
+    @Parameter(defaultValue = "3", property = "leaseRetries")
+    private Integer leaseRetries;
+    
+    /**
+     * Location of the JSON file containing the timings and counters of the sync (defaults to the report file name with a .metrics.json extension)
+     */
+    @Parameter(property = "metricsFile")
+    private File metricsFile;
+    
+    /**
+     * Location of the metrics in Prometheus text format (eg. in the folder of the node exporter textfile collector), not written if not set
+     */
+    @Parameter(property = "prometheusMetricsFile")
+    private File prometheusMetricsFile;
+    
+    /**
+     * Folder of the shared object cache: a mirror of the parent and of each submodule repository, whose objects are borrowed 
+     * by the local repositories (git alternates) so only the objects missing in the mirrors are fetched. 
+     * It can be shared by several projects and builds (eg. a CI cache volume). Not used if not set or with a shallow fetchMode
+     */
+    @Parameter(property = "objectCache")
+    private File objectCache;
+    
+    /**
+     * number of days a mirror of the object cache no longer used by any local repository is kept
+     */
+    @Parameter(defaultValue = "30", property = "objectCacheRetention")
+    private Integer objectCacheRetention;
+    
+    /**
+     * maximum number of concurrent fetch, push or ls-remote on a given host, 0 for no limit
+     */
+    @Parameter(defaultValue = "4", property = "maxConnectionsPerHost")
+    private Integer maxConnectionsPerHost;
+    
+    /**
+     * number of retries of a fetch, push or ls-remote failing with a transient transport error (connection reset, timeout...)
+     */
+    @Parameter(defaultValue = "3", property = "transportRetries")
+    private Integer transportRetries;
+    
+    /**
+     * delay in milliseconds before the first retry of a transport operation, doubled for each following one
+     */
+    @Parameter(defaultValue = "1000", property = "transportRetryDelay")
+    private Long transportRetryDelay;
+    
+    /**
+     * check and repair the clone kept in outputDirectory by a previous build (lock files, unfinished merge, refs to missing objects,
+     * broken submodules...) before updating it, it is cloned again only if it cannot be repaired
+     */
+    @Parameter(defaultValue = "false", property = "repairLocalRepository")
+    private Boolean repairLocalRepository;
+    
     public void execute()
         throws MojoExecutionException
     {
@@ -88,6 +302,27 @@ public class SyncGitSubmodulesBranchesMojo
     	getLog().info( "committerName="+committerName);
     	getLog().info( "committerEmail="+committerEmail);
     	getLog().info( "inactivityThreshold="+inactivityThreshold+" days");
+    	getLog().info( "includeBranches="+includeBranches);
+    	getLog().info( "excludeBranches="+excludeBranches);
+    	getLog().info( "submoduleIncludeBranches="+submoduleIncludeBranches);
+    	getLog().info( "submoduleExcludeBranches="+submoduleExcludeBranches);
+    	getLog().info( "discoveryThreads="+discoveryThreads);
+    	getLog().info( "submoduleFetchThreads="+submoduleFetchThreads);
+    	getLog().info( "commitEngine="+commitEngine);
+    	getLog().info( "incrementalSync="+incrementalSync);
+    	getLog().info( "fetchMode="+fetchMode);
+    	getLog().info( "updateMode="+updateMode);
+    	getLog().info( "discoveryMode="+discoveryMode);
+    	getLog().info( "singleCommitPerBranch="+singleCommitPerBranch);
+    	getLog().info( "pruneMergedBranches="+pruneMergedBranches);
+    	getLog().info( "shardIndex="+shardIndex+" (shardCount="+shardCount+", leaseRetries="+leaseRetries+")");
+    	getLog().info( "objectCache="+objectCache);
+    	getLog().info( "maxConnectionsPerHost="+maxConnectionsPerHost);
+    	getLog().info( "transportRetries="+transportRetries+" (transportRetryDelay="+transportRetryDelay+" ms)");
+    	getLog().info( "repairLocalRepository="+repairLocalRepository);
+    	getLog().info( "eventsFile="+eventsFile);
+    	getLog().info( "planFile="+planFile);
+    	getLog().info( "batchPush="+batchPush+ (batchPush ? " (pushBatchSize="+pushBatchSize+", atomicPush="+atomicPush+")" : ""));
     	
 		// https://www.codeaffine.com/2014/12/09/jgit-authentication/
     	if(userOrToken == null || password == null) {
@@ -98,34 +333,94 @@ public class SyncGitSubmodulesBranchesMojo
 		GitModuleManager gitManager = new GitModuleManager(parentGitURL, outputDirectory.getAbsolutePath(), credProvider,
 				committerName,
 				committerEmail);
-    	try {
+		gitManager.setDiscoveryThreads(discoveryThreads);
+		gitManager.setSubmoduleFetchThreads(submoduleFetchThreads);
+		gitManager.setCommitEngine(commitEngine);
+		gitManager.setIncrementalSync(incrementalSync);
+		gitManager.setFetchMode(fetchMode);
+		gitManager.setUpdateMode(updateMode);
+		gitManager.setDiscoveryMode(discoveryMode);
+		gitManager.setCommitMetadataCacheSize(commitMetadataCacheSize);
+		gitManager.setSingleCommitPerBranch(singleCommitPerBranch);
+		gitManager.setPruneMergedBranches(pruneMergedBranches);
+		gitManager.setShard(shardIndex, shardCount);
+		gitManager.setLeaseRetries(leaseRetries);
+		gitManager.setShallowSinceDays(inactivityThreshold);
+		gitManager.setBranchFilter(new BranchFilter(
+				includeBranches != null ? includeBranches : Collections.<String>emptyList(), 
+				excludeBranches != null ? excludeBranches : Collections.<String>emptyList()));
+		Map<String, BranchFilter> submoduleBranchFilters = BranchFilter.parseSubmoduleFilters(
+				submoduleIncludeBranches != null ? submoduleIncludeBranches : Collections.<String, String>emptyMap(), 
+				submoduleExcludeBranches != null ? submoduleExcludeBranches : Collections.<String, String>emptyMap());
+		for (Map.Entry<String, BranchFilter> submoduleBranchFilter : submoduleBranchFilters.entrySet()) {
+			gitManager.setSubmoduleBranchFilter(submoduleBranchFilter.getKey(), submoduleBranchFilter.getValue());
+		}
+		gitManager.setMaxConnectionsPerHost(maxConnectionsPerHost);
+		gitManager.setTransportRetries(transportRetries, transportRetryDelay);
+		gitManager.setRepairLocalRepository(repairLocalRepository);
+		if(batchPush) {
+			gitManager.setPushBatch(new PushBatch(pushBatchSize, atomicPush));
+		}
+		ComponentMirrors componentMirrors = null;
+		if(objectCache != null) {
+			componentMirrors = new ComponentMirrors(objectCache);
+			gitManager.setComponentMirrors(componentMirrors);
+		}
+    	try (Writer reportWriter = openWriter(reportFile, Charset.defaultCharset());
+    			Writer eventsWriter = eventsFile != null ? openWriter(eventsFile, StandardCharsets.UTF_8) : null) {
+    		// the report is streamed: the branches already synchronized are in it even if the sync fails
+    		ReportSink reportSink = new MarkdownReportSink(reportWriter);
+    		if(eventsWriter != null) {
+    			reportSink = new CompositeReportSink(reportSink, new NdjsonReportSink(eventsWriter));
+    		}
 			gitManager.gitUpdateOrClone();
 			gitManager.listSubModules();
 	    	Set<String> relevantBranches = gitManager.collectAllSubmodulesActiveRemoteBranches(inactivityThreshold);
-	    	gitManager.deleteBranchesNotIn(relevantBranches);
-	    	gitManager.createMissingParentBranches(relevantBranches);
-	    	StringBuffer sb = new StringBuffer();
-	    	gitManager.updateAllBranchesModules(sb, dryRun);
-	    	writeReport(sb);
+	    	SyncPlan plan = gitManager.planSynchronization(relevantBranches, null);
+	    	if(planFile != null) {
+	    		plan.writeJson(planFile);
+	    	}
+	    	if(dryRun) {
+	    		plan.report(reportSink);
+	    	} else {
+	    		gitManager.executePlan(plan, reportSink);
+	    		gitManager.pushPendingUpdates(reportSink);
+	    	}
+	    	if(componentMirrors != null) {
+	    		componentMirrors.cleanup(objectCacheRetention);
+	    	}
 	    	
 		} catch (Exception e) {
 			getLog().error( e);
 			throw new MojoExecutionException(e.getMessage(), e);
+		} finally {
+			gitManager.closeTransports();
+			// also written when the sync fails, in order to find the phase that failed or took too long
+			writeMetrics(gitManager.getMetrics());
 		}
     	
  
     }
     
-    protected void writeReport(StringBuffer content) throws MojoExecutionException {
+    protected void writeMetrics(SyncMetrics metrics) {
+    	File jsonFile = metricsFile != null ? metricsFile : SyncMetrics.defaultJsonFile(reportFile);
+        try {
+        	metrics.writeJson(jsonFile);
+        	if (prometheusMetricsFile != null) {
+        		metrics.writePrometheus(prometheusMetricsFile);
+        	}
+        } catch (IOException e) {
+        	getLog().warn("Error writing metrics", e);
+        }
+    }
+    
+    protected Writer openWriter(File file, Charset charset) throws IOException {
     	// Ensure the parent directory exists
-        File parentDir = reportFile.getParentFile();
+        File parentDir = file.getAbsoluteFile().getParentFile();
         if (parentDir != null && !parentDir.exists()) {
            parentDir.mkdirs();
         }
-        try {
-        	FileUtils.write(reportFile, content.toString(), Charset.defaultCharset());
-        } catch (IOException e) {
-            throw new MojoExecutionException("Error writing to file", e);
-        }
+        // unlike Files.newBufferedWriter, replaces the characters not supported by the charset
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), charset));
     }
 }
@@ -0,0 +1,146 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Include and exclude patterns checked against the short name of a branch (eg. "dependabot/npm/foo"),
+ * compiled once so the excluded branches are dropped before any commit is parsed.
+ *
+ * A pattern is a glob where * matches any sequence of characters except '/', ** any sequence and ? a single character,
+ * or a java regular expression when prefixed by "regex:". A branch matches if it matches one of the include patterns
+ * (or there is no include pattern) and none of the exclude patterns.
+ */
+public class BranchFilter {
+
+	/** filter accepting all the branches */
+	public static final BranchFilter ALL = new BranchFilter(Collections.emptyList(), Collections.emptyList());
+
+	static final String REGEX_PREFIX = "regex:";
+
+	List<Pattern> includes = new ArrayList<Pattern>();
+	List<Pattern> excludes = new ArrayList<Pattern>();
+
+	/**
+	 * @param includes patterns of the branches to keep, empty for all
+	 * @param excludes patterns of the branches to drop
+	 */
+	public BranchFilter(List<String> includes, List<String> excludes) {
+		for (String include : includes) {
+			this.includes.add(compile(include));
+		}
+		for (String exclude : excludes) {
+			this.excludes.add(compile(exclude));
+		}
+	}
+
+	/**
+	 * @param includes comma separated patterns of the branches to keep, null or empty for all
+	 * @param excludes comma separated patterns of the branches to drop, null or empty for none
+	 */
+	public static BranchFilter parse(String includes, String excludes) {
+		BranchFilter filter = new BranchFilter(split(includes), split(excludes));
+		return filter.isEmpty() ? ALL : filter;
+	}
+
+	/**
+	 * @param includes comma separated include patterns indexed by module name
+	 * @param excludes comma separated exclude patterns indexed by module name
+	 * @return the filter of each module having patterns
+	 */
+	public static Map<String, BranchFilter> parseSubmoduleFilters(Map<String, String> includes, Map<String, String> excludes) {
+		Map<String, BranchFilter> filters = new TreeMap<String, BranchFilter>();
+		Set<String> moduleNames = new TreeSet<String>(includes.keySet());
+		moduleNames.addAll(excludes.keySet());
+		for (String moduleName : moduleNames) {
+			BranchFilter filter = parse(includes.get(moduleName), excludes.get(moduleName));
+			if (!filter.isEmpty()) {
+				filters.put(moduleName, filter);
+			}
+		}
+		return filters;
+	}
+
+	public boolean matches(String branchName) {
+		boolean included = includes.isEmpty();
+		for (Pattern include : includes) {
+			if (include.matcher(branchName).matches()) {
+				included = true;
+				break;
+			}
+		}
+		if (!included) {
+			return false;
+		}
+		for (Pattern exclude : excludes) {
+			if (exclude.matcher(branchName).matches()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the filter accepts all the branches
+	 */
+	public boolean isEmpty() {
+		return includes.isEmpty() && excludes.isEmpty();
+	}
+
+	/**
+	 * @return the include and exclude regular expressions, eg. to detect a change of the filter between two runs
+	 */
+	@Override
+	public String toString() {
+		return "includes " + includes + " excludes " + excludes;
+	}
+
+	protected static List<String> split(String patterns) {
+		List<String> result = new ArrayList<String>();
+		if (patterns != null) {
+			for (String pattern : patterns.split(",")) {
+				if (!pattern.trim().isEmpty()) {
+					result.add(pattern.trim());
+				}
+			}
+		}
+		return result;
+	}
+
+	protected static Pattern compile(String pattern) {
+		if (pattern.startsWith(REGEX_PREFIX)) {
+			return Pattern.compile(pattern.substring(REGEX_PREFIX.length()));
+		}
+		StringBuilder regex = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c != '*' && c != '?') {
+				literal.append(c);
+				continue;
+			}
+			if (literal.length() > 0) {
+				regex.append(Pattern.quote(literal.toString()));
+				literal.setLength(0);
+			}
+			if (c == '?') {
+				regex.append("[^/]");
+			} else if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+				regex.append(".*");
+				i++;
+			} else {
+				regex.append("[^/]*");
+			}
+		}
+		if (literal.length() > 0) {
+			regex.append(Pattern.quote(literal.toString()));
+		}
+		return Pattern.compile(regex.toString());
+	}
+}
@@ -0,0 +1,79 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Properties;
+
+/**
+ * Fingerprints of the integration branches at their last successful sync,
+ * persisted as a properties file (branch name = fingerprint)
+ * 
+ * A fingerprint summarizes the inputs of the sync of a branch: the tip of the parent branch and, for each submodule,
+ * the tracked branch and its tip. If none of them moved, the branch doesn't need to be synchronized again.
+ */
+public class BranchFingerprints {
+
+	File file;
+	Properties fingerprints = new Properties();
+	boolean modified = false;
+
+	public BranchFingerprints(File file) {
+		this.file = file;
+	}
+
+	public void load() throws IOException {
+		fingerprints.clear();
+		if (file.exists()) {
+			try (InputStream in = new FileInputStream(file)) {
+				fingerprints.load(in);
+			}
+		}
+		modified = false;
+	}
+
+	public void save() throws IOException {
+		if (!modified) {
+			return;
+		}
+		File parentDir = file.getParentFile();
+		if (parentDir != null && !parentDir.exists()) {
+			parentDir.mkdirs();
+		}
+		try (OutputStream out = new FileOutputStream(file)) {
+			fingerprints.store(out, "fingerprints of the integration branches at their last successful sync");
+		}
+		modified = false;
+	}
+
+	public String get(String branchName) {
+		return fingerprints.getProperty(branchName);
+	}
+
+	public void put(String branchName, String fingerprint) {
+		if (fingerprint == null) {
+			remove(branchName);
+		} else if (!fingerprint.equals(fingerprints.put(branchName, fingerprint))) {
+			modified = true;
+		}
+	}
+
+	public void remove(String branchName) {
+		if (fingerprints.remove(branchName) != null) {
+			modified = true;
+		}
+	}
+
+	/**
+	 * forget the fingerprints of the branches that are not in the given collection
+	 */
+	public void retainAll(Collection<String> branchNames) {
+		if (fingerprints.keySet().retainAll(branchNames)) {
+			modified = true;
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+/**
+ * Strategy used to record the submodule updates in the branches of the parent repository
+ */
+public enum CommitEngine {
+	/**
+	 * checkout each branch of the parent and its submodules in the working tree, then use git add/commit
+	 */
+	CHECKOUT,
+	/**
+	 * build the commits directly in the object database and update refs/heads/&lt;branch&gt;, 
+	 * the working tree is never touched
+	 */
+	INMEMORY
+}
@@ -0,0 +1,195 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of the metadata of the commits used by the sync (author, commit time and short message), 
+ * keyed by commit id and persisted on disk between runs.
+ * 
+ * As commit ids are content based, a single cache can be shared by the parent and all the submodules.
+ * The least recently used entries are evicted when the cache exceeds its maximum size.
+ * This class is thread safe.
+ */
+public class CommitMetadataCache {
+
+	Logger logger = LoggerFactory.getLogger(CommitMetadataCache.class);
+
+	/**
+	 * Metadata of a commit
+	 */
+	public static class CommitMetadata {
+		PersonIdent author;
+		int commitTime;
+		String shortMessage;
+
+		public CommitMetadata(PersonIdent author, int commitTime, String shortMessage) {
+			this.author = author;
+			this.commitTime = commitTime;
+			this.shortMessage = shortMessage;
+		}
+
+		public PersonIdent getAuthorIdent() {
+			return author;
+		}
+
+		/**
+		 * @return commit time in seconds since the epoch
+		 */
+		public int getCommitTime() {
+			return commitTime;
+		}
+
+		public String getShortMessage() {
+			return shortMessage;
+		}
+	}
+
+	File file;
+	int maxEntries;
+	Map<ObjectId, CommitMetadata> entries;
+	boolean modified = false;
+	int hits = 0;
+	int misses = 0;
+
+	/**
+	 * @param file file where the cache is persisted
+	 * @param maxEntries maximum number of commits kept in the cache
+	 */
+	public CommitMetadataCache(File file, int maxEntries) {
+		this.file = file;
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<ObjectId, CommitMetadata>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ObjectId, CommitMetadata> eldest) {
+				return size() > CommitMetadataCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Get the metadata of a commit, reading the commit from the repository only if it isn't in the cache yet
+	 * 
+	 * @throws IOException if the commit cannot be read
+	 */
+	public CommitMetadata get(Repository repository, ObjectId commitId) throws IOException {
+		synchronized (this) {
+			CommitMetadata metadata = entries.get(commitId);
+			if (metadata != null) {
+				hits++;
+				return metadata;
+			}
+			misses++;
+		}
+		CommitMetadata metadata;
+		try (RevWalk revWalk = new RevWalk(repository)) {
+			RevCommit commit = revWalk.parseCommit(commitId);
+			metadata = new CommitMetadata(commit.getAuthorIdent(), commit.getCommitTime(), commit.getShortMessage());
+		}
+		synchronized (this) {
+			entries.put(commitId.copy(), metadata);
+			modified = true;
+		}
+		return metadata;
+	}
+
+	/**
+	 * @return number of lookups answered by the cache
+	 */
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return number of lookups that required to parse the commit
+	 */
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * reset the hit and miss counters, the entries are kept
+	 */
+	public synchronized void resetStatistics() {
+		hits = 0;
+		misses = 0;
+	}
+
+	public synchronized void load() throws IOException {
+		entries.clear();
+		modified = false;
+		if (!file.exists()) {
+			return;
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// id, author name, author email, author time (ms), author timezone offset (min), commit time (s), short message
+				String[] fields = line.split("\t", 7);
+				if (fields.length != 7 || !ObjectId.isId(fields[0])) {
+					logger.debug("ignoring invalid line in " + file + ": " + line);
+					continue;
+				}
+				try {
+					PersonIdent author = new PersonIdent(fields[1], fields[2], Long.parseLong(fields[3]),
+							Integer.parseInt(fields[4]));
+					entries.put(ObjectId.fromString(fields[0]), new CommitMetadata(author, Integer.parseInt(fields[5]), fields[6]));
+				} catch (NumberFormatException e) {
+					logger.debug("ignoring invalid line in " + file + ": " + line);
+				}
+			}
+		}
+	}
+
+	public synchronized void save() throws IOException {
+		if (!modified || maxEntries <= 0) {
+			return;
+		}
+		File parentDir = file.getParentFile();
+		if (parentDir != null && !parentDir.exists()) {
+			parentDir.mkdirs();
+		}
+		// entries are written from the least to the most recently used so the order is kept when reloading
+		List<Map.Entry<ObjectId, CommitMetadata>> snapshot = new ArrayList<Map.Entry<ObjectId, CommitMetadata>>(entries.entrySet());
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+			for (Map.Entry<ObjectId, CommitMetadata> entry : snapshot) {
+				CommitMetadata metadata = entry.getValue();
+				writer.write(entry.getKey().name() + "\t" 
+						+ clean(metadata.author.getName()) + "\t" 
+						+ clean(metadata.author.getEmailAddress()) + "\t"
+						+ metadata.author.getWhen().getTime() + "\t" 
+						+ metadata.author.getTimeZoneOffset() + "\t" 
+						+ metadata.commitTime + "\t" 
+						+ clean(metadata.shortMessage));
+				writer.newLine();
+			}
+		}
+		modified = false;
+		logger.debug("commit metadata cache: " + hits + " hits, " + misses + " misses, " + snapshot.size() + " entries saved");
+	}
+
+	private static String clean(String value) {
+		return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+}
@@ -0,0 +1,255 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.util.FS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared object cache: local bare mirrors of the parent and component (submodule) repositories,
+ * shared by several parent repositories and by successive runs.
+ *
+ * Each remote is fetched into its mirror at most once per cycle, whatever the number of parents using it.
+ * The local repositories borrow the objects of the mirrors through their git alternates,
+ * so they only fetch the objects missing in the mirrors. The mirrors are never garbage collected,
+ * deleting objects would corrupt the repositories borrowing them.
+ *
+ * The mirrors can be used concurrently by several threads and several processes (eg. CI jobs sharing a cache volume):
+ * the changes of a mirror are done under a lock file.
+ */
+public class ComponentMirrors {
+
+	static Logger logger = LoggerFactory.getLogger(ComponentMirrors.class);
+
+	/** folder of a mirror containing the data of this tool */
+	static final String MIRROR_DATA = "sync-git-submodules-branches";
+
+	File folder;
+
+	Map<String, Object> locks = new ConcurrentHashMap<String, Object>();
+	Set<String> fetchedURLs = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param folder folder containing the mirrors
+	 */
+	public ComponentMirrors(File folder) {
+		this.folder = folder.getAbsoluteFile();
+	}
+
+	public File getFolder() {
+		return folder;
+	}
+
+	/**
+	 * Start a new cycle: the next requests fetch the mirrors again
+	 */
+	public void newCycle() {
+		fetchedURLs.clear();
+	}
+
+	/**
+	 * @return the mirror of the remote URL, it may not exist yet
+	 */
+	public File getMirror(String remoteURL) {
+		String name = RepositoryURLs.normalize(remoteURL).replaceAll("[^A-Za-z0-9._-]+", "_");
+		return new File(folder, name + "-" + Integer.toHexString(remoteURL.hashCode()) + ".git");
+	}
+
+	/**
+	 * Create or fetch the mirror of remoteURL, unless it has already been fetched during this cycle
+	 *
+	 * @param credentialProvider credentials of the sync requiring the mirror, the repositories of a fleet may have their own
+	 * @param metrics metrics of the sync requiring the mirror
+	 * @return the file:// URL of the mirror
+	 * @throws GitAPIException
+	 * @throws IOException
+	 */
+	public String fetch(String remoteURL, CredentialsProvider credentialProvider, SyncMetrics metrics) throws GitAPIException, IOException {
+		File mirror = getMirror(remoteURL);
+		synchronized (getLock(remoteURL)) {
+			if (fetchedURLs.add(remoteURL)) {
+				long start = metrics.start();
+				try (FileChannel channel = openLockFile(mirror)) {
+					FileLock lock = channel.lock();
+					try {
+						if (!new File(mirror, "objects").exists()) {
+							logger.info("Creating mirror of " + remoteURL + " in " + mirror);
+							Git.init().setBare(true).setDirectory(mirror).call().close();
+						} else {
+							logger.info("Fetching mirror of " + remoteURL);
+						}
+						try (Git git = Git.open(mirror)) {
+							StoredConfig config = git.getRepository().getConfig();
+							config.setString("remote", "origin", "url", remoteURL);
+							config.setString("remote", "origin", "fetch", "+refs/heads/*:refs/heads/*");
+							config.save();
+							git.fetch().setRemote("origin")
+								.setRemoveDeletedRefs(true)
+								.setProgressMonitor(metrics.newProgressMonitor())
+								.setCredentialsProvider(credentialProvider)
+								.call();
+						}
+						touch(mirror);
+					} finally {
+						lock.release();
+					}
+				} catch (GitAPIException | IOException e) {
+					// let the next request retry
+					fetchedURLs.remove(remoteURL);
+					throw e;
+				}
+				metrics.record(SyncMetrics.PHASES, "mirror", start);
+			}
+		}
+		return "file://" + mirror.getPath();
+	}
+
+	/**
+	 * Let the repository gitDir borrow the objects of the mirror of remoteURL through its alternates.
+	 * Must be called before the repository reads any object, and after fetch() created the mirror
+	 *
+	 * @throws IOException
+	 */
+	public void borrow(File gitDir, String remoteURL) throws IOException {
+		File mirror = getMirror(remoteURL);
+		String borrower = gitDir.getAbsoluteFile().toPath().normalize().toString();
+		synchronized (getLock(remoteURL)) {
+			try (FileChannel channel = openLockFile(mirror)) {
+				FileLock lock = channel.lock();
+				try {
+					File alternatesFile = new File(gitDir, "objects/info/alternates");
+					List<String> alternates = readLines(alternatesFile);
+					String mirrorObjects = new File(mirror, "objects").getPath();
+					if (!alternates.contains(mirrorObjects)) {
+						alternates.add(mirrorObjects);
+						writeLines(alternatesFile, alternates);
+					}
+					File borrowersFile = new File(mirror, MIRROR_DATA + "/borrowers");
+					List<String> borrowers = readLines(borrowersFile);
+					if (!borrowers.contains(borrower)) {
+						borrowers.add(borrower);
+						writeLines(borrowersFile, borrowers);
+					}
+					touch(mirror);
+				} finally {
+					lock.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delete the mirrors which are not borrowed by any existing repository anymore and were not used for retentionDays
+	 *
+	 * @return the number of deleted mirrors
+	 * @throws IOException
+	 */
+	public int cleanup(int retentionDays) throws IOException {
+		File[] mirrors = folder.listFiles(file -> file.isDirectory() && file.getName().endsWith(".git"));
+		if (mirrors == null) {
+			return 0;
+		}
+		long oldestUse = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retentionDays);
+		int deleted = 0;
+		for (File mirror : mirrors) {
+			FileBasedConfig config = new FileBasedConfig(new File(mirror, "config"), FS.DETECTED);
+			try {
+				config.load();
+			} catch (ConfigInvalidException e) {
+				logger.warn("Ignoring invalid mirror " + mirror + ": " + e.getMessage());
+				continue;
+			}
+			String remoteURL = config.getString("remote", "origin", "url");
+			if (remoteURL == null || !getMirror(remoteURL).equals(mirror)) {
+				continue;
+			}
+			synchronized (getLock(remoteURL)) {
+				try (FileChannel channel = openLockFile(mirror)) {
+					FileLock lock = channel.lock();
+					try {
+						String mirrorObjects = new File(mirror, "objects").getPath();
+						File borrowersFile = new File(mirror, MIRROR_DATA + "/borrowers");
+						List<String> borrowers = new ArrayList<String>();
+						for (String borrower : readLines(borrowersFile)) {
+							// a borrower deleted (eg. a temporary clone) or no longer pointing to this mirror is forgotten
+							if (readLines(new File(borrower, "objects/info/alternates")).contains(mirrorObjects)) {
+								borrowers.add(borrower);
+							}
+						}
+						if (borrowers.isEmpty() && getLastUse(mirror) < oldestUse) {
+							logger.info("Deleting unused mirror of " + remoteURL + " (" + mirror + ")");
+							FileUtils.deleteDirectory(mirror);
+							fetchedURLs.remove(remoteURL);
+							deleted++;
+						} else {
+							writeLines(borrowersFile, borrowers);
+						}
+					} finally {
+						lock.release();
+					}
+				}
+			}
+		}
+		return deleted;
+	}
+
+	protected Object getLock(String remoteURL) {
+		return locks.computeIfAbsent(remoteURL, url -> new Object());
+	}
+
+	/**
+	 * @return the channel of the lock file of the mirror, kept next to it so it survives the deletion of the mirror
+	 */
+	protected FileChannel openLockFile(File mirror) throws IOException {
+		folder.mkdirs();
+		return FileChannel.open(new File(folder, mirror.getName() + ".lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+	}
+
+	protected void touch(File mirror) throws IOException {
+		File lastUse = new File(mirror, MIRROR_DATA + "/last-use");
+		lastUse.getParentFile().mkdirs();
+		FileUtils.touch(lastUse);
+	}
+
+	protected long getLastUse(File mirror) {
+		File lastUse = new File(mirror, MIRROR_DATA + "/last-use");
+		return lastUse.exists() ? lastUse.lastModified() : mirror.lastModified();
+	}
+
+	protected static List<String> readLines(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		if (file.exists()) {
+			for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+				if (!line.trim().isEmpty()) {
+					lines.add(line.trim());
+				}
+			}
+		}
+		return lines;
+	}
+
+	protected static void writeLines(File file, List<String> lines) throws IOException {
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,91 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Forwards the events to several sinks, eg. the markdown report and the NDJSON events
+ */
+public class CompositeReportSink implements ReportSink {
+
+	List<ReportSink> sinks;
+
+	public CompositeReportSink(ReportSink... sinks) {
+		this.sinks = new ArrayList<ReportSink>(Arrays.asList(sinks));
+	}
+
+	@Override
+	public void repositoryStarted(String repositoryName, String gitRemoteURL) throws IOException {
+		for (ReportSink sink : sinks) {
+			sink.repositoryStarted(repositoryName, gitRemoteURL);
+		}
+	}
+
+	@Override
+	public void repositoryFailed(String repositoryName, String message) throws IOException {
+		for (ReportSink sink : sinks) {
+			sink.repositoryFailed(repositoryName, message);
+		}
+	}
+
+	@Override
+	public void branchDeleted(String branchName) throws IOException {
+		for (ReportSink sink : sinks) {
+			sink.branchDeleted(branchName);
+		}
+	}
+
+	@Override
+	public void branchCreated(String branchName) throws IOException {
+		for (ReportSink sink : sinks) {
+			sink.branchCreated(branchName);
+		}
+	}
+
+	@Override
+	public void branchSkipped(String branchName) throws IOException {
+		for (ReportSink sink : sinks) {
+			sink.branchSkipped(branchName);
+		}
+	}
+
+	@Override
+	public void branchStarted(String branchName) throws IOException {
+		for (ReportSink sink : sinks) {
+			sink.branchStarted(branchName);
+		}
+	}
+
+	@Override
+	public void moduleTracked(String branchName, String moduleName, String trackedBranchName,
+			ObjectId oldGitlink, ObjectId newGitlink, boolean updated) throws IOException {
+		for (ReportSink sink : sinks) {
+			sink.moduleTracked(branchName, moduleName, trackedBranchName, oldGitlink, newGitlink, updated);
+		}
+	}
+
+	@Override
+	public void commitCreated(String branchName, ObjectId commitId, String message) throws IOException {
+		for (ReportSink sink : sinks) {
+			sink.commitCreated(branchName, commitId, message);
+		}
+	}
+
+	@Override
+	public void branchPushed(String branchName, String status) throws IOException {
+		for (ReportSink sink : sinks) {
+			sink.branchPushed(branchName, status);
+		}
+	}
+
+	@Override
+	public void branchDone(String branchName) throws IOException {
+		for (ReportSink sink : sinks) {
+			sink.branchDone(branchName);
+		}
+	}
+}
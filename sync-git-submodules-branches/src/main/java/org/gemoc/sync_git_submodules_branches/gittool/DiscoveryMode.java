@@ -0,0 +1,16 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+/**
+ * Source of the submodule branches used to decide which integration branches must exist
+ */
+public enum DiscoveryMode {
+	/**
+	 * remote tracking branches of the submodules cloned in the local repository
+	 */
+	CLONE,
+	/**
+	 * branches advertised by the submodule remotes (ls-remote on the urls declared in .gitmodules), 
+	 * the submodules don't need to be cloned
+	 */
+	LS_REMOTE
+}
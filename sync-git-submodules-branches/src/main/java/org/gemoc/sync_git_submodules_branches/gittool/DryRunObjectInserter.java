@@ -0,0 +1,24 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+
+/**
+ * Inserter of a dry run: the ids of the objects (blobs, trees, commits) are computed as if they were inserted, 
+ * but nothing is written in the object database
+ */
+class DryRunObjectInserter extends ObjectInserter.Formatter {
+
+	@Override
+	public ObjectId insert(int objectType, byte[] data, int off, int len) {
+		return idFor(objectType, data, off, len);
+	}
+
+	@Override
+	public ObjectId insert(int objectType, long length, InputStream in) throws IOException {
+		return idFor(objectType, length, in);
+	}
+}
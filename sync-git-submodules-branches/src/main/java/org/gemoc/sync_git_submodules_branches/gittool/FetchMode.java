@@ -0,0 +1,20 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+/**
+ * Amount of history retrieved when cloning or updating the parent repository and its submodules
+ */
+public enum FetchMode {
+	/**
+	 * full history of all branches (JGit clone and pull)
+	 */
+	FULL,
+	/**
+	 * only the tip commit of each branch (git command line with --depth 1)
+	 */
+	SHALLOW,
+	/**
+	 * only the commits of the inactivity threshold window, plus the tip of each branch 
+	 * (git command line with --shallow-since) 
+	 */
+	SHALLOW_SINCE
+}
@@ -0,0 +1,209 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sync of several parent (integration) repositories in a single process.
+ *
+ * The syncs run concurrently, at most maxConcurrentSyncs at a time. The managers share ComponentMirrors
+ * so a component used by several parents is fetched once per cycle.
+ * A failed sync doesn't stop the others, the results are gathered in a single report:
+ * the events of the parent repositories are reported one repository after the other, in the order they were added,
+ * the events of a repository whose turn has not come yet are kept until then.
+ */
+public class FleetSync {
+
+	static Logger logger = LoggerFactory.getLogger(FleetSync.class);
+
+	/**
+	 * A parent repository of the fleet and its settings
+	 */
+	static class FleetRepository {
+		String name;
+		GitModuleManager gitManager;
+		int inactivityThreshold;
+		boolean dryRun;
+	}
+
+	/**
+	 * An event sent to a ReportSink
+	 */
+	interface ReportEvent {
+		void send(ReportSink sink) throws IOException;
+	}
+
+	/**
+	 * Keeps the events until it is attached to the fleet report, then forwards them as they happen
+	 */
+	static class DeferredReportSink implements ReportSink {
+		List<ReportEvent> events = new ArrayList<ReportEvent>();
+		ReportSink target = null;
+
+		synchronized void attach(ReportSink target) throws IOException {
+			for (ReportEvent event : events) {
+				event.send(target);
+			}
+			events.clear();
+			this.target = target;
+		}
+
+		synchronized void send(ReportEvent event) throws IOException {
+			if (target != null) {
+				event.send(target);
+			} else {
+				events.add(event);
+			}
+		}
+
+		@Override
+		public void branchDeleted(String branchName) throws IOException {
+			send(sink -> sink.branchDeleted(branchName));
+		}
+
+		@Override
+		public void branchCreated(String branchName) throws IOException {
+			send(sink -> sink.branchCreated(branchName));
+		}
+
+		@Override
+		public void branchSkipped(String branchName) throws IOException {
+			send(sink -> sink.branchSkipped(branchName));
+		}
+
+		@Override
+		public void branchStarted(String branchName) throws IOException {
+			send(sink -> sink.branchStarted(branchName));
+		}
+
+		@Override
+		public void moduleTracked(String branchName, String moduleName, String trackedBranchName,
+				ObjectId oldGitlink, ObjectId newGitlink, boolean updated) throws IOException {
+			send(sink -> sink.moduleTracked(branchName, moduleName, trackedBranchName, oldGitlink, newGitlink, updated));
+		}
+
+		@Override
+		public void commitCreated(String branchName, ObjectId commitId, String message) throws IOException {
+			send(sink -> sink.commitCreated(branchName, commitId, message));
+		}
+
+		@Override
+		public void branchPushed(String branchName, String status) throws IOException {
+			send(sink -> sink.branchPushed(branchName, status));
+		}
+
+		@Override
+		public void branchDone(String branchName) throws IOException {
+			send(sink -> sink.branchDone(branchName));
+		}
+	}
+
+	int maxConcurrentSyncs;
+	ComponentMirrors componentMirrors;
+	Map<String, FleetRepository> repositories = new LinkedHashMap<String, FleetRepository>();
+	SyncMetrics metrics = new SyncMetrics();
+	List<String> failedRepositories = new ArrayList<String>();
+
+	/**
+	 * @param maxConcurrentSyncs maximum number of parent repositories synchronized at the same time
+	 * @param componentMirrors mirrors shared by the managers, null to let each manager fetch its submodules
+	 */
+	public FleetSync(int maxConcurrentSyncs, ComponentMirrors componentMirrors) {
+		this.maxConcurrentSyncs = Math.max(1, maxConcurrentSyncs);
+		this.componentMirrors = componentMirrors;
+	}
+
+	/**
+	 * @param name name of the parent repository in the report and the metrics
+	 * @param gitManager manager of the parent repository, its settings are kept
+	 */
+	public void addRepository(String name, GitModuleManager gitManager, int inactivityThreshold, boolean dryRun) {
+		FleetRepository repository = new FleetRepository();
+		repository.name = name;
+		repository.gitManager = gitManager;
+		repository.inactivityThreshold = inactivityThreshold;
+		repository.dryRun = dryRun;
+		if (componentMirrors != null) {
+			gitManager.setComponentMirrors(componentMirrors);
+		}
+		repositories.put(name, repository);
+	}
+
+	/**
+	 * Synchronize all the parent repositories
+	 *
+	 * @param reportSink receives the report of each parent repository, in the order they were added
+	 * @return true if all the syncs succeeded, see getFailedRepositories() otherwise
+	 * @throws IOException if the report cannot be written
+	 */
+	public boolean synchronizeAll(ReportSink reportSink) throws InterruptedException, IOException {
+		metrics = new SyncMetrics();
+		failedRepositories.clear();
+		if (componentMirrors != null) {
+			componentMirrors.newCycle();
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxConcurrentSyncs, Math.max(1, repositories.size())));
+		try {
+			Map<String, DeferredReportSink> reportSinks = new LinkedHashMap<String, DeferredReportSink>();
+			Map<String, Future<?>> syncs = new LinkedHashMap<String, Future<?>>();
+			for (FleetRepository repository : repositories.values()) {
+				DeferredReportSink repositorySink = new DeferredReportSink();
+				reportSinks.put(repository.name, repositorySink);
+				syncs.put(repository.name, executor.submit(() -> synchronize(repository, repositorySink)));
+			}
+			for (FleetRepository repository : repositories.values()) {
+				reportSink.repositoryStarted(repository.name, repository.gitManager.getGitRemoteURL());
+				reportSinks.get(repository.name).attach(reportSink);
+				try {
+					syncs.get(repository.name).get();
+				} catch (ExecutionException e) {
+					logger.error("Sync of " + repository.name + " failed: " + e.getCause().getMessage(), e.getCause());
+					reportSink.repositoryFailed(repository.name, e.getCause().getMessage());
+					failedRepositories.add(repository.name);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return failedRepositories.isEmpty();
+	}
+
+	protected Void synchronize(FleetRepository repository, ReportSink reportSink) throws Exception {
+		logger.info("Synchronizing " + repository.name + " (" + repository.gitManager.getGitRemoteURL() + ")");
+		long start = metrics.start();
+		repository.gitManager.resetMetrics();
+		try {
+			repository.gitManager.synchronize(repository.inactivityThreshold, reportSink, repository.dryRun);
+		} finally {
+			metrics.record(SyncMetrics.REPOSITORIES, repository.name, start);
+			metrics.addAll(repository.gitManager.getMetrics());
+		}
+		return null;
+	}
+
+	/**
+	 * @return the names of the parent repositories whose last sync failed
+	 */
+	public List<String> getFailedRepositories() {
+		return failedRepositories;
+	}
+
+	/**
+	 * @return the metrics of the last cycle: wall time of each parent repository,
+	 * timings of the phases and counters summed over all of them
+	 */
+	public SyncMetrics getMetrics() {
+		return metrics;
+	}
+}
@@ -2,46 +2,87 @@ package org.gemoc.sync_git_submodules_branches.gittool;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.AddCommand;
 import org.eclipse.jgit.api.CreateBranchCommand.SetupUpstreamMode;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.ListBranchCommand.ListMode;
-import org.eclipse.jgit.api.PullResult;
+import org.eclipse.jgit.api.MergeResult;
+import org.eclipse.jgit.api.ResetCommand.ResetType;
 import org.eclipse.jgit.api.Status;
 import org.eclipse.jgit.api.errors.CanceledException;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.InvalidConfigurationException;
 import org.eclipse.jgit.api.errors.InvalidRemoteException;
+import org.eclipse.jgit.api.errors.JGitInternalException;
 import org.eclipse.jgit.api.errors.NoHeadException;
 import org.eclipse.jgit.api.errors.RefNotAdvertisedException;
 import org.eclipse.jgit.api.errors.RefNotFoundException;
 import org.eclipse.jgit.api.errors.TransportException;
 import org.eclipse.jgit.api.errors.WrongRepositoryStateException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.BlobBasedConfig;
+import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.ConfigConstants;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.lib.SubmoduleConfig.FetchRecurseSubmodulesMode;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.lib.StoredConfig;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileBasedConfig;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.eclipse.jgit.submodule.SubmoduleStatus;
 import org.eclipse.jgit.submodule.SubmoduleWalk;
 import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.FetchResult;
 import org.eclipse.jgit.transport.PushResult;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.TrackingRefUpdate;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.util.FS;
+import org.gemoc.sync_git_submodules_branches.gittool.CommitMetadataCache.CommitMetadata;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,6 +100,62 @@ public class GitModuleManager {
 	CredentialsProvider credentialProvider;
 	String masterBranchName = "master";
 	PersonIdent defaultCommitter = null;
+	/** number of submodules analyzed concurrently when collecting their branches */
+	int discoveryThreads = 1;
+	/** number of submodules fetched or cloned concurrently when cloning or updating the local repository */
+	int submoduleFetchThreads = 4;
+	CommitEngine commitEngine = CommitEngine.CHECKOUT;
+	/** when set, the pushes of all phases are collected and sent by pushPendingUpdates() */
+	PushBatch pushBatch = null;
+	/** skip the integration branches whose inputs didn't change since their last successful sync */
+	boolean incrementalSync = false;
+	BranchFingerprints branchFingerprints = null;
+	/** branches synchronized in this run whose fingerprint will be recorded once pushed */
+	Set<String> branchesToFingerprint = new TreeSet<String>();
+	FetchMode fetchMode = FetchMode.FULL;
+	UpdateMode updateMode = UpdateMode.PULL;
+	/** size in days of the history window retrieved in SHALLOW_SINCE fetch mode, negative for depth 1 only */
+	int shallowSinceDays = -1;
+	DiscoveryMode discoveryMode = DiscoveryMode.CLONE;
+	/** maximum number of commits kept in the commit metadata cache, 0 to disable it */
+	int commitMetadataCacheSize = 10000;
+	/** create a single commit per integration branch instead of one commit per updated submodule */
+	boolean singleCommitPerBranch = false;
+	/** consider the submodule branches already merged in their master branch as inactive */
+	boolean pruneMergedBranches = false;
+	CommitMetadataCache commitMetadataCache = null;
+	/** index of the branches of each repository (parent and submodules) by git directory */
+	Map<File, RefIndex> refIndexes = new ConcurrentHashMap<File, RefIndex>();
+	/** timings and counters of the run */
+	SyncMetrics metrics = new SyncMetrics();
+	/** keep the parent repository open between phases and runs (daemon mode) */
+	boolean keepRepositoriesOpen = false;
+	/** git directory of the submodule repositories registered in the RepositoryCache, indexed by work tree */
+	Map<File, File> submoduleGitDirs = new ConcurrentHashMap<File, File>();
+	/** mirrors whose objects are borrowed by the local repositories, null to fetch everything from the remotes */
+	ComponentMirrors componentMirrors = null;
+	/** file receiving the JSON plan of each sync, null to not write it */
+	File planFile = null;
+	/** integration branches synchronized by the tool, the other ones are neither created, updated nor deleted */
+	BranchFilter branchFilter = BranchFilter.ALL;
+	/** additional filters of the branches tracked in each submodule, indexed by module name */
+	Map<String, BranchFilter> submoduleBranchFilters = new HashMap<String, BranchFilter>();
+	/** maximum number of concurrent fetch, push or ls-remote on a given host, 0 or less for no limit */
+	int maxConnectionsPerHost = 4;
+	/** number of retries of an operation failing with a transient transport error */
+	int transportRetries = 3;
+	/** delay before the first retry of a transport operation, doubled for each following one */
+	long transportRetryDelayMillis = 1000;
+	/** transports kept open during a run, see closeTransports() */
+	TransportPool transportPool = null;
+	/** check and repair the existing local repository before updating it, clone it again if it cannot be repaired */
+	boolean repairLocalRepository = false;
+	/** index of the shard of integration branches synchronized by this manager, in [0, shardCount) */
+	int shardIndex = 0;
+	/** number of managers sharing the integration branches, 1 for no sharding */
+	int shardCount = 1;
+	/** number of times the update of a branch is computed again and pushed after its lease has been rejected */
+	int leaseRetries = 3;
 
 
 	/**
@@ -82,67 +179,1068 @@ public class GitModuleManager {
 		}
 	}
 
+	/**
+	 * @param discoveryThreads number of submodules analyzed concurrently when collecting their branches
+	 */
+	public void setDiscoveryThreads(int discoveryThreads) {
+		this.discoveryThreads = Math.max(1, discoveryThreads);
+	}
+
+	/**
+	 * @param submoduleFetchThreads number of submodules fetched or cloned concurrently when cloning or updating the local repository,
+	 * the connections to a given host are still limited by maxConnectionsPerHost
+	 */
+	public void setSubmoduleFetchThreads(int submoduleFetchThreads) {
+		this.submoduleFetchThreads = Math.max(1, submoduleFetchThreads);
+	}
+
+	/**
+	 * @param commitEngine strategy used to create the commits of the parent branches
+	 */
+	public void setCommitEngine(CommitEngine commitEngine) {
+		this.commitEngine = commitEngine;
+	}
+
+	/**
+	 * @param pushBatch batch collecting the pushes of all phases, null to push each branch immediately
+	 */
+	public void setPushBatch(PushBatch pushBatch) {
+		this.pushBatch = pushBatch;
+	}
+
+	/**
+	 * @param incrementalSync skip the integration branches whose inputs didn't change since their last successful sync
+	 */
+	public void setIncrementalSync(boolean incrementalSync) {
+		this.incrementalSync = incrementalSync;
+	}
+
+	/**
+	 * @param fetchMode amount of history retrieved when cloning or updating
+	 */
+	public void setFetchMode(FetchMode fetchMode) {
+		this.fetchMode = fetchMode;
+	}
+
+	/**
+	 * @param updateMode strategy used to refresh an existing local repository in FULL fetch mode
+	 */
+	public void setUpdateMode(UpdateMode updateMode) {
+		this.updateMode = updateMode;
+	}
+
+	/**
+	 * @param repairLocalRepository check the local repository kept from a previous run (lock files, unfinished merge, 
+	 * refs to missing objects, broken submodules...) and repair it before updating it, 
+	 * it is cloned again only if it cannot be repaired or its update fails
+	 */
+	public void setRepairLocalRepository(boolean repairLocalRepository) {
+		this.repairLocalRepository = repairLocalRepository;
+	}
+
+	/**
+	 * Split the integration branches between several managers (eg. CI workers) by a stable hash of their name: 
+	 * this manager only creates, updates and deletes the branches of its shard.
+	 * 
+	 * @param shardIndex index of the shard of this manager, from 0 to shardCount - 1
+	 * @param shardCount number of shards, 1 for no sharding
+	 */
+	public void setShard(int shardIndex, int shardCount) {
+		if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+			throw new IllegalArgumentException("Invalid shard " + shardIndex + " of " + shardCount);
+		}
+		this.shardIndex = shardIndex;
+		this.shardCount = shardCount;
+	}
+
+	/**
+	 * @param leaseRetries number of times the update of a branch is computed again from the new remote branch and pushed, 
+	 * when the remote branch has been changed by another process since it was fetched
+	 */
+	public void setLeaseRetries(int leaseRetries) {
+		this.leaseRetries = Math.max(0, leaseRetries);
+	}
+
+	/**
+	 * @param shallowSinceDays size in days of the history window retrieved in SHALLOW_SINCE fetch mode 
+	 * (typically the inactivity threshold), negative to retrieve only the tip of the branches
+	 */
+	public void setShallowSinceDays(int shallowSinceDays) {
+		this.shallowSinceDays = shallowSinceDays;
+	}
+
+	/**
+	 * @param discoveryMode source of the submodule branches used to decide which integration branches must exist
+	 */
+	public void setDiscoveryMode(DiscoveryMode discoveryMode) {
+		this.discoveryMode = discoveryMode;
+	}
+
+	/**
+	 * @param commitMetadataCacheSize maximum number of commits kept in the commit metadata cache persisted in the local repository, 
+	 * 0 to disable it
+	 */
+	public void setCommitMetadataCacheSize(int commitMetadataCacheSize) {
+		this.commitMetadataCacheSize = commitMetadataCacheSize;
+	}
+
+	/**
+	 * @param singleCommitPerBranch gather all the submodule updates of a branch in a single commit 
+	 * instead of creating one commit per updated submodule
+	 */
+	public void setSingleCommitPerBranch(boolean singleCommitPerBranch) {
+		this.singleCommitPerBranch = singleCommitPerBranch;
+	}
+
+	/**
+	 * @param pruneMergedBranches consider a submodule branch whose tip is reachable from the master branch of the submodule 
+	 * as inactive, whatever its age, so its integration branch is deleted once merged in all the submodules. 
+	 * A branch still at the tip of master (eg. just created) is not merged. 
+	 * With a shallow history, a branch merged before the history boundary is still seen as active
+	 */
+	public void setPruneMergedBranches(boolean pruneMergedBranches) {
+		this.pruneMergedBranches = pruneMergedBranches;
+	}
+
+	/**
+	 * @param keepRepositoriesOpen keep the parent and submodule repositories (and their ref and object database caches) open 
+	 * between the phases and the runs of a long running process, they are then shared through the JGit RepositoryCache
+	 */
+	public void setKeepRepositoriesOpen(boolean keepRepositoriesOpen) {
+		this.keepRepositoriesOpen = keepRepositoriesOpen;
+	}
+
+	/**
+	 * @param componentMirrors mirrors shared with other managers and runs, whose objects are borrowed 
+	 * by the parent repository and its submodules in FULL fetch mode, null to fetch them directly from their remote
+	 */
+	public void setComponentMirrors(ComponentMirrors componentMirrors) {
+		this.componentMirrors = componentMirrors;
+	}
+
+	/**
+	 * @param planFile file receiving the JSON plan of each sync as soon as it is computed, null to not write it
+	 */
+	public void setPlanFile(File planFile) {
+		this.planFile = planFile;
+	}
+
+	/**
+	 * @param branchFilter filter of the integration branches managed by the tool (the master branch is always kept), 
+	 * also applied to the branches of the submodules before their tip commit is read
+	 */
+	public void setBranchFilter(BranchFilter branchFilter) {
+		this.branchFilter = branchFilter != null ? branchFilter : BranchFilter.ALL;
+	}
+
+	/**
+	 * @param moduleName name of the submodule in .gitmodules
+	 * @param branchFilter additional filter of the branches of this submodule: an excluded branch neither 
+	 * creates an integration branch nor is tracked (the submodule stays on its master branch), null to remove it
+	 */
+	public void setSubmoduleBranchFilter(String moduleName, BranchFilter branchFilter) {
+		if (branchFilter == null) {
+			submoduleBranchFilters.remove(moduleName);
+		} else {
+			submoduleBranchFilters.put(moduleName, branchFilter);
+		}
+	}
+
+	/**
+	 * @param maxConnectionsPerHost maximum number of concurrent fetch, push or ls-remote on a given host, 0 for no limit
+	 */
+	public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+	}
+
+	/**
+	 * @param transportRetries number of retries of a fetch, push or ls-remote failing with a transient transport error, 0 to fail immediately
+	 * @param transportRetryDelayMillis delay before the first retry, doubled for each following one
+	 */
+	public void setTransportRetries(int transportRetries, long transportRetryDelayMillis) {
+		this.transportRetries = transportRetries;
+		this.transportRetryDelayMillis = transportRetryDelayMillis;
+	}
+
+	/**
+	 * @return the pool of the transports of the run, created on first use
+	 */
+	protected synchronized TransportPool getTransportPool() {
+		if (transportPool == null) {
+			transportPool = new TransportPool(maxConnectionsPerHost, transportRetries, transportRetryDelayMillis);
+		}
+		return transportPool;
+	}
+
+	/**
+	 * Close the transports kept open by the fetches, pushes and ls-remote of the run, 
+	 * the next operations open new ones
+	 */
+	public synchronized void closeTransports() {
+		if (transportPool != null) {
+			transportPool.close();
+			transportPool = null;
+		}
+	}
+
+	/**
+	 * @return true if the integration branch is managed by the tool
+	 */
+	protected boolean isManagedBranch(String branchName) {
+		return isInShard(branchName) && (branchName.equals(masterBranchName) || branchFilter.matches(branchName));
+	}
+
+	/**
+	 * @return true if the integration branch belongs to the shard of this manager, 
+	 * the hash of the name doesn't depend on the JVM so all the workers agree on the shard of each branch
+	 */
+	protected boolean isInShard(String branchName) {
+		if (shardCount <= 1) {
+			return true;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(branchName.getBytes(StandardCharsets.UTF_8));
+		return crc.getValue() % shardCount == shardIndex;
+	}
+
+	/**
+	 * @return true if the branch of the submodule may be tracked by an integration branch
+	 */
+	protected boolean isTrackableBranch(String moduleName, String branchName) {
+		BranchFilter submoduleBranchFilter = submoduleBranchFilters.get(moduleName);
+		return branchFilter.matches(branchName) && (submoduleBranchFilter == null || submoduleBranchFilter.matches(branchName));
+	}
+
+	/**
+	 * @return the branch tips of the submodule whose branch is trackable
+	 */
+	protected Map<String, ObjectId> filterBranchTips(String moduleName, Map<String, ObjectId> branchTips) {
+		if (branchFilter.isEmpty() && !submoduleBranchFilters.containsKey(moduleName)) {
+			return branchTips;
+		}
+		Map<String, ObjectId> filteredTips = new TreeMap<String, ObjectId>();
+		for (Map.Entry<String, ObjectId> branchTip : branchTips.entrySet()) {
+			if (isTrackableBranch(moduleName, branchTip.getKey())) {
+				filteredTips.put(branchTip.getKey(), branchTip.getValue());
+			}
+		}
+		if (filteredTips.size() < branchTips.size()) {
+			logger.debug((branchTips.size() - filteredTips.size()) + " branches of " + moduleName + " filtered out");
+		}
+		return filteredTips;
+	}
+
+	/**
+	 * Let the next sync fetch the mirrors again, for the long running processes using their own mirrors
+	 */
+	public void newMirrorCycle() {
+		if (componentMirrors != null) {
+			componentMirrors.newCycle();
+		}
+	}
+
+	/**
+	 * Start recording a new set of metrics, typically for the next run of a long running process
+	 */
+	public void resetMetrics() {
+		metrics = new SyncMetrics();
+		if (commitMetadataCache != null) {
+			commitMetadataCache.resetStatistics();
+		}
+	}
+
+	/**
+	 * @return the timings and counters of the phases run so far by this manager
+	 */
+	public SyncMetrics getMetrics() {
+		if (commitMetadataCache != null) {
+			metrics.set(SyncMetrics.COMMITS_PARSED, commitMetadataCache.getMisses());
+			metrics.set(SyncMetrics.COMMIT_CACHE_HITS, commitMetadataCache.getHits());
+		}
+		return metrics;
+	}
+
 	/**
 	 * Clone the gitRemoteURL repository to localGitFolder
 	 * 
-	 * @throws InvalidRemoteException
-	 * @throws TransportException
-	 * @throws GitAPIException
+	 * @throws InvalidRemoteException
+	 * @throws TransportException
+	 * @throws GitAPIException
+	 * @throws IOException
+	 */
+	public void gitClone() throws InvalidRemoteException, TransportException, GitAPIException, IOException {
+		if (fetchMode != FetchMode.FULL) {
+			gitCloneShallow();
+			return;
+		}
+		if (componentMirrors != null) {
+			gitCloneFromMirrors();
+			return;
+		}
+		File localPath = new File(localGitFolder);
+		logger.info("Cloning from " + gitRemoteURL + " to " + localPath);
+		// the submodules are cloned concurrently by cloneSubmodules() instead of one after the other by setCloneSubmodules(true)
+		try (Git result = Git.cloneRepository().setURI(gitRemoteURL).setDirectory(localPath).setCredentialsProvider(credentialProvider)
+				.setCloneAllBranches(true).setProgressMonitor(metrics.newProgressMonitor()).call()) {
+			// Note: the call() returns an opened repository already which needs to be
+			// closed to avoid file handle leaks!
+			logger.info("Having repository: " + result.getRepository().getDirectory());
+			this.masterBranchName = result.getRepository().getBranch();
+			logger.info("master branch name: " + this.masterBranchName);
+			cloneSubmodules(result);
+		}
+	}
+
+	/**
+	 * Clone the gitRemoteURL repository and its submodules to localGitFolder, borrowing the objects of their mirror 
+	 * so only the objects missing in the mirrors are fetched.
+	 * JGit 5.2 clone has no --reference option, so the clone is done by an init, a fetch and a checkout
+	 * 
+	 * @throws GitAPIException
+	 * @throws IOException
+	 */
+	protected void gitCloneFromMirrors() throws GitAPIException, IOException {
+		File localPath = new File(localGitFolder).getAbsoluteFile();
+		logger.info("Cloning from " + gitRemoteURL + " to " + localPath + " with the mirrors of " + componentMirrors.getFolder());
+		componentMirrors.fetch(gitRemoteURL, credentialProvider, metrics);
+		Git.init().setDirectory(localPath).call().close();
+		componentMirrors.borrow(new File(localPath, Constants.DOT_GIT), gitRemoteURL);
+		try (Git result = Git.open(localPath)) {
+			StoredConfig config = result.getRepository().getConfig();
+			config.setString("remote", "origin", "url", gitRemoteURL);
+			config.setString("remote", "origin", "fetch", "+refs/heads/*:refs/remotes/origin/*");
+			config.save();
+			FetchResult fetchResult = getTransportPool().fetch(result.getRepository().getDirectory(), "origin", credentialProvider, false, metrics);
+			this.masterBranchName = getAdvertisedHeadBranch(fetchResult);
+			logger.info("master branch name: " + this.masterBranchName);
+			result.checkout().setCreateBranch(true).setName(masterBranchName)
+				.setStartPoint("origin/" + masterBranchName)
+				.setUpstreamMode(SetupUpstreamMode.TRACK)
+				.call();
+			logger.info("Having repository: " + result.getRepository().getDirectory());
+			fetchSubmodulesFromMirrors(result, false);
+		}
+	}
+
+	/**
+	 * @return the branch pointed by the HEAD advertised by the remote, master if unknown
+	 */
+	protected String getAdvertisedHeadBranch(FetchResult fetchResult) {
+		Ref head = fetchResult.getAdvertisedRef(Constants.HEAD);
+		if (head == null) {
+			return "master";
+		}
+		if (head.isSymbolic()) {
+			return Repository.shortenRefName(head.getTarget().getName());
+		}
+		Ref master = fetchResult.getAdvertisedRef(Constants.R_HEADS + "master");
+		if (master != null && head.getObjectId().equals(master.getObjectId())) {
+			return "master";
+		}
+		for (Ref ref : fetchResult.getAdvertisedRefs()) {
+			if (ref.getName().startsWith(Constants.R_HEADS) && head.getObjectId().equals(ref.getObjectId())) {
+				return Repository.shortenRefName(ref.getName());
+			}
+		}
+		return "master";
+	}
+	
+	public void gitUpdate() throws IOException, WrongRepositoryStateException, InvalidConfigurationException, InvalidRemoteException, CanceledException, RefNotFoundException, RefNotAdvertisedException, NoHeadException, TransportException, GitAPIException {
+		File localPath = new File(localGitFolder);
+		logger.info("Updating " + localPath + " from " + gitRemoteURL);
+		if (componentMirrors != null && fetchMode == FetchMode.FULL && new File(localPath, Constants.DOT_GIT).exists()) {
+			// the pull then only fetches the objects missing in the mirror
+			componentMirrors.fetch(gitRemoteURL, credentialProvider, metrics);
+			componentMirrors.borrow(new File(localPath, Constants.DOT_GIT), gitRemoteURL);
+		}
+		UpdateMode mode = updateMode;
+		if (repairLocalRepository) {
+			LocalRepositoryRepair repair = new LocalRepositoryRepair(localPath, gitRemoteURL);
+			LocalRepositoryRepair.Outcome outcome = repair.check();
+			if (outcome == LocalRepositoryRepair.Outcome.BROKEN) {
+				throw new WrongRepositoryStateException("Cannot repair " + localPath + ": " + repair.getRepairs());
+			}
+			if (outcome == LocalRepositoryRepair.Outcome.REPAIRED) {
+				metrics.increment(SyncMetrics.REPAIRS);
+				// the repository of a broken submodule may have been removed
+				unregisterSubmoduleRepositories();
+				// fetch again what has been removed and reset the branches and working trees
+				mode = UpdateMode.FETCH;
+			}
+		}
+		try (Repository parentRepository = openParentRepository();
+				Git result = new Git(parentRepository)) {
+			String url = result.getRepository().getConfig().getString("remote", "origin", "url");
+			if(gitRemoteURL.equals(url)) {
+				if (fetchMode == FetchMode.FULL && mode == UpdateMode.FETCH) {
+					gitUpdateFetchOnly(result);
+					return;
+				}
+				logger.info("Checkout "+masterBranchName+" branch from existing repository: " + result.getRepository().getDirectory());
+				result.checkout().setName(masterBranchName).call();
+				if (fetchMode != FetchMode.FULL) {
+					gitUpdateShallow(result);
+					return;
+				}
+				logger.info("Pulling existing repository: " + result.getRepository().getDirectory());
+				// pull = fetch through the transports of the run + merge, the deleted branches are pruned
+				// otherwise their stale remote branches keep them active (and their fingerprint unchanged)
+				FetchResult fetchResult = getTransportPool().fetch(parentRepository.getDirectory(), "origin", credentialProvider, true, metrics);
+				if (componentMirrors == null) {
+					fetchSubmodules(parentRepository, true);
+				}
+				Ref remoteMasterRef = parentRepository.exactRef("refs/remotes/origin/" + masterBranchName);
+				if (remoteMasterRef == null) {
+					throw new RefNotFoundException("No remote branch " + masterBranchName + " in " + gitRemoteURL);
+				}
+				MergeResult mergeResult = result.merge().include(remoteMasterRef).call();
+				if(!mergeResult.getMergeStatus().isSuccessful()){
+					logger.error("Failed to pull repository\n Please delete folder "+localGitFolder+" to perform a full clone.");
+					logger.error("fetch result: "+fetchResult.getMessages());
+					logger.error("merge result: "+mergeResult.getMergeStatus());
+					throw new WrongRepositoryStateException("Failed to pull repository");
+				}
+				if (componentMirrors != null) {
+					fetchSubmodulesFromMirrors(result, true);
+				}
+			} else {
+				logger.error("Existing folder doesn't point to the same url ("+url+")\n Please delete folder "+localGitFolder+" to perform a full clone.");
+				throw new InvalidRemoteException("Existing folder doesn't point to the same url ("+url+") Please delete this folder to perform a full clone.");
+			}
+		}
+	}
+	
+	/**
+	 * Refresh the existing local repository without merging: fetch the parent pruning the deleted branches, 
+	 * reset its working tree and local branches to the remote tips, then do the same for the submodules.
+	 * Whatever the local state left by a previous run (diverged or unpushed commits, dirty working tree), 
+	 * the result is identical to a fresh clone
+	 * 
+	 * @throws GitAPIException
+	 * @throws IOException
+	 */
+	protected void gitUpdateFetchOnly(Git parentgit) throws GitAPIException, IOException {
+		Repository parentRepository = parentgit.getRepository();
+		logger.info("Fetching existing repository: " + parentRepository.getDirectory());
+		getTransportPool().fetch(parentRepository.getDirectory(), "origin", credentialProvider, true, metrics);
+		if (parentRepository.exactRef("refs/remotes/origin/" + masterBranchName) == null) {
+			throw new RefNotFoundException("No remote branch " + masterBranchName + " in " + gitRemoteURL);
+		}
+		// discard any change left in the working tree before leaving the current branch
+		if (parentRepository.resolve(Constants.HEAD) != null) {
+			parentgit.reset().setMode(ResetType.HARD).call();
+		}
+		parentgit.checkout().setName(masterBranchName)
+			.setCreateBranch(parentRepository.exactRef(Constants.R_HEADS + masterBranchName) == null)
+			.setStartPoint("origin/" + masterBranchName)
+			.setUpstreamMode(SetupUpstreamMode.TRACK)
+			.call();
+		resetLocalBranches(parentgit);
+
+		if (componentMirrors != null) {
+			fetchSubmodulesFromMirrors(parentgit, true);
+		} else {
+			parentgit.submoduleInit().call();
+		}
+		boolean missingSubmodule = false;
+		Map<String, SubmoduleTransfer> transfers = new LinkedHashMap<String, SubmoduleTransfer>();
+		try (SubmoduleWalk walk = SubmoduleWalk.forIndex(parentRepository)) {
+			while (walk.next()) {
+				try (Repository submoduleRepository = openSubmoduleRepository(walk)) {
+					if (submoduleRepository == null) {
+						missingSubmodule = true;
+						if (componentMirrors == null) {
+							transfers.put(walk.getModuleName(), submoduleClone(parentRepository, walk));
+						}
+						continue;
+					}
+					File submoduleGitDir = submoduleRepository.getDirectory();
+					File submoduleWorkTree = submoduleRepository.getWorkTree();
+					transfers.put(walk.getModuleName(), submoduleMetrics -> {
+						if (componentMirrors == null) {
+							getTransportPool().fetch(submoduleGitDir, "origin", credentialProvider, true, submoduleMetrics);
+						}
+						try (Repository repository = new FileRepositoryBuilder().setGitDir(submoduleGitDir).setWorkTree(submoduleWorkTree).build();
+								Git submodulegit = new Git(repository)) {
+							resetLocalBranches(submodulegit);
+						}
+					});
+				}
+			}
+		}
+		runSubmoduleTransfers("Fetching", transfers);
+		if (missingSubmodule) {
+			// the repositories of the missing submodules have been cloned, only their recorded commit is checked out
+			parentgit.submoduleUpdate().setProgressMonitor(metrics.newProgressMonitor()).call();
+		}
+	}
+
+	/**
+	 * Fetch the initialized submodules of the parent repository from their remote, concurrently
+	 * 
+	 * @param prune remove the remote branches deleted from the remotes
+	 * @throws IOException
+	 * @throws GitAPIException
+	 */
+	protected void fetchSubmodules(Repository parentRepository, boolean prune) throws IOException, GitAPIException {
+		Map<String, SubmoduleTransfer> fetches = new LinkedHashMap<String, SubmoduleTransfer>();
+		try (SubmoduleWalk walk = SubmoduleWalk.forIndex(parentRepository)) {
+			while (walk.next()) {
+				try (Repository submoduleRepository = openSubmoduleRepository(walk)) {
+					if (submoduleRepository != null) {
+						File submoduleGitDir = submoduleRepository.getDirectory();
+						fetches.put(walk.getModuleName(), submoduleMetrics -> 
+							getTransportPool().fetch(submoduleGitDir, "origin", credentialProvider, prune, submoduleMetrics));
+					}
+				}
+			}
+		}
+		runSubmoduleTransfers("Fetching", fetches);
+	}
+
+	/**
+	 * Clone the submodules of a freshly cloned parent repository concurrently, 
+	 * then check them out at their recorded commit
+	 * 
+	 * @throws GitAPIException
+	 * @throws IOException
+	 */
+	protected void cloneSubmodules(Git parentgit) throws GitAPIException, IOException {
+		Repository parentRepository = parentgit.getRepository();
+		parentgit.submoduleInit().call();
+		Map<String, SubmoduleTransfer> clones = new LinkedHashMap<String, SubmoduleTransfer>();
+		try (SubmoduleWalk walk = SubmoduleWalk.forIndex(parentRepository)) {
+			while (walk.next()) {
+				try (Repository submoduleRepository = openSubmoduleRepository(walk)) {
+					if (submoduleRepository == null) {
+						clones.put(walk.getModuleName(), submoduleClone(parentRepository, walk));
+					}
+				}
+			}
+		}
+		runSubmoduleTransfers("Cloning", clones);
+		if (!clones.isEmpty()) {
+			// the submodule repositories exist, only their recorded commit is checked out
+			parentgit.submoduleUpdate().setProgressMonitor(metrics.newProgressMonitor()).call();
+		}
+	}
+
+	/**
+	 * @return a transfer creating the repository of the current submodule of walk (registered by a submodule init) 
+	 * and fetching all its branches, as the clone of a submodule update would do without checking it out
+	 */
+	protected SubmoduleTransfer submoduleClone(Repository parentRepository, SubmoduleWalk walk) throws IOException {
+		String url;
+		try {
+			url = walk.getConfigUrl() != null ? walk.getConfigUrl() 
+					: SubmoduleWalk.getSubmoduleRemoteUrl(parentRepository, walk.getModulesUrl());
+		} catch (ConfigInvalidException e) {
+			throw new IOException("Invalid " + Constants.DOT_GIT_MODULES, e);
+		}
+		File submoduleGitDir = new File(parentRepository.getDirectory(), Constants.MODULES + "/" + walk.getModuleName());
+		File submoduleWorkTree = walk.getDirectory();
+		return submoduleMetrics -> {
+			Git.init().setDirectory(submoduleWorkTree).setGitDir(submoduleGitDir).call().close();
+			try (Repository submoduleRepository = new FileRepositoryBuilder().setGitDir(submoduleGitDir).setWorkTree(submoduleWorkTree).build()) {
+				StoredConfig submoduleConfig = submoduleRepository.getConfig();
+				submoduleConfig.setString(ConfigConstants.CONFIG_REMOTE_SECTION, "origin", ConfigConstants.CONFIG_KEY_URL, url);
+				submoduleConfig.setString(ConfigConstants.CONFIG_REMOTE_SECTION, "origin", "fetch", "+refs/heads/*:refs/remotes/origin/*");
+				submoduleConfig.save();
+			}
+			getTransportPool().fetch(submoduleGitDir, "origin", credentialProvider, false, submoduleMetrics);
+		};
+	}
+
+	/**
+	 * Fetch or clone of a submodule, run by runSubmoduleTransfers()
+	 */
+	protected interface SubmoduleTransfer {
+		/**
+		 * @param submoduleMetrics metrics of this submodule only, added to the metrics of the run once done
+		 */
+		void run(SyncMetrics submoduleMetrics) throws IOException, GitAPIException;
+	}
+
+	/**
+	 * Run the transfers of the submodules on up to submoduleFetchThreads threads. 
+	 * The objects received and the wall time are logged per submodule as each one completes.
+	 * A failed transfer doesn't stop the others, the failures are thrown together once all the transfers are done: 
+	 * as a TransportException if all of them are transport errors
+	 * 
+	 * @param action description of the transfers in the log, eg. "Fetching"
+	 * @param transfers transfer of each submodule indexed by module name
+	 * @throws IOException
+	 * @throws GitAPIException
+	 */
+	protected void runSubmoduleTransfers(String action, Map<String, SubmoduleTransfer> transfers) throws IOException, GitAPIException {
+		if (transfers.isEmpty()) {
+			return;
+		}
+		long start = metrics.start();
+		AtomicInteger done = new AtomicInteger();
+		Map<String, Future<SyncMetrics>> results = new LinkedHashMap<String, Future<SyncMetrics>>();
+		Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(submoduleFetchThreads, transfers.size()));
+		try {
+			for (Map.Entry<String, SubmoduleTransfer> transfer : transfers.entrySet()) {
+				String moduleName = transfer.getKey();
+				results.put(moduleName, executor.submit(() -> {
+					logger.info(action + " submodule " + moduleName);
+					SyncMetrics submoduleMetrics = new SyncMetrics();
+					long transferStart = submoduleMetrics.start();
+					transfer.getValue().run(submoduleMetrics);
+					submoduleMetrics.record(SyncMetrics.SUBMODULE_TRANSFERS, moduleName, transferStart);
+					long objects = submoduleMetrics.getCounter(SyncMetrics.OBJECTS_FETCHED);
+					// the objects received by the git command line are not counted
+					logger.info(action + " submodule " + moduleName + " done in " + submoduleMetrics.getMillis(SyncMetrics.SUBMODULE_TRANSFERS, moduleName) + " ms" 
+							+ (objects > 0 ? ", " + objects + " objects received" : "") + " (" + done.incrementAndGet() + "/" + transfers.size() + ")");
+					return submoduleMetrics;
+				}));
+			}
+			for (Map.Entry<String, Future<SyncMetrics>> result : results.entrySet()) {
+				try {
+					metrics.addAll(result.getValue().get());
+				} catch (ExecutionException e) {
+					logger.error(action + " submodule " + result.getKey() + " failed: " + e.getCause());
+					failures.put(result.getKey(), e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(action + " submodules interrupted");
+		} finally {
+			executor.shutdownNow();
+			metrics.record(SyncMetrics.PHASES, "submoduleTransfers", start);
+		}
+		if (failures.size() == 1) {
+			Throwable failure = failures.values().iterator().next();
+			if (failure instanceof IOException) {
+				throw (IOException) failure;
+			} else if (failure instanceof GitAPIException) {
+				throw (GitAPIException) failure;
+			} else if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			}
+		}
+		if (!failures.isEmpty()) {
+			String message = action + " submodules " + failures.keySet() + " failed";
+			boolean transportFailures = failures.values().stream().allMatch(failure -> 
+				failure instanceof org.eclipse.jgit.errors.TransportException || failure instanceof TransportException);
+			IOException error = transportFailures ? new org.eclipse.jgit.errors.TransportException(message) : new IOException(message);
+			for (Throwable failure : failures.values()) {
+				error.addSuppressed(failure);
+			}
+			throw error;
+		}
+	}
+
+	/**
+	 * Reset the local branches of the repository to their remote tip, hard reset the current one, 
+	 * and delete those whose remote branch doesn't exist anymore
+	 * 
+	 * @throws GitAPIException
+	 * @throws IOException
+	 */
+	protected void resetLocalBranches(Git git) throws GitAPIException, IOException {
+		Repository repository = git.getRepository();
+		String currentBranch = repository.getFullBranch();
+		for (Ref localRef : repository.getRefDatabase().getRefsByPrefix(Constants.R_HEADS)) {
+			Ref remoteRef = repository.exactRef("refs/remotes/origin/" + Repository.shortenRefName(localRef.getName()));
+			if (localRef.getName().equals(currentBranch)) {
+				git.reset().setMode(ResetType.HARD).setRef(remoteRef != null ? remoteRef.getName() : Constants.HEAD).call();
+				continue;
+			}
+			if (remoteRef != null && remoteRef.getObjectId().equals(localRef.getObjectId())) {
+				continue;
+			}
+			RefUpdate refUpdate = repository.updateRef(localRef.getName());
+			refUpdate.setForceUpdate(true);
+			RefUpdate.Result result;
+			if (remoteRef == null) {
+				logger.debug("Deleting local branch " + localRef.getName() + " of " + repository.getDirectory());
+				result = refUpdate.delete();
+			} else {
+				refUpdate.setNewObjectId(remoteRef.getObjectId());
+				result = refUpdate.update();
+			}
+			if (result != RefUpdate.Result.FORCED && result != RefUpdate.Result.FAST_FORWARD 
+					&& result != RefUpdate.Result.NEW && result != RefUpdate.Result.NO_CHANGE) {
+				logger.warn("Cannot reset local branch " + localRef.getName() + " of " + repository.getDirectory() + ": " + result);
+			}
+		}
+		if (!currentBranch.startsWith(Constants.R_HEADS) && repository.resolve(Constants.HEAD) != null) {
+			// detached HEAD, typically a submodule at its recorded commit
+			git.reset().setMode(ResetType.HARD).call();
+		}
+	}
+
+	/**
+	 * Point the submodules of the parent repository to their mirror and fetch them from it.
+	 * The submodules borrow the objects of their mirror, the missing ones are created empty before being checked out
+	 * 
+	 * @param prune remove the remote branches of the submodules deleted from the mirror
+	 * @throws GitAPIException
+	 * @throws IOException
+	 */
+	protected void fetchSubmodulesFromMirrors(Git parentgit, boolean prune) throws GitAPIException, IOException {
+		Repository parentRepository = parentgit.getRepository();
+		// register the submodules added since the last update
+		parentgit.submoduleInit().call();
+		boolean missingSubmodule = false;
+		StoredConfig parentConfig = parentRepository.getConfig();
+		Map<String, SubmoduleTransfer> fetches = new LinkedHashMap<String, SubmoduleTransfer>();
+		try (SubmoduleWalk walk = SubmoduleWalk.forIndex(parentRepository)) {
+			while (walk.next()) {
+				String moduleName = walk.getModuleName();
+				String submoduleURL = SubmoduleWalk.getSubmoduleRemoteUrl(parentRepository, walk.getModulesUrl());
+				File submoduleWorkTree = walk.getDirectory();
+				File submoduleGitDir;
+				boolean missing;
+				try (Repository submoduleRepository = openSubmoduleRepository(walk)) {
+					missing = submoduleRepository == null;
+					submoduleGitDir = !missing ? submoduleRepository.getDirectory() 
+							: new File(parentRepository.getDirectory(), Constants.MODULES + "/" + moduleName);
+				}
+				missingSubmodule |= missing;
+				fetches.put(moduleName, submoduleMetrics -> {
+					String mirrorURL = componentMirrors.fetch(submoduleURL, credentialProvider, submoduleMetrics);
+					synchronized (parentConfig) {
+						parentConfig.setString(ConfigConstants.CONFIG_SUBMODULE_SECTION, moduleName, ConfigConstants.CONFIG_KEY_URL, mirrorURL);
+					}
+					if (missing) {
+						Git.init().setDirectory(submoduleWorkTree).setGitDir(submoduleGitDir).call().close();
+					}
+					componentMirrors.borrow(submoduleGitDir, submoduleURL);
+					try (Repository submoduleRepository = new FileRepositoryBuilder().setGitDir(submoduleGitDir).setWorkTree(submoduleWorkTree).build()) {
+						StoredConfig submoduleConfig = submoduleRepository.getConfig();
+						submoduleConfig.setString(ConfigConstants.CONFIG_REMOTE_SECTION, "origin", ConfigConstants.CONFIG_KEY_URL, mirrorURL);
+						submoduleConfig.setString(ConfigConstants.CONFIG_REMOTE_SECTION, "origin", "fetch", "+refs/heads/*:refs/remotes/origin/*");
+						submoduleConfig.save();
+					}
+					getTransportPool().fetch(submoduleGitDir, "origin", null, prune, submoduleMetrics);
+				});
+			}
+		} catch (ConfigInvalidException e) {
+			throw new IOException("Invalid " + Constants.DOT_GIT_MODULES, e);
+		}
+		try {
+			runSubmoduleTransfers("Fetching (from mirror)", fetches);
+		} finally {
+			// keep the mirror URLs of the submodules fetched successfully
+			parentConfig.save();
+		}
+		if (missingSubmodule) {
+			// the submodule repositories exist, only their recorded commit is checked out
+			parentgit.submoduleUpdate().setProgressMonitor(metrics.newProgressMonitor()).call();
+		}
+	}
+
+	/**
+	 * Clone the gitRemoteURL repository and its submodules to localGitFolder with a limited history.
+	 * JGit 5.2 doesn't support shallow fetch, so this relies on the git command line.
+	 * 
+	 * @throws GitAPIException
+	 * @throws IOException
+	 */
+	protected void gitCloneShallow() throws GitAPIException, IOException {
+		File localPath = new File(localGitFolder).getAbsoluteFile();
+		List<String> shallowArgs = getShallowArgs();
+		logger.info("Cloning (" + String.join(" ", shallowArgs) + ") from " + gitRemoteURL + " to " + localPath);
+		localPath.getParentFile().mkdirs();
+		NativeGit nativeGit = new NativeGit(credentialProvider, gitRemoteURL);
+		List<String> cloneArgs = new ArrayList<String>(Arrays.asList("clone", "--no-single-branch", "--no-tags"));
+		cloneArgs.addAll(shallowArgs);
+		cloneArgs.add(gitRemoteURL);
+		cloneArgs.add(localPath.getPath());
+		nativeGit.run(localPath.getParentFile(), cloneArgs.toArray(new String[0]));
+		// unlike JGit, git clone creates refs/remotes/origin/HEAD which must not be seen as a branch
+		nativeGit.run(localPath, "remote", "set-head", "origin", "--delete");
+		try (Git result = Git.open(localPath)) {
+			logger.info("Having repository: " + result.getRepository().getDirectory());
+			this.masterBranchName = result.getRepository().getBranch();
+			logger.info("master branch name: " + this.masterBranchName);
+			fetchSubmodulesShallow(nativeGit, result.getRepository(), shallowArgs);
+		}
+	}
+
+	/**
+	 * Fetch the parent repository and its submodules with a limited history 
+	 * then reset the master branch of the parent to its remote tip.
+	 * JGit 5.2 doesn't support shallow fetch, so this relies on the git command line.
+	 * 
+	 * @throws GitAPIException
+	 * @throws IOException
+	 */
+	protected void gitUpdateShallow(Git parentgit) throws GitAPIException, IOException {
+		File localPath = parentgit.getRepository().getWorkTree();
+		List<String> shallowArgs = getShallowArgs();
+		logger.info("Fetching (" + String.join(" ", shallowArgs) + ") existing repository: " + parentgit.getRepository().getDirectory());
+		NativeGit nativeGit = new NativeGit(credentialProvider, gitRemoteURL);
+		List<String> fetchArgs = new ArrayList<String>(Arrays.asList("fetch", "--prune", "--no-tags"));
+		fetchArgs.addAll(shallowArgs);
+		fetchArgs.add("origin");
+		nativeGit.run(localPath, fetchArgs.toArray(new String[0]));
+		// with a truncated history, the ancestry between the old and new tips may be unknown so a merge cannot be used
+		nativeGit.run(localPath, "reset", "--hard", "origin/" + masterBranchName);
+		fetchSubmodulesShallow(nativeGit, parentgit.getRepository(), shallowArgs);
+	}
+
+	/**
+	 * Check out the submodules of the parent repository at their recorded commit, 
+	 * and fetch the branches of each of them with a limited history
+	 */
+	protected void fetchSubmodulesShallow(NativeGit nativeGit, Repository parentRepository, List<String> shallowArgs) throws GitAPIException, IOException {
+		nativeGit.run(parentRepository.getWorkTree(), "submodule", "update", "--init", "--depth", "1", "--jobs", Integer.toString(submoduleFetchThreads));
+		Map<String, SubmoduleTransfer> fetches = new LinkedHashMap<String, SubmoduleTransfer>();
+		try (SubmoduleWalk walk = SubmoduleWalk.forIndex(parentRepository)) {
+			while (walk.next()) {
+				File submoduleWorkTree = walk.getDirectory();
+				fetches.put(walk.getModuleName(), submoduleMetrics -> {
+					List<String> fetchArgs = new ArrayList<String>(Arrays.asList("fetch", "--prune", "--no-tags"));
+					fetchArgs.addAll(shallowArgs);
+					fetchArgs.add("origin");
+					fetchArgs.add("+refs/heads/*:refs/remotes/origin/*");
+					nativeGit.run(submoduleWorkTree, fetchArgs.toArray(new String[0]));
+					try (Repository submoduleRepository = new FileRepositoryBuilder().setWorkTree(submoduleWorkTree).setup().build()) {
+						if (submoduleRepository.exactRef("refs/remotes/origin/HEAD") != null) {
+							nativeGit.run(submoduleWorkTree, "remote", "set-head", "origin", "--delete");
+						}
+					}
+				});
+			}
+		}
+		runSubmoduleTransfers("Fetching (" + String.join(" ", shallowArgs) + ")", fetches);
+	}
+
+	/**
+	 * @return the git command line arguments limiting the history for the current fetchMode
+	 */
+	protected List<String> getShallowArgs() {
+		if (fetchMode == FetchMode.SHALLOW_SINCE && shallowSinceDays >= 0) {
+			SimpleDateFormat shortDateFormat = new SimpleDateFormat("yyyy-MM-dd");
+			Date since = Date.from(ZonedDateTime.now().plusDays(-shallowSinceDays).toInstant());
+			return Arrays.asList("--shallow-since=" + shortDateFormat.format(since));
+		}
+		return Arrays.asList("--depth", "1");
+	}
+
+	/**
+	 * Run all the phases of the sync: update or clone the local repository, collect the active submodule branches, 
+	 * plan the changes, then delete the obsolete branches, create the missing ones, update the submodules of the branches 
+	 * and push the pending updates
+	 * 
+	 * @param dryRun only report the plan, nothing is changed in the local and remote repositories
+	 * @return the plan of the sync
+	 */
+	public SyncPlan synchronize(int inactivityThreshold, ReportSink reportSink, boolean dryRun) throws Exception {
+		return synchronizeBranches(null, inactivityThreshold, reportSink, dryRun);
+	}
+
+	/**
+	 * Run the phases of the sync for some integration branches only: the local repository is updated
+	 * and the submodule branches are collected as for a full sync, but only the branches of branchScope
+	 * are deleted, created or updated
+	 *
+	 * @param branchScope names of the integration branches to sync, null for all
+	 * @return the plan of the sync
+	 */
+	public SyncPlan synchronizeBranches(Set<String> branchScope, int inactivityThreshold, ReportSink reportSink, boolean dryRun) throws Exception {
+		try {
+			gitUpdateOrClone();
+			Set<String> relevantBranches = collectAllSubmodulesActiveRemoteBranches(inactivityThreshold);
+			SyncPlan plan = planSynchronization(relevantBranches, branchScope);
+			if (planFile != null) {
+				plan.writeJson(planFile);
+			}
+			if (dryRun) {
+				plan.report(reportSink);
+			} else {
+				executePlan(plan, reportSink);
+				pushPendingUpdates(reportSink);
+			}
+			return plan;
+		} finally {
+			closeTransports();
+		}
+	}
+
+	/**
+	 * @return an opened parent repository, to be closed by the caller
+	 * @throws IOException
+	 */
+	protected Repository openParentRepository() throws IOException {
+		if (keepRepositoriesOpen) {
+			// once closed, the instance stays in the cache and is returned again by the next phases
+			return RepositoryCache.open(RepositoryCache.FileKey.exact(new File(localGitFolder, Constants.DOT_GIT), FS.DETECTED), true);
+		}
+		return new FileRepositoryBuilder().setMustExist(true).setGitDir(new File(localGitFolder + "/.git"))
+				.readEnvironment() // scan environment GIT_* variables
+				.findGitDir() // scan up the file system tree
+				.build();
+	}
+
+	/**
+	 * @return the opened repository of the current submodule of walk, to be closed by the caller, 
+	 * null if it is not initialized
+	 * @throws IOException
+	 */
+	protected Repository openSubmoduleRepository(SubmoduleWalk walk) throws IOException {
+		if (!keepRepositoriesOpen) {
+			return walk.getRepository();
+		}
+		File workTree = walk.getDirectory().getAbsoluteFile();
+		File gitDir = submoduleGitDirs.get(workTree);
+		if (gitDir != null) {
+			RepositoryCache.FileKey key = RepositoryCache.FileKey.exact(gitDir, FS.DETECTED);
+			// not registered anymore if expired by the cache, the work tree of the submodule must then be found again
+			if (RepositoryCache.getRegisteredKeys().contains(key)) {
+				return RepositoryCache.open(key, true);
+			}
+		}
+		Repository repository = walk.getRepository();
+		if (repository != null) {
+			// once closed, the instance stays in the cache and is returned again by the next phases
+			RepositoryCache.register(repository);
+			submoduleGitDirs.put(workTree, repository.getDirectory());
+		}
+		return repository;
+	}
+
+	/**
+	 * Remove the submodule repositories from the RepositoryCache, eg. before their files are deleted
+	 */
+	protected void unregisterSubmoduleRepositories() {
+		for (File gitDir : submoduleGitDirs.values()) {
+			RepositoryCache.unregister(RepositoryCache.FileKey.exact(gitDir, FS.DETECTED));
+		}
+		submoduleGitDirs.clear();
+	}
+
+	/**
+	 * Read the branches advertised by the parent remote and, if the local repository exists, 
+	 * by the remotes of the submodules declared in its master branch.
+	 * Only the ref advertisements are read, nothing is fetched.
+	 * 
+	 * @return the tip of each advertised branch, indexed by remote URL then by branch name
 	 * @throws IOException
+	 * @throws GitAPIException
 	 */
-	public void gitClone() throws InvalidRemoteException, TransportException, GitAPIException, IOException {
-		File localPath = new File(localGitFolder);
-		logger.info("Cloning from " + gitRemoteURL + " to " + localPath);
-		try (Git result = Git.cloneRepository().setURI(gitRemoteURL).setDirectory(localPath).setCloneSubmodules(true)
-				.setCloneAllBranches(true).call()) {
-			// Note: the call() returns an opened repository already which needs to be
-			// closed to avoid file handle leaks!
-			logger.info("Having repository: " + result.getRepository().getDirectory());
-			this.masterBranchName = result.getRepository().getBranch();
-			logger.info("master branch name: " + this.masterBranchName);
-			
+	public Map<String, Map<String, ObjectId>> readAdvertisedBranchTips() throws IOException, GitAPIException {
+		Map<String, Map<String, ObjectId>> advertisedTips = new TreeMap<String, Map<String, ObjectId>>();
+		advertisedTips.put(gitRemoteURL, readAdvertisedBranchTips(gitRemoteURL));
+		if (!new File(localGitFolder, Constants.DOT_GIT).exists()) {
+			return advertisedTips;
+		}
+		for (String submoduleURL : getSubmoduleRemoteURLs()) {
+			if (!advertisedTips.containsKey(submoduleURL)) {
+				advertisedTips.put(submoduleURL, readAdvertisedBranchTips(submoduleURL));
+			}
 		}
+		return advertisedTips;
 	}
-	
-	public void gitUpdate() throws IOException, WrongRepositoryStateException, InvalidConfigurationException, InvalidRemoteException, CanceledException, RefNotFoundException, RefNotAdvertisedException, NoHeadException, TransportException, GitAPIException {
-		File localPath = new File(localGitFolder);
-		logger.info("Updating " + localPath + " from " + gitRemoteURL);
-		try (Git result = Git.open(localPath)) {
-			String url = result.getRepository().getConfig().getString("remote", "origin", "url");
-			if(gitRemoteURL.equals(url)) {
-				logger.info("Checkout "+masterBranchName+" branch from existing repository: " + result.getRepository().getDirectory());
-				result.checkout().setName(masterBranchName).call();
-				logger.info("Pulling existing repository: " + result.getRepository().getDirectory());
-				PullResult res = result.pull().setRecurseSubmodules(FetchRecurseSubmodulesMode.YES).call();
-				if(!res.isSuccessful()){
-					logger.error("Failed to pull repository\n Please delete folder "+localGitFolder+" to perform a full clone.");
-					logger.error("fetch result: "+res.getFetchResult().getMessages());
-					logger.error("merge result: "+res.getMergeResult().getMergeStatus());
-					logger.error("rebase result: "+res.getRebaseResult().getStatus());
-					throw new WrongRepositoryStateException("Failed to pull repository");
+
+	/**
+	 * @return the remote URLs of the submodules declared in the master branch of the local repository, 
+	 * empty if it has not been cloned yet
+	 * @throws IOException
+	 */
+	public Set<String> getSubmoduleRemoteURLs() throws IOException {
+		Set<String> submoduleURLs = new TreeSet<String>();
+		if (!new File(localGitFolder, Constants.DOT_GIT).exists()) {
+			return submoduleURLs;
+		}
+		try (Repository parentRepository = openParentRepository()) {
+			Ref masterRef = parentRepository.exactRef("refs/remotes/origin/" + masterBranchName);
+			if (masterRef == null) {
+				return submoduleURLs;
+			}
+			try (RevWalk revWalk = new RevWalk(parentRepository);
+					SubmoduleWalk walk = new SubmoduleWalk(parentRepository)) {
+				RevCommit masterCommit = revWalk.parseCommit(masterRef.getObjectId());
+				walk.setTree(masterCommit.getTree());
+				walk.setRootTree(masterCommit.getTree());
+				while (walk.next()) {
+					String submoduleURL = SubmoduleWalk.getSubmoduleRemoteUrl(parentRepository, walk.getModulesUrl());
+					if (submoduleURL != null) {
+						submoduleURLs.add(submoduleURL);
+					}
 				}
-			} else {
-				logger.error("Existing folder doesn't point to the same url ("+url+")\n Please delete folder "+localGitFolder+" to perform a full clone.");
-				throw new InvalidRemoteException("Existing folder doesn't point to the same url ("+url+") Please delete this folder to perform a full clone.");
+			} catch (ConfigInvalidException e) {
+				throw new IOException("Invalid " + Constants.DOT_GIT_MODULES + " in branch " + masterBranchName, e);
 			}
 		}
+		return submoduleURLs;
 	}
-	
+
+	/**
+	 * @return the tip of each branch advertised by the remote, indexed by branch name
+	 */
+	public Map<String, ObjectId> readAdvertisedBranchTips(String remoteURL) throws IOException {
+		Map<String, ObjectId> branchTips = new TreeMap<String, ObjectId>();
+		// JGit 5.2 only speaks protocol v0/v1, so the refs/heads/ filtering is done on the client side
+		Collection<Ref> refs = getTransportPool().lsRemote(remoteURL, credentialProvider, metrics);
+		metrics.add(SyncMetrics.REFS_SCANNED, refs.size());
+		for (Ref ref : refs) {
+			if (ref.getName().startsWith(Constants.R_HEADS)) {
+				branchTips.put(ref.getName().substring(Constants.R_HEADS.length()), ref.getObjectId());
+			}
+		}
+		return branchTips;
+	}
+
+	/**
+	 * @return the URL of the parent remote
+	 */
+	public String getGitRemoteURL() {
+		return gitRemoteURL;
+	}
+
+	/**
+	 * @return the name of the default branch of the parent repository, known after the clone
+	 */
+	public String getMasterBranchName() {
+		return masterBranchName;
+	}
+
 	public void gitUpdateOrClone() throws WrongRepositoryStateException, InvalidConfigurationException, InvalidRemoteException, CanceledException, RefNotFoundException, RefNotAdvertisedException, NoHeadException, TransportException, IOException, GitAPIException {
 		File localPath = new File(localGitFolder);
-		if(localPath.exists() && localPath.isDirectory()) {
-			gitUpdate();
-		} else {
-			gitClone();
+		// all refs are about to change
+		refIndexes.clear();
+		long start = metrics.start();
+		if (new File(localPath, Constants.DOT_GIT).exists()) {
+			if (!repairLocalRepository) {
+				gitUpdate();
+				metrics.record(SyncMetrics.PHASES, "update", start);
+				return;
+			}
+			try {
+				gitUpdate();
+				metrics.record(SyncMetrics.PHASES, "update", start);
+				return;
+			} catch (org.eclipse.jgit.errors.TransportException | TransportException e) {
+				// the remote is unreachable, a new clone would fail the same way
+				throw e;
+			} catch (IOException | GitAPIException | JGitInternalException e) {
+				logger.warn("Cannot update " + localPath + " (" + e.getMessage() + "), cloning it again");
+				metrics.increment(SyncMetrics.RECLONES);
+				// release the files of the local repository before removing it
+				closeTransports();
+				if (keepRepositoriesOpen) {
+					RepositoryCache.unregister(RepositoryCache.FileKey.exact(new File(localPath, Constants.DOT_GIT), FS.DETECTED));
+					unregisterSubmoduleRepositories();
+				}
+				FileUtils.deleteDirectory(localPath);
+			}
+		} else if (repairLocalRepository && localPath.isDirectory()) {
+			// leftover of an interrupted clone
+			FileUtils.deleteDirectory(localPath);
 		}
+		gitClone();
+		metrics.record(SyncMetrics.PHASES, "clone", start);
 	}
 
 	public void listAllBranches() throws IOException, GitAPIException {
-		FileRepositoryBuilder builder = new FileRepositoryBuilder();
-		try (Repository repository = builder.setMustExist(true).setGitDir(new File(localGitFolder + "/.git"))
-				.readEnvironment() // scan environment GIT_* variables
-				.findGitDir() // scan up the file system tree
-				.build()) {
+		try (Repository repository = openParentRepository()) {
 
 			logger.debug("Current parent branches");
 			// the Ref holds an ObjectId for any type of object (tree, commit, blob, tree)
@@ -168,11 +1266,7 @@ public class GitModuleManager {
 	}
 
 	public void listSubModules() throws IOException, GitAPIException {
-		FileRepositoryBuilder builder = new FileRepositoryBuilder();
-		try (Repository repository = builder.setMustExist(true).setGitDir(new File(localGitFolder + "/.git"))
-				.readEnvironment() // scan environment GIT_* variables
-				.findGitDir() // scan up the file system tree
-				.build()) {
+		try (Repository repository = openParentRepository()) {
 
 			logger.info("Listing submodules on branch " + repository.getBranch()+" :");
 
@@ -189,16 +1283,11 @@ public class GitModuleManager {
 	}
 
 	public void listAllSubmodulesBranches() throws IOException, GitAPIException {
-		FileRepositoryBuilder builder = new FileRepositoryBuilder();
-
-		try (Repository parentRepository = builder.setMustExist(true).setGitDir(new File(localGitFolder + "/.git"))
-				.readEnvironment() // scan environment GIT_* variables
-				.findGitDir() // scan up the file system tree
-				.build()) {
+		try (Repository parentRepository = openParentRepository()) {
 
 			try (SubmoduleWalk walk = SubmoduleWalk.forIndex(parentRepository)) {
 				while (walk.next()) {
-					Repository submoduleRepository = walk.getRepository();
+					Repository submoduleRepository = openSubmoduleRepository(walk);
 					try (Git submodulegit = Git.wrap(submoduleRepository)) {
 						logger.info("submodule " + walk.getModuleName());
 						List<Ref> call = submodulegit.branchList().setListMode(ListMode.REMOTE).call();
@@ -215,116 +1304,582 @@ public class GitModuleManager {
 
 	/**
 	 * Collect the name of all branches that are active in any of the submodules declared in the main branch of the root repository
+	 * 
+	 * Submodules are analyzed concurrently using up to discoveryThreads workers, 
+	 * the log output is emitted in submodule order once all of them are analyzed
 	 */
 	public Set<String> collectAllSubmodulesActiveRemoteBranches(int inactivityThreshold) throws IOException, GitAPIException {
-		Set<String> remoteBranchesNames = new HashSet<String>();
-		FileRepositoryBuilder builder = new FileRepositoryBuilder();
+		long start = metrics.start();
+		Set<String> remoteBranchesNames = new ConcurrentSkipListSet<String>();
 
-		
-		SimpleDateFormat shortDateFormat = new SimpleDateFormat("yyyy-MM-dd");
 		ZonedDateTime now = ZonedDateTime.now();
 		ZonedDateTime inactivityThresholdDate = now.plusDays(-inactivityThreshold);
 		boolean useInactivityThreshold = inactivityThreshold >= 0; 
 
-		try (Repository parentRepository = builder.setMustExist(true).setGitDir(new File(localGitFolder + "/.git"))
-				.readEnvironment() // scan environment GIT_* variables
-				.findGitDir() // scan up the file system tree
-				.build()) {
+		try (Repository parentRepository = openParentRepository()) {
 
-			try (SubmoduleWalk walk = SubmoduleWalk.forIndex(parentRepository)) {
-				while (walk.next()) {
-					Repository submoduleRepository = walk.getRepository();
-					try (Git submodulegit = Git.wrap(submoduleRepository)) {
-						logger.info("remote branches in submodule " + walk.getModuleName() + ":");
-						List<Ref> branches = submodulegit.branchList().setListMode(ListMode.REMOTE).call();
-						for (Ref branch : branches) {
-							if (branch.getName().startsWith("refs/remotes/origin/")) {
-								String branchName = branch.getName().substring("refs/remotes/origin/".length());
-								// find branch age
-								RevWalk walkSubModuleGit = new RevWalk(submodulegit.getRepository());
-								RevCommit latestCommit = walkSubModuleGit.parseCommit(branch.getObjectId());
-								
-								//RevCommit latestCommit = submodulegit.log().setMaxCount(1).call().iterator().next();
-								Date latestCommitDate = latestCommit.getAuthorIdent().getWhen();
-								if (useInactivityThreshold) {
-									boolean isActiveBranch = !latestCommitDate.toInstant().isBefore(inactivityThresholdDate.toInstant());
-									if(isActiveBranch) {
-										remoteBranchesNames.add(branchName);
-									}
-									logger.info(String.format("\t%-32s is %8s since %s \t", branchName,
-											isActiveBranch
-													? "ACTIVE"
-													: "INACTIVE",
-											shortDateFormat.format(latestCommitDate),
-											latestCommit.getShortMessage()));
-								} else {
-									logger.info("\t" + branchName);
-									remoteBranchesNames.add(branchName);
-								}
+			CommitMetadataCache commitCache = getCommitMetadataCache(parentRepository);
+			List<String> moduleNames = new ArrayList<String>();
+			List<Callable<List<String>>> tasks = new ArrayList<Callable<List<String>>>();
+			List<Repository> submoduleRepositories = new ArrayList<Repository>();
+			try {
+				if (discoveryMode == DiscoveryMode.LS_REMOTE) {
+					// read the submodules declared in the master branch of the remote, without relying on their clones
+					Ref masterRef = parentRepository.exactRef("refs/remotes/origin/" + masterBranchName);
+					ObjectId masterId = masterRef != null ? masterRef.getObjectId() : parentRepository.resolve(Constants.HEAD);
+					try (RevWalk revWalk = new RevWalk(parentRepository);
+							SubmoduleWalk walk = new SubmoduleWalk(parentRepository)) {
+						RevCommit masterCommit = revWalk.parseCommit(masterId);
+						walk.setTree(masterCommit.getTree());
+						walk.setRootTree(masterCommit.getTree());
+						while (walk.next()) {
+							String moduleName = walk.getModuleName();
+							String modulePath = walk.getPath();
+							String submoduleURL = SubmoduleWalk.getSubmoduleRemoteUrl(parentRepository, walk.getModulesUrl());
+							moduleNames.add(moduleName);
+							tasks.add(timedSubmoduleTask(moduleName, () -> collectSubmoduleActiveRemoteBranchesFromRemote(parentRepository, moduleName, modulePath, submoduleURL,
+									useInactivityThreshold, inactivityThresholdDate, remoteBranchesNames)));
+						}
+					} catch (ConfigInvalidException e) {
+						throw new IOException("Invalid " + Constants.DOT_GIT_MODULES + " in branch " + masterBranchName, e);
+					}
+				} else {
+					try (SubmoduleWalk walk = SubmoduleWalk.forIndex(parentRepository)) {
+						while (walk.next()) {
+							Repository submoduleRepository = openSubmoduleRepository(walk);
+							if (submoduleRepository == null) {
+								logger.warn("submodule " + walk.getModuleName() + " is not initialized, ignoring it");
+								continue;
 							}
+							String moduleName = walk.getModuleName();
+							moduleNames.add(moduleName);
+							submoduleRepositories.add(submoduleRepository);
+							tasks.add(timedSubmoduleTask(moduleName, () -> collectSubmoduleActiveRemoteBranches(submoduleRepository, 
+									filterBranchTips(moduleName, readRemoteBranchTips(submoduleRepository)),
+									useInactivityThreshold, inactivityThresholdDate, remoteBranchesNames)));
+						}
+					}
+				}
+				ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(discoveryThreads, tasks.size())));
+				try {
+					List<Future<List<String>>> reports = new ArrayList<Future<List<String>>>();
+					for (Callable<List<String>> task : tasks) {
+						reports.add(executor.submit(task));
+					}
+					for (int i = 0; i < reports.size(); i++) {
+						logger.info("remote branches in submodule " + moduleNames.get(i) + ":");
+						for (String line : reports.get(i).get()) {
+							logger.info(line);
 						}
 					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while collecting submodules branches", e);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						throw (IOException) e.getCause();
+					} else if (e.getCause() instanceof GitAPIException) {
+						throw (GitAPIException) e.getCause();
+					}
+					throw new IOException("Failed to collect submodules branches", e.getCause());
+				} finally {
+					executor.shutdownNow();
+				}
+			} finally {
+				for (Repository submoduleRepository : submoduleRepositories) {
+					submoduleRepository.close();
 				}
+				commitCache.save();
 			}
 		}
+		metrics.record(SyncMetrics.PHASES, "discovery", start);
 		return remoteBranchesNames;
 	}
 
+	/**
+	 * @return the task, recording its wall time as the time spent on the submodule
+	 */
+	protected <T> Callable<T> timedSubmoduleTask(String moduleName, Callable<T> task) {
+		return () -> {
+			long start = metrics.start();
+			try {
+				return task.call();
+			} finally {
+				metrics.record(SyncMetrics.SUBMODULES, moduleName, start);
+			}
+		};
+	}
+
+	/**
+	 * @return the tip of each remote tracking branch of the repository, indexed by the short name of the branch
+	 */
+	protected Map<String, ObjectId> readRemoteBranchTips(Repository repository) throws GitAPIException {
+		Map<String, ObjectId> branchTips = new TreeMap<String, ObjectId>();
+		try (Git git = Git.wrap(repository)) {
+			List<Ref> branches = git.branchList().setListMode(ListMode.REMOTE).call();
+			metrics.add(SyncMetrics.REFS_SCANNED, branches.size());
+			for (Ref branch : branches) {
+				if (branch.getName().startsWith("refs/remotes/origin/")) {
+					branchTips.put(branch.getName().substring("refs/remotes/origin/".length()), branch.getObjectId());
+				}
+			}
+		}
+		return branchTips;
+	}
+
+	/**
+	 * Collect the active branches of a submodule from the branches advertised by its remote (ls-remote).
+	 * 
+	 * The tip commits are only needed when the inactivity threshold is used or the merged branches are pruned. 
+	 * They are read from the local clone of the submodule if it already has all of them, otherwise from a bare discovery repository 
+	 * (stored in the .git folder of the parent) where only the tips are fetched (git --depth 1): 
+	 * only the branches pointing to the tip of master are then known to be merged.
+	 * 
+	 * @return the log lines describing the branches of this submodule
+	 */
+	protected List<String> collectSubmoduleActiveRemoteBranchesFromRemote(Repository parentRepository, 
+			String moduleName, String modulePath, String submoduleURL,
+			boolean useInactivityThreshold, ZonedDateTime inactivityThresholdDate, Set<String> remoteBranchesNames)
+			throws IOException, GitAPIException {
+		Map<String, ObjectId> branchTips = filterBranchTips(moduleName, readAdvertisedBranchTips(submoduleURL));
+		if (!useInactivityThreshold && !pruneMergedBranches) {
+			return collectSubmoduleActiveRemoteBranches(null, branchTips, false, inactivityThresholdDate, remoteBranchesNames);
+		}
+		try (Repository submoduleRepository = SubmoduleWalk.getSubmoduleRepository(parentRepository, modulePath)) {
+			if (submoduleRepository != null && hasAllObjects(submoduleRepository, branchTips.values())) {
+				return collectSubmoduleActiveRemoteBranches(submoduleRepository, branchTips, useInactivityThreshold, inactivityThresholdDate, remoteBranchesNames);
+			}
+		}
+		File discoveryDirectory = new File(parentRepository.getDirectory(), "sync-git-submodules-branches/discovery/" + moduleName + ".git");
+		if (!discoveryDirectory.exists()) {
+			Git.init().setBare(true).setDirectory(discoveryDirectory).call().close();
+		}
+		boolean fetched = false;
+		try (Repository discoveryRepository = new FileRepositoryBuilder().setGitDir(discoveryDirectory).setMustExist(true).build()) {
+			if (!hasAllObjects(discoveryRepository, branchTips.values())) {
+				logger.debug("fetching the branch tips of " + moduleName + " from " + submoduleURL);
+				new NativeGit(credentialProvider, submoduleURL).run(discoveryDirectory, 
+						"fetch", "--depth", "1", "--no-tags", "--prune", submoduleURL, "+refs/heads/*:refs/remotes/origin/*");
+				fetched = true;
+			}
+		}
+		// reopen the repository in order to see the newly fetched objects and shallow boundaries
+		try (Repository discoveryRepository = new FileRepositoryBuilder().setGitDir(discoveryDirectory).setMustExist(true).build()) {
+			if (fetched) {
+				// the fetched tips are more recent than the advertised ones if a branch moved in between
+				branchTips = filterBranchTips(moduleName, readRemoteBranchTips(discoveryRepository));
+			}
+			return collectSubmoduleActiveRemoteBranches(discoveryRepository, branchTips, useInactivityThreshold, inactivityThresholdDate, remoteBranchesNames);
+		}
+	}
+
+	protected boolean hasAllObjects(Repository repository, Collection<ObjectId> objectIds) throws IOException {
+		for (ObjectId objectId : objectIds) {
+			if (!repository.getObjectDatabase().has(objectId)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Collect the active branches of a single submodule into remoteBranchesNames
+	 * 
+	 * @param repository repository containing the tip commits, only used with the inactivity threshold or to prune the merged branches
+	 * @param branchTips tip of each branch of the submodule, indexed by the short name of the branch, already filtered
+	 * @return the log lines describing the branches of this submodule
+	 */
+	protected List<String> collectSubmoduleActiveRemoteBranches(Repository repository, Map<String, ObjectId> branchTips,
+			boolean useInactivityThreshold, ZonedDateTime inactivityThresholdDate, Set<String> remoteBranchesNames)
+			throws IOException {
+		List<String> logLines = new ArrayList<String>();
+		if (!useInactivityThreshold) {
+			Set<String> mergedBranches = findMergedBranches(repository, branchTips.get(masterBranchName), branchTips);
+			for (String branchName : branchTips.keySet()) {
+				if (mergedBranches.contains(branchName)) {
+					logLines.add("\t" + branchName + " (MERGED)");
+					continue;
+				}
+				logLines.add("\t" + branchName);
+				remoteBranchesNames.add(branchName);
+			}
+			return logLines;
+		}
+		SimpleDateFormat shortDateFormat = new SimpleDateFormat("yyyy-MM-dd");
+		Map<String, CommitMetadata> latestCommits = new TreeMap<String, CommitMetadata>();
+		Map<String, ObjectId> recentBranchTips = new TreeMap<String, ObjectId>();
+		for (Map.Entry<String, ObjectId> branchTip : branchTips.entrySet()) {
+			// find branch age
+			CommitMetadata latestCommit = commitMetadataCache.get(repository, branchTip.getValue());
+			latestCommits.put(branchTip.getKey(), latestCommit);
+			if (!latestCommit.getAuthorIdent().getWhen().toInstant().isBefore(inactivityThresholdDate.toInstant())) {
+				recentBranchTips.put(branchTip.getKey(), branchTip.getValue());
+			}
+		}
+		// the old branches are inactive anyway, the walk stops at the oldest recent tip
+		Set<String> mergedBranches = findMergedBranches(repository, branchTips.get(masterBranchName), recentBranchTips);
+		for (Map.Entry<String, CommitMetadata> latestCommit : latestCommits.entrySet()) {
+			String branchName = latestCommit.getKey();
+			//RevCommit latestCommit = submodulegit.log().setMaxCount(1).call().iterator().next();
+			Date latestCommitDate = latestCommit.getValue().getAuthorIdent().getWhen();
+			boolean isActiveBranch = recentBranchTips.containsKey(branchName) && !mergedBranches.contains(branchName);
+			if(isActiveBranch) {
+				remoteBranchesNames.add(branchName);
+			}
+			logLines.add(String.format("\t%-32s is %8s since %s \t", branchName,
+					isActiveBranch
+							? "ACTIVE"
+							: mergedBranches.contains(branchName) ? "MERGED" : "INACTIVE",
+					shortDateFormat.format(latestCommitDate),
+					latestCommit.getValue().getShortMessage()));
+		}
+		return logLines;
+	}
+
+	/**
+	 * Find the branches already merged in master (their tip is reachable from the tip of master) in a single walk: 
+	 * the tips are walked together with master, the commits reachable from master carry a flag 
+	 * and the walk stops as soon as all the tips have been reached, so only the history more recent than the oldest tip is read.
+	 * A merge with a commit date older than the tip (clock skew) may be missed, the branch is then kept active.
+	 * A branch whose tip is the tip of master is not considered merged.
+	 * 
+	 * @param repository repository containing the history of the branches, null if unknown
+	 * @param masterTip tip of the master branch, null if unknown
+	 * @param branchTips tip of the branches to check, indexed by short name
+	 * @return the names of the merged branches, empty if pruneMergedBranches is not set
+	 */
+	protected Set<String> findMergedBranches(Repository repository, ObjectId masterTip, Map<String, ObjectId> branchTips) throws IOException {
+		Set<String> mergedBranches = new TreeSet<String>();
+		if (!pruneMergedBranches || repository == null || masterTip == null) {
+			return mergedBranches;
+		}
+		try (RevWalk walk = new RevWalk(repository)) {
+			RevFlag reachableFromMaster = walk.newFlag("REACHABLE_FROM_MASTER");
+			RevFlag branchTip = walk.newFlag("BRANCH_TIP");
+			walk.carry(reachableFromMaster);
+			Map<RevCommit, List<String>> branchesByTip = new HashMap<RevCommit, List<String>>();
+			for (Map.Entry<String, ObjectId> tip : branchTips.entrySet()) {
+				if (tip.getKey().equals(masterBranchName) || tip.getValue().equals(masterTip)) {
+					// a branch just created from master has no commit yet, it is not merged
+					continue;
+				}
+				RevCommit tipCommit = walk.parseCommit(tip.getValue());
+				tipCommit.add(branchTip);
+				branchesByTip.computeIfAbsent(tipCommit, c -> new ArrayList<String>()).add(tip.getKey());
+			}
+			if (branchesByTip.isEmpty()) {
+				return mergedBranches;
+			}
+			RevCommit masterCommit = walk.parseCommit(masterTip);
+			masterCommit.add(reachableFromMaster);
+			walk.markStart(masterCommit);
+			walk.markStart(branchesByTip.keySet());
+			int remainingTips = branchesByTip.size();
+			int walkedCommits = 0;
+			RevCommit commit;
+			while (remainingTips > 0 && (commit = walk.next()) != null) {
+				walkedCommits++;
+				if (commit.has(branchTip)) {
+					remainingTips--;
+				}
+			}
+			metrics.add(SyncMetrics.COMMITS_PARSED, walkedCommits);
+			for (Map.Entry<RevCommit, List<String>> tip : branchesByTip.entrySet()) {
+				if (tip.getKey().has(reachableFromMaster)) {
+					mergedBranches.addAll(tip.getValue());
+				}
+			}
+		} catch (MissingObjectException e) {
+			// eg. an advertised tip not fetched yet, nothing is pruned rather than pruning too much
+			logger.debug("cannot find the merged branches of " + repository.getDirectory() + ": " + e.getMessage());
+			return new TreeSet<String>();
+		}
+		return mergedBranches;
+	}
+
 	/**
 	 * remove local and remote branches not in the given set
 	 * 
 	 * @throws Exception
 	 */
 	public void deleteBranchesNotIn(Set<String> relevantBranches) throws Exception {
-		FileRepositoryBuilder builder = new FileRepositoryBuilder();
+		deleteBranchesNotIn(relevantBranches, null);
+	}
 
-		try (Repository parentRepository = builder.setMustExist(true).setGitDir(new File(localGitFolder + "/.git"))
-				.readEnvironment() // scan environment GIT_* variables
-				.findGitDir() // scan up the file system tree
-				.build()) {
+	/**
+	 * remove local and remote branches of branchScope not in the given set
+	 * 
+	 * @param branchScope names of the branches that may be deleted, null for all
+	 * @throws Exception
+	 */
+	public void deleteBranchesNotIn(Set<String> relevantBranches, Set<String> branchScope) throws Exception {
+		Set<String> obsoleteBranches = new TreeSet<String>();
+		try (Repository parentRepository = openParentRepository()) {
+			List<Ref> call = parentRepository.getRefDatabase().getRefsByPrefix("refs/remotes/origin/");
+			metrics.add(SyncMetrics.REFS_SCANNED, call.size());
+			for (Ref ref : call) {
+				String branchName = ref.getName().substring("refs/remotes/origin/".length());
+				if (!relevantBranches.contains(branchName) && !branchName.equals(masterBranchName)
+						&& (branchScope == null || branchScope.contains(branchName)) && isManagedBranch(branchName)) {
+					obsoleteBranches.add(branchName);
+				}
+			}
+		}
+		deleteBranches(obsoleteBranches, ReportSink.NONE);
+	}
+
+	/**
+	 * remove the given local and remote branches
+	 * 
+	 * @throws Exception
+	 */
+	public void deleteBranches(Set<String> branchNames, ReportSink reportSink) throws Exception {
+		long start = metrics.start();
+		try (Repository parentRepository = openParentRepository()) {
 
 			try (Git parentgit = new Git(parentRepository)) {
-				List<Ref> call = parentgit.branchList().setListMode(ListMode.REMOTE).call();
-				for (Ref ref : call) {
-					if (ref.getName().startsWith("refs/remotes/origin/")) {
-						String branchName = ref.getName().substring("refs/remotes/origin/".length());
-						if (!relevantBranches.contains(branchName) && !branchName.equals(masterBranchName)) {
-							logger.info("Pushing deletion of branch " + ref.getName() );
-							// delete locally
-							parentgit.branchDelete().setBranchNames(ref.getName()).setForce(true).call();
-							// delete remotely too
-							RefSpec refSpec = new RefSpec().setSource(null).setDestination("refs/heads/" + branchName);
-							Iterable<PushResult> res = parentgit.push()
-									.setRefSpecs(refSpec)
-									.setRemote("origin")
-									.setCredentialsProvider(credentialProvider).call();
-							for (PushResult pushRes : res) {
-								for (RemoteRefUpdate refUpdate : pushRes.getRemoteUpdates()) {
-									if (refUpdate.getStatus() != RemoteRefUpdate.Status.OK) {
-										logger.error("\t\tFailed to push deletion of "+ref.getName()+ " : " + refUpdate.getMessage() + " ; " + pushRes.getRemoteUpdates());
-									}
-								}
-								validateRemoteRefUpdates("del remote branch", pushRes.getRemoteUpdates());
-							}
-						}
+				for (String branchName : branchNames) {
+					String remoteBranchRefName = "refs/remotes/origin/" + branchName;
+					logger.info((pushBatch != null ? "Queuing" : "Pushing") + " deletion of branch " + remoteBranchRefName );
+					// the remote branch is deleted only if it wasn't changed since it was fetched
+					ObjectId expectedOldId = getExpectedRemoteId(parentRepository, branchName);
+					RefSpec refSpec = new RefSpec().setSource(null).setDestination("refs/heads/" + branchName);
+					if (pushBatch != null) {
+						pushBatch.add(refSpec, "del remote branch", expectedOldId);
+					} else if (!pushBranchDeletion(parentRepository, branchName, refSpec, expectedOldId)) {
+						// kept locally too, the next run decides again from the new remote branch
+						continue;
+					}
+					reportSink.branchDeleted(branchName);
+					// delete locally
+					parentgit.branchDelete().setBranchNames(remoteBranchRefName).setForce(true).call();
+					getRefIndex(parentRepository).removeRemoteBranch(branchName);
+				}
+			}
+		}
+		metrics.record(SyncMetrics.PHASES, "deleteBranches", start);
+	}
+
+	/**
+	 * Compute the changes of the sync from the refs and the trees of the local repositories, without any checkout or write: 
+	 * the branches of branchScope to delete (not in relevantBranches) and to create (in relevantBranches), 
+	 * and for each remaining branch the branch tracked by each submodule and the gitlink it must point to.
+	 * The branches rejected by the branch filter are left untouched.
+	 * Must be called after gitUpdateOrClone()
+	 * 
+	 * @param relevantBranches active branches of the submodules, see collectAllSubmodulesActiveRemoteBranches()
+	 * @param branchScope names of the integration branches to sync, null for all
+	 * @throws IOException
+	 * @throws ConfigInvalidException
+	 * @throws GitSyncError if the master branch of the parent doesn't exist
+	 */
+	public SyncPlan planSynchronization(Set<String> relevantBranches, Set<String> branchScope) throws IOException, ConfigInvalidException, GitSyncError {
+		long start = metrics.start();
+		SyncPlan plan = new SyncPlan(branchScope);
+		try (Repository parentRepository = openParentRepository();
+				RevWalk revWalk = new RevWalk(parentRepository)) {
+			Map<String, ObjectId> remoteBranches = new TreeMap<String, ObjectId>();
+			List<Ref> refs = parentRepository.getRefDatabase().getRefsByPrefix("refs/remotes/origin/");
+			metrics.add(SyncMetrics.REFS_SCANNED, refs.size());
+			for (Ref ref : refs) {
+				String branchName = ref.getName().substring("refs/remotes/origin/".length());
+				if ((branchScope == null || branchScope.contains(branchName)) && isManagedBranch(branchName)) {
+					remoteBranches.put(branchName, ref.getObjectId());
+				}
+			}
+			ObjectId masterId = parentRepository.resolve("refs/remotes/origin/" + masterBranchName);
+			if (masterId == null) {
+				throw new GitSyncError("No remote branch named "+masterBranchName+" found in "+parentRepository.getDirectory());
+			}
+			for (Map.Entry<String, ObjectId> remoteBranch : remoteBranches.entrySet()) {
+				if (!relevantBranches.contains(remoteBranch.getKey()) && !remoteBranch.getKey().equals(masterBranchName)) {
+					plan.addDeletedBranch(remoteBranch.getKey());
+				} else {
+					plan.addBranch(planBranch(parentRepository, revWalk, remoteBranch.getKey(), false, remoteBranch.getValue()));
+				}
+			}
+			for (String relevantBranch : relevantBranches) {
+				if ((branchScope == null || branchScope.contains(relevantBranch)) && isManagedBranch(relevantBranch) 
+						&& !remoteBranches.containsKey(relevantBranch)) {
+					// created from master
+					plan.addBranch(planBranch(parentRepository, revWalk, relevantBranch, true, masterId));
+				}
+			}
+		}
+		metrics.record(SyncMetrics.PHASES, "plan", start);
+		logger.info("Plan: " + plan.getDeletedBranches().size() + " branches to delete, " + plan.getCreatedBranches().size() 
+				+ " to create, " + plan.getUpdatedBranchCount() + " to update");
+		return plan;
+	}
+
+	/**
+	 * @param baseCommitId commit of the branch before the sync
+	 */
+	protected SyncPlan.BranchPlan planBranch(Repository parentRepository, RevWalk revWalk, String branchName, boolean created, ObjectId baseCommitId) 
+			throws IOException, ConfigInvalidException {
+		SyncPlan.BranchPlan branchPlan = new SyncPlan.BranchPlan(branchName, created, baseCommitId);
+		RevCommit baseCommit = revWalk.parseCommit(baseCommitId);
+		BlobBasedConfig modulesConfig;
+		try (TreeWalk modulesWalk = TreeWalk.forPath(parentRepository, Constants.DOT_GIT_MODULES, baseCommit.getTree())) {
+			modulesConfig = new BlobBasedConfig(null, modulesWalk != null 
+					? parentRepository.open(modulesWalk.getObjectId(0)).getCachedBytes() 
+					: new byte[0]);
+		}
+		try (SubmoduleWalk walk = new SubmoduleWalk(parentRepository)) {
+			walk.setTree(baseCommit.getTree());
+			walk.setRootTree(baseCommit.getTree());
+			while (walk.next()) {
+				try (Repository submoduleRepository = openSubmoduleRepository(walk)) {
+					if (submoduleRepository == null) {
+						logger.warn("  submodule " + walk.getModuleName() + " is not initialized, ignoring it");
+						continue;
+					}
+					Ref trackedBranchRef = findTrackedBranchRef(walk.getModuleName(), submoduleRepository, branchName);
+					String trackedBranchName = trackedBranchRef != null 
+							? trackedBranchRef.getName().substring("refs/remotes/origin/".length()) 
+							: masterBranchName;
+					branchPlan.getModules().add(new SyncPlan.ModuleChange(walk.getModuleName(), walk.getPath(),
+							modulesConfig.getString(ConfigConstants.CONFIG_SUBMODULE_SECTION, walk.getModulesPath(), ConfigConstants.CONFIG_BRANCH_SECTION),
+							trackedBranchName, walk.getObjectId(), 
+							trackedBranchRef != null ? trackedBranchRef.getObjectId() : walk.getObjectId()));
+				}
+			}
+		}
+		return branchPlan;
+	}
+
+	/**
+	 * Apply a plan computed by planSynchronization(): delete and create the planned branches, 
+	 * then update the branches whose submodules change, the other ones are only reported. 
+	 * The pushes collected in a PushBatch are sent by pushPendingUpdates()
+	 * 
+	 * @throws Exception
+	 */
+	public void executePlan(SyncPlan plan, ReportSink reportSink) throws Exception {
+		deleteBranches(plan.getDeletedBranches(), reportSink);
+		for (String createdBranch : plan.getCreatedBranches()) {
+			reportSink.branchCreated(createdBranch);
+		}
+		createMissingParentBranches(plan.getCreatedBranches());
+		updateAllBranchesModules(reportSink, false, plan.getBranchScope(), plan);
+	}
+
+	/**
+	 * Push a single RefSpec of the repository to its origin remote, through the transports of the run
+	 */
+	protected PushResult pushToOrigin(Repository repository, RefSpec refSpec) throws IOException {
+		PushResult pushResult = getTransportPool().push(repository.getDirectory(), "origin", credentialProvider, 
+				Collections.singletonList(refSpec), false, metrics);
+		indexPushedBranches(repository, pushResult);
+		return pushResult;
+	}
+
+	/**
+	 * Same as pushToOrigin() with a lease: the remote ref is only updated if it still points to expectedOldId
+	 */
+	protected PushResult pushToOrigin(Repository repository, RefSpec refSpec, ObjectId expectedOldId) throws IOException {
+		PushResult pushResult = getTransportPool().push(repository.getDirectory(), "origin", credentialProvider, 
+				Collections.singletonList(refSpec), Collections.singletonMap(refSpec.getDestination(), expectedOldId), false, metrics);
+		indexPushedBranches(repository, pushResult);
+		return pushResult;
+	}
+
+	/**
+	 * Record in the RefIndex the remote tracking branches moved by a push
+	 */
+	protected void indexPushedBranches(Repository repository, PushResult pushResult) throws IOException {
+		RefIndex refIndex = getRefIndex(repository);
+		for (TrackingRefUpdate trackingRefUpdate : pushResult.getTrackingRefUpdates()) {
+			// a deleted branch is removed from the index by its caller
+			refIndex.putRemoteBranch(repository.exactRef(trackingRefUpdate.getLocalName()));
+		}
+	}
+
+	/**
+	 * @return the object the remote branch pointed to when it was fetched, ObjectId.zeroId() if it didn't exist, 
+	 * used as lease when pushing the branch
+	 */
+	protected ObjectId getExpectedRemoteId(Repository repository, String branchName) throws IOException {
+		Ref remoteRef = getRefIndex(repository).getRemoteBranch(branchName);
+		return remoteRef != null ? remoteRef.getObjectId() : ObjectId.zeroId();
+	}
+
+	/**
+	 * Push the deletion of a remote branch with a lease
+	 * 
+	 * @return false if the branch has changed on the remote since it was fetched, it is then not deleted
+	 * @throws GitSyncError if the deletion has been rejected for another reason
+	 */
+	protected boolean pushBranchDeletion(Repository parentRepository, String branchName, RefSpec refSpec, ObjectId expectedOldId) 
+			throws IOException, GitSyncError {
+		long pushStart = metrics.start();
+		PushResult pushRes = pushToOrigin(parentRepository, refSpec, expectedOldId);
+		recordPush(pushStart, 1);
+		boolean deleted = true;
+		List<RemoteRefUpdate> otherUpdates = new ArrayList<RemoteRefUpdate>();
+		for (RemoteRefUpdate refUpdate : pushRes.getRemoteUpdates()) {
+			if (isLeaseRejected(refUpdate)) {
+				logger.warn("\t\t" + branchName + " changed on the remote since it was fetched, not deleted");
+				deleted = false;
+				continue;
+			}
+			if (refUpdate.getStatus() != RemoteRefUpdate.Status.OK) {
+				logger.error("\t\tFailed to push deletion of "+branchName+ " : " + refUpdate.getMessage() + " ; " + pushRes.getRemoteUpdates());
+			}
+			otherUpdates.add(refUpdate);
+		}
+		validateRemoteRefUpdates("del remote branch", otherUpdates);
+		return deleted;
+	}
+
+	/**
+	 * @return true if the remote ref has been rejected because it doesn't point anymore to the object 
+	 * it pointed to when fetched: another process has changed it in the meantime
+	 */
+	public static boolean isLeaseRejected(RemoteRefUpdate refUpdate) {
+		// the other rejections (non fast-forward, protected branch, hook...) are errors reported by validateRemoteRefUpdates
+		return refUpdate.getStatus() == RemoteRefUpdate.Status.REJECTED_REMOTE_CHANGED;
+	}
 
-					}
-				}
+	/**
+	 * Fetch the branches of the parent again, eg. after another process has pushed some of them, 
+	 * the following updates are computed from the new remote branches
+	 * 
+	 * @param rejectedBranches local branches whose push has been rejected, they are moved back to the new remote branches
+	 */
+	protected void refreshParentRepository(Repository parentRepository, Collection<String> rejectedBranches) throws IOException, GitSyncError {
+		long start = metrics.start();
+		getTransportPool().fetch(parentRepository.getDirectory(), "origin", credentialProvider, true, metrics);
+		dropRefIndex(parentRepository);
+		RefIndex refIndex = getRefIndex(parentRepository);
+		for (String branchName : rejectedBranches) {
+			Ref localRef = refIndex.getLocalBranch(branchName);
+			Ref remoteRef = refIndex.getRemoteBranch(branchName);
+			if (localRef != null && remoteRef != null) {
+				// drop the rejected commits, otherwise the local branch has diverged and is not reset by the checkout
+				updateLocalBranchRef(parentRepository, branchName, localRef, remoteRef.getObjectId());
 			}
 		}
+		metrics.record(SyncMetrics.PHASES, "refreshParent", start);
+	}
+
+	/**
+	 * Record a push of refCount refs started at startNanos
+	 */
+	protected void recordPush(long startNanos, int refCount) {
+		metrics.record(SyncMetrics.PHASES, "push", startNanos);
+		metrics.increment(SyncMetrics.PUSHES);
+		metrics.add(SyncMetrics.REFS_PUSHED, refCount);
 	}
 
 	public void createMissingParentBranches(Set<String> relevantBranches)
 			throws IOException, GitAPIException, GitSyncError {
-		FileRepositoryBuilder builder = new FileRepositoryBuilder();
-
-		try (Repository parentRepository = builder.setMustExist(true).setGitDir(new File(localGitFolder + "/.git"))
-				.readEnvironment() // scan environment GIT_* variables
-				.findGitDir() // scan up the file system tree
-				.build()) {
+		long start = metrics.start();
+		try (Repository parentRepository = openParentRepository()) {
 			Set<String> parentBranches = new HashSet<String>();
 			try (Git parentgit = new Git(parentRepository)) {
 				List<Ref> call = parentgit.branchList().setListMode(ListMode.REMOTE).call();
+				metrics.add(SyncMetrics.REFS_SCANNED, call.size());
 				for (Ref ref : call) {
 					if (ref.getName().startsWith("refs/remotes/origin/")) {
 						String branchName = ref.getName().substring("refs/remotes/origin/".length());
@@ -334,52 +1889,65 @@ public class GitModuleManager {
 				Set<String> missingParentBranches = new HashSet<String>();
 				missingParentBranches.addAll(relevantBranches);
 				missingParentBranches.removeAll(parentBranches);
+				missingParentBranches.removeIf(branchName -> !isManagedBranch(branchName));
 				logger.info("Missing parent branches :" + missingParentBranches);
 				for (String missingParentBranch : missingParentBranches) {
 					createBranchForModules(parentgit, missingParentBranch);
 				}
 			}
 		}
+		metrics.record(SyncMetrics.PHASES, "createBranches", start);
 	}
 
 	public void createBranchForModules(Git parentgit, String missingParentBranch)
 			throws GitAPIException, GitSyncError, IOException {
+		RefIndex refIndex = getRefIndex(parentgit.getRepository());
 		// make sure the local branch is not there
-		List<Ref> refs = parentgit.branchList().call();
-		for (Ref ref : refs) {
-			if (ref.getName().equals("refs/heads/" + missingParentBranch)) {
-				logger.info("Removing branch before");
-				parentgit.branchDelete()
-					.setBranchNames(missingParentBranch)
-					.setForce(true)
-					.call();
-				break;
-			}
+		if (refIndex.getLocalBranch(missingParentBranch) != null) {
+			logger.info("Removing branch before");
+			parentgit.branchDelete()
+				.setBranchNames(missingParentBranch)
+				.setForce(true)
+				.call();
+			refIndex.removeLocalBranch(missingParentBranch);
 		}
 
 		// create local branch
-		parentgit.branchCreate().setName(missingParentBranch).call();
+		refIndex.putLocalBranch(parentgit.branchCreate().setName(missingParentBranch).call());
 
+		if (pushBatch != null) {
+			logger.info("Queuing push of new branch "+missingParentBranch);
+			pushBatch.add(new RefSpec("refs/heads/" + missingParentBranch + ":refs/heads/" + missingParentBranch), "push new remote branch", 
+					ObjectId.zeroId());
+			return;
+		}
 		logger.info("Pushing new branch "+missingParentBranch+"...");
 		// push branch to remote
-		Iterable<PushResult> res = parentgit.push().setRemote("origin")
-				.setRefSpecs(new RefSpec(missingParentBranch + ":" + missingParentBranch))
-				.setCredentialsProvider(credentialProvider).call();
-
-		for (PushResult pushRes : res) {
-			//logger.info(pushRes + " ; " + pushRes.getMessages() + " ; " + pushRes.getRemoteUpdates());
-			for (RemoteRefUpdate refUpdate : pushRes.getRemoteUpdates()) {
-				if (refUpdate.getStatus() != RemoteRefUpdate.Status.OK) {
-					logger.error("\t\tFailed to push new branch "+missingParentBranch+ " : " + refUpdate.getMessage() + " ; " + pushRes.getRemoteUpdates());
-				} else {
-//					// some msg from the remote git repo
-//					if(pushRes.getMessages() !=  null && ! pushRes.getMessages().isEmpty()) {
-//						logger.info(pushRes.getMessages());
-//					}
-				}
+		long pushStart = metrics.start();
+		PushResult pushRes = pushToOrigin(parentgit.getRepository(), 
+				new RefSpec("refs/heads/" + missingParentBranch + ":refs/heads/" + missingParentBranch), ObjectId.zeroId());
+		recordPush(pushStart, 1);
+
+		//logger.info(pushRes + " ; " + pushRes.getMessages() + " ; " + pushRes.getRemoteUpdates());
+		for (RemoteRefUpdate refUpdate : pushRes.getRemoteUpdates()) {
+			if (isLeaseRejected(refUpdate)) {
+				// created by another process in the meantime, its branch is updated from the fetched one
+				logger.warn("\t\t" + missingParentBranch + " already created on the remote by another process");
+				refreshParentRepository(parentgit.getRepository(), Collections.singleton(missingParentBranch));
+				return;
+			}
+			if (refUpdate.getStatus() != RemoteRefUpdate.Status.OK) {
+				logger.error("\t\tFailed to push new branch "+missingParentBranch+ " : " + refUpdate.getMessage() + " ; " + pushRes.getRemoteUpdates());
+			} else {
+//				// some msg from the remote git repo
+//				if(pushRes.getMessages() !=  null && ! pushRes.getMessages().isEmpty()) {
+//					logger.info(pushRes.getMessages());
+//				}
 			}
-			validateRemoteRefUpdates("push new remote branch", pushRes.getRemoteUpdates());
 		}
+		validateRemoteRefUpdates("push new remote branch", pushRes.getRemoteUpdates());
+		// the push created the remote tracking branch
+		refIndex.putRemoteBranch(parentgit.getRepository().exactRef("refs/remotes/origin/" + missingParentBranch));
 	}
 
 	/**
@@ -390,28 +1958,278 @@ public class GitModuleManager {
 	 * @throws GitSyncError
 	 * @throws ConfigInvalidException
 	 */
-	public void updateAllBranchesModules(StringBuffer reportBuffer, boolean dryRun) throws IOException, GitAPIException, GitSyncError, ConfigInvalidException {
-		FileRepositoryBuilder builder = new FileRepositoryBuilder();
+	public void updateAllBranchesModules(ReportSink reportSink, boolean dryRun) throws IOException, GitAPIException, GitSyncError, ConfigInvalidException {
+		updateAllBranchesModules(reportSink, dryRun, null);
+	}
 
-		try (Repository parentRepository = builder.setMustExist(true).setGitDir(new File(localGitFolder + "/.git"))
-				.readEnvironment() // scan environment GIT_* variables
-				.findGitDir() // scan up the file system tree
-				.build()) {
+	/**
+	 * 
+	 * @param reportSink receives the report of each branch as soon as it is updated
+	 * @param dryRun report only, do not perform changes
+	 * @param branchScope names of the branches to update, null for all
+	 * @throws IOException
+	 * @throws GitAPIException
+	 * @throws GitSyncError
+	 * @throws ConfigInvalidException
+	 */
+	public void updateAllBranchesModules(ReportSink reportSink, boolean dryRun, Set<String> branchScope) throws IOException, GitAPIException, GitSyncError, ConfigInvalidException {
+		updateAllBranchesModules(reportSink, dryRun, branchScope, null);
+	}
+
+	/**
+	 * 
+	 * @param reportSink receives the report of each branch as soon as it is updated
+	 * @param dryRun report only, do not perform changes
+	 * @param branchScope names of the branches to update, null for all
+	 * @param plan plan of the sync, the branches it doesn't update are only reported, null to update all the branches
+	 * @throws IOException
+	 * @throws GitAPIException
+	 * @throws GitSyncError
+	 * @throws ConfigInvalidException
+	 */
+	public void updateAllBranchesModules(ReportSink reportSink, boolean dryRun, Set<String> branchScope, SyncPlan plan) throws IOException, GitAPIException, GitSyncError, ConfigInvalidException {
+		long start = metrics.start();
+		try (Repository parentRepository = openParentRepository()) {
 			try (Git parentgit = new Git(parentRepository)) {
+				Set<String> branchNames = new TreeSet<String>();
 				List<Ref> call = parentgit.branchList().setListMode(ListMode.REMOTE).call();
+				metrics.add(SyncMetrics.REFS_SCANNED, call.size());
 				for (Ref ref : call) {
 					if (ref.getName().startsWith("refs/remotes/origin/")) {
-						updateBranchesForModules(parentgit,
-								ref.getName().substring("refs/remotes/origin/".length()),
-								reportBuffer,
-								dryRun);
+						branchNames.add(ref.getName().substring("refs/remotes/origin/".length()));
+					}
+				}
+				if (pushBatch != null) {
+					// branches created during this run are not yet known by the remote
+					branchNames.addAll(pushBatch.getPendingBranches());
+				}
+				if (branchScope != null) {
+					branchNames.retainAll(branchScope);
+				}
+				branchNames.removeIf(branchName -> !isManagedBranch(branchName));
+				if (plan != null) {
+					// a deletion rejected because the branch changed on the remote leaves it as is until the next run
+					branchNames.removeAll(plan.getDeletedBranches());
+				}
+				if (incrementalSync) {
+					branchFingerprints = new BranchFingerprints(new File(parentRepository.getDirectory(), "sync-git-submodules-branches/fingerprints.properties"));
+					branchFingerprints.load();
+				}
+				try {
+					for (String branchName : branchNames) {
+						String fingerprint = null;
+						if (branchFingerprints != null) {
+							fingerprint = computeBranchFingerprint(parentRepository, branchName);
+							if (fingerprint != null && fingerprint.equals(branchFingerprints.get(branchName))) {
+								logger.info("updateBranchesForModules branch = " + branchName + " unchanged since last sync, skipping");
+								reportSink.branchSkipped(branchName);
+								continue;
+							}
+						}
+						if (plan != null && plan.getBranch(branchName) != null && !plan.getBranch(branchName).isUpdated()) {
+							logger.info("updateBranchesForModules branch = " + branchName + " already up to date, skipping");
+							plan.reportBranch(branchName, reportSink, RemoteRefUpdate.Status.UP_TO_DATE.name());
+							if (fingerprint != null && !dryRun) {
+								// nothing to push, eg. the settings changed without changing the branch
+								branchFingerprints.put(branchName, fingerprint);
+							}
+							continue;
+						}
+						long branchStart = metrics.start();
+						for (int attempt = 0; ; attempt++) {
+							try {
+								updateBranch(parentgit, branchName, reportSink, dryRun);
+								break;
+							} catch (RefLeaseRejectedError e) {
+								if (attempt >= leaseRetries) {
+									throw e;
+								}
+								// computed again from the branch pushed by the other process
+								logger.warn(e.getMessage() + ", fetching and updating it again");
+								metrics.increment(SyncMetrics.LEASE_RETRIES);
+								refreshParentRepository(parentRepository, Collections.singleton(branchName));
+							}
+						}
+						metrics.record(SyncMetrics.BRANCHES, branchName, branchStart);
+						if (branchFingerprints != null && !dryRun) {
+							if (pushBatch != null) {
+								branchesToFingerprint.add(branchName);
+							} else {
+								// already pushed
+								branchFingerprints.put(branchName, computeBranchFingerprint(parentRepository, branchName));
+							}
+						}
+					}
+				} finally {
+					if (branchFingerprints != null && !dryRun) {
+						if (branchScope == null) {
+							// forget the deleted branches
+							branchFingerprints.retainAll(branchNames);
+						}
+						branchFingerprints.save();
 					}
+					getCommitMetadataCache(parentRepository).save();
 				}
 			}
 		}
+		metrics.record(SyncMetrics.PHASES, "updateBranches", start);
+	}
+
+	/**
+	 * Update the submodules of a branch with the commit engine of this manager
+	 */
+	protected void updateBranch(Git parentgit, String branchName, ReportSink reportSink, boolean dryRun)
+			throws GitAPIException, GitSyncError, IOException, ConfigInvalidException {
+		if (commitEngine == CommitEngine.INMEMORY) {
+			updateBranchesForModulesInMemory(parentgit, branchName, reportSink, dryRun);
+		} else {
+			updateBranchesForModules(parentgit, branchName, reportSink, dryRun);
+		}
+	}
+	
+	/**
+	 * Compute a fingerprint of the inputs of the sync of a branch of the parent repository:
+	 * the tip of the remote branch (which covers any change in .gitmodules) and for each of its submodules, 
+	 * the branch it tracks and the tip of this branch (which covers the creation or deletion of submodule branches).
+	 * The settings of this manager changing the commits created by the sync are also part of the fingerprint, see getSyncSettings().
+	 * 
+	 * @return the fingerprint or null if the remote branch doesn't exist (yet)
+	 * @throws IOException
+	 * @throws ConfigInvalidException
+	 */
+	protected String computeBranchFingerprint(Repository parentRepository, String branchName) throws IOException, ConfigInvalidException {
+		Ref parentRef = parentRepository.exactRef("refs/remotes/origin/" + branchName);
+		if (parentRef == null) {
+			return null;
+		}
+		StringBuilder inputs = new StringBuilder();
+		inputs.append("parent ").append(parentRef.getObjectId().name()).append('\n');
+		inputs.append(getSyncSettings());
+		try (RevWalk revWalk = new RevWalk(parentRepository);
+				SubmoduleWalk walk = new SubmoduleWalk(parentRepository)) {
+			RevCommit parentCommit = revWalk.parseCommit(parentRef.getObjectId());
+			walk.setTree(parentCommit.getTree());
+			walk.setRootTree(parentCommit.getTree());
+			while (walk.next()) {
+				try (Repository submoduleRepository = openSubmoduleRepository(walk)) {
+					Ref trackedBranchRef = submoduleRepository != null ? findTrackedBranchRef(walk.getModuleName(), submoduleRepository, branchName) : null;
+					inputs.append("module ").append(walk.getPath()).append(' ')
+						.append(trackedBranchRef != null 
+							? trackedBranchRef.getName() + " " + trackedBranchRef.getObjectId().name() 
+							: "none")
+						.append('\n');
+				}
+			}
+		}
+		try (ObjectInserter.Formatter formatter = new ObjectInserter.Formatter()) {
+			return formatter.idFor(Constants.OBJ_BLOB, Constants.encode(inputs.toString())).name();
+		}
+	}
+	
+	/**
+	 * @return the settings changing the commits created for a branch: 
+	 * the commit engine, the commit mode, the committer and the branch filters
+	 */
+	protected String getSyncSettings() {
+		StringBuilder settings = new StringBuilder();
+		settings.append("commitEngine ").append(commitEngine).append('\n');
+		settings.append("singleCommitPerBranch ").append(singleCommitPerBranch).append('\n');
+		settings.append("committer ")
+			.append(defaultCommitter != null ? defaultCommitter.getName() + " <" + defaultCommitter.getEmailAddress() + ">" : "none")
+			.append('\n');
+		settings.append("branchFilter ").append(branchFilter).append('\n');
+		for (Map.Entry<String, BranchFilter> submoduleBranchFilter : new TreeMap<String, BranchFilter>(submoduleBranchFilters).entrySet()) {
+			settings.append("submoduleBranchFilter ").append(submoduleBranchFilter.getKey()).append(' ')
+				.append(submoduleBranchFilter.getValue()).append('\n');
+		}
+		return settings.toString();
+	}
+	
+	/**
+	 * @return the commit metadata cache of this manager, loaded from the local repository on first use
+	 * @throws IOException
+	 */
+	protected synchronized CommitMetadataCache getCommitMetadataCache(Repository parentRepository) throws IOException {
+		if (commitMetadataCache == null) {
+			commitMetadataCache = new CommitMetadataCache(
+					new File(parentRepository.getDirectory(), "sync-git-submodules-branches/commit-metadata.cache"),
+					commitMetadataCacheSize);
+			if (commitMetadataCacheSize > 0) {
+				commitMetadataCache.load();
+			}
+		}
+		return commitMetadataCache;
+	}
+
+	/**
+	 * @return the remote branch consideredBranch of the submodule, or its master branch if it doesn't exist 
+	 * or is filtered out, or null if none exists
+	 * @throws IOException
+	 */
+	protected Ref findTrackedBranchRef(String moduleName, Repository submoduleRepository, String consideredBranch) throws IOException {
+		RefIndex refIndex = getRefIndex(submoduleRepository);
+		Ref trackedBranchRef = isTrackableBranch(moduleName, consideredBranch) ? refIndex.getRemoteBranch(consideredBranch) : null;
+		if (trackedBranchRef == null) {
+			// use the default branch is necessary
+			trackedBranchRef = refIndex.getRemoteBranch(masterBranchName);
+		}
+		return trackedBranchRef;
 	}
 	
 
+	/**
+	 * Push all the updates collected in the push batch (if any) in a single push or a few chunked pushes.
+	 * The branches changed on the remote by another process since they were fetched are fetched, updated and pushed again
+	 * 
+	 * @throws IOException
+	 * @throws GitAPIException
+	 * @throws GitSyncError if one of the refs has been rejected
+	 */
+	public void pushPendingUpdates() throws IOException, GitAPIException, GitSyncError, ConfigInvalidException {
+		pushPendingUpdates(ReportSink.NONE);
+	}
+
+	/**
+	 * Same as pushPendingUpdates() and report the push status of each integration branch to reportSink
+	 */
+	public void pushPendingUpdates(ReportSink reportSink) throws IOException, GitAPIException, GitSyncError, ConfigInvalidException {
+		if (pushBatch == null || pushBatch.isEmpty()) {
+			return;
+		}
+		try (Repository parentRepository = openParentRepository();
+				Git parentgit = new Git(parentRepository)) {
+			long start = metrics.start();
+			Set<String> leaseRejectedBranches = pushBatch.push(getTransportPool(), parentRepository.getDirectory(), "origin", credentialProvider, 
+					metrics, reportSink);
+			// the remote tracking branches of the batch have moved
+			dropRefIndex(parentRepository);
+			for (int attempt = 0; !leaseRejectedBranches.isEmpty(); attempt++) {
+				if (attempt >= leaseRetries) {
+					throw new GitSyncError("push submodule tracking branches " + leaseRejectedBranches 
+							+ ": still changed on the remote after " + leaseRetries + " retries");
+				}
+				logger.warn("Branches " + leaseRejectedBranches + " changed on the remote since they were fetched, fetching and updating them again");
+				metrics.add(SyncMetrics.LEASE_RETRIES, leaseRejectedBranches.size());
+				refreshParentRepository(parentRepository, leaseRejectedBranches);
+				for (String branchName : leaseRejectedBranches) {
+					// queued again in the batch
+					updateBranch(parentgit, branchName, reportSink, false);
+				}
+				leaseRejectedBranches = pushBatch.push(getTransportPool(), parentRepository.getDirectory(), "origin", credentialProvider, 
+						metrics, reportSink);
+				dropRefIndex(parentRepository);
+			}
+			metrics.record(SyncMetrics.PHASES, "pushPendingUpdates", start);
+			if (branchFingerprints != null) {
+				for (String branchName : branchesToFingerprint) {
+					branchFingerprints.put(branchName, computeBranchFingerprint(parentRepository, branchName));
+				}
+				branchesToFingerprint.clear();
+				branchFingerprints.save();
+			}
+		}
+	}
+
 	/**
 	 * 
 	 * 
@@ -422,42 +2240,63 @@ public class GitModuleManager {
 	 * @throws IOException
 	 * @throws ConfigInvalidException
 	 */
-	public void updateBranchesForModules(Git parentgit, String consideredBranch, StringBuffer reportBuffer, boolean dryRun)
+	public void updateBranchesForModules(Git parentgit, String consideredBranch, ReportSink reportSink, boolean dryRun)
 			throws GitAPIException, GitSyncError, IOException, ConfigInvalidException {
 		logger.info("updateBranchesForModules branch = " + consideredBranch);
-		reportBuffer.append(String.format("**Branch %s**\n",  consideredBranch));
-		reportBuffer.append("\n"
-				+ "| Module                           | Branch           |\n"
-				+ "|:----------                       |:----------       |\n");
+		reportSink.branchStarted(consideredBranch);
+		ObjectId expectedRemoteId = getExpectedRemoteId(parentgit.getRepository(), consideredBranch);
 		// switch parentGit to branch
 		checkoutBranch(parentgit, consideredBranch);
 		
+		// in single commit mode, .gitmodules is loaded once and the updates are committed after the loop
+		FileBasedConfig batchModulesConfig = null;
+		List<String> batchPaths = new ArrayList<String>();
+		List<String> batchMessages = new ArrayList<String>();
+		PersonIdent batchCommitter = defaultCommitter;
+		if (singleCommitPerBranch) {
+			batchModulesConfig = new FileBasedConfig(new File(
+					parentgit.getRepository().getWorkTree(), Constants.DOT_GIT_MODULES), parentgit.getRepository().getFS());
+			batchModulesConfig.load();
+		}
 		
 		// for each submodule check if it must use master or specific branch
 		try (SubmoduleWalk walk = SubmoduleWalk.forIndex(parentgit.getRepository())) {
 			while (walk.next()) {
-				Repository submoduleRepository = walk.getRepository();
+				Repository submoduleRepository = openSubmoduleRepository(walk);
+				long submoduleStart = metrics.start();
 				try (Git submodulegit = Git.wrap(submoduleRepository)) {
 					// logger.info("remote branches in submodule "+walk.getModuleName()+":");
-					String trackedBranchName = masterBranchName;
-					Ref trackedBranchRef = null;
-					List<Ref> branches = submodulegit.branchList().setListMode(ListMode.REMOTE).call();
-					for (Ref ref : branches) {
-						if (ref.getName().startsWith("refs/remotes/origin/")) {
-							String branchName = ref.getName().substring("refs/remotes/origin/".length());
-							if (branchName.equals(consideredBranch)) {
-								trackedBranchName = consideredBranch;
-								trackedBranchRef = ref;
-								break;
-							}
-							if(trackedBranchRef == null && branchName.equals(trackedBranchName)) {
-								// use the default branch is necessary
-								trackedBranchRef = ref;
+					Ref trackedBranchRef = findTrackedBranchRef(walk.getModuleName(), submoduleRepository, consideredBranch);
+					String trackedBranchName = trackedBranchRef != null 
+							? trackedBranchRef.getName().substring("refs/remotes/origin/".length()) 
+							: masterBranchName;
+					logger.info(String.format("  tracking module %-32s on branch "+trackedBranchName, walk.getModuleName()));
+					
+					if (singleCommitPerBranch) {
+						String previousBranchName = batchModulesConfig.getString(ConfigConstants.CONFIG_SUBMODULE_SECTION, walk.getModulesPath(),
+								ConfigConstants.CONFIG_BRANCH_SECTION);
+						batchModulesConfig.setString(ConfigConstants.CONFIG_SUBMODULE_SECTION, walk.getModulesPath(),
+								ConfigConstants.CONFIG_BRANCH_SECTION, trackedBranchName);
+						checkoutBranch(submodulegit, trackedBranchName);
+						batchPaths.add(walk.getModulesPath());
+						ObjectId newGitlinkId = submoduleRepository.resolve(Constants.HEAD);
+						boolean updated = false;
+						if (!trackedBranchName.equals(previousBranchName) 
+								|| (newGitlinkId != null && !newGitlinkId.equals(walk.getObjectId()))) {
+							CommitMetadata latestCommit = trackedBranchRef != null 
+									? getCommitMetadataCache(parentgit.getRepository()).get(submoduleRepository, trackedBranchRef.getObjectId())
+									: null;
+							batchMessages.add(buildModuleCommitMessage(walk.getModuleName(), trackedBranchName, latestCommit));
+							if (batchMessages.size() == 1 && latestCommit != null) {
+								batchCommitter = latestCommit.getAuthorIdent();
+							} else {
+								batchCommitter = defaultCommitter;
 							}
+							updated = true;
 						}
+						reportSink.moduleTracked(consideredBranch, walk.getModuleName(), trackedBranchName, walk.getObjectId(), newGitlinkId, updated);
+						continue;
 					}
-					logger.info(String.format("  tracking module %-32s on branch "+trackedBranchName, walk.getModuleName()));
-					
 						
 					// Make sure the parent repo knows that its submodule now tracks a branch:
 					FileBasedConfig modulesConfig = new FileBasedConfig(new File(
@@ -478,83 +2317,476 @@ public class GitModuleManager {
 						.addFilepattern(Constants.DOT_GIT_MODULES)
 						.call();
 					
-					Status status = parentgit.status().call();
-					if(!status.isClean()) {
-						logger.debug("\t\tAdded: " + status.getAdded());
-						logger.debug("\t\tChanged: " + status.getChanged());
-						logger.debug("\t\tConflicting: " + status.getConflicting());
-		                logger.debug("\t\tConflictingStageState: " + status.getConflictingStageState());
-		                logger.debug("\t\tIgnoredNotInIndex: " + status.getIgnoredNotInIndex());
-		                logger.debug("\t\tMissing: " + status.getMissing());
-		                logger.debug("\t\tModified: " + status.getModified());
-		                logger.debug("\t\tRemoved: " + status.getRemoved());
-		                logger.debug("\t\tUntracked: " + status.getUntracked());
-		                logger.debug("\t\tUntrackedFolders: " + status.getUntrackedFolders());
-					}
-					String branchModifier = "";
-					if(status.getAdded().size() + status.getChanged().size() +status.getRemoved().size() > 0) {
-						String msg;
-						PersonIdent committer;
+					logStatus(parentgit);
+					boolean updated = hasStagedChanges(parentgit.getRepository(), Arrays.asList(walk.getModulesPath(), Constants.DOT_GIT_MODULES));
+					reportSink.moduleTracked(consideredBranch, walk.getModuleName(), trackedBranchName, 
+							walk.getObjectId(), submoduleRepository.resolve(Constants.HEAD), updated);
+					if(updated) {
+						PersonIdent committer = defaultCommitter;
+						CommitMetadata latestCommit = null;
 						if(trackedBranchRef != null) {
-							RevWalk walkSubModuleGit = new RevWalk(submodulegit.getRepository());
-							RevCommit latestCommit = walkSubModuleGit.parseCommit(trackedBranchRef.getObjectId());
+							latestCommit = getCommitMetadataCache(parentgit.getRepository())
+									.get(submodulegit.getRepository(), trackedBranchRef.getObjectId());
 							//logger.info(String.format("\t\t%s %s", latestCommit.getAuthorIdent().getEmailAddress(), latestCommit.getShortMessage()));
-							msg = String.format("[%s#%s] %s\n\n%s",
-									walk.getModuleName(),
-									trackedBranchName,
-									latestCommit.getShortMessage(),
-									"Updating submodule "+walk.getModuleName()+" to track head of branch "+trackedBranchName
-									);
 							committer = latestCommit.getAuthorIdent();
-						} else {
-							msg = "Updating submodule "+walk.getModuleName()+" to track head of branch "+trackedBranchName;
-							committer = defaultCommitter;
 						}
-						branchModifier = "🔄";
+						String msg = buildModuleCommitMessage(walk.getModuleName(), trackedBranchName, latestCommit);
+						ObjectId commitId = null;
 						if(! dryRun) {
 							logger.debug("\t\tgit commit -m \""+msg+"\"");
-							parentgit.commit()
+							long commitStart = metrics.start();
+							commitId = parentgit.commit()
 								.setMessage(msg)
 								.setAllowEmpty(false)
 								.setCommitter(committer)
 								.call();
+							getRefIndex(parentgit.getRepository()).putLocalBranch(parentgit.getRepository().exactRef(parentgit.getRepository().getFullBranch()));
+							metrics.record(SyncMetrics.PHASES, "commit", commitStart);
 						} else {
 							logger.info("\t\t[DRYRUN] git commit -m \""+msg+"\"");
 						}
+						reportSink.commitCreated(consideredBranch, commitId, msg);
 					}
-					reportBuffer.append(String.format("| %-32s |  %-16s %s |\n", walk.getModuleName(), trackedBranchName, branchModifier));
+				} finally {
+					metrics.record(SyncMetrics.SUBMODULES, walk.getModuleName(), submoduleStart);
 				}
 			}
 			
+			if (singleCommitPerBranch) {
+				commitBatchedModules(parentgit, consideredBranch, batchModulesConfig, batchPaths, batchMessages, batchCommitter, reportSink, dryRun);
+			}
+			
 			/*Collection<String> submoduleUpdateRes = new SubmoduleUpdateCommand(parentgit.getRepository()).call();
 			for (String s : submoduleUpdateRes) {
 				logger.info(
 						"\tupdating submodules: " + s);
 			}*/
+			if(!dryRun && pushBatch != null) {
+				pushBatch.add(new RefSpec("refs/heads/" + consideredBranch + ":refs/heads/" + consideredBranch), "push submodule tracking branch",
+						expectedRemoteId);
+				reportSink.branchPushed(consideredBranch, "PENDING");
+			} else if(!dryRun) {
+				long pushStart = metrics.start();
+				// the checked out branch
+				PushResult pushRes = pushToOrigin(parentgit.getRepository(), 
+						new RefSpec("refs/heads/" + consideredBranch + ":refs/heads/" + consideredBranch), expectedRemoteId);
+				recordPush(pushStart, 1);
+				for (RemoteRefUpdate pushResult : pushRes.getRemoteUpdates()) {
+					if(pushResult.getStatus() == RemoteRefUpdate.Status.OK) {
+						logger.info("push branch "+consideredBranch+" => "+RemoteRefUpdate.Status.OK);
+					} else if(pushResult.getStatus() == RemoteRefUpdate.Status.UP_TO_DATE) {
+						logger.info("nothing to push for branch "+consideredBranch+" => "+RemoteRefUpdate.Status.UP_TO_DATE);
+						
+					} else {
+						logger.error("PB pushing branch "+consideredBranch+" => "+pushRes.getMessages()+"\" "+pushResult);
+					}
+					reportSink.branchPushed(consideredBranch, pushResult.getStatus().name());
+					if (isLeaseRejected(pushResult)) {
+						throw new RefLeaseRejectedError("push submodule tracking branch", consideredBranch);
+					}
+				}
+				validateRemoteRefUpdates("push submodule tracking branch", pushRes.getRemoteUpdates());
+			} else {
+				logger.info("\t\t[DRYRUN] not pushing branch "+consideredBranch);
+				reportSink.branchPushed(consideredBranch, "DRYRUN");
+				// drop the uncommitted changes, otherwise they are carried to the checkout of the next branch
+				parentgit.reset().setMode(ResetType.HARD).call();
+			}
+			reportSink.branchDone(consideredBranch);
+		}
+	}
+	
+	/**
+	 * Same as updateBranchesForModules but without any checkout: 
+	 * the tree of the branch is read from the object database, the gitlinks and the .gitmodules blob are replaced 
+	 * in an in-core DirCache and the resulting commits are written directly to refs/heads/&lt;consideredBranch&gt;
+	 * 
+	 * @param parentgit
+	 * @param consideredBranch
+	 * @throws GitAPIException
+	 * @throws GitSyncError
+	 * @throws IOException
+	 * @throws ConfigInvalidException
+	 */
+	public void updateBranchesForModulesInMemory(Git parentgit, String consideredBranch, ReportSink reportSink, boolean dryRun)
+			throws GitAPIException, GitSyncError, IOException, ConfigInvalidException {
+		logger.info("updateBranchesForModules (in memory) branch = " + consideredBranch);
+		reportSink.branchStarted(consideredBranch);
+		Repository parentRepository = parentgit.getRepository();
+		Ref localRef = parentRepository.exactRef("refs/heads/" + consideredBranch);
+		Ref baseRef = parentRepository.exactRef("refs/remotes/origin/" + consideredBranch);
+		ObjectId expectedRemoteId = baseRef != null ? baseRef.getObjectId() : ObjectId.zeroId();
+		if (baseRef == null) {
+			baseRef = localRef;
+		}
+		if (baseRef == null) {
+			throw new GitSyncError("No branch local or remote branch named "+consideredBranch+" found in "+parentRepository.getDirectory());
+		}
+		// in dry run mode the ids are only computed, nothing is written in the object database
+		try (ObjectInserter inserter = dryRun ? new DryRunObjectInserter() : parentRepository.newObjectInserter();
+				ObjectReader reader = parentRepository.newObjectReader();
+				RevWalk revWalk = new RevWalk(reader)) {
+			RevCommit baseCommit = revWalk.parseCommit(baseRef.getObjectId());
+			ObjectId currentCommitId = baseCommit;
+			ObjectId currentTreeId = baseCommit.getTree();
+
+			DirCache dirCache = DirCache.newInCore();
+			DirCacheBuilder dirCacheBuilder = dirCache.builder();
+			dirCacheBuilder.addTree(new byte[0], DirCacheEntry.STAGE_0, reader, currentTreeId);
+			dirCacheBuilder.finish();
+			
+			BlobBasedConfig modulesConfig;
+			DirCacheEntry modulesEntry = dirCache.getEntry(Constants.DOT_GIT_MODULES);
+			if (modulesEntry != null) {
+				modulesConfig = new BlobBasedConfig(null, reader.open(modulesEntry.getObjectId()).getCachedBytes());
+			} else {
+				modulesConfig = new BlobBasedConfig(null, new byte[0]);
+			}
+			
+			List<String> batchMessages = new ArrayList<String>();
+			PersonIdent batchCommitter = defaultCommitter;
+			try (SubmoduleWalk walk = new SubmoduleWalk(parentRepository)) {
+				walk.setTree(currentTreeId);
+				walk.setRootTree(currentTreeId);
+				while (walk.next()) {
+					long submoduleStart = metrics.start();
+					try (Repository submoduleRepository = openSubmoduleRepository(walk)) {
+						if (submoduleRepository == null) {
+							logger.warn("  submodule " + walk.getModuleName() + " is not initialized, ignoring it");
+							continue;
+						}
+						Ref trackedBranchRef = findTrackedBranchRef(walk.getModuleName(), submoduleRepository, consideredBranch);
+						String trackedBranchName = trackedBranchRef != null 
+								? trackedBranchRef.getName().substring("refs/remotes/origin/".length()) 
+								: masterBranchName;
+						logger.info(String.format("  tracking module %-32s on branch "+trackedBranchName, walk.getModuleName()));
+						
+						// Make sure the parent repo knows that its submodule now tracks a branch:
+						String previousBranchName = modulesConfig.getString(ConfigConstants.CONFIG_SUBMODULE_SECTION, walk.getModulesPath(),
+								ConfigConstants.CONFIG_BRANCH_SECTION);
+						modulesConfig.setString(ConfigConstants.CONFIG_SUBMODULE_SECTION, walk.getModulesPath(),
+								ConfigConstants.CONFIG_BRANCH_SECTION, trackedBranchName);
+						// point the gitlink to the latest of that branch:
+						ObjectId gitlinkId = trackedBranchRef != null ? trackedBranchRef.getObjectId() : walk.getObjectId();
+						if (singleCommitPerBranch) {
+							// only the gitlink is edited here, .gitmodules and the tree are written once after the loop
+							DirCacheEditor editor = dirCache.editor();
+							editor.add(new DirCacheEditor.PathEdit(walk.getPath()) {
+								@Override
+								public void apply(DirCacheEntry ent) {
+									ent.setFileMode(FileMode.GITLINK);
+									ent.setObjectId(gitlinkId);
+								}
+							});
+							editor.finish();
+							boolean updated = false;
+							if (!trackedBranchName.equals(previousBranchName) || !gitlinkId.equals(walk.getObjectId())) {
+								CommitMetadata latestCommit = trackedBranchRef != null 
+										? getCommitMetadataCache(parentRepository).get(submoduleRepository, trackedBranchRef.getObjectId())
+										: null;
+								batchMessages.add(buildModuleCommitMessage(walk.getModuleName(), trackedBranchName, latestCommit));
+								if (batchMessages.size() == 1 && latestCommit != null) {
+									batchCommitter = latestCommit.getAuthorIdent();
+								} else {
+									batchCommitter = defaultCommitter;
+								}
+								updated = true;
+							}
+							reportSink.moduleTracked(consideredBranch, walk.getModuleName(), trackedBranchName, walk.getObjectId(), gitlinkId, updated);
+							continue;
+						}
+						ObjectId modulesBlobId = inserter.insert(Constants.OBJ_BLOB, Constants.encode(modulesConfig.toText()));
+						DirCacheEditor editor = dirCache.editor();
+						editor.add(new DirCacheEditor.PathEdit(walk.getPath()) {
+							@Override
+							public void apply(DirCacheEntry ent) {
+								ent.setFileMode(FileMode.GITLINK);
+								ent.setObjectId(gitlinkId);
+							}
+						});
+						editor.add(new DirCacheEditor.PathEdit(Constants.DOT_GIT_MODULES) {
+							@Override
+							public void apply(DirCacheEntry ent) {
+								ent.setFileMode(FileMode.REGULAR_FILE);
+								ent.setObjectId(modulesBlobId);
+							}
+						});
+						editor.finish();
+						ObjectId newTreeId = dirCache.writeTree(inserter);
+						
+						boolean updated = !newTreeId.equals(currentTreeId);
+						reportSink.moduleTracked(consideredBranch, walk.getModuleName(), trackedBranchName, walk.getObjectId(), gitlinkId, updated);
+						if (updated) {
+							PersonIdent committer = defaultCommitter != null ? defaultCommitter : new PersonIdent(parentRepository);
+							CommitMetadata latestCommit = null;
+							if(trackedBranchRef != null) {
+								latestCommit = getCommitMetadataCache(parentRepository)
+										.get(submoduleRepository, trackedBranchRef.getObjectId());
+								committer = latestCommit.getAuthorIdent();
+							}
+							String msg = buildModuleCommitMessage(walk.getModuleName(), trackedBranchName, latestCommit);
+							CommitBuilder commit = new CommitBuilder();
+							commit.setTreeId(newTreeId);
+							commit.setParentId(currentCommitId);
+							commit.setAuthor(committer);
+							commit.setCommitter(committer);
+							commit.setMessage(msg);
+							currentCommitId = inserter.insert(commit);
+							currentTreeId = newTreeId;
+							if(! dryRun) {
+								logger.debug("\t\tcommit "+currentCommitId.name()+" -m \""+msg+"\"");
+							} else {
+								logger.info("\t\t[DRYRUN] git commit -m \""+msg+"\"");
+							}
+							reportSink.commitCreated(consideredBranch, dryRun ? null : currentCommitId, msg);
+						}
+					} finally {
+						metrics.record(SyncMetrics.SUBMODULES, walk.getModuleName(), submoduleStart);
+					}
+				}
+			}
+			
+			if (singleCommitPerBranch) {
+				ObjectId modulesBlobId = inserter.insert(Constants.OBJ_BLOB, Constants.encode(modulesConfig.toText()));
+				DirCacheEditor editor = dirCache.editor();
+				editor.add(new DirCacheEditor.PathEdit(Constants.DOT_GIT_MODULES) {
+					@Override
+					public void apply(DirCacheEntry ent) {
+						ent.setFileMode(FileMode.REGULAR_FILE);
+						ent.setObjectId(modulesBlobId);
+					}
+				});
+				editor.finish();
+				ObjectId newTreeId = dirCache.writeTree(inserter);
+				if (!newTreeId.equals(currentTreeId)) {
+					String msg = buildBranchCommitMessage(consideredBranch, batchMessages);
+					PersonIdent committer = batchCommitter != null ? batchCommitter : new PersonIdent(parentRepository);
+					CommitBuilder commit = new CommitBuilder();
+					commit.setTreeId(newTreeId);
+					commit.setParentId(currentCommitId);
+					commit.setAuthor(committer);
+					commit.setCommitter(committer);
+					commit.setMessage(msg);
+					currentCommitId = inserter.insert(commit);
+					currentTreeId = newTreeId;
+					if(! dryRun) {
+						logger.debug("\t\tcommit "+currentCommitId.name()+" -m \""+msg+"\"");
+					} else {
+						logger.info("\t\t[DRYRUN] git commit -m \""+msg+"\"");
+					}
+					reportSink.commitCreated(consideredBranch, dryRun ? null : currentCommitId, msg);
+				}
+			}
+			
 			if(!dryRun) {
-				Iterable<PushResult> pushResps = parentgit.push()
-					.setCredentialsProvider(credentialProvider)
-					.call();
-				for (PushResult pushRes : pushResps) {
+				inserter.flush();
+				updateLocalBranchRef(parentRepository, consideredBranch, localRef, currentCommitId);
+				if (currentCommitId.equals(baseRef.getObjectId()) && baseRef != localRef) {
+					logger.info("nothing to push for branch "+consideredBranch+" => "+RemoteRefUpdate.Status.UP_TO_DATE);
+					reportSink.branchPushed(consideredBranch, RemoteRefUpdate.Status.UP_TO_DATE.name());
+				} else if (pushBatch != null) {
+					pushBatch.add(new RefSpec("refs/heads/" + consideredBranch + ":refs/heads/" + consideredBranch), "push submodule tracking branch",
+							expectedRemoteId);
+					reportSink.branchPushed(consideredBranch, "PENDING");
+				} else {
+					long pushStart = metrics.start();
+					PushResult pushRes = pushToOrigin(parentRepository, 
+							new RefSpec("refs/heads/" + consideredBranch + ":refs/heads/" + consideredBranch), expectedRemoteId);
+					recordPush(pushStart, 1);
 					for (RemoteRefUpdate pushResult : pushRes.getRemoteUpdates()) {
 						if(pushResult.getStatus() == RemoteRefUpdate.Status.OK) {
 							logger.info("push branch "+consideredBranch+" => "+RemoteRefUpdate.Status.OK);
 						} else if(pushResult.getStatus() == RemoteRefUpdate.Status.UP_TO_DATE) {
 							logger.info("nothing to push for branch "+consideredBranch+" => "+RemoteRefUpdate.Status.UP_TO_DATE);
-							
 						} else {
 							logger.error("PB pushing branch "+consideredBranch+" => "+pushRes.getMessages()+"\" "+pushResult);
 						}
+						reportSink.branchPushed(consideredBranch, pushResult.getStatus().name());
+						if (isLeaseRejected(pushResult)) {
+							throw new RefLeaseRejectedError("push submodule tracking branch", consideredBranch);
+						}
 					}
 					validateRemoteRefUpdates("push submodule tracking branch", pushRes.getRemoteUpdates());
 				}
 			} else {
 				logger.info("\t\t[DRYRUN] not pushing branch "+consideredBranch);
+				reportSink.branchPushed(consideredBranch, "DRYRUN");
 			}
-			reportBuffer.append("\n");
+			reportSink.branchDone(consideredBranch);
 		}
 	}
 	
+	/**
+	 * Save .gitmodules, stage all the given submodule paths at once and create the single commit of the branch
+	 */
+	protected void commitBatchedModules(Git parentgit, String consideredBranch, FileBasedConfig modulesConfig, 
+			List<String> modulePaths, List<String> moduleMessages, PersonIdent committer, ReportSink reportSink, boolean dryRun) 
+			throws GitAPIException, IOException {
+		modulesConfig.save();
+		AddCommand add = parentgit.add().addFilepattern(Constants.DOT_GIT_MODULES);
+		for (String modulePath : modulePaths) {
+			add.addFilepattern(modulePath);
+		}
+		logger.debug("\t\tgit add " + Constants.DOT_GIT_MODULES + " " + String.join(" ", modulePaths));
+		add.call();
+		logStatus(parentgit);
+		List<String> stagedPaths = new ArrayList<String>(modulePaths);
+		stagedPaths.add(Constants.DOT_GIT_MODULES);
+		if(hasStagedChanges(parentgit.getRepository(), stagedPaths)) {
+			String msg = buildBranchCommitMessage(consideredBranch, moduleMessages);
+			ObjectId commitId = null;
+			if(! dryRun) {
+				logger.debug("\t\tgit commit -m \""+msg+"\"");
+				long commitStart = metrics.start();
+				commitId = parentgit.commit()
+					.setMessage(msg)
+					.setAllowEmpty(false)
+					.setCommitter(committer)
+					.call();
+				getRefIndex(parentgit.getRepository()).putLocalBranch(parentgit.getRepository().exactRef(parentgit.getRepository().getFullBranch()));
+				metrics.record(SyncMetrics.PHASES, "commit", commitStart);
+			} else {
+				logger.info("\t\t[DRYRUN] git commit -m \""+msg+"\"");
+			}
+			reportSink.commitCreated(consideredBranch, commitId, msg);
+		}
+	}
+
+	/**
+	 * Compare the index entries of the given paths with the HEAD tree, 
+	 * without walking the rest of the working tree nor the submodule working trees (unlike Status)
+	 * 
+	 * @return true if one of the paths is added, changed or removed in the index
+	 * @throws IOException
+	 */
+	protected boolean hasStagedChanges(Repository repository, Collection<String> paths) throws IOException {
+		DirCache dirCache = repository.readDirCache();
+		ObjectId headTreeId = repository.resolve(Constants.HEAD + "^{tree}");
+		try (ObjectReader reader = repository.newObjectReader()) {
+			for (String path : paths) {
+				DirCacheEntry indexEntry = dirCache.getEntry(path);
+				try (TreeWalk headWalk = headTreeId != null ? TreeWalk.forPath(reader, path, headTreeId) : null) {
+					if (indexEntry == null || headWalk == null) {
+						if (indexEntry != null || headWalk != null) {
+							return true;
+						}
+					} else if (!indexEntry.getObjectId().equals(headWalk.getObjectId(0))
+							|| indexEntry.getRawMode() != headWalk.getRawMode(0)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Dump the full status of the working tree, only when debug logging is enabled as it walks the whole working tree
+	 */
+	protected void logStatus(Git parentgit) throws GitAPIException {
+		if (!logger.isDebugEnabled()) {
+			return;
+		}
+		Status status = parentgit.status().call();
+		if(!status.isClean()) {
+			logger.debug("\t\tAdded: " + status.getAdded());
+			logger.debug("\t\tChanged: " + status.getChanged());
+			logger.debug("\t\tConflicting: " + status.getConflicting());
+			logger.debug("\t\tConflictingStageState: " + status.getConflictingStageState());
+			logger.debug("\t\tIgnoredNotInIndex: " + status.getIgnoredNotInIndex());
+			logger.debug("\t\tMissing: " + status.getMissing());
+			logger.debug("\t\tModified: " + status.getModified());
+			logger.debug("\t\tRemoved: " + status.getRemoved());
+			logger.debug("\t\tUntracked: " + status.getUntracked());
+			logger.debug("\t\tUntrackedFolders: " + status.getUntrackedFolders());
+		}
+	}
+
+	/**
+	 * @param latestCommit head of the tracked branch of the submodule, null if unknown
+	 * @return the message of the commit updating a single submodule
+	 */
+	protected String buildModuleCommitMessage(String moduleName, String trackedBranchName, CommitMetadata latestCommit) {
+		if (latestCommit == null) {
+			return "Updating submodule "+moduleName+" to track head of branch "+trackedBranchName;
+		}
+		return String.format("[%s#%s] %s\n\n%s",
+				moduleName,
+				trackedBranchName,
+				latestCommit.getShortMessage(),
+				"Updating submodule "+moduleName+" to track head of branch "+trackedBranchName
+				);
+	}
+
+	/**
+	 * @param moduleMessages messages of each updated submodule as built by buildModuleCommitMessage
+	 * @return the message of the single commit of the branch, listing the first line of each submodule message
+	 */
+	protected String buildBranchCommitMessage(String consideredBranch, List<String> moduleMessages) {
+		if (moduleMessages.size() == 1) {
+			return moduleMessages.get(0);
+		}
+		if (moduleMessages.isEmpty()) {
+			return "Updating submodules of branch "+consideredBranch;
+		}
+		StringBuilder msg = new StringBuilder();
+		msg.append("Updating ").append(moduleMessages.size()).append(" submodules of branch ").append(consideredBranch).append("\n\n");
+		for (String moduleMessage : moduleMessages) {
+			int eol = moduleMessage.indexOf('\n');
+			msg.append("- ").append(eol < 0 ? moduleMessage : moduleMessage.substring(0, eol)).append('\n');
+		}
+		return msg.toString();
+	}
+
+	/**
+	 * @return the index of the branches of the repository, built on first use during the sync
+	 * @throws IOException
+	 */
+	protected synchronized RefIndex getRefIndex(Repository repository) throws IOException {
+		File key = repository.getDirectory().getAbsoluteFile();
+		RefIndex refIndex = refIndexes.get(key);
+		if (refIndex == null) {
+			refIndex = new RefIndex(repository);
+			metrics.add(SyncMetrics.REFS_SCANNED, refIndex.getRefCount());
+			refIndexes.put(key, refIndex);
+		}
+		return refIndex;
+	}
+
+	/**
+	 * Forget the RefIndex of the repository after refs not recorded in it changed (fetch, batch push), it is built again on next use
+	 */
+	protected synchronized void dropRefIndex(Repository repository) {
+		refIndexes.remove(repository.getDirectory().getAbsoluteFile());
+	}
+
+	/**
+	 * Move refs/heads/&lt;branchName&gt; to newId without touching the working tree.
+	 * If HEAD is currently on this branch, it is detached first so the working tree stays consistent with HEAD
+	 */
+	protected void updateLocalBranchRef(Repository repository, String branchName, Ref localRef, ObjectId newId)
+			throws IOException, GitSyncError {
+		if (localRef != null && localRef.getObjectId().equals(newId)) {
+			return;
+		}
+		if (("refs/heads/" + branchName).equals(repository.getFullBranch())) {
+			RefUpdate headUpdate = repository.updateRef(Constants.HEAD, true);
+			headUpdate.setNewObjectId(localRef.getObjectId());
+			headUpdate.forceUpdate();
+		}
+		RefUpdate refUpdate = repository.updateRef("refs/heads/" + branchName);
+		refUpdate.setExpectedOldObjectId(localRef != null ? localRef.getObjectId() : ObjectId.zeroId());
+		refUpdate.setNewObjectId(newId);
+		refUpdate.setForceUpdate(true);
+		refUpdate.setRefLogMessage("sync submodules branches", false);
+		RefUpdate.Result result = refUpdate.update();
+		if (result != RefUpdate.Result.NEW && result != RefUpdate.Result.FORCED
+				&& result != RefUpdate.Result.FAST_FORWARD && result != RefUpdate.Result.NO_CHANGE) {
+			throw new GitSyncError("Failed to update refs/heads/" + branchName + " - Result '" + result.name() + "'");
+		}
+		getRefIndex(repository).putLocalBranch(repository.exactRef("refs/heads/" + branchName));
+	}
+
 	/**
 	 * checkout the local branch or get the corresponding remote one 
 	 * @param git
@@ -562,36 +2794,69 @@ public class GitModuleManager {
 	 * @throws GitAPIException 
 	 * @throws GitSyncError 
 	 */
-	public void checkoutBranch(Git git, String branchName) throws GitAPIException, GitSyncError {
-		List<Ref> refs = git.branchList().call();
-		for (Ref ref : refs) {
-			if (ref.getName().equals("refs/heads/" + branchName)) {
-				// a local branch exists
-				git.checkout()
-					.setName(branchName)
-					.call();
-				return;
-			}
+	public void checkoutBranch(Git git, String branchName) throws GitAPIException, GitSyncError, IOException {
+		long start = metrics.start();
+		try {
+			doCheckoutBranch(git, branchName);
+		} finally {
+			metrics.record(SyncMetrics.PHASES, "checkout", start);
 		}
-		// else look for a remote branch with this name
-		List<Ref> call = git.branchList().setListMode(ListMode.REMOTE).call();
-		for (Ref ref : call) {
-			if (ref.getName().startsWith("refs/remotes/origin/")) {
-				String remotebranchName = ref.getName().substring("refs/remotes/origin/".length());
-				if (branchName.equals(remotebranchName)) {
-					git.checkout()
-						.setName(branchName)
-						.setCreateBranch(true)
-						.setUpstreamMode(SetupUpstreamMode.TRACK)
-				        .setStartPoint(ref.getName().replaceFirst("refs/remotes/", ""))
-						.call();
+	}
+
+	protected void doCheckoutBranch(Git git, String branchName) throws GitAPIException, GitSyncError, IOException {
+		RefIndex refIndex = getRefIndex(git.getRepository());
+		Ref localRef = refIndex.getLocalBranch(branchName);
+		if (localRef != null) {
+			// a local branch exists
+			git.checkout()
+				.setName(branchName)
+				.call();
+			// in a reused clone, the local branch may be behind the fetched remote branch
+			Ref remoteRef = refIndex.getRemoteBranch(branchName);
+			if (remoteRef != null && !remoteRef.getObjectId().equals(localRef.getObjectId())) {
+				if (!canResetToRemote(git.getRepository(), localRef, remoteRef)) {
+					logger.warn("Local branch " + branchName + " in " + git.getRepository().getWorkTree() 
+							+ " has diverged from " + remoteRef.getName() + ", keeping it (use the FETCH update mode to reset it)");
 					return;
 				}
+				logger.debug("\t\tgit reset --hard " + remoteRef.getName());
+				git.reset()
+					.setMode(ResetType.HARD)
+					.setRef(remoteRef.getName())
+					.call();
+				refIndex.putLocalBranch(git.getRepository().exactRef(localRef.getName()));
 			}
+			return;
+		}
+		// else look for a remote branch with this name
+		Ref ref = refIndex.getRemoteBranch(branchName);
+		if (ref != null) {
+			refIndex.putLocalBranch(git.checkout()
+				.setName(branchName)
+				.setCreateBranch(true)
+				.setUpstreamMode(SetupUpstreamMode.TRACK)
+		        .setStartPoint(ref.getName().replaceFirst("refs/remotes/", ""))
+				.call());
+			return;
 		}
 		throw new GitSyncError("Checkout failed, No branch local or remote branch named "+branchName+" found in "+git.getRepository().getWorkTree());
 	}
 
+	/**
+	 * Whether an existing local branch may be reset to its fetched remote branch when checked out.
+	 * The FETCH update mode and the shallow fetch modes always reset (the remote is the reference, and with
+	 * a truncated history the ancestry is unknown), the PULL update mode only fast-forwards so that 
+	 * local commits are never discarded
+	 */
+	protected boolean canResetToRemote(Repository repository, Ref localRef, Ref remoteRef) throws IOException {
+		if (updateMode == UpdateMode.FETCH || fetchMode != FetchMode.FULL) {
+			return true;
+		}
+		try (RevWalk revWalk = new RevWalk(repository)) {
+			return revWalk.isMergedInto(revWalk.parseCommit(localRef.getObjectId()), revWalk.parseCommit(remoteRef.getObjectId()));
+		}
+	}
+
 	/**
 	 * Check references updates for any errors
 	 *
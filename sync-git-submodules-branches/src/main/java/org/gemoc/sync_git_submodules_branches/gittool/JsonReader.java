@@ -0,0 +1,211 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser, enough to read the payloads of the webhooks without an additional dependency.
+ * An object is read as a Map (in the order of its keys), an array as a List, a number as a BigDecimal, 
+ * true and false as Boolean and null as null
+ */
+public class JsonReader {
+
+	String json;
+	int pos = 0;
+
+	protected JsonReader(String json) {
+		this.json = json;
+	}
+
+	/**
+	 * @return the value of the JSON text
+	 * @throws IllegalArgumentException if the text is not valid JSON
+	 */
+	public static Object parse(String json) {
+		JsonReader reader = new JsonReader(json);
+		Object value = reader.readValue();
+		reader.skipWhitespace();
+		if (reader.pos < json.length()) {
+			throw reader.error("unexpected data after the value");
+		}
+		return value;
+	}
+
+	protected Object readValue() {
+		skipWhitespace();
+		if (pos >= json.length()) {
+			throw error("unexpected end");
+		}
+		char c = json.charAt(pos);
+		switch (c) {
+		case '{':
+			return readObject();
+		case '[':
+			return readArray();
+		case '"':
+			return readString();
+		case 't':
+			return readLiteral("true", Boolean.TRUE);
+		case 'f':
+			return readLiteral("false", Boolean.FALSE);
+		case 'n':
+			return readLiteral("null", null);
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				return readNumber();
+			}
+			throw error("unexpected character '" + c + "'");
+		}
+	}
+
+	protected Map<String, Object> readObject() {
+		Map<String, Object> object = new LinkedHashMap<String, Object>();
+		pos++;
+		skipWhitespace();
+		if (peek() == '}') {
+			pos++;
+			return object;
+		}
+		while (true) {
+			skipWhitespace();
+			if (peek() != '"') {
+				throw error("expected a key");
+			}
+			String key = readString();
+			skipWhitespace();
+			expect(':');
+			object.put(key, readValue());
+			skipWhitespace();
+			if (peek() == ',') {
+				pos++;
+			} else {
+				expect('}');
+				return object;
+			}
+		}
+	}
+
+	protected List<Object> readArray() {
+		List<Object> array = new ArrayList<Object>();
+		pos++;
+		skipWhitespace();
+		if (peek() == ']') {
+			pos++;
+			return array;
+		}
+		while (true) {
+			array.add(readValue());
+			skipWhitespace();
+			if (peek() == ',') {
+				pos++;
+			} else {
+				expect(']');
+				return array;
+			}
+		}
+	}
+
+	protected String readString() {
+		StringBuilder string = new StringBuilder();
+		pos++;
+		while (true) {
+			if (pos >= json.length()) {
+				throw error("unterminated string");
+			}
+			char c = json.charAt(pos++);
+			if (c == '"') {
+				return string.toString();
+			}
+			if (c != '\\') {
+				string.append(c);
+				continue;
+			}
+			if (pos >= json.length()) {
+				throw error("unterminated string");
+			}
+			char escaped = json.charAt(pos++);
+			switch (escaped) {
+			case '"':
+			case '\\':
+			case '/':
+				string.append(escaped);
+				break;
+			case 'b':
+				string.append('\b');
+				break;
+			case 'f':
+				string.append('\f');
+				break;
+			case 'n':
+				string.append('\n');
+				break;
+			case 'r':
+				string.append('\r');
+				break;
+			case 't':
+				string.append('\t');
+				break;
+			case 'u':
+				if (pos + 4 > json.length()) {
+					throw error("invalid unicode escape");
+				}
+				try {
+					string.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+				} catch (NumberFormatException e) {
+					throw error("invalid unicode escape");
+				}
+				pos += 4;
+				break;
+			default:
+				throw error("invalid escape '\\" + escaped + "'");
+			}
+		}
+	}
+
+	protected BigDecimal readNumber() {
+		int start = pos;
+		while (pos < json.length() && "+-0123456789.eE".indexOf(json.charAt(pos)) >= 0) {
+			pos++;
+		}
+		try {
+			return new BigDecimal(json.substring(start, pos));
+		} catch (NumberFormatException e) {
+			throw error("invalid number");
+		}
+	}
+
+	protected Object readLiteral(String literal, Object value) {
+		if (!json.startsWith(literal, pos)) {
+			throw error("unexpected value");
+		}
+		pos += literal.length();
+		return value;
+	}
+
+	protected void skipWhitespace() {
+		while (pos < json.length() && " \t\r\n".indexOf(json.charAt(pos)) >= 0) {
+			pos++;
+		}
+	}
+
+	protected char peek() {
+		if (pos >= json.length()) {
+			throw error("unexpected end");
+		}
+		return json.charAt(pos);
+	}
+
+	protected void expect(char c) {
+		if (peek() != c) {
+			throw error("expected '" + c + "'");
+		}
+		pos++;
+	}
+
+	protected IllegalArgumentException error(String message) {
+		return new IllegalArgumentException("Invalid JSON at offset " + pos + ": " + message);
+	}
+}
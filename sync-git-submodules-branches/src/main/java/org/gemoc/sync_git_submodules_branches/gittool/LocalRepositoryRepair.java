@@ -0,0 +1,240 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryState;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.submodule.SubmoduleWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks a local repository kept between runs (and its submodules) before updating it, and repairs what a crashed
+ * or interrupted run may have left: lock files, unfinished merge, cherry-pick or rebase, refs to missing objects,
+ * unreadable packed-refs or index, broken submodule repositories.
+ *
+ * The repairs only remove the broken parts, the update that follows (in FETCH update mode) fetches them again and resets
+ * the branches and the working trees. The local repository must not be used by another process during the check,
+ * the lock files more recent than lockExpiryMillis are kept in case one is still working on it.
+ */
+public class LocalRepositoryRepair {
+
+	Logger logger = LoggerFactory.getLogger(LocalRepositoryRepair.class);
+
+	public enum Outcome {
+		/** nothing to repair */
+		INTACT,
+		/** some parts have been removed, they must be fetched again and the branches reset */
+		REPAIRED,
+		/** cannot be repaired, the repository must be cloned again */
+		BROKEN
+	}
+
+	/** age of the lock files considered as left by a crashed process by default */
+	public static final long DEFAULT_LOCK_EXPIRY_MILLIS = 10 * 60 * 1000L;
+
+	File workTree;
+	String remoteURL;
+	long lockExpiryMillis = DEFAULT_LOCK_EXPIRY_MILLIS;
+	/** description of each repair, or of the reason of a BROKEN outcome */
+	List<String> repairs = new ArrayList<String>();
+
+	/**
+	 * @param workTree working tree of the parent repository
+	 * @param remoteURL URL the origin remote of the parent must point to
+	 */
+	public LocalRepositoryRepair(File workTree, String remoteURL) {
+		this.workTree = workTree;
+		this.remoteURL = remoteURL;
+	}
+
+	/**
+	 * @param lockExpiryMillis minimum age of the lock files to remove, the more recent ones may be held by a running git process
+	 */
+	public void setLockExpiryMillis(long lockExpiryMillis) {
+		this.lockExpiryMillis = lockExpiryMillis;
+	}
+
+	public List<String> getRepairs() {
+		return repairs;
+	}
+
+	public Outcome check() {
+		File gitDir = new File(workTree, Constants.DOT_GIT);
+		if (!new File(gitDir, Constants.HEAD).isFile() || !new File(gitDir, "objects").isDirectory()) {
+			return broken("not a git repository");
+		}
+		try {
+			removeLocks(gitDir.toPath());
+		} catch (IOException e) {
+			return broken("cannot remove the lock files: " + e.getMessage());
+		}
+		try (Repository repository = new FileRepositoryBuilder().setGitDir(gitDir).setWorkTree(workTree).setMustExist(true).build()) {
+			String url = repository.getConfig().getString("remote", "origin", "url");
+			if (!remoteURL.equals(url)) {
+				return broken("points to " + url + " instead of " + remoteURL);
+			}
+			if (!repair(repository)) {
+				return broken("the refs cannot be read or the current commit is missing");
+			}
+			checkSubmodules(repository);
+		} catch (IOException | RuntimeException e) {
+			return broken(e.toString());
+		}
+		for (String repair : repairs) {
+			logger.warn("Repaired " + workTree + ": " + repair);
+		}
+		return repairs.isEmpty() ? Outcome.INTACT : Outcome.REPAIRED;
+	}
+
+	protected Outcome broken(String reason) {
+		repairs.add(reason);
+		logger.warn("Cannot repair " + workTree + ": " + reason);
+		return Outcome.BROKEN;
+	}
+
+	/**
+	 * Remove the lock files left in the git directory (and the git directories of the submodules)
+	 * not modified for lockExpiryMillis, the object database is skipped
+	 */
+	protected void removeLocks(Path gitDir) throws IOException {
+		long expiry = System.currentTimeMillis() - lockExpiryMillis;
+		Files.walkFileTree(gitDir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				return dir.getFileName().toString().equals("objects") ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (!file.getFileName().toString().endsWith(".lock")) {
+					return FileVisitResult.CONTINUE;
+				}
+				if (attrs.lastModifiedTime().toMillis() > expiry) {
+					logger.warn("Keeping recent lock " + file + ", another process may be using " + workTree);
+				} else {
+					Files.delete(file);
+					repairs.add("removed lock " + gitDir.relativize(file));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Repair the state, the refs and the index of a repository
+	 *
+	 * @return false if it cannot be repaired: its refs cannot be read or its current commit is missing
+	 */
+	protected boolean repair(Repository repository) throws IOException {
+		String name = repository.getDirectory().getName();
+		if (repository.getRepositoryState() != RepositoryState.SAFE) {
+			repairs.add("aborted " + repository.getRepositoryState() + " in " + name);
+			repository.writeMergeHeads(null);
+			repository.writeMergeCommitMsg(null);
+			repository.writeCherryPickHead(null);
+			repository.writeRevertHead(null);
+			for (String stateDirectory : new String[] { "rebase-merge", "rebase-apply", "sequencer" }) {
+				FileUtils.deleteDirectory(new File(repository.getDirectory(), stateDirectory));
+			}
+		}
+		List<Ref> refs;
+		try {
+			refs = repository.getRefDatabase().getRefsByPrefix(RefDatabase.ALL);
+		} catch (IOException | IllegalArgumentException e) {
+			// an invalid object id is an IllegalArgumentException,
+			// only the remote tracking branches and the local branches are packed, they are fetched and reset again
+			repairs.add("removed unreadable packed-refs of " + name + " (" + e.getMessage() + ")");
+			Files.deleteIfExists(new File(repository.getDirectory(), Constants.PACKED_REFS).toPath());
+			repository.getRefDatabase().refresh();
+			try {
+				refs = repository.getRefDatabase().getRefsByPrefix(RefDatabase.ALL);
+			} catch (IOException | IllegalArgumentException e2) {
+				return false;
+			}
+		}
+		ObjectId headId = repository.resolve(Constants.HEAD);
+		if (headId == null || !repository.getObjectDatabase().has(headId)) {
+			// the working tree and the index cannot be compared to anything
+			return false;
+		}
+		for (Ref ref : refs) {
+			if (ref.isSymbolic()) {
+				continue;
+			}
+			ObjectId objectId = ref.getObjectId();
+			if (objectId == null || !repository.getObjectDatabase().has(objectId)) {
+				RefUpdate refUpdate = repository.updateRef(ref.getName());
+				refUpdate.setForceUpdate(true);
+				refUpdate.delete();
+				repairs.add("deleted " + ref.getName() + " of " + name + " pointing to missing object "
+						+ (objectId != null ? objectId.name() : null));
+			}
+		}
+		if (!repository.isBare()) {
+			try {
+				DirCache.read(repository);
+			} catch (IOException e) {
+				repairs.add("removed unreadable index of " + name + " (" + e.getMessage() + ")");
+				Files.deleteIfExists(repository.getIndexFile().toPath());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Repair the submodules of the current commit of the parent, the repository of a submodule which cannot be repaired
+	 * is removed with its working tree so it is cloned again
+	 */
+	protected void checkSubmodules(Repository parentRepository) throws IOException {
+		ObjectId headId = parentRepository.resolve(Constants.HEAD);
+		try (RevWalk revWalk = new RevWalk(parentRepository);
+				SubmoduleWalk walk = new SubmoduleWalk(parentRepository)) {
+			RevTree headTree = revWalk.parseCommit(headId).getTree();
+			walk.setTree(headTree);
+			walk.setRootTree(headTree);
+			while (walk.next()) {
+				File moduleGitDir = new File(parentRepository.getDirectory(), Constants.MODULES + "/" + walk.getModuleName());
+				File moduleWorkTree = walk.getDirectory();
+				if (!moduleGitDir.exists() && !new File(moduleWorkTree, Constants.DOT_GIT).exists()) {
+					// not initialized yet
+					continue;
+				}
+				boolean repaired = false;
+				try (Repository submoduleRepository = walk.getRepository()) {
+					if (submoduleRepository != null && new File(submoduleRepository.getDirectory(), "objects").isDirectory()) {
+						repaired = repair(submoduleRepository);
+					}
+				} catch (IOException | RuntimeException e) {
+					logger.debug("cannot repair submodule " + walk.getModuleName(), e);
+				}
+				if (!repaired) {
+					repairs.add("removed broken submodule " + walk.getModuleName());
+					FileUtils.deleteDirectory(moduleGitDir);
+					if (moduleWorkTree.isDirectory()) {
+						// the clone of the submodule needs an empty directory
+						FileUtils.cleanDirectory(moduleWorkTree);
+					}
+				}
+			}
+		}
+	}
+}
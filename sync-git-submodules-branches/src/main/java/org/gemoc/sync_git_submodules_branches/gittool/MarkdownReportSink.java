@@ -0,0 +1,66 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.io.Flushable;
+import java.io.IOException;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Renders the markdown report: a table of the tracked branch of each submodule per integration branch.
+ * Each branch is flushed once done, so a report interrupted by a failure contains the branches already synchronized
+ */
+public class MarkdownReportSink implements ReportSink {
+
+	Appendable out;
+
+	/**
+	 * @param out receives the markdown, eg. a Writer on the report file or a StringBuilder
+	 */
+	public MarkdownReportSink(Appendable out) {
+		this.out = out;
+	}
+
+	@Override
+	public synchronized void repositoryStarted(String repositoryName, String gitRemoteURL) throws IOException {
+		out.append(String.format("# %s\n\n%s\n\n", repositoryName, gitRemoteURL));
+		flush();
+	}
+
+	@Override
+	public synchronized void repositoryFailed(String repositoryName, String message) throws IOException {
+		out.append(String.format("**Sync failed**: %s\n\n", message));
+		flush();
+	}
+
+	@Override
+	public synchronized void branchSkipped(String branchName) throws IOException {
+		out.append(String.format("**Branch %s** unchanged since last sync\n\n", branchName));
+		flush();
+	}
+
+	@Override
+	public synchronized void branchStarted(String branchName) throws IOException {
+		out.append(String.format("**Branch %s**\n", branchName));
+		out.append("\n"
+				+ "| Module                           | Branch           |\n"
+				+ "|:----------                       |:----------       |\n");
+	}
+
+	@Override
+	public synchronized void moduleTracked(String branchName, String moduleName, String trackedBranchName,
+			ObjectId oldGitlink, ObjectId newGitlink, boolean updated) throws IOException {
+		out.append(String.format("| %-32s |  %-16s %s |\n", moduleName, trackedBranchName, updated ? "🔄" : ""));
+	}
+
+	@Override
+	public synchronized void branchDone(String branchName) throws IOException {
+		out.append("\n");
+		flush();
+	}
+
+	protected void flush() throws IOException {
+		if (out instanceof Flushable) {
+			((Flushable) out).flush();
+		}
+	}
+}
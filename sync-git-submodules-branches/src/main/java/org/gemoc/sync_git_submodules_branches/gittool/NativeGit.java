@@ -0,0 +1,107 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.eclipse.jgit.api.errors.TransportException;
+import org.eclipse.jgit.errors.UnsupportedCredentialItem;
+import org.eclipse.jgit.transport.CredentialItem;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.URIish;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Minimal runner for the git command line.
+ * 
+ * Used only for the operations that JGit 5.2 doesn't support, such as shallow clone and fetch.
+ * The credentials of the CredentialsProvider are given to git through an inline credential helper reading
+ * them from the environment of the process, so they never appear in the command line.
+ */
+public class NativeGit {
+
+	Logger logger = LoggerFactory.getLogger(NativeGit.class);
+
+	String gitExecutable = "git";
+	String username = null;
+	String password = null;
+
+	/**
+	 * @param credentialProvider provider of credential for the remote repositories, may be null
+	 * @param remoteURL url used to query the credential provider
+	 */
+	public NativeGit(CredentialsProvider credentialProvider, String remoteURL) {
+		if (credentialProvider != null) {
+			CredentialItem.Username user = new CredentialItem.Username();
+			CredentialItem.Password pass = new CredentialItem.Password();
+			try {
+				if (credentialProvider.supports(user, pass) && credentialProvider.get(new URIish(remoteURL), user, pass)) {
+					username = user.getValue();
+					password = pass.getValue() != null ? new String(pass.getValue()) : "";
+				}
+			} catch (UnsupportedCredentialItem | URISyntaxException e) {
+				logger.debug("no credential available for " + remoteURL + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Run git with the given arguments
+	 * 
+	 * @param workingDirectory directory in which git is launched
+	 * @param args git arguments (without the git executable)
+	 * @throws TransportException if git cannot be launched or ends with a non zero exit code
+	 */
+	public void run(File workingDirectory, String... args) throws TransportException {
+		List<String> command = new ArrayList<String>();
+		command.add(gitExecutable);
+		if (username != null && !username.isEmpty()) {
+			command.add("-c");
+			command.add("credential.helper=");
+			command.add("-c");
+			command.add("credential.helper=!f() { echo \"username=$GIT_SYNC_USERNAME\"; echo \"password=$GIT_SYNC_PASSWORD\"; }; f");
+		}
+		command.addAll(Arrays.asList(args));
+		logger.debug("\t\tgit " + String.join(" ", args));
+
+		ProcessBuilder processBuilder = new ProcessBuilder(command)
+				.directory(workingDirectory)
+				.redirectErrorStream(true);
+		processBuilder.environment().put("GIT_TERMINAL_PROMPT", "0");
+		if (username != null && !username.isEmpty()) {
+			processBuilder.environment().put("GIT_SYNC_USERNAME", username);
+			processBuilder.environment().put("GIT_SYNC_PASSWORD", password);
+		}
+		LinkedList<String> lastLines = new LinkedList<String>();
+		try {
+			Process process = processBuilder.start();
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), Charset.defaultCharset()))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					logger.debug("\t\t\t" + line);
+					lastLines.add(line);
+					if (lastLines.size() > 10) {
+						lastLines.removeFirst();
+					}
+				}
+			}
+			int exitCode = process.waitFor();
+			if (exitCode != 0) {
+				throw new TransportException("git " + args[0] + " failed with exit code " + exitCode + ": " + String.join("\n", lastLines));
+			}
+		} catch (IOException e) {
+			throw new TransportException("Cannot run " + gitExecutable + " " + args[0] + " (is git installed ?)", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TransportException("Interrupted while running git " + args[0], e);
+		}
+	}
+}
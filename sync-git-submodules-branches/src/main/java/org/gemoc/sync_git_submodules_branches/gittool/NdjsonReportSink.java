@@ -0,0 +1,125 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Writes each event of the sync as a JSON object on its own line (NDJSON), flushed as soon as it happens
+ * so other tools can follow the progress of the sync.
+ *
+ * Each line has an "event" (the name of the ReportSink method), a "time" and the parameters of the event, eg.
+ * <pre>
+ * {"event":"moduleTracked","time":"...","branch":"feature1","module":"compA","trackedBranch":"feature1","oldGitlink":"...","newGitlink":"...","updated":true}
+ * </pre>
+ * In a fleet, the events also contain the name of the parent "repository".
+ */
+public class NdjsonReportSink implements ReportSink {
+
+	Writer out;
+	String repositoryName = null;
+	SimpleDateFormat isoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+	public NdjsonReportSink(Writer out) {
+		this.out = out;
+		isoFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	@Override
+	public synchronized void repositoryStarted(String repositoryName, String gitRemoteURL) throws IOException {
+		this.repositoryName = repositoryName;
+		Map<String, Object> fields = new LinkedHashMap<String, Object>();
+		fields.put("url", gitRemoteURL);
+		write("repositoryStarted", fields);
+	}
+
+	@Override
+	public synchronized void repositoryFailed(String repositoryName, String message) throws IOException {
+		Map<String, Object> fields = new LinkedHashMap<String, Object>();
+		fields.put("message", message);
+		write("repositoryFailed", fields);
+	}
+
+	@Override
+	public synchronized void branchDeleted(String branchName) throws IOException {
+		write("branchDeleted", branchFields(branchName));
+	}
+
+	@Override
+	public synchronized void branchCreated(String branchName) throws IOException {
+		write("branchCreated", branchFields(branchName));
+	}
+
+	@Override
+	public synchronized void branchSkipped(String branchName) throws IOException {
+		write("branchSkipped", branchFields(branchName));
+	}
+
+	@Override
+	public synchronized void branchStarted(String branchName) throws IOException {
+		write("branchStarted", branchFields(branchName));
+	}
+
+	@Override
+	public synchronized void moduleTracked(String branchName, String moduleName, String trackedBranchName,
+			ObjectId oldGitlink, ObjectId newGitlink, boolean updated) throws IOException {
+		Map<String, Object> fields = branchFields(branchName);
+		fields.put("module", moduleName);
+		fields.put("trackedBranch", trackedBranchName);
+		fields.put("oldGitlink", oldGitlink != null ? oldGitlink.name() : null);
+		fields.put("newGitlink", newGitlink != null ? newGitlink.name() : null);
+		fields.put("updated", updated);
+		write("moduleTracked", fields);
+	}
+
+	@Override
+	public synchronized void commitCreated(String branchName, ObjectId commitId, String message) throws IOException {
+		Map<String, Object> fields = branchFields(branchName);
+		fields.put("commit", commitId != null ? commitId.name() : null);
+		fields.put("message", message);
+		write("commitCreated", fields);
+	}
+
+	@Override
+	public synchronized void branchPushed(String branchName, String status) throws IOException {
+		Map<String, Object> fields = branchFields(branchName);
+		fields.put("status", status);
+		write("branchPushed", fields);
+	}
+
+	@Override
+	public synchronized void branchDone(String branchName) throws IOException {
+		write("branchDone", branchFields(branchName));
+	}
+
+	protected Map<String, Object> branchFields(String branchName) {
+		Map<String, Object> fields = new LinkedHashMap<String, Object>();
+		fields.put("branch", branchName);
+		return fields;
+	}
+
+	protected void write(String event, Map<String, Object> fields) throws IOException {
+		StringBuilder json = new StringBuilder("{\"event\":").append(SyncMetrics.jsonString(event));
+		json.append(",\"time\":").append(SyncMetrics.jsonString(isoFormat.format(new Date())));
+		if (repositoryName != null) {
+			json.append(",\"repository\":").append(SyncMetrics.jsonString(repositoryName));
+		}
+		for (Map.Entry<String, Object> field : fields.entrySet()) {
+			json.append(',').append(SyncMetrics.jsonString(field.getKey())).append(':');
+			Object value = field.getValue();
+			if (value == null || value instanceof Boolean) {
+				json.append(value);
+			} else {
+				json.append(SyncMetrics.jsonString(value.toString()));
+			}
+		}
+		out.write(json.append("}\n").toString());
+		out.flush();
+	}
+}
@@ -0,0 +1,189 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the RefSpecs (deletions, creations and updates) of a sync run
+ * in order to send them to the remote in a single push, or in a few chunked pushes
+ */
+public class PushBatch {
+
+	Logger logger = LoggerFactory.getLogger(PushBatch.class);
+
+	/** pending RefSpecs indexed by their destination, the latest one for a given destination wins */
+	Map<String, RefSpec> refSpecs = new LinkedHashMap<String, RefSpec>();
+	/** error prefix used when validating the update of a given destination */
+	Map<String, String> errorPrefixes = new HashMap<String, String>();
+	/** object each destination must still point to on the remote for the push to be accepted */
+	Map<String, ObjectId> expectedOldObjectIds = new HashMap<String, ObjectId>();
+	/** maximum number of refs sent in a single push, 0 or less for no limit */
+	int chunkSize;
+	/** ask the remote to apply all the refs of a push or none of them */
+	boolean atomic;
+
+	public PushBatch(int chunkSize, boolean atomic) {
+		this.chunkSize = chunkSize;
+		this.atomic = atomic;
+	}
+
+	/**
+	 * Register a RefSpec to push later
+	 * 
+	 * @param refSpec RefSpec to push, a RefSpec without source is a deletion
+	 * @param errorPrefix error prefix used when validating the update of this ref
+	 */
+	public void add(RefSpec refSpec, String errorPrefix) {
+		refSpecs.remove(refSpec.getDestination());
+		refSpecs.put(refSpec.getDestination(), refSpec);
+		errorPrefixes.put(refSpec.getDestination(), errorPrefix);
+	}
+
+	/**
+	 * Register a RefSpec to push later with a lease: the remote ref is only updated if it still points to expectedOldObjectId
+	 * 
+	 * @param expectedOldObjectId object the remote ref pointed to when the update was computed, ObjectId.zeroId() if it didn't exist.
+	 * The lease of the first RefSpec of a destination is kept, eg. a branch created then updated must still not exist on the remote
+	 */
+	public void add(RefSpec refSpec, String errorPrefix, ObjectId expectedOldObjectId) {
+		add(refSpec, errorPrefix);
+		expectedOldObjectIds.putIfAbsent(refSpec.getDestination(), expectedOldObjectId);
+	}
+
+	public boolean isEmpty() {
+		return refSpecs.isEmpty();
+	}
+
+	/**
+	 * @return short name of the branches that will be created or updated by this batch
+	 */
+	public Set<String> getPendingBranches() {
+		Set<String> branches = new TreeSet<String>();
+		for (RefSpec refSpec : refSpecs.values()) {
+			if (refSpec.getSource() != null && refSpec.getDestination().startsWith("refs/heads/")) {
+				branches.add(refSpec.getDestination().substring("refs/heads/".length()));
+			}
+		}
+		return branches;
+	}
+
+	/**
+	 * Push all pending RefSpecs to the remote and check the result of each ref.
+	 * The batch is emptied once pushed.
+	 * 
+	 * @param transportPool transports used to push, kept open between the chunks
+	 * @param gitDir git directory of the repository to push
+	 * @param metrics metrics recording the pushes, may be null
+	 * @param reportSink receives the push status of each created or updated branch
+	 * @return the short name of the created or updated branches whose lease has been rejected, 
+	 * their update must be computed again from the new remote branch. The rejected deletions are only logged.
+	 * The other refs of a rejected atomic push stay in the batch, to be pushed with the recomputed updates
+	 * @throws GitSyncError if one of the refs has been rejected for another reason
+	 * @throws IOException
+	 */
+	public Set<String> push(TransportPool transportPool, File gitDir, String remote, CredentialsProvider credentialProvider, SyncMetrics metrics, 
+			ReportSink reportSink) throws GitSyncError, IOException {
+		Set<String> leaseRejectedBranches = new TreeSet<String>();
+		if (refSpecs.isEmpty()) {
+			return leaseRejectedBranches;
+		}
+		List<RefSpec> pending = new ArrayList<RefSpec>(refSpecs.values());
+		// RefSpecs rejected only because another ref of their atomic push has been rejected, with their error prefix
+		Map<RefSpec, String> abortedErrorPrefixes = new LinkedHashMap<RefSpec, String>();
+		Map<String, ObjectId> abortedLeases = new HashMap<String, ObjectId>();
+		int size = chunkSize > 0 ? chunkSize : pending.size();
+		try {
+			for (int start = 0; start < pending.size(); start += size) {
+				List<RefSpec> chunk = pending.subList(start, Math.min(start + size, pending.size()));
+				logger.info("Pushing " + chunk.size() + " refs" + (atomic ? " (atomic)" : "") + "...");
+				long pushStart = System.nanoTime();
+				Map<String, ObjectId> chunkLeases = new HashMap<String, ObjectId>();
+				for (RefSpec refSpec : chunk) {
+					if (expectedOldObjectIds.containsKey(refSpec.getDestination())) {
+						chunkLeases.put(refSpec.getDestination(), expectedOldObjectIds.get(refSpec.getDestination()));
+					}
+				}
+				PushResult pushRes = transportPool.push(gitDir, remote, credentialProvider, chunk, chunkLeases, atomic, metrics);
+				if (metrics != null) {
+					metrics.record(SyncMetrics.PHASES, "push", pushStart);
+					metrics.increment(SyncMetrics.PUSHES);
+					metrics.add(SyncMetrics.REFS_PUSHED, chunk.size());
+				}
+				for (RemoteRefUpdate refUpdate : pushRes.getRemoteUpdates()) {
+					if (refUpdate.getStatus() == RemoteRefUpdate.Status.OK) {
+						logger.info("\tpush " + refUpdate.getRemoteName() + " => " + RemoteRefUpdate.Status.OK);
+					} else if (refUpdate.getStatus() == RemoteRefUpdate.Status.UP_TO_DATE) {
+						logger.info("\tnothing to push for " + refUpdate.getRemoteName() + " => " + RemoteRefUpdate.Status.UP_TO_DATE);
+					} else {
+						logger.error("\t\tFailed to push " + refUpdate.getRemoteName() + " : " + refUpdate.getStatus()
+								+ " " + refUpdate.getMessage() + " ; " + pushRes.getMessages());
+					}
+					if (!refUpdate.isDelete() && refUpdate.getRemoteName().startsWith("refs/heads/")) {
+						reportSink.branchPushed(refUpdate.getRemoteName().substring("refs/heads/".length()), refUpdate.getStatus().name());
+					}
+				}
+				boolean leaseRejected = false;
+				for (RemoteRefUpdate refUpdate : pushRes.getRemoteUpdates()) {
+					leaseRejected |= chunkLeases.containsKey(refUpdate.getRemoteName()) && GitModuleManager.isLeaseRejected(refUpdate);
+				}
+				for (RemoteRefUpdate refUpdate : pushRes.getRemoteUpdates()) {
+					boolean refLeaseRejected = chunkLeases.containsKey(refUpdate.getRemoteName()) && GitModuleManager.isLeaseRejected(refUpdate);
+					if (!refLeaseRejected && atomic && leaseRejected && refUpdate.getStatus() != RemoteRefUpdate.Status.OK 
+							&& refUpdate.getStatus() != RemoteRefUpdate.Status.UP_TO_DATE) {
+						// an atomic push rejects all the refs of the chunk, the other ones are still valid 
+						// and pushed again as is with the recomputed ones
+						abortedErrorPrefixes.put(refSpecs.get(refUpdate.getRemoteName()), errorPrefixes.get(refUpdate.getRemoteName()));
+						if (expectedOldObjectIds.containsKey(refUpdate.getRemoteName())) {
+							abortedLeases.put(refUpdate.getRemoteName(), expectedOldObjectIds.get(refUpdate.getRemoteName()));
+						}
+						continue;
+					}
+					if (refLeaseRejected) {
+						if (refUpdate.isDelete()) {
+							logger.warn("\t" + refUpdate.getRemoteName() + " changed on the remote since it was fetched, not deleted");
+						} else if (refUpdate.getRemoteName().startsWith("refs/heads/")) {
+							leaseRejectedBranches.add(refUpdate.getRemoteName().substring("refs/heads/".length()));
+						}
+						continue;
+					}
+					String errorPrefix = errorPrefixes.get(refUpdate.getRemoteName());
+					GitModuleManager.validateRemoteRefUpdates(
+							(errorPrefix != null ? errorPrefix : "push") + " " + refUpdate.getRemoteName(),
+							Collections.singletonList(refUpdate));
+				}
+			}
+		} finally {
+			refSpecs.clear();
+			errorPrefixes.clear();
+			expectedOldObjectIds.clear();
+		}
+		// kept pending for the next push
+		for (Map.Entry<RefSpec, String> aborted : abortedErrorPrefixes.entrySet()) {
+			add(aborted.getKey(), aborted.getValue());
+			if (abortedLeases.containsKey(aborted.getKey().getDestination())) {
+				expectedOldObjectIds.put(aborted.getKey().getDestination(), abortedLeases.get(aborted.getKey().getDestination()));
+			}
+		}
+		if (leaseRejectedBranches.isEmpty() && !isEmpty()) {
+			// only a deletion has been rejected, nothing to compute again
+			return push(transportPool, gitDir, remote, credentialProvider, metrics, reportSink);
+		}
+		return leaseRejectedBranches;
+	}
+}
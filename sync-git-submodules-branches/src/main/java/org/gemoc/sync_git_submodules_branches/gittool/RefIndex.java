@@ -0,0 +1,80 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Index of the local and remote (origin) branches of a repository by their short name.
+ * 
+ * It is built once from the ref database, then kept up to date by the sync 
+ * when it creates or deletes branches, so branch lookups don't require to list all the refs again.
+ * This class is thread safe.
+ */
+public class RefIndex {
+
+	static final String R_REMOTES_ORIGIN = Constants.R_REMOTES + "origin/";
+
+	Map<String, Ref> localBranches = new ConcurrentHashMap<String, Ref>();
+	Map<String, Ref> remoteBranches = new ConcurrentHashMap<String, Ref>();
+
+	public RefIndex(Repository repository) throws IOException {
+		for (Ref ref : repository.getRefDatabase().getRefsByPrefix(Constants.R_HEADS)) {
+			localBranches.put(ref.getName().substring(Constants.R_HEADS.length()), ref);
+		}
+		for (Ref ref : repository.getRefDatabase().getRefsByPrefix(R_REMOTES_ORIGIN)) {
+			remoteBranches.put(ref.getName().substring(R_REMOTES_ORIGIN.length()), ref);
+		}
+	}
+
+	/**
+	 * @return number of local and remote branches currently indexed
+	 */
+	public int getRefCount() {
+		return localBranches.size() + remoteBranches.size();
+	}
+
+	/**
+	 * @return the local branch refs/heads/&lt;branchName&gt; or null
+	 */
+	public Ref getLocalBranch(String branchName) {
+		return localBranches.get(branchName);
+	}
+
+	/**
+	 * @return the remote branch refs/remotes/origin/&lt;branchName&gt; or null
+	 */
+	public Ref getRemoteBranch(String branchName) {
+		return remoteBranches.get(branchName);
+	}
+
+	/**
+	 * record a local branch created or moved by the sync
+	 */
+	public void putLocalBranch(Ref ref) {
+		if (ref != null && ref.getName().startsWith(Constants.R_HEADS)) {
+			localBranches.put(ref.getName().substring(Constants.R_HEADS.length()), ref);
+		}
+	}
+
+	/**
+	 * record a remote branch created or moved by the sync
+	 */
+	public void putRemoteBranch(Ref ref) {
+		if (ref != null && ref.getName().startsWith(R_REMOTES_ORIGIN)) {
+			remoteBranches.put(ref.getName().substring(R_REMOTES_ORIGIN.length()), ref);
+		}
+	}
+
+	public void removeLocalBranch(String branchName) {
+		localBranches.remove(branchName);
+	}
+
+	public void removeRemoteBranch(String branchName) {
+		remoteBranches.remove(branchName);
+	}
+}
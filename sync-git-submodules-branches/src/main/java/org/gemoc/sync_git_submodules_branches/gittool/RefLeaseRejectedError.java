@@ -0,0 +1,21 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+/**
+ * A push of an integration branch rejected because the remote branch no longer points to the commit 
+ * the update was computed from: another process pushed it in between
+ */
+public class RefLeaseRejectedError extends GitSyncError {
+
+	private static final long serialVersionUID = 4920368175094386012L;
+
+	String branchName;
+
+	public RefLeaseRejectedError(String errorPrefix, String branchName) {
+		super(errorPrefix + " " + branchName + ": changed on the remote since it was fetched");
+		this.branchName = branchName;
+	}
+
+	public String getBranchName() {
+		return branchName;
+	}
+}
@@ -0,0 +1,64 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.io.IOException;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Receives the events of a sync as they happen, in order to stream the report
+ * instead of building it in memory.
+ *
+ * branchDeleted and branchCreated for the integration branches deleted and created by the sync, then
+ * for each integration branch: branchStarted, then moduleTracked for each submodule, interleaved with
+ * commitCreated, then branchPushed and branchDone; or branchSkipped if the branch didn't change since the last sync.
+ * With a PushBatch, branchPushed is sent once the batch is pushed, after branchDone.
+ * All the methods do nothing by default.
+ */
+public interface ReportSink {
+
+	/** sink ignoring all the events */
+	ReportSink NONE = new ReportSink() {};
+
+	/**
+	 * A parent repository of a fleet starts to be reported, see FleetSync
+	 */
+	default void repositoryStarted(String repositoryName, String gitRemoteURL) throws IOException {}
+
+	/**
+	 * The sync of the current parent repository of a fleet failed
+	 */
+	default void repositoryFailed(String repositoryName, String message) throws IOException {}
+
+	default void branchDeleted(String branchName) throws IOException {}
+
+	default void branchCreated(String branchName) throws IOException {}
+
+	/**
+	 * The integration branch is not updated, its inputs didn't change since its last sync (incrementalSync)
+	 */
+	default void branchSkipped(String branchName) throws IOException {}
+
+	default void branchStarted(String branchName) throws IOException {}
+
+	/**
+	 * @param trackedBranchName branch of the submodule tracked by the integration branch
+	 * @param oldGitlink commit of the submodule recorded in the integration branch before the update, may be null
+	 * @param newGitlink commit of the submodule recorded by the update, may be null
+	 * @param updated true if the submodule (gitlink or tracked branch) changed in the integration branch
+	 */
+	default void moduleTracked(String branchName, String moduleName, String trackedBranchName,
+			ObjectId oldGitlink, ObjectId newGitlink, boolean updated) throws IOException {}
+
+	/**
+	 * @param commitId created commit, null in dry run mode
+	 */
+	default void commitCreated(String branchName, ObjectId commitId, String message) throws IOException {}
+
+	/**
+	 * @param status RemoteRefUpdate.Status of the push of the branch, PENDING when it is added to a PushBatch,
+	 * DRYRUN when not pushed
+	 */
+	default void branchPushed(String branchName, String status) throws IOException {}
+
+	default void branchDone(String branchName) throws IOException {}
+}
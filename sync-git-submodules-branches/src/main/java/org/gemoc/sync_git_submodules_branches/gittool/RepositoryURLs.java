@@ -0,0 +1,32 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.util.Locale;
+
+import org.eclipse.jgit.lib.Constants;
+
+/**
+ * Comparison of the URLs of a repository written in different forms, by the webhooks and the object cache
+ */
+public final class RepositoryURLs {
+
+	private RepositoryURLs() {
+	}
+
+	/**
+	 * Reduce the various forms of a repository URL (https, ssh, scp-like, with credentials or .git suffix) to host/path
+	 */
+	public static String normalize(String url) {
+		String normalized = url.trim()
+				.replaceFirst("^[a-zA-Z][a-zA-Z0-9+.-]*://", "")
+				.replaceFirst("^[^@/]*@", "")
+				.replaceFirst("^([^/:]+):\\d+/", "$1/")
+				.replaceFirst("^([^/:]+):", "$1/");
+		while (normalized.endsWith("/")) {
+			normalized = normalized.substring(0, normalized.length() - 1);
+		}
+		if (normalized.endsWith(Constants.DOT_GIT_EXT)) {
+			normalized = normalized.substring(0, normalized.length() - Constants.DOT_GIT_EXT.length());
+		}
+		return normalized.toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,108 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.util.Map;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Long running sync: polls the ref advertisements of the parent and submodule remotes
+ * and runs a sync with the same (warm) GitModuleManager only when one of the advertised branch tips has changed.
+ */
+public class SyncDaemon {
+
+	static Logger logger = LoggerFactory.getLogger(SyncDaemon.class);
+
+	/**
+	 * Notified around each sync, typically to stream the report and write the metrics
+	 */
+	public interface SyncListener {
+		/**
+		 * @return the sink receiving the report of the sync about to start
+		 */
+		ReportSink syncStarted() throws Exception;
+
+		/**
+		 * @param succeeded false if the sync failed, its report is then partial
+		 */
+		void syncDone(SyncMetrics metrics, boolean succeeded) throws Exception;
+	}
+
+	GitModuleManager gitManager;
+	int inactivityThreshold;
+	boolean dryRun;
+	long pollIntervalMillis;
+	SyncListener listener;
+
+	/** branch tips advertised by the remotes at the last successful sync */
+	Map<String, Map<String, ObjectId>> syncedTips = null;
+
+	public SyncDaemon(GitModuleManager gitManager, int inactivityThreshold, boolean dryRun, long pollIntervalMillis, SyncListener listener) {
+		this.gitManager = gitManager;
+		this.inactivityThreshold = inactivityThreshold;
+		this.dryRun = dryRun;
+		this.pollIntervalMillis = pollIntervalMillis;
+		this.listener = listener;
+		gitManager.setKeepRepositoriesOpen(true);
+	}
+
+	/**
+	 * Poll and sync until the thread is interrupted.
+	 * A failed poll or sync is logged and retried at the next poll.
+	 */
+	public void run() throws InterruptedException {
+		logger.info("Watching " + gitManager.getGitRemoteURL() + " every " + pollIntervalMillis / 1000 + "s");
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				pollAndSync();
+			} catch (Exception e) {
+				logger.error("Sync failed, will retry at next poll: " + e.getMessage(), e);
+			}
+			Thread.sleep(pollIntervalMillis);
+		}
+	}
+
+	/**
+	 * Read the advertised branch tips and run a sync if they changed since the last successful sync
+	 *
+	 * @return true if a sync was run
+	 */
+	public boolean pollAndSync() throws Exception {
+		Map<String, Map<String, ObjectId>> advertisedTips = gitManager.readAdvertisedBranchTips();
+		if (advertisedTips.equals(syncedTips)) {
+			logger.debug("No change advertised by the remotes");
+			return false;
+		}
+		logger.info("Change advertised by the remotes, synchronizing " + gitManager.getGitRemoteURL());
+		gitManager.resetMetrics();
+		gitManager.newMirrorCycle();
+		ReportSink reportSink = listener != null ? listener.syncStarted() : ReportSink.NONE;
+		boolean succeeded = false;
+		try {
+			gitManager.synchronize(inactivityThreshold, reportSink, dryRun);
+			succeeded = true;
+		} finally {
+			if (listener != null) {
+				listener.syncDone(gitManager.getMetrics(), succeeded);
+			}
+		}
+		if (advertisedTips.size() == 1) {
+			// the submodules were not known before the first clone
+			syncedTips = gitManager.readAdvertisedBranchTips();
+		} else {
+			// the sync pushed to the parent: its new tips are the reference for the next poll,
+			// while the submodule tips are the ones read before the sync, so a change made during the sync is not missed
+			advertisedTips.put(gitManager.getGitRemoteURL(), gitManager.readAdvertisedBranchTips(gitManager.getGitRemoteURL()));
+			syncedTips = advertisedTips;
+		}
+		return true;
+	}
+
+	/**
+	 * Take the currently advertised branch tips as synchronized, eg. after a sync triggered by a push event
+	 */
+	public void resetSyncedTips() throws Exception {
+		syncedTips = gitManager.readAdvertisedBranchTips();
+	}
+}
@@ -0,0 +1,280 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jgit.lib.ProgressMonitor;
+
+/**
+ * Timings and counters of a sync run.
+ *
+ * Wall times are accumulated by category (phases, integration branches, submodules) and name,
+ * a phase such as "push" or "checkout" may be recorded several times and nested in another phase.
+ * The metrics can be exported as JSON or in the Prometheus text format (for the node exporter textfile collector).
+ * This class is thread safe.
+ */
+public class SyncMetrics {
+
+	public static final String PHASES = "phases";
+	public static final String BRANCHES = "branches";
+	public static final String SUBMODULES = "submodules";
+	public static final String REPOSITORIES = "repositories";
+	/** wall time of the fetch or clone of each submodule */
+	public static final String SUBMODULE_TRANSFERS = "submoduleTransfers";
+
+	public static final String REFS_SCANNED = "refsScanned";
+	public static final String COMMITS_PARSED = "commitsParsed";
+	public static final String COMMIT_CACHE_HITS = "commitCacheHits";
+	public static final String OBJECTS_FETCHED = "objectsFetched";
+	public static final String OBJECTS_PUSHED = "objectsPushed";
+	public static final String PUSHES = "pushes";
+	public static final String REFS_PUSHED = "refsPushed";
+	public static final String TRANSPORT_RETRIES = "transportRetries";
+	public static final String REPAIRS = "repairs";
+	public static final String RECLONES = "reclones";
+	public static final String LEASE_RETRIES = "leaseRetries";
+
+	static final String PROMETHEUS_PREFIX = "sync_git_submodules_branches_";
+
+	/**
+	 * accumulated wall time of a named step
+	 */
+	static class Timing {
+		LongAdder nanos = new LongAdder();
+		LongAdder count = new LongAdder();
+	}
+
+	long startMillis = System.currentTimeMillis();
+	Map<String, Map<String, Timing>> timings = new ConcurrentSkipListMap<String, Map<String, Timing>>();
+	Map<String, LongAdder> counters = new ConcurrentSkipListMap<String, LongAdder>();
+
+	/**
+	 * @return the start time to give to record()
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Add the wall time elapsed since startNanos to the step name of the category
+	 */
+	public void record(String category, String name, long startNanos) {
+		Timing timing = timings.computeIfAbsent(category, c -> new ConcurrentSkipListMap<String, Timing>())
+				.computeIfAbsent(name, n -> new Timing());
+		timing.nanos.add(System.nanoTime() - startNanos);
+		timing.count.increment();
+	}
+
+	public void add(String counter, long value) {
+		counters.computeIfAbsent(counter, c -> new LongAdder()).add(value);
+	}
+
+	public void increment(String counter) {
+		add(counter, 1);
+	}
+
+	/**
+	 * Set a counter maintained elsewhere (eg. by the commit metadata cache)
+	 */
+	public void set(String counter, long value) {
+		LongAdder adder = counters.computeIfAbsent(counter, c -> new LongAdder());
+		adder.reset();
+		adder.add(value);
+	}
+
+	public long getCounter(String counter) {
+		LongAdder adder = counters.get(counter);
+		return adder != null ? adder.sum() : 0;
+	}
+
+	/**
+	 * Add the timings and counters of other to this metrics, eg. to sum the syncs of several parent repositories
+	 */
+	public void addAll(SyncMetrics other) {
+		for (Map.Entry<String, Map<String, Timing>> category : other.timings.entrySet()) {
+			for (Map.Entry<String, Timing> timing : category.getValue().entrySet()) {
+				Timing sum = timings.computeIfAbsent(category.getKey(), c -> new ConcurrentSkipListMap<String, Timing>())
+						.computeIfAbsent(timing.getKey(), n -> new Timing());
+				sum.nanos.add(timing.getValue().nanos.sum());
+				sum.count.add(timing.getValue().count.sum());
+			}
+		}
+		for (Map.Entry<String, LongAdder> counter : other.counters.entrySet()) {
+			add(counter.getKey(), counter.getValue().sum());
+		}
+	}
+
+	/**
+	 * @return the accumulated wall time in milliseconds of the step name of the category
+	 */
+	public long getMillis(String category, String name) {
+		Map<String, Timing> categoryTimings = timings.get(category);
+		Timing timing = categoryTimings != null ? categoryTimings.get(name) : null;
+		return timing != null ? TimeUnit.NANOSECONDS.toMillis(timing.nanos.sum()) : 0;
+	}
+
+	/**
+	 * @return a progress monitor counting the objects received by a fetch and written by a push
+	 */
+	public ProgressMonitor newProgressMonitor() {
+		return new ProgressMonitor() {
+			String counter;
+
+			@Override
+			public void start(int totalTasks) {
+			}
+
+			@Override
+			public void beginTask(String title, int totalWork) {
+				// task titles of JGit's PackParser and PackWriter
+				if ("Receiving objects".equals(title)) {
+					counter = OBJECTS_FETCHED;
+				} else if ("Writing objects".equals(title)) {
+					counter = OBJECTS_PUSHED;
+				} else {
+					counter = null;
+				}
+			}
+
+			@Override
+			public void update(int completed) {
+				if (counter != null) {
+					add(counter, completed);
+				}
+			}
+
+			@Override
+			public void endTask() {
+				counter = null;
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return false;
+			}
+		};
+	}
+
+	public String toJson() {
+		SimpleDateFormat isoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		isoFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"startTime\": ").append(jsonString(isoFormat.format(new Date(startMillis)))).append(",\n");
+		json.append("  \"durationMillis\": ").append(System.currentTimeMillis() - startMillis);
+		for (String category : new String[] { PHASES, BRANCHES, SUBMODULES, REPOSITORIES }) {
+			json.append(",\n  ").append(jsonString(category)).append(": {");
+			Map<String, Timing> categoryTimings = timings.get(category);
+			if (categoryTimings != null) {
+				String separator = "\n";
+				for (Map.Entry<String, Timing> timing : categoryTimings.entrySet()) {
+					json.append(separator).append("    ").append(jsonString(timing.getKey()))
+						.append(": { \"millis\": ").append(TimeUnit.NANOSECONDS.toMillis(timing.getValue().nanos.sum()))
+						.append(", \"count\": ").append(timing.getValue().count.sum()).append(" }");
+					separator = ",\n";
+				}
+				json.append("\n  ");
+			}
+			json.append("}");
+		}
+		json.append(",\n  \"counters\": {");
+		String separator = "\n";
+		for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+			json.append(separator).append("    ").append(jsonString(counter.getKey())).append(": ").append(counter.getValue().sum());
+			separator = ",\n";
+		}
+		json.append(counters.isEmpty() ? "}\n" : "\n  }\n");
+		json.append("}\n");
+		return json.toString();
+	}
+
+	public String toPrometheus() {
+		StringBuilder text = new StringBuilder();
+		text.append("# HELP ").append(PROMETHEUS_PREFIX).append("last_run_timestamp_seconds start time of the last sync\n");
+		text.append("# TYPE ").append(PROMETHEUS_PREFIX).append("last_run_timestamp_seconds gauge\n");
+		text.append(PROMETHEUS_PREFIX).append("last_run_timestamp_seconds ").append(startMillis / 1000).append('\n');
+		text.append("# HELP ").append(PROMETHEUS_PREFIX).append("duration_seconds wall time of the last sync\n");
+		text.append("# TYPE ").append(PROMETHEUS_PREFIX).append("duration_seconds gauge\n");
+		text.append(PROMETHEUS_PREFIX).append("duration_seconds ").append(seconds(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - startMillis))).append('\n');
+		for (Map.Entry<String, Map<String, Timing>> category : timings.entrySet()) {
+			String label = category.getKey().equals(BRANCHES) ? "branch" 
+					: category.getKey().equals(SUBMODULES) ? "submodule" 
+					: category.getKey().equals(REPOSITORIES) ? "repository" 
+					: "phase";
+			String metric = PROMETHEUS_PREFIX + label + "_seconds";
+			text.append("# HELP ").append(metric).append(" accumulated wall time of each ").append(label).append(" during the last sync\n");
+			text.append("# TYPE ").append(metric).append(" gauge\n");
+			for (Map.Entry<String, Timing> timing : category.getValue().entrySet()) {
+				text.append(metric).append('{').append(label).append("=\"").append(prometheusLabel(timing.getKey())).append("\"} ")
+					.append(seconds(timing.getValue().nanos.sum())).append('\n');
+			}
+		}
+		for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+			String metric = PROMETHEUS_PREFIX + counter.getKey().replaceAll("([a-z])([A-Z])", "$1_$2").toLowerCase();
+			text.append("# TYPE ").append(metric).append(" gauge\n");
+			text.append(metric).append(' ').append(counter.getValue().sum()).append('\n');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * @return the default location of the JSON metrics: next to the report, eg. syncReport.metrics.json for syncReport.md
+	 */
+	public static File defaultJsonFile(File reportFile) {
+		String name = reportFile.getName();
+		int extension = name.lastIndexOf('.');
+		return new File(reportFile.getAbsoluteFile().getParentFile(), (extension > 0 ? name.substring(0, extension) : name) + ".metrics.json");
+	}
+
+	public void writeJson(File file) throws IOException {
+		write(file, toJson());
+	}
+
+	/**
+	 * Write the metrics in the Prometheus text format. The file is replaced atomically as required by the textfile collector
+	 */
+	public void writePrometheus(File file) throws IOException {
+		write(file, toPrometheus());
+	}
+
+	protected void write(File file, String content) throws IOException {
+		File absoluteFile = file.getAbsoluteFile();
+		absoluteFile.getParentFile().mkdirs();
+		File tmpFile = new File(absoluteFile.getParentFile(), absoluteFile.getName() + ".tmp");
+		Files.write(tmpFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		Files.move(tmpFile.toPath(), absoluteFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	protected static String seconds(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e9);
+	}
+
+	protected static String prometheusLabel(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	protected static String jsonString(String value) {
+		StringBuilder json = new StringBuilder("\"");
+		for (char c : value.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		return json.append('"').toString();
+	}
+}
@@ -0,0 +1,253 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Changes of a sync, computed by GitModuleManager.planSynchronization() from the refs and the trees of the local repositories
+ * before anything is changed: the integration branches to delete and to create and, for each integration branch,
+ * the branch tracked by each submodule and the gitlink it must point to.
+ *
+ * A dry run only reports the plan, GitModuleManager.executePlan() applies it.
+ * The JSON form is stable (sorted, no timestamp) so the plans of successive runs can be compared with diff.
+ */
+public class SyncPlan {
+
+	/**
+	 * Planned state of a submodule in an integration branch
+	 */
+	public static class ModuleChange {
+		String moduleName;
+		String path;
+		/** branch recorded in .gitmodules before the sync, may be null */
+		String previousTrackedBranch;
+		String trackedBranch;
+		/** gitlink recorded in the integration branch before the sync, may be null */
+		ObjectId oldGitlink;
+		ObjectId newGitlink;
+
+		public ModuleChange(String moduleName, String path, String previousTrackedBranch, String trackedBranch,
+				ObjectId oldGitlink, ObjectId newGitlink) {
+			this.moduleName = moduleName;
+			this.path = path;
+			this.previousTrackedBranch = previousTrackedBranch;
+			this.trackedBranch = trackedBranch;
+			this.oldGitlink = oldGitlink;
+			this.newGitlink = newGitlink;
+		}
+
+		public String getModuleName() {
+			return moduleName;
+		}
+
+		public String getTrackedBranch() {
+			return trackedBranch;
+		}
+
+		public ObjectId getOldGitlink() {
+			return oldGitlink;
+		}
+
+		public ObjectId getNewGitlink() {
+			return newGitlink;
+		}
+
+		/**
+		 * @return true if the gitlink or the branch in .gitmodules changes
+		 */
+		public boolean isUpdated() {
+			return !Objects.equals(previousTrackedBranch, trackedBranch) || !Objects.equals(oldGitlink, newGitlink);
+		}
+	}
+
+	/**
+	 * Planned changes of an integration branch
+	 */
+	public static class BranchPlan {
+		String branchName;
+		boolean created;
+		/** commit the changes are computed from: the remote branch, or the master branch for a created branch */
+		ObjectId baseCommit;
+		List<ModuleChange> modules = new ArrayList<ModuleChange>();
+
+		public BranchPlan(String branchName, boolean created, ObjectId baseCommit) {
+			this.branchName = branchName;
+			this.created = created;
+			this.baseCommit = baseCommit;
+		}
+
+		public String getBranchName() {
+			return branchName;
+		}
+
+		public boolean isCreated() {
+			return created;
+		}
+
+		public List<ModuleChange> getModules() {
+			return modules;
+		}
+
+		/**
+		 * @return true if at least one of the submodules changes, ie. the branch needs a commit
+		 */
+		public boolean isUpdated() {
+			for (ModuleChange module : modules) {
+				if (module.isUpdated()) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/** names of the integration branches the sync is limited to, null for all */
+	Set<String> branchScope;
+	Set<String> deletedBranches = new TreeSet<String>();
+	Set<String> createdBranches = new TreeSet<String>();
+	Map<String, BranchPlan> branches = new TreeMap<String, BranchPlan>();
+
+	public SyncPlan(Set<String> branchScope) {
+		this.branchScope = branchScope;
+	}
+
+	public Set<String> getBranchScope() {
+		return branchScope;
+	}
+
+	public Set<String> getDeletedBranches() {
+		return deletedBranches;
+	}
+
+	public Set<String> getCreatedBranches() {
+		return createdBranches;
+	}
+
+	/**
+	 * @return the plan of the branch, null if it is not synchronized
+	 */
+	public BranchPlan getBranch(String branchName) {
+		return branches.get(branchName);
+	}
+
+	public Collection<BranchPlan> getBranches() {
+		return branches.values();
+	}
+
+	public void addDeletedBranch(String branchName) {
+		deletedBranches.add(branchName);
+	}
+
+	public void addBranch(BranchPlan branchPlan) {
+		branches.put(branchPlan.branchName, branchPlan);
+		if (branchPlan.created) {
+			createdBranches.add(branchPlan.branchName);
+		}
+	}
+
+	/**
+	 * @return the number of integration branches which need a commit
+	 */
+	public int getUpdatedBranchCount() {
+		int count = 0;
+		for (BranchPlan branchPlan : branches.values()) {
+			if (branchPlan.isUpdated()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Send the whole plan to reportSink, as a dry run of the sync
+	 */
+	public void report(ReportSink reportSink) throws IOException {
+		for (String branchName : deletedBranches) {
+			reportSink.branchDeleted(branchName);
+		}
+		for (String branchName : createdBranches) {
+			reportSink.branchCreated(branchName);
+		}
+		for (String branchName : branches.keySet()) {
+			reportBranch(branchName, reportSink, "DRYRUN");
+		}
+	}
+
+	/**
+	 * Send the plan of a branch to reportSink, eg. for a branch left unchanged by the sync
+	 */
+	public void reportBranch(String branchName, ReportSink reportSink, String pushStatus) throws IOException {
+		BranchPlan branchPlan = branches.get(branchName);
+		reportSink.branchStarted(branchName);
+		for (ModuleChange module : branchPlan.modules) {
+			reportSink.moduleTracked(branchName, module.moduleName, module.trackedBranch,
+					module.oldGitlink, module.newGitlink, module.isUpdated());
+		}
+		reportSink.branchPushed(branchName, pushStatus);
+		reportSink.branchDone(branchName);
+	}
+
+	public String toJson() {
+		StringBuilder json = new StringBuilder("{\n");
+		json.append("  \"deletedBranches\": ").append(jsonArray(deletedBranches)).append(",\n");
+		json.append("  \"createdBranches\": ").append(jsonArray(createdBranches)).append(",\n");
+		json.append("  \"branches\": {");
+		String branchSeparator = "\n";
+		for (BranchPlan branchPlan : branches.values()) {
+			json.append(branchSeparator).append("    ").append(SyncMetrics.jsonString(branchPlan.branchName)).append(": {\n");
+			json.append("      \"created\": ").append(branchPlan.created).append(",\n");
+			json.append("      \"updated\": ").append(branchPlan.isUpdated()).append(",\n");
+			json.append("      \"baseCommit\": ").append(jsonId(branchPlan.baseCommit)).append(",\n");
+			json.append("      \"modules\": [");
+			String moduleSeparator = "\n";
+			for (ModuleChange module : branchPlan.modules) {
+				json.append(moduleSeparator).append("        { \"module\": ").append(SyncMetrics.jsonString(module.moduleName))
+					.append(", \"path\": ").append(SyncMetrics.jsonString(module.path))
+					.append(", \"previousTrackedBranch\": ").append(module.previousTrackedBranch != null ? SyncMetrics.jsonString(module.previousTrackedBranch) : "null")
+					.append(", \"trackedBranch\": ").append(SyncMetrics.jsonString(module.trackedBranch))
+					.append(", \"oldGitlink\": ").append(jsonId(module.oldGitlink))
+					.append(", \"newGitlink\": ").append(jsonId(module.newGitlink))
+					.append(", \"updated\": ").append(module.isUpdated()).append(" }");
+				moduleSeparator = ",\n";
+			}
+			json.append(branchPlan.modules.isEmpty() ? "]\n" : "\n      ]\n");
+			json.append("    }");
+			branchSeparator = ",\n";
+		}
+		json.append(branches.isEmpty() ? "}\n" : "\n  }\n");
+		json.append("}\n");
+		return json.toString();
+	}
+
+	public void writeJson(File file) throws IOException {
+		File absoluteFile = file.getAbsoluteFile();
+		absoluteFile.getParentFile().mkdirs();
+		Files.write(absoluteFile.toPath(), toJson().getBytes(StandardCharsets.UTF_8));
+	}
+
+	protected static String jsonArray(Collection<String> values) {
+		StringBuilder json = new StringBuilder("[");
+		String separator = "";
+		for (String value : values) {
+			json.append(separator).append(SyncMetrics.jsonString(value));
+			separator = ", ";
+		}
+		return json.append("]").toString();
+	}
+
+	protected static String jsonId(ObjectId id) {
+		return id != null ? "\"" + id.name() + "\"" : "null";
+	}
+}
@@ -0,0 +1,295 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import org.eclipse.jgit.errors.NoRemoteRepositoryException;
+import org.eclipse.jgit.errors.RemoteRepositoryException;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefLeaseSpec;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transports of a GitModuleManager, kept open between the fetches, pushes and ls-remote of a run
+ * instead of opening a new one for each command as the JGit porcelain does:
+ * the credentials are applied once per transport and an ssh session is reused by the following operations.
+ *
+ * The number of concurrent operations per host is limited, and the operations failing with a transient
+ * TransportException (connection reset, timeout...) are retried with an exponential backoff on a new transport,
+ * except a push which may have been partly applied.
+ * This class is thread safe, the operations on the same transport are serialized.
+ */
+public class TransportPool implements AutoCloseable {
+
+	Logger logger = LoggerFactory.getLogger(TransportPool.class);
+
+	/**
+	 * An open transport and the repository it works on, null for a transport only reading the advertised refs
+	 */
+	static class Session {
+		Repository repository;
+		Transport transport;
+
+		Session(Repository repository, Transport transport) {
+			this.repository = repository;
+			this.transport = transport;
+		}
+
+		void close() {
+			transport.close();
+			if (repository != null) {
+				repository.close();
+			}
+		}
+	}
+
+	interface Operation<T> {
+		T run(Transport transport) throws IOException;
+	}
+
+	/** maximum number of concurrent operations on a given host, 0 or less for no limit */
+	int maxConnectionsPerHost;
+	/** number of attempts after the first failed one */
+	int maxRetries;
+	/** delay before the first retry, doubled for each following one */
+	long retryDelayMillis;
+	Map<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+	/** open sessions indexed by git directory and remote name, or by URL for ls-remote */
+	Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+
+	public TransportPool(int maxConnectionsPerHost, int maxRetries, long retryDelayMillis) {
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.maxRetries = Math.max(0, maxRetries);
+		this.retryDelayMillis = Math.max(0, retryDelayMillis);
+	}
+
+	/**
+	 * Fetch the configured RefSpecs of the remote into the repository of gitDir
+	 *
+	 * @param removeDeletedRefs remove the remote tracking branches deleted from the remote
+	 * @param metrics metrics recording the retries and the fetched objects, may be null
+	 */
+	public FetchResult fetch(File gitDir, String remote, CredentialsProvider credentialProvider, boolean removeDeletedRefs,
+			SyncMetrics metrics) throws IOException {
+		return run(gitDir, remote, credentialProvider, metrics, transport -> {
+			transport.setRemoveDeletedRefs(removeDeletedRefs);
+			return transport.fetch(newProgressMonitor(metrics), null);
+		});
+	}
+
+	/**
+	 * Push the RefSpecs of the repository of gitDir to the remote, a RefSpec without source is a deletion.
+	 * The remote tracking branches of the pushed refs are updated
+	 *
+	 * @param atomic ask the remote to apply all the refs or none of them
+	 * @param metrics metrics recording the retries and the pushed objects, may be null
+	 */
+	public PushResult push(File gitDir, String remote, CredentialsProvider credentialProvider, Collection<RefSpec> refSpecs, boolean atomic,
+			SyncMetrics metrics) throws IOException {
+		return push(gitDir, remote, credentialProvider, refSpecs, Collections.emptyMap(), atomic, metrics);
+	}
+
+	/**
+	 * Same as push() with a lease on some refs: the remote ref is updated only if it still points to the expected object 
+	 * (compare and swap), otherwise its status is REJECTED_REMOTE_CHANGED
+	 *
+	 * @param expectedOldObjectIds expected object of the remote refs indexed by remote ref name, 
+	 * ObjectId.zeroId() for a ref which must not exist yet
+	 */
+	public PushResult push(File gitDir, String remote, CredentialsProvider credentialProvider, Collection<RefSpec> refSpecs, 
+			Map<String, ObjectId> expectedOldObjectIds, boolean atomic, SyncMetrics metrics) throws IOException {
+		Map<String, RefLeaseSpec> leases = new HashMap<String, RefLeaseSpec>();
+		for (Map.Entry<String, ObjectId> expectedOldObjectId : expectedOldObjectIds.entrySet()) {
+			leases.put(expectedOldObjectId.getKey(), new RefLeaseSpec(expectedOldObjectId.getKey(), expectedOldObjectId.getValue().name()));
+		}
+		return run(gitDir, remote, credentialProvider, metrics, isRetryablePush(refSpecs, expectedOldObjectIds, atomic), transport -> {
+			transport.setPushAtomic(atomic);
+			// computed again on retry, the RemoteRefUpdates keep the status of the failed attempt
+			Collection<RemoteRefUpdate> refUpdates = transport.findRemoteRefUpdatesFor(refSpecs, leases);
+			return transport.push(newProgressMonitor(metrics), refUpdates);
+		});
+	}
+
+	/**
+	 * @return true if a push failed on a transient failure can be sent again as is: it is atomic (nothing has been applied) 
+	 * or each of its refs has a lease (a ref already applied is then rejected instead of being overwritten)
+	 */
+	protected boolean isRetryablePush(Collection<RefSpec> refSpecs, Map<String, ObjectId> expectedOldObjectIds, boolean atomic) {
+		if (atomic) {
+			return true;
+		}
+		for (RefSpec refSpec : refSpecs) {
+			if (!expectedOldObjectIds.containsKey(refSpec.getDestination())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the refs advertised by the remote, without a local repository
+	 */
+	public Collection<Ref> lsRemote(String remoteURL, CredentialsProvider credentialProvider, SyncMetrics metrics) throws IOException {
+		return run(null, remoteURL, credentialProvider, metrics, transport -> {
+			try (FetchConnection connection = transport.openFetch()) {
+				return new ArrayList<Ref>(connection.getRefs());
+			}
+		});
+	}
+
+	protected <T> T run(File gitDir, String remote, CredentialsProvider credentialProvider, SyncMetrics metrics, Operation<T> operation)
+			throws IOException {
+		return run(gitDir, remote, credentialProvider, metrics, true, operation);
+	}
+
+	/**
+	 * @param gitDir git directory of the local repository, null to only read the advertised refs of remote
+	 * @param remote name of the remote in the local repository, or its URL if gitDir is null
+	 * @param retryable whether the operation can be run again after a transient failure
+	 */
+	protected <T> T run(File gitDir, String remote, CredentialsProvider credentialProvider, SyncMetrics metrics, boolean retryable, 
+			Operation<T> operation) throws IOException {
+		String key = gitDir != null ? gitDir.getAbsolutePath() + "\n" + remote : remote;
+		for (int attempt = 0; ; attempt++) {
+			Semaphore permits = null;
+			try {
+				Session session = getSession(key, gitDir, remote, credentialProvider);
+				permits = acquire(session.transport.getURI());
+				synchronized (session) {
+					return operation.run(session.transport);
+				}
+			} catch (TransportException e) {
+				closeSession(key);
+				if (!retryable || attempt >= maxRetries || !isTransient(e)) {
+					throw e;
+				}
+				logger.warn("Transient failure on " + remote + " (" + e.getMessage() + "), retrying in " + (retryDelayMillis << attempt) + " ms");
+				if (metrics != null) {
+					metrics.increment(SyncMetrics.TRANSPORT_RETRIES);
+				}
+			} finally {
+				if (permits != null) {
+					permits.release();
+				}
+			}
+			// the connection slot is released while waiting
+			try {
+				Thread.sleep(retryDelayMillis << attempt);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting to retry on " + remote);
+			}
+		}
+	}
+
+	protected Session getSession(String key, File gitDir, String remote, CredentialsProvider credentialProvider) throws IOException {
+		synchronized (sessions) {
+			Session session = sessions.get(key);
+			if (session != null) {
+				return session;
+			}
+			Repository repository = null;
+			Transport transport;
+			try {
+				if (gitDir != null) {
+					// a repository of its own, the callers close theirs between the phases
+					repository = new FileRepositoryBuilder().setGitDir(gitDir).setMustExist(true).build();
+					transport = Transport.open(repository, remote);
+				} else {
+					transport = Transport.open(new URIish(remote));
+				}
+			} catch (URISyntaxException e) {
+				throw new IOException("Invalid remote URL " + remote, e);
+			} catch (IOException | RuntimeException e) {
+				if (repository != null) {
+					repository.close();
+				}
+				throw e;
+			}
+			transport.setCredentialsProvider(credentialProvider);
+			session = new Session(repository, transport);
+			sessions.put(key, session);
+			return session;
+		}
+	}
+
+	protected Semaphore acquire(URIish uri) throws InterruptedIOException {
+		if (maxConnectionsPerHost <= 0) {
+			return null;
+		}
+		String host = uri.getHost() != null ? uri.getHost().toLowerCase(Locale.ROOT) : "";
+		Semaphore permits = hostPermits.computeIfAbsent(host, h -> new Semaphore(maxConnectionsPerHost, true));
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a connection to " + host);
+		}
+		return permits;
+	}
+
+	/**
+	 * @return false for the failures that won't disappear by retrying: missing repository, authentication, refused by the remote
+	 */
+	protected boolean isTransient(TransportException e) {
+		if (e instanceof NoRemoteRepositoryException || e instanceof RemoteRepositoryException) {
+			return false;
+		}
+		String message = String.valueOf(e.getMessage()).toLowerCase(Locale.ROOT);
+		return !message.contains("not authorized") && !message.contains("auth fail") && !message.contains("authentication");
+	}
+
+	protected void closeSession(String key) {
+		Session session = sessions.remove(key);
+		if (session != null) {
+			// wait for the running operation, if any
+			synchronized (session) {
+				session.close();
+			}
+		}
+	}
+
+	protected ProgressMonitor newProgressMonitor(SyncMetrics metrics) {
+		return metrics != null ? metrics.newProgressMonitor() : NullProgressMonitor.INSTANCE;
+	}
+
+	/**
+	 * Close all the transports, the next operations open new ones
+	 */
+	@Override
+	public void close() {
+		List<String> keys;
+		synchronized (sessions) {
+			keys = new ArrayList<String>(sessions.keySet());
+		}
+		for (String key : keys) {
+			closeSession(key);
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+/**
+ * Strategy used to refresh an existing local repository (FULL fetch mode)
+ */
+public enum UpdateMode {
+	/**
+	 * checkout and pull the master branch, fetching the submodules (merge in the working tree,
+	 * fails if the local state has diverged), the other local branches are only fast-forwarded when checked out
+	 */
+	PULL,
+	/**
+	 * fetch the parent and the submodules pruning the deleted branches,
+	 * then reset the local branches to their remote tip (never merges, recovers from any local state)
+	 */
+	FETCH
+}
@@ -0,0 +1,383 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.gemoc.sync_git_submodules_branches.gittool.SyncDaemon.SyncListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP endpoint receiving the push events of the parent and submodule repositories
+ * (GitHub, GitLab, Gitea payloads or a plain <code>POST /?repository=&lt;url&gt;&amp;ref=&lt;ref&gt;</code>).
+ *
+ * Each event is mapped to the integration branch it affects: a push to a feature branch of any repository
+ * only syncs this branch, a push to the master branch syncs all of them.
+ * The events are debounced: the sync starts once no event has been received for debounceMillis
+ * (or at most 10 times debounceMillis after the first one), so a burst of pushes to several repositories
+ * results in a single sync of each affected branch.
+ * The syncs are run one at a time with the same (warm) GitModuleManager.
+ */
+public class WebhookServer {
+
+	static Logger logger = LoggerFactory.getLogger(WebhookServer.class);
+
+	/** objects describing the pushed repository in the GitHub, Gitea ("repository") and GitLab ("project") payloads */
+	static final List<String> REPOSITORY_KEYS = Arrays.asList("repository", "project");
+	/** keys of the repository URLs in these objects */
+	static final List<String> URL_KEYS = Arrays.asList("clone_url", "ssh_url", "git_url", "html_url", "url", 
+			"git_http_url", "git_ssh_url", "http_url", "web_url", "homepage");
+
+	GitModuleManager gitManager;
+	int inactivityThreshold;
+	boolean dryRun;
+	long debounceMillis;
+	long maxDelayMillis;
+	SyncListener listener;
+	String secret = null;
+
+	HttpServer server;
+	ScheduledExecutorService syncExecutor = Executors.newSingleThreadScheduledExecutor();
+	SyncDaemon daemon = null;
+
+	// pending events, guarded by this
+	Set<String> pendingBranches = new TreeSet<String>();
+	boolean pendingFullSync = false;
+	long firstPendingEventMillis;
+	ScheduledFuture<?> scheduledSync = null;
+
+	/** normalized URLs of the parent and submodule remotes, refreshed after each sync */
+	volatile Set<String> knownRepositories = Collections.emptySet();
+	/** branch tips of the parent remote after the last sync, used to ignore the events of our own pushes */
+	volatile Map<String, ObjectId> syncedParentTips = Collections.emptyMap();
+
+	public WebhookServer(GitModuleManager gitManager, int inactivityThreshold, boolean dryRun, long debounceMillis, SyncListener listener) {
+		this.gitManager = gitManager;
+		this.inactivityThreshold = inactivityThreshold;
+		this.dryRun = dryRun;
+		this.debounceMillis = debounceMillis;
+		this.maxDelayMillis = debounceMillis * 10;
+		this.listener = listener;
+		gitManager.setKeepRepositoriesOpen(true);
+	}
+
+	/**
+	 * @param secret shared secret checked against the X-Hub-Signature-256 (GitHub, Gitea)
+	 * or X-Gitlab-Token (GitLab) header, null to accept unsigned events
+	 */
+	public void setSecret(String secret) {
+		this.secret = secret;
+	}
+
+	/**
+	 * Also poll the remotes with daemon, as a safety net for lost events.
+	 * The polls are run by the same thread as the syncs triggered by the events.
+	 * Must be called before start()
+	 */
+	public void schedulePolling(SyncDaemon daemon, long pollIntervalMillis) {
+		this.daemon = daemon;
+		syncExecutor.scheduleWithFixedDelay(() -> {
+			try {
+				if (daemon.pollAndSync()) {
+					refreshRemoteState();
+				}
+			} catch (Exception e) {
+				logger.error("Sync failed, will retry at next poll: " + e.getMessage(), e);
+			}
+		}, 0, pollIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Start listening on port (0 for any free port). Without polling, a full sync is run first
+	 */
+	public void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/", this::handle);
+		server.start();
+		logger.info("Listening for push events on port " + getPort() + " for " + gitManager.getGitRemoteURL());
+		if (daemon == null) {
+			queue(null);
+		}
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public void stop() {
+		server.stop(0);
+		syncExecutor.shutdownNow();
+	}
+
+	protected void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				respond(exchange, 405, "POST a push event");
+				return;
+			}
+			byte[] body;
+			try (InputStream in = exchange.getRequestBody()) {
+				body = IOUtils.toByteArray(in);
+			}
+			if (!isAuthorized(exchange, body)) {
+				respond(exchange, 401, "invalid signature");
+				return;
+			}
+			String payload = new String(body, StandardCharsets.UTF_8);
+			Map<String, Object> event;
+			try {
+				event = parseEvent(payload);
+			} catch (IllegalArgumentException e) {
+				logger.warn("Ignoring event with an invalid payload: " + e.getMessage());
+				respond(exchange, 400, "invalid JSON payload");
+				return;
+			}
+			Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+			String ref = query.containsKey("ref") ? query.get("ref") : getString(event, "ref");
+			String after = query.containsKey("after") ? query.get("after") : getString(event, "after");
+			List<String> repositoryURLs = new ArrayList<String>();
+			if (query.containsKey("repository")) {
+				repositoryURLs.add(query.get("repository"));
+			}
+			repositoryURLs.addAll(getRepositoryURLs(event));
+			int[] status = new int[1];
+			String message = onPushEvent(repositoryURLs, ref, after, status);
+			respond(exchange, status[0], message);
+		} catch (RuntimeException e) {
+			// the details (paths, remote URLs) are only logged, the caller is not authenticated
+			logger.error("Cannot handle event: " + e.getMessage(), e);
+			respond(exchange, 500, "internal error");
+		}
+	}
+
+	/**
+	 * Map a push event to the integration branch to sync and queue it
+	 *
+	 * @param status set to the HTTP status of the response
+	 * @return the message of the response
+	 */
+	protected String onPushEvent(List<String> repositoryURLs, String ref, String after, int[] status) {
+		status[0] = 200;
+		if (ref == null || !ref.startsWith(Constants.R_HEADS)) {
+			// ping, tag push, etc.
+			return "ignored: not a branch push event";
+		}
+		String branchName = ref.substring(Constants.R_HEADS.length());
+		Set<String> known = knownRepositories;
+		String repositoryKey = null;
+		for (String url : repositoryURLs) {
+			if (known.contains(RepositoryURLs.normalize(url))) {
+				repositoryKey = RepositoryURLs.normalize(url);
+				break;
+			}
+		}
+		if (repositoryKey == null && !known.isEmpty()) {
+			logger.info("Ignoring push to " + ref + " of unknown repository " + repositoryURLs);
+			return "ignored: unknown repository";
+		}
+		if (repositoryKey != null && repositoryKey.equals(RepositoryURLs.normalize(gitManager.getGitRemoteURL()))
+				&& after != null && ObjectId.isId(after) && ObjectId.fromString(after).equals(syncedParentTips.get(branchName))) {
+			logger.debug("Ignoring push to " + ref + " of the parent repository made by the last sync");
+			return "ignored: already synchronized";
+		}
+		status[0] = 202;
+		if (repositoryKey == null || branchName.equals(gitManager.getMasterBranchName())) {
+			// unknown submodules (not cloned yet) or a change of master which may impact all the branches
+			queue(null);
+			return "queued full sync";
+		}
+		queue(branchName);
+		return "queued sync of branch " + branchName;
+	}
+
+	/**
+	 * Add a branch to the next sync and postpone it by debounceMillis
+	 *
+	 * @param branchName the integration branch to sync, null for all
+	 */
+	protected synchronized void queue(String branchName) {
+		if (branchName == null) {
+			pendingFullSync = true;
+		} else {
+			pendingBranches.add(branchName);
+		}
+		long now = System.currentTimeMillis();
+		if (scheduledSync == null) {
+			firstPendingEventMillis = now;
+		} else {
+			// if already started, the sync has taken the pending branches, or will take them before running
+			scheduledSync.cancel(false);
+		}
+		long delay = Math.min(debounceMillis, Math.max(0, firstPendingEventMillis + maxDelayMillis - now));
+		scheduledSync = syncExecutor.schedule(this::runPendingSync, delay, TimeUnit.MILLISECONDS);
+	}
+
+	protected void runPendingSync() {
+		Set<String> branches;
+		boolean fullSync;
+		synchronized (this) {
+			branches = pendingBranches;
+			fullSync = pendingFullSync;
+			pendingBranches = new TreeSet<String>();
+			pendingFullSync = false;
+			scheduledSync = null;
+		}
+		if (!fullSync && branches.isEmpty()) {
+			return;
+		}
+		logger.info("Synchronizing " + (fullSync ? "all branches" : "branches " + branches) + " of " + gitManager.getGitRemoteURL());
+		try {
+			gitManager.resetMetrics();
+			gitManager.newMirrorCycle();
+			ReportSink reportSink = listener != null ? listener.syncStarted() : ReportSink.NONE;
+			boolean succeeded = false;
+			try {
+				gitManager.synchronizeBranches(fullSync ? null : branches, inactivityThreshold, reportSink, dryRun);
+				succeeded = true;
+			} finally {
+				if (listener != null) {
+					listener.syncDone(gitManager.getMetrics(), succeeded);
+				}
+			}
+			refreshRemoteState();
+			if (daemon != null) {
+				daemon.resetSyncedTips();
+			}
+		} catch (Exception e) {
+			logger.error("Sync of " + (fullSync ? "all branches" : "branches " + branches) + " failed, waiting for the next event: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Read the repositories known after a sync and the tips it pushed to the parent
+	 */
+	protected void refreshRemoteState() throws Exception {
+		Set<String> repositories = new HashSet<String>();
+		repositories.add(RepositoryURLs.normalize(gitManager.getGitRemoteURL()));
+		for (String submoduleURL : gitManager.getSubmoduleRemoteURLs()) {
+			repositories.add(RepositoryURLs.normalize(submoduleURL));
+		}
+		knownRepositories = repositories;
+		syncedParentTips = gitManager.readAdvertisedBranchTips(gitManager.getGitRemoteURL());
+	}
+
+	protected boolean isAuthorized(HttpExchange exchange, byte[] body) {
+		if (secret == null) {
+			return true;
+		}
+		String gitlabToken = exchange.getRequestHeaders().getFirst("X-Gitlab-Token");
+		if (gitlabToken != null) {
+			return MessageDigest.isEqual(gitlabToken.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+		}
+		String signature = exchange.getRequestHeaders().getFirst("X-Hub-Signature-256");
+		if (signature == null) {
+			return false;
+		}
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+			StringBuilder expected = new StringBuilder("sha256=");
+			for (byte b : mac.doFinal(body)) {
+				expected.append(String.format("%02x", b));
+			}
+			return MessageDigest.isEqual(expected.toString().getBytes(StandardCharsets.UTF_8), signature.getBytes(StandardCharsets.UTF_8));
+		} catch (GeneralSecurityException e) {
+			logger.error("Cannot check the signature: " + e.getMessage(), e);
+			return false;
+		}
+	}
+
+	protected void respond(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] response = (message + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, response.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(response);
+		}
+	}
+
+	/**
+	 * @return the top level fields of the JSON payload, empty for an empty payload (plain POST with query parameters)
+	 * @throws IllegalArgumentException if the payload is not a JSON object
+	 */
+	@SuppressWarnings("unchecked")
+	protected static Map<String, Object> parseEvent(String payload) {
+		if (payload.trim().isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Object event = JsonReader.parse(payload);
+		if (!(event instanceof Map)) {
+			throw new IllegalArgumentException("not a JSON object");
+		}
+		return (Map<String, Object>) event;
+	}
+
+	/**
+	 * @return the URLs of the pushed repository found in the repository (or project) object of the event
+	 */
+	protected static List<String> getRepositoryURLs(Map<String, Object> event) {
+		List<String> repositoryURLs = new ArrayList<String>();
+		for (String repositoryKey : REPOSITORY_KEYS) {
+			Object repository = event.get(repositoryKey);
+			if (repository instanceof Map) {
+				for (String urlKey : URL_KEYS) {
+					String url = getString(repository, urlKey);
+					if (url != null) {
+						repositoryURLs.add(url);
+					}
+				}
+			}
+		}
+		return repositoryURLs;
+	}
+
+	/**
+	 * @return the string field of a JSON object, null if missing or not a string
+	 */
+	protected static String getString(Object object, String key) {
+		Object value = object instanceof Map ? ((Map<?, ?>) object).get(key) : null;
+		return value instanceof String ? (String) value : null;
+	}
+
+	protected static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if (rawQuery != null) {
+			for (String parameter : rawQuery.split("&")) {
+				int equal = parameter.indexOf('=');
+				if (equal > 0) {
+					parameters.put(URLDecoder.decode(parameter.substring(0, equal), "UTF-8"), URLDecoder.decode(parameter.substring(equal + 1), "UTF-8"));
+				}
+			}
+		}
+		return parameters;
+	}
+}
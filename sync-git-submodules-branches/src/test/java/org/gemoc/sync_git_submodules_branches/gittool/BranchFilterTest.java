@@ -0,0 +1,70 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+public class BranchFilterTest extends SyncTestSupport {
+
+	static final String PARENT = SyntheticRepositoryGenerator.PARENT_REPOSITORY;
+
+	@Test
+	public void globs() {
+		BranchFilter filter = BranchFilter.parse("", "dependabot/*, release-?.?, renovate/**");
+		assertTrue(filter.matches("feature-000"));
+		assertFalse(filter.matches("dependabot/foo"));
+		// * doesn't match '/'
+		assertTrue(filter.matches("dependabot/npm/foo"));
+		assertFalse(filter.matches("renovate/npm/foo"));
+		assertFalse(filter.matches("release-1.2"));
+		// the other characters are literal
+		assertTrue(filter.matches("release-1x2"));
+		assertTrue(filter.matches("release-1.10"));
+	}
+
+	@Test
+	public void includesAndRegex() {
+		BranchFilter filter = BranchFilter.parse("feature-*,regex:(bug|fix)-[0-9]+", "feature-*-wip");
+		assertTrue(filter.matches("feature-000"));
+		assertTrue(filter.matches("bug-42"));
+		assertFalse(filter.matches("bug-42a"));
+		assertFalse(filter.matches("feature-000-wip"));
+		assertFalse(filter.matches("dependabot/foo"));
+		assertTrue(BranchFilter.parse(null, " , ").isEmpty());
+		assertTrue(BranchFilter.ALL.matches("dependabot/foo"));
+	}
+
+	@Test
+	public void excludedBranchesAreLeftUntouched() throws Exception {
+		// feature-002 would be deleted: it no longer exists in comp000
+		setBranch("comp000.git", "feature-002", null);
+		ObjectId feature002 = remoteTip(PARENT, "feature-002");
+		ObjectId feature000 = remoteTip(PARENT, "feature-000");
+		ObjectId master = remoteTip(PARENT, "master");
+		GitModuleManager manager = newManager("local");
+		manager.setBranchFilter(BranchFilter.parse("", "feature-001,feature-002"));
+		manager.synchronize(90, new RecordingReportSink(), false);
+		assertNull(remoteTip(PARENT, "feature-001"));
+		assertEquals(feature002, remoteTip(PARENT, "feature-002"));
+		assertNotNull(remoteTip(PARENT, "feature-003"));
+		assertNotEquals(feature000, remoteTip(PARENT, "feature-000"));
+		// master is always synced
+		assertNotEquals(master, remoteTip(PARENT, "master"));
+	}
+
+	@Test
+	public void submoduleFilterOnlyAppliesToItsModule() throws Exception {
+		GitModuleManager manager = newManager("local");
+		manager.setSubmoduleBranchFilter("comp001", BranchFilter.parse("", "feature-000"));
+		SyncPlan plan = manager.synchronize(90, new RecordingReportSink(), true);
+		for (SyncPlan.ModuleChange module : plan.getBranch("feature-000").getModules()) {
+			assertEquals(module.getModuleName(), module.getModuleName().equals("comp000") ? "feature-000" : "master", module.getTrackedBranch());
+		}
+	}
+}
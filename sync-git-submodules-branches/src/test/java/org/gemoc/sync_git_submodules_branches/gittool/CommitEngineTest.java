@@ -0,0 +1,39 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+public class CommitEngineTest extends SyncTestSupport {
+
+	protected RecordingReportSink dryRun(CommitEngine commitEngine) throws Exception {
+		GitModuleManager manager = newManager(commitEngine.name());
+		manager.setCommitEngine(commitEngine);
+		RecordingReportSink sink = new RecordingReportSink();
+		try {
+			manager.gitUpdateOrClone();
+			manager.updateAllBranchesModules(sink, true);
+		} finally {
+			manager.closeTransports();
+		}
+		return sink;
+	}
+
+	@Test
+	public void inMemoryDryRunReportsLikeCheckout() throws Exception {
+		ObjectId parentMaster = remoteTip(SyntheticRepositoryGenerator.PARENT_REPOSITORY, "master");
+		ObjectId parentFeature = remoteTip(SyntheticRepositoryGenerator.PARENT_REPOSITORY, SyntheticRepositoryGenerator.branchName(0));
+
+		RecordingReportSink checkout = dryRun(CommitEngine.CHECKOUT);
+		RecordingReportSink inMemory = dryRun(CommitEngine.INMEMORY);
+
+		assertTrue("the submodules of feature-000 must be updated", 
+				checkout.count("commitCreated", SyntheticRepositoryGenerator.branchName(0)) > 0);
+		assertEquals(checkout.getEvents(), inMemory.getEvents());
+		// nothing pushed
+		assertEquals(parentMaster, remoteTip(SyntheticRepositoryGenerator.PARENT_REPOSITORY, "master"));
+		assertEquals(parentFeature, remoteTip(SyntheticRepositoryGenerator.PARENT_REPOSITORY, SyntheticRepositoryGenerator.branchName(0)));
+	}
+}
@@ -0,0 +1,126 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CommitMetadataCacheTest extends SyncTestSupport {
+
+	File file;
+	/** commits of comp000, from a new tip of feature-000 */
+	List<ObjectId> commits = new ArrayList<ObjectId>();
+
+	@Before
+	public void listCommits() throws Exception {
+		file = new File(temporaryFolder.getRoot(), "cache/commit-metadata.cache");
+		ObjectId tip = commit("comp000.git", "feature-000", "file", "content");
+		try (Repository repository = openRemote("comp000.git");
+				RevWalk revWalk = new RevWalk(repository)) {
+			revWalk.markStart(revWalk.parseCommit(tip));
+			for (RevCommit commit : revWalk) {
+				commits.add(commit.copy());
+			}
+		}
+		assertTrue(commits.size() >= 3);
+	}
+
+	protected CommitMetadataCache.CommitMetadata get(CommitMetadataCache cache, int commitIndex) throws Exception {
+		try (Repository repository = openRemote("comp000.git")) {
+			return cache.get(repository, commits.get(commitIndex));
+		}
+	}
+
+	@Test
+	public void metadataIsPersisted() throws Exception {
+		CommitMetadataCache cache = new CommitMetadataCache(file, 10);
+		cache.load();
+		CommitMetadataCache.CommitMetadata metadata = get(cache, 0);
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		cache.save();
+
+		CommitMetadataCache reloaded = new CommitMetadataCache(file, 10);
+		reloaded.load();
+		CommitMetadataCache.CommitMetadata cached = get(reloaded, 0);
+		assertEquals(1, reloaded.getHits());
+		assertEquals(0, reloaded.getMisses());
+		assertEquals(metadata.getAuthorIdent(), cached.getAuthorIdent());
+		assertEquals(metadata.getCommitTime(), cached.getCommitTime());
+		assertEquals(metadata.getShortMessage(), cached.getShortMessage());
+		assertEquals("write file on feature-000", cached.getShortMessage());
+	}
+
+	@Test
+	public void leastRecentlyUsedCommitsAreEvicted() throws Exception {
+		CommitMetadataCache cache = new CommitMetadataCache(file, 2);
+		get(cache, 0);
+		get(cache, 1);
+		// 1 is now the least recently used
+		get(cache, 0);
+		get(cache, 2);
+		cache.save();
+		List<String> lines = FileUtils.readLines(file, StandardCharsets.UTF_8);
+		assertEquals(2, lines.size());
+		// from the least to the most recently used
+		assertTrue(lines.get(0).startsWith(commits.get(0).name()));
+		assertTrue(lines.get(1).startsWith(commits.get(2).name()));
+
+		CommitMetadataCache reloaded = new CommitMetadataCache(file, 2);
+		reloaded.load();
+		get(reloaded, 0);
+		get(reloaded, 2);
+		get(reloaded, 1);
+		assertEquals(2, reloaded.getHits());
+		assertEquals(1, reloaded.getMisses());
+	}
+
+	@Test
+	public void invalidLinesAreIgnored() throws Exception {
+		CommitMetadataCache cache = new CommitMetadataCache(file, 10);
+		get(cache, 0);
+		cache.save();
+		FileUtils.writeStringToFile(file, "not a commit\n" + commits.get(1).name() + "\tname\temail\tnot a time\t0\t0\tmessage\n",
+				StandardCharsets.UTF_8, true);
+		CommitMetadataCache reloaded = new CommitMetadataCache(file, 10);
+		reloaded.load();
+		get(reloaded, 0);
+		get(reloaded, 1);
+		assertEquals(1, reloaded.getHits());
+		assertEquals(1, reloaded.getMisses());
+	}
+
+	@Test
+	public void disabledCacheIsNotSaved() throws Exception {
+		CommitMetadataCache cache = new CommitMetadataCache(file, 0);
+		get(cache, 0);
+		get(cache, 0);
+		assertEquals(2, cache.getMisses());
+		cache.save();
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void cacheIsSharedBetweenRuns() throws Exception {
+		assertSameBranchesAsDefault(m -> m.setCommitMetadataCacheSize(1000));
+		assertTrue(new File(temporaryFolder.getRoot(), "configured/.git/sync-git-submodules-branches/commit-metadata.cache").exists());
+		GitModuleManager nextRun = newManager("configured", generator.fileURL(new File(remotes, "configured.git")));
+		nextRun.setCommitMetadataCacheSize(1000);
+		nextRun.synchronize(90, ReportSink.NONE, false);
+		// nothing changed, all the submodule commits are known
+		assertTrue(nextRun.getMetrics().getCounter(SyncMetrics.COMMIT_CACHE_HITS) > 0);
+		assertEquals(0, nextRun.getMetrics().getCounter(SyncMetrics.COMMITS_PARSED));
+	}
+}
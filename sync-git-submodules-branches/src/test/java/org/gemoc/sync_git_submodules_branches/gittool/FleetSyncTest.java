@@ -0,0 +1,101 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+public class FleetSyncTest extends SyncTestSupport {
+
+	/**
+	 * Add a copy of the generated parent to the fleet
+	 */
+	protected void addCopy(FleetSync fleetSync, String copyName) throws Exception {
+		File copy = new File(remotes, copyName + ".git");
+		FileUtils.copyDirectory(new File(remotes, SyntheticRepositoryGenerator.PARENT_REPOSITORY), copy);
+		fleetSync.addRepository(copyName, newManager(copyName, generator.fileURL(copy)), 90, false);
+	}
+
+	/**
+	 * @return the events of the report between the start of repositoryName and the start of the next repository
+	 */
+	protected List<String> repositoryEvents(RecordingReportSink sink, String repositoryName) {
+		List<String> events = new ArrayList<String>();
+		boolean inRepository = false;
+		for (String event : sink.getEvents()) {
+			if (event.startsWith("repositoryStarted ")) {
+				inRepository = event.equals("repositoryStarted " + repositoryName);
+			} else if (inRepository) {
+				events.add(event);
+			}
+		}
+		return events;
+	}
+
+	@Test
+	public void repositoriesAreSynchronizedConcurrently() throws Exception {
+		syncCopy("default", manager -> {});
+		Map<String, ObjectId> expectedTrees = branchTrees("default.git");
+
+		FleetSync fleetSync = new FleetSync(2, new ComponentMirrors(new File(temporaryFolder.getRoot(), "mirrors")));
+		addCopy(fleetSync, "fleet-a");
+		addCopy(fleetSync, "fleet-b");
+		addCopy(fleetSync, "fleet-c");
+		RecordingReportSink sink = new RecordingReportSink();
+		assertTrue(fleetSync.synchronizeAll(sink));
+		for (String copyName : new String[] { "fleet-a", "fleet-b", "fleet-c" }) {
+			assertEquals(copyName, expectedTrees, branchTrees(copyName + ".git"));
+			List<String> events = repositoryEvents(sink, copyName);
+			assertEquals(1, Collections.frequency(events, "branchDone master"));
+			assertTrue(events.contains("branchDone feature-003"));
+		}
+		List<String> started = new ArrayList<String>();
+		for (String event : sink.getEvents()) {
+			if (event.startsWith("repositoryStarted ")) {
+				started.add(event);
+			}
+		}
+		// in the order the repositories were added
+		assertEquals(Arrays.asList("repositoryStarted fleet-a", "repositoryStarted fleet-b", "repositoryStarted fleet-c"), started);
+
+		String json = fleetSync.getMetrics().toJson();
+		for (String copyName : new String[] { "fleet-a", "fleet-b", "fleet-c" }) {
+			assertTrue(json, json.contains("\"" + copyName + "\": { \"millis\""));
+		}
+		// the 3 parents, then comp000 and comp001 fetched once for all of them
+		Matcher mirrorTiming = Pattern.compile("\"mirror\": \\{ \"millis\": \\d+, \"count\": (\\d+) \\}").matcher(json);
+		assertTrue(json, mirrorTiming.find());
+		assertEquals("5", mirrorTiming.group(1));
+	}
+
+	@Test
+	public void failedRepositoryDoesNotStopTheOthers() throws Exception {
+		syncCopy("default", manager -> {});
+		FleetSync fleetSync = new FleetSync(2, null);
+		fleetSync.addRepository("missing", newManager("missing", generator.fileURL(new File(remotes, "missing.git"))), 90, false);
+		addCopy(fleetSync, "fleet-a");
+		RecordingReportSink sink = new RecordingReportSink();
+		assertFalse(fleetSync.synchronizeAll(sink));
+		assertEquals(Collections.singletonList("missing"), fleetSync.getFailedRepositories());
+		assertEquals(1, sink.count("repositoryFailed", "missing"));
+		assertEquals(branchTrees("default.git"), branchTrees("fleet-a.git"));
+		assertEquals(1, Collections.frequency(repositoryEvents(sink, "fleet-a"), "branchDone master"));
+
+		// the failures are those of the last cycle
+		fleetSync.repositories.remove("missing");
+		assertTrue(fleetSync.synchronizeAll(ReportSink.NONE));
+		assertTrue(fleetSync.getFailedRepositories().isEmpty());
+	}
+}
@@ -0,0 +1,189 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import org.junit.Test;
+
+public class IncrementalSyncTest extends SyncTestSupport {
+
+	static final String PARENT = SyntheticRepositoryGenerator.PARENT_REPOSITORY;
+	static final String[] BRANCHES = { "feature-000", "feature-001", "feature-002", "feature-003", "master" };
+
+	protected GitModuleManager newIncrementalManager() throws IOException {
+		GitModuleManager manager = newManager("local");
+		manager.setIncrementalSync(true);
+		return manager;
+	}
+
+	protected RecordingReportSink sync() throws Exception {
+		return sync(manager -> {});
+	}
+
+	protected RecordingReportSink sync(ManagerSetup setup) throws Exception {
+		RecordingReportSink sink = new RecordingReportSink();
+		GitModuleManager manager = newIncrementalManager();
+		setup.configure(manager);
+		manager.synchronize(90, sink, false);
+		return sink;
+	}
+
+	/**
+	 * @return the branches updated (not skipped) by the sync
+	 */
+	protected String startedBranches(RecordingReportSink sink) {
+		StringBuilder started = new StringBuilder();
+		for (String branchName : BRANCHES) {
+			if (sink.count("branchStarted", branchName) > 0) {
+				started.append(started.length() > 0 ? " " : "").append(branchName);
+			}
+		}
+		return started.toString();
+	}
+
+	@Test
+	public void unchangedBranchesAreSkipped() throws Exception {
+		RecordingReportSink first = sync();
+		assertEquals("feature-000 feature-001 feature-002 feature-003 master", startedBranches(first));
+		RecordingReportSink second = sync();
+		assertEquals("", startedBranches(second));
+		for (String branchName : BRANCHES) {
+			assertEquals(branchName, 1, second.count("branchSkipped", branchName));
+		}
+	}
+
+	@Test
+	public void gitmodulesChangeInvalidatesTheBranch() throws Exception {
+		sync();
+		appendToGitmodules("feature-000", "[submodule \"comp000\"]\n\tupdate = checkout\n");
+		assertEquals("feature-000", startedBranches(sync()));
+	}
+
+	@Test
+	public void createdSubmoduleBranchInvalidatesTheBranch() throws Exception {
+		sync();
+		// feature-002 only exists in comp000
+		setBranch("comp001.git", "feature-002", remoteTip("comp001.git", "master"));
+		commit("comp001.git", "feature-002", "README.md", "feature-002 in comp001\n");
+		RecordingReportSink sink = sync();
+		assertEquals("feature-002", startedBranches(sink));
+		assertEquals(1, sink.count("moduleTracked", "feature-002 comp001 feature-002"));
+	}
+
+	@Test
+	public void deletedSubmoduleBranchInvalidatesTheBranch() throws Exception {
+		sync();
+		// feature-000 exists in comp000 and comp001
+		setBranch("comp001.git", "feature-000", null);
+		RecordingReportSink sink = sync();
+		assertEquals("feature-000", startedBranches(sink));
+		assertEquals(1, sink.count("moduleTracked", "feature-000 comp001 master"));
+	}
+
+	@Test
+	public void settingsChangeInvalidatesTheBranches() throws Exception {
+		String allBranches = "feature-000 feature-001 feature-002 feature-003 master";
+		sync();
+		assertEquals(allBranches, startedBranches(sync(manager -> manager.setSingleCommitPerBranch(true))));
+		assertEquals("", startedBranches(sync(manager -> manager.setSingleCommitPerBranch(true))));
+		assertEquals(allBranches, startedBranches(sync(manager -> {
+			manager.setSingleCommitPerBranch(true);
+			manager.setCommitEngine(CommitEngine.INMEMORY);
+		})));
+		// a filter not excluding any branch of the submodules
+		BranchFilter filter = BranchFilter.parse(null, "release/*");
+		assertEquals(allBranches, startedBranches(sync(manager -> {
+			manager.setSingleCommitPerBranch(true);
+			manager.setCommitEngine(CommitEngine.INMEMORY);
+			manager.setSubmoduleBranchFilter("comp000", filter);
+		})));
+		assertEquals(allBranches, startedBranches(sync()));
+
+		// another committer
+		RecordingReportSink sink = new RecordingReportSink();
+		GitModuleManager manager = new GitModuleManager(parentURL, new File(temporaryFolder.getRoot(), "local").getAbsolutePath(),
+				new UsernamePasswordCredentialsProvider("", ""), "other bot", "other-bot@localhost");
+		manager.setIncrementalSync(true);
+		manager.synchronize(90, sink, false);
+		assertEquals(allBranches, startedBranches(sink));
+	}
+
+	@Test
+	public void batchedBranchesAreFingerprintedOncePushed() throws Exception {
+		GitModuleManager manager = newIncrementalManager();
+		manager.setUpdateMode(UpdateMode.FETCH);
+		manager.setPushBatch(new PushBatch(0, false));
+		try {
+			manager.gitUpdateOrClone();
+			SyncPlan plan = manager.planSynchronization(manager.collectAllSubmodulesActiveRemoteBranches(90), null);
+			// the run stops before pushing
+			manager.executePlan(plan, ReportSink.NONE);
+		} finally {
+			manager.closeTransports();
+		}
+		ObjectId notPushed = remoteTip(PARENT, "feature-000");
+
+		RecordingReportSink second = sync();
+		assertEquals("feature-000 feature-001 feature-002 feature-003 master", startedBranches(second));
+		assertNotEquals(notPushed, remoteTip(PARENT, "feature-000"));
+		assertEquals("", startedBranches(sync()));
+	}
+
+	/**
+	 * Commit an addition to the .gitmodules of a branch of the parent, the rest of its tree is unchanged
+	 */
+	protected void appendToGitmodules(String branchName, String text) throws IOException {
+		try (Repository repository = openRemote(PARENT);
+				ObjectInserter inserter = repository.newObjectInserter();
+				ObjectReader reader = repository.newObjectReader();
+				RevWalk revWalk = new RevWalk(reader)) {
+			RevCommit parent = revWalk.parseCommit(remoteTip(PARENT, branchName));
+			DirCache dirCache = DirCache.newInCore();
+			DirCacheBuilder builder = dirCache.builder();
+			builder.addTree(new byte[0], DirCacheEntry.STAGE_0, reader, parent.getTree());
+			builder.finish();
+			String gitmodules = new String(reader.open(dirCache.getEntry(Constants.DOT_GIT_MODULES).getObjectId()).getCachedBytes(), "UTF-8");
+			ObjectId blobId = inserter.insert(Constants.OBJ_BLOB, Constants.encode(gitmodules + text));
+			DirCacheEditor editor = dirCache.editor();
+			editor.add(new DirCacheEditor.PathEdit(Constants.DOT_GIT_MODULES) {
+				@Override
+				public void apply(DirCacheEntry ent) {
+					ent.setFileMode(FileMode.REGULAR_FILE);
+					ent.setObjectId(blobId);
+				}
+			});
+			editor.finish();
+			PersonIdent ident = new PersonIdent(new PersonIdent("test", "test@localhost"), new Date());
+			CommitBuilder commit = new CommitBuilder();
+			commit.setTreeId(dirCache.writeTree(inserter));
+			commit.setParentId(parent);
+			commit.setAuthor(ident);
+			commit.setCommitter(ident);
+			commit.setMessage("edit .gitmodules");
+			ObjectId tip = inserter.insert(commit);
+			inserter.flush();
+			setBranch(PARENT, branchName, tip);
+		}
+		assertTrue(remoteTip(PARENT, branchName) != null);
+	}
+}
@@ -0,0 +1,51 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.submodule.SubmoduleWalk;
+import org.eclipse.jgit.util.FS;
+import org.junit.After;
+import org.junit.Test;
+
+public class KeepRepositoriesOpenTest extends SyncTestSupport {
+
+	GitModuleManager manager;
+
+	@After
+	public void clearCache() {
+		RepositoryCache.clear();
+	}
+
+	@Test
+	public void submoduleRepositoriesAreSharedBetweenRuns() throws Exception {
+		manager = newManager("local");
+		manager.setKeepRepositoriesOpen(true);
+		manager.synchronize(90, ReportSink.NONE, false);
+		File modules = new File(temporaryFolder.getRoot(), "local/" + Constants.DOT_GIT + "/" + Constants.MODULES);
+		RepositoryCache.FileKey comp000 = RepositoryCache.FileKey.exact(new File(modules, "comp000"), FS.DETECTED);
+		assertTrue(RepositoryCache.getRegisteredKeys().contains(comp000));
+
+		RecordingReportSink sink = new RecordingReportSink();
+		manager.synchronize(90, sink, false);
+		assertEquals(1, sink.count("branchStarted", "master"));
+		try (Repository parentRepository = manager.openParentRepository();
+				SubmoduleWalk walk = SubmoduleWalk.forIndex(parentRepository)) {
+			walk.next();
+			try (Repository first = manager.openSubmoduleRepository(walk);
+					Repository second = manager.openSubmoduleRepository(walk)) {
+				assertSame(first, second);
+			}
+		}
+
+		manager.unregisterSubmoduleRepositories();
+		assertFalse(RepositoryCache.getRegisteredKeys().contains(comp000));
+	}
+}
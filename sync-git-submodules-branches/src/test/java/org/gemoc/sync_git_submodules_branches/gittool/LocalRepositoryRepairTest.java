@@ -0,0 +1,172 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryState;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Corrupt the clone kept by a first run as a crashed run would, the next run repairs it instead of cloning it again
+ */
+public class LocalRepositoryRepairTest extends SyncTestSupport {
+
+	static final String PARENT = SyntheticRepositoryGenerator.PARENT_REPOSITORY;
+	static final String MISSING_OBJECT = "0123456789abcdef0123456789abcdef01234567";
+
+	File localPath;
+	File gitDir;
+	/** file of the clone of the first run, lost if it is cloned again */
+	File marker;
+
+	@Before
+	public void firstRun() throws Exception {
+		localPath = new File(temporaryFolder.getRoot(), "local");
+		gitDir = new File(localPath, Constants.DOT_GIT);
+		newRepairingManager().synchronize(90, ReportSink.NONE, false);
+		marker = new File(gitDir, "first-run");
+		FileUtils.touch(marker);
+	}
+
+	protected GitModuleManager newRepairingManager() throws IOException {
+		GitModuleManager manager = newManager("local");
+		manager.setRepairLocalRepository(true);
+		return manager;
+	}
+
+	protected LocalRepositoryRepair check(LocalRepositoryRepair.Outcome expectedOutcome, String expectedRepair) {
+		LocalRepositoryRepair repair = new LocalRepositoryRepair(localPath, parentURL);
+		assertEquals(repair.getRepairs().toString(), expectedOutcome, repair.check());
+		if (expectedRepair != null) {
+			assertTrue(repair.getRepairs().toString(), repair.getRepairs().stream().anyMatch(r -> r.startsWith(expectedRepair)));
+		}
+		return repair;
+	}
+
+	/**
+	 * Check the next run repairs the clone and still syncs the branches changed meanwhile
+	 */
+	protected void assertRepairedBySync() throws Exception {
+		commit("comp001.git", "feature-001", "after-repair", "content");
+		GitModuleManager manager = newRepairingManager();
+		RecordingReportSink sink = new RecordingReportSink();
+		manager.synchronize(90, sink, false);
+		assertEquals(1, manager.getMetrics().getCounter(SyncMetrics.REPAIRS));
+		assertEquals(0, manager.getMetrics().getCounter(SyncMetrics.RECLONES));
+		assertTrue(marker.exists());
+		assertEquals(1, sink.count("branchPushed", "feature-001 OK"));
+		// nothing left to repair
+		check(LocalRepositoryRepair.Outcome.INTACT, null);
+	}
+
+	@Test
+	public void intactClone() {
+		check(LocalRepositoryRepair.Outcome.INTACT, null);
+	}
+
+	@Test
+	public void oldLocksAreRemoved() throws Exception {
+		File indexLock = new File(gitDir, "index.lock");
+		File refLock = new File(gitDir, "modules/comp000/refs/heads/master.lock");
+		for (File lock : new File[] { indexLock, refLock }) {
+			FileUtils.touch(lock);
+			lock.setLastModified(System.currentTimeMillis() - LocalRepositoryRepair.DEFAULT_LOCK_EXPIRY_MILLIS - 60_000);
+		}
+		check(LocalRepositoryRepair.Outcome.REPAIRED, "removed lock index.lock");
+		assertFalse(indexLock.exists());
+		assertFalse(refLock.exists());
+	}
+
+	@Test
+	public void recentLocksAreKept() throws Exception {
+		File indexLock = new File(gitDir, "index.lock");
+		FileUtils.touch(indexLock);
+		check(LocalRepositoryRepair.Outcome.INTACT, null);
+		assertTrue(indexLock.exists());
+		LocalRepositoryRepair repair = new LocalRepositoryRepair(localPath, parentURL);
+		repair.setLockExpiryMillis(0);
+		assertEquals(LocalRepositoryRepair.Outcome.REPAIRED, repair.check());
+		assertFalse(indexLock.exists());
+	}
+
+	@Test
+	public void unfinishedMerge() throws Exception {
+		try (Repository repository = new FileRepositoryBuilder().setGitDir(gitDir).build()) {
+			repository.writeMergeHeads(Collections.singletonList(remoteTip(PARENT, "master")));
+			assertNotEquals(RepositoryState.SAFE, repository.getRepositoryState());
+		}
+		FileUtils.forceMkdir(new File(gitDir, "modules/comp000/rebase-merge"));
+		assertRepairedBySync();
+		try (Repository repository = new FileRepositoryBuilder().setGitDir(gitDir).build()) {
+			assertEquals(RepositoryState.SAFE, repository.getRepositoryState());
+		}
+		assertFalse(new File(gitDir, "modules/comp000/rebase-merge").exists());
+	}
+
+	@Test
+	public void refsToMissingObjects() throws Exception {
+		File brokenRef = new File(gitDir, "refs/remotes/origin/feature-000");
+		FileUtils.writeStringToFile(brokenRef, MISSING_OBJECT + "\n", StandardCharsets.US_ASCII);
+		FileUtils.writeStringToFile(new File(gitDir, "modules/comp001/refs/heads/broken"), MISSING_OBJECT + "\n", StandardCharsets.US_ASCII);
+		check(LocalRepositoryRepair.Outcome.REPAIRED, "deleted refs/remotes/origin/feature-000");
+		try (Repository repository = new FileRepositoryBuilder().setGitDir(new File(gitDir, "modules/comp001")).build()) {
+			assertNull(repository.exactRef("refs/heads/broken"));
+		}
+		FileUtils.writeStringToFile(brokenRef, MISSING_OBJECT + "\n", StandardCharsets.US_ASCII);
+		assertRepairedBySync();
+		try (Repository repository = new FileRepositoryBuilder().setGitDir(gitDir).build()) {
+			// fetched again
+			assertNotNull(repository.exactRef("refs/remotes/origin/feature-000"));
+		}
+	}
+
+	@Test
+	public void unreadablePackedRefs() throws Exception {
+		FileUtils.writeStringToFile(new File(gitDir, Constants.PACKED_REFS), "# pack-refs with: peeled\nnot a ref\n", StandardCharsets.US_ASCII);
+		assertRepairedBySync();
+	}
+
+	@Test
+	public void unreadableIndex() throws Exception {
+		FileUtils.writeStringToFile(new File(gitDir, "index"), "not an index", StandardCharsets.US_ASCII);
+		check(LocalRepositoryRepair.Outcome.REPAIRED, "removed unreadable index");
+		FileUtils.writeStringToFile(new File(gitDir, "index"), "not an index", StandardCharsets.US_ASCII);
+		assertRepairedBySync();
+	}
+
+	@Test
+	public void brokenSubmoduleIsClonedAgain() throws Exception {
+		File comp000 = new File(gitDir, "modules/comp000");
+		FileUtils.writeStringToFile(new File(comp000, Constants.HEAD), MISSING_OBJECT + "\n", StandardCharsets.US_ASCII);
+		FileUtils.touch(new File(comp000, "first-run"));
+		assertRepairedBySync();
+		assertFalse(new File(comp000, "first-run").exists());
+		assertTrue(new File(comp000, "objects").isDirectory());
+	}
+
+	@Test
+	public void brokenCloneIsClonedAgain() throws Exception {
+		// the current commit of the parent is missing
+		FileUtils.writeStringToFile(new File(gitDir, Constants.HEAD), MISSING_OBJECT + "\n", StandardCharsets.US_ASCII);
+		check(LocalRepositoryRepair.Outcome.BROKEN, null);
+		GitModuleManager manager = newRepairingManager();
+		manager.synchronize(90, ReportSink.NONE, false);
+		assertEquals(1, manager.getMetrics().getCounter(SyncMetrics.RECLONES));
+		assertFalse(marker.exists());
+		check(LocalRepositoryRepair.Outcome.INTACT, null);
+	}
+}
@@ -0,0 +1,41 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PruneMergedBranchesTest extends SyncTestSupport {
+
+	static final String PARENT = SyntheticRepositoryGenerator.PARENT_REPOSITORY;
+
+	protected void sync() throws Exception {
+		GitModuleManager manager = newManager("local");
+		manager.setPruneMergedBranches(true);
+		manager.synchronize(90, new RecordingReportSink(), false);
+	}
+
+	@Test
+	public void branchAtTheTipOfMasterIsKept() throws Exception {
+		setBranch("comp000.git", "feature-new", remoteTip("comp000.git", "master"));
+		sync();
+		assertNotNull(remoteTip(PARENT, "feature-new"));
+		assertNotNull(remoteTip(PARENT, "feature-000"));
+	}
+
+	@Test
+	public void mergedBranchIsPruned() throws Exception {
+		// feature-002 only exists in comp000: fast-forward its master to the branch, then move on
+		setBranch("comp000.git", "master", remoteTip("comp000.git", "feature-002"));
+		// the generated commits are dated up to a few minutes ahead
+		commit("comp000.git", "master", "README.md", "after the merge of feature-002\n", 
+				new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+		sync();
+		assertNull(remoteTip(PARENT, "feature-002"));
+		assertNotNull(remoteTip(PARENT, "feature-000"));
+		assertNotNull(remoteTip(PARENT, "feature-001"));
+	}
+}
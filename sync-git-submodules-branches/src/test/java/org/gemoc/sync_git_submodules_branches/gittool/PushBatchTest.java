@@ -0,0 +1,154 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.RefSpec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PushBatchTest extends SyncTestSupport {
+
+	static final String PARENT = SyntheticRepositoryGenerator.PARENT_REPOSITORY;
+
+	Git local;
+	TransportPool transportPool = new TransportPool(0, 0, 0);
+	SyncMetrics metrics = new SyncMetrics();
+	RecordingReportSink sink = new RecordingReportSink();
+	ObjectId master;
+
+	@Before
+	public void cloneParent() throws Exception {
+		local = Git.cloneRepository().setURI(parentURL).setDirectory(new File(temporaryFolder.getRoot(), "local")).call();
+		master = remoteTip(PARENT, "master");
+	}
+
+	@After
+	public void close() {
+		transportPool.close();
+		local.close();
+	}
+
+	/**
+	 * @return a new local commit on top of the fetched remote branch, to push as a fast-forward update
+	 */
+	protected RevCommit localCommit(String branchName) throws Exception {
+		local.branchCreate().setName(branchName).setStartPoint("origin/" + branchName).setForce(true).call();
+		local.checkout().setName(branchName).call();
+		RevCommit commit = local.commit().setMessage("update " + branchName).setAllowEmpty(true).call();
+		local.checkout().setName("master").call();
+		return commit;
+	}
+
+	protected RefSpec refSpec(String branchName) {
+		return new RefSpec("refs/heads/" + branchName + ":refs/heads/" + branchName);
+	}
+
+	/**
+	 * Add the creation of new branches pointing to master
+	 */
+	protected void addCreations(PushBatch batch, String... branchNames) throws Exception {
+		for (String branchName : branchNames) {
+			local.branchCreate().setName(branchName).setStartPoint("origin/master").call();
+			batch.add(refSpec(branchName), "create " + branchName, ObjectId.zeroId());
+		}
+	}
+
+	protected Set<String> push(PushBatch batch) throws Exception {
+		return batch.push(transportPool, local.getRepository().getDirectory(), "origin", null, metrics, sink);
+	}
+
+	@Test
+	public void refsArePushedByChunks() throws Exception {
+		PushBatch batch = new PushBatch(2, false);
+		addCreations(batch, "new-0", "new-1", "new-2");
+		RevCommit feature000 = localCommit("feature-000");
+		batch.add(refSpec("feature-000"), "update feature-000", remoteTip(PARENT, "feature-000"));
+		batch.add(new RefSpec().setSource(null).setDestination("refs/heads/feature-002"), "delete feature-002", remoteTip(PARENT, "feature-002"));
+		assertEquals(new TreeSet<String>(Arrays.asList("new-0", "new-1", "new-2", "feature-000")), batch.getPendingBranches());
+		assertTrue(push(batch).isEmpty());
+		assertTrue(batch.isEmpty());
+		assertEquals(3, metrics.getCounter(SyncMetrics.PUSHES));
+		assertEquals(5, metrics.getCounter(SyncMetrics.REFS_PUSHED));
+		for (String branchName : new String[] { "new-0", "new-1", "new-2" }) {
+			assertEquals(master, remoteTip(PARENT, branchName));
+			assertEquals(1, sink.count("branchPushed", branchName + " OK"));
+		}
+		assertEquals(feature000, remoteTip(PARENT, "feature-000"));
+		assertNull(remoteTip(PARENT, "feature-002"));
+	}
+
+	@Test
+	public void leaseRejectedBranchIsReturned() throws Exception {
+		PushBatch batch = new PushBatch(0, false);
+		addCreations(batch, "new-0");
+		localCommit("feature-000");
+		batch.add(refSpec("feature-000"), "update feature-000", remoteTip(PARENT, "feature-000"));
+		ObjectId moved = commit(PARENT, "feature-000", "other", "pushed by another process");
+		assertEquals(Collections.singleton("feature-000"), push(batch));
+		assertEquals(moved, remoteTip(PARENT, "feature-000"));
+		// the other refs are applied
+		assertEquals(master, remoteTip(PARENT, "new-0"));
+		assertTrue(batch.isEmpty());
+	}
+
+	@Test
+	public void atomicPushIsAbortedAndRequeued() throws Exception {
+		PushBatch batch = new PushBatch(0, true);
+		addCreations(batch, "new-0", "new-1");
+		RevCommit feature000 = localCommit("feature-000");
+		batch.add(refSpec("feature-000"), "update feature-000", remoteTip(PARENT, "feature-000"));
+		ObjectId moved = commit(PARENT, "feature-000", "other", "pushed by another process");
+		assertEquals(Collections.singleton("feature-000"), push(batch));
+		// nothing applied, the aborted refs wait for the recomputed update
+		assertNull(remoteTip(PARENT, "new-0"));
+		assertEquals(moved, remoteTip(PARENT, "feature-000"));
+		assertEquals(new TreeSet<String>(Arrays.asList("new-0", "new-1")), batch.getPendingBranches());
+
+		// recomputed on top of the moved branch
+		local.fetch().call();
+		RevCommit recomputed = localCommit("feature-000");
+		batch.add(refSpec("feature-000"), "update feature-000", moved);
+		assertTrue(push(batch).isEmpty());
+		assertEquals(master, remoteTip(PARENT, "new-0"));
+		assertEquals(master, remoteTip(PARENT, "new-1"));
+		assertEquals(recomputed, remoteTip(PARENT, "feature-000"));
+		assertEquals(moved, recomputed.getParent(0));
+		assertNotEquals(feature000, recomputed);
+		assertEquals(2, metrics.getCounter(SyncMetrics.PUSHES));
+	}
+
+	@Test
+	public void atomicPushWithARejectedDeletionIsPushedAgain() throws Exception {
+		PushBatch batch = new PushBatch(0, true);
+		addCreations(batch, "new-0");
+		batch.add(new RefSpec().setSource(null).setDestination("refs/heads/feature-002"), "delete feature-002", remoteTip(PARENT, "feature-002"));
+		ObjectId moved = commit(PARENT, "feature-002", "other", "pushed by another process");
+		assertTrue(push(batch).isEmpty());
+		assertEquals(moved, remoteTip(PARENT, "feature-002"));
+		assertEquals(master, remoteTip(PARENT, "new-0"));
+		assertTrue(batch.isEmpty());
+	}
+
+	@Test(expected = GitSyncError.class)
+	public void otherRejectionsFail() throws Exception {
+		PushBatch batch = new PushBatch(0, false);
+		localCommit("feature-000");
+		// without lease, a non fast-forward update is rejected
+		commit(PARENT, "feature-000", "other", "pushed by another process");
+		batch.add(refSpec("feature-000"), "update feature-000");
+		push(batch);
+	}
+}
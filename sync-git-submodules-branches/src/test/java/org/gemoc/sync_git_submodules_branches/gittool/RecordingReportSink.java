@@ -0,0 +1,91 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Records the events of a sync as strings, eg. "commitCreated feature-001 ..." 
+ */
+public class RecordingReportSink implements ReportSink {
+
+	List<String> events = new ArrayList<String>();
+
+	public synchronized List<String> getEvents() {
+		return new ArrayList<String>(events);
+	}
+
+	/**
+	 * @return number of events of this type on branchName
+	 */
+	public synchronized int count(String event, String branchName) {
+		int count = 0;
+		for (String recorded : events) {
+			if (recorded.equals(event + " " + branchName) || recorded.startsWith(event + " " + branchName + " ")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	protected synchronized void record(String event) {
+		events.add(event);
+	}
+
+	@Override
+	public void repositoryStarted(String repositoryName, String gitRemoteURL) {
+		record("repositoryStarted " + repositoryName);
+	}
+
+	@Override
+	public void repositoryFailed(String repositoryName, String message) {
+		record("repositoryFailed " + repositoryName);
+	}
+
+	@Override
+	public void branchDeleted(String branchName) {
+		record("branchDeleted " + branchName);
+	}
+
+	@Override
+	public void branchCreated(String branchName) {
+		record("branchCreated " + branchName);
+	}
+
+	@Override
+	public void branchSkipped(String branchName) {
+		record("branchSkipped " + branchName);
+	}
+
+	@Override
+	public void branchStarted(String branchName) {
+		record("branchStarted " + branchName);
+	}
+
+	@Override
+	public void moduleTracked(String branchName, String moduleName, String trackedBranchName, ObjectId oldGitlink,
+			ObjectId newGitlink, boolean updated) {
+		record("moduleTracked " + branchName + " " + moduleName + " " + trackedBranchName + " " + name(oldGitlink) + " "
+				+ name(newGitlink) + " " + updated);
+	}
+
+	@Override
+	public void commitCreated(String branchName, ObjectId commitId, String message) {
+		record("commitCreated " + branchName + " " + name(commitId) + " " + message);
+	}
+
+	@Override
+	public void branchPushed(String branchName, String status) {
+		record("branchPushed " + branchName + " " + status);
+	}
+
+	@Override
+	public void branchDone(String branchName) {
+		record("branchDone " + branchName);
+	}
+
+	protected String name(ObjectId id) {
+		return id != null ? id.name() : null;
+	}
+}
@@ -0,0 +1,85 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.Test;
+
+public class RefIndexTest extends SyncTestSupport {
+
+	static final String PARENT = SyntheticRepositoryGenerator.PARENT_REPOSITORY;
+
+	protected Map<String, ObjectId> ids(Map<String, Ref> refs) {
+		Map<String, ObjectId> ids = new TreeMap<String, ObjectId>();
+		for (Map.Entry<String, Ref> ref : refs.entrySet()) {
+			ids.put(ref.getKey(), ref.getValue().getObjectId());
+		}
+		return ids;
+	}
+
+	@Test
+	public void branchesAreIndexedByShortName() throws Exception {
+		try (Git local = Git.cloneRepository().setURI(parentURL).setDirectory(new File(temporaryFolder.getRoot(), "local")).call()) {
+			Ref created = local.branchCreate().setName("feature/nested").setStartPoint("origin/feature-000").call();
+			RefIndex refIndex = new RefIndex(local.getRepository());
+			// master and feature/nested, origin/master, origin/feature-000 and origin/feature-002
+			assertEquals(5, refIndex.getRefCount());
+			assertEquals(created, refIndex.getLocalBranch("feature/nested"));
+			assertEquals(remoteTip(PARENT, "feature-002"), refIndex.getRemoteBranch("feature-002").getObjectId());
+			assertNull(refIndex.getLocalBranch("feature-002"));
+			assertNull(refIndex.getRemoteBranch("feature-001"));
+
+			refIndex.putLocalBranch(local.getRepository().exactRef("refs/remotes/origin/feature-002"));
+			assertNull(refIndex.getLocalBranch("feature-002"));
+			refIndex.putRemoteBranch(local.getRepository().exactRef("refs/heads/feature/nested"));
+			assertNull(refIndex.getRemoteBranch("feature/nested"));
+			refIndex.removeLocalBranch("feature/nested");
+			refIndex.removeRemoteBranch("feature-002");
+			assertNull(refIndex.getLocalBranch("feature/nested"));
+			assertNull(refIndex.getRemoteBranch("feature-002"));
+			assertEquals(3, refIndex.getRefCount());
+		}
+	}
+
+	/**
+	 * Check the index used by the sync matches the refs of the local repository after the sync
+	 */
+	protected void assertIndexUpToDate(ManagerSetup setup) throws Exception {
+		// feature-002 is deleted, feature-001 and feature-003 created, the others updated
+		setBranch("comp000.git", "feature-002", null);
+		GitModuleManager manager = newManager("local");
+		setup.configure(manager);
+		manager.synchronize(90, ReportSink.NONE, false);
+		try (Repository parentRepository = manager.openParentRepository()) {
+			RefIndex syncIndex = manager.getRefIndex(parentRepository);
+			RefIndex scannedIndex = new RefIndex(parentRepository);
+			assertEquals(ids(scannedIndex.localBranches), ids(syncIndex.localBranches));
+			assertEquals(ids(scannedIndex.remoteBranches), ids(syncIndex.remoteBranches));
+			assertNull(syncIndex.getRemoteBranch("feature-002"));
+			assertEquals(remoteTip(PARENT, "feature-001"), syncIndex.getRemoteBranch("feature-001").getObjectId());
+		}
+	}
+
+	@Test
+	public void indexIsKeptUpToDateBySync() throws Exception {
+		assertIndexUpToDate(manager -> {});
+	}
+
+	@Test
+	public void indexIsKeptUpToDateByBatchedSync() throws Exception {
+		assertIndexUpToDate(manager -> manager.setPushBatch(new PushBatch(0, false)));
+	}
+
+	@Test
+	public void indexIsKeptUpToDateByInMemoryCommits() throws Exception {
+		assertIndexUpToDate(manager -> manager.setCommitEngine(CommitEngine.INMEMORY));
+	}
+}
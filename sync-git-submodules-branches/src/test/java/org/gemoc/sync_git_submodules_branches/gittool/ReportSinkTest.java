@@ -0,0 +1,113 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+public class ReportSinkTest extends SyncTestSupport {
+
+	static final String[] BRANCHES = { "master", "feature-000", "feature-001", "feature-002", "feature-003" };
+
+	/**
+	 * @return the value of a string field of an NDJSON line, null if missing or null
+	 */
+	protected String field(String line, String name) {
+		Matcher matcher = Pattern.compile("\"" + Pattern.quote(name) + "\":\"((?:[^\"\\\\]|\\\\.)*)\"").matcher(line);
+		return matcher.find() ? matcher.group(1) : null;
+	}
+
+	protected List<String> lines(String ndjson, String event) {
+		List<String> lines = new ArrayList<String>();
+		for (String line : ndjson.split("\n")) {
+			if (event.equals(field(line, "event"))) {
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+	@Test
+	public void ndjsonEvents() throws IOException {
+		StringWriter out = new StringWriter();
+		NdjsonReportSink sink = new NdjsonReportSink(out);
+		sink.branchStarted("feature/\"quoted\"");
+		sink.moduleTracked("feature-000", "comp000", "feature-000", null, ObjectId.zeroId(), true);
+		sink.repositoryStarted("fleet-a", "file:///remotes/fleet-a.git");
+		sink.branchPushed("feature-000", "OK");
+		String[] lines = out.toString().split("\n");
+		assertEquals(4, lines.length);
+		assertTrue(lines[0], lines[0].matches("\\{\"event\":\"branchStarted\",\"time\":\"[0-9T:.-]+Z\",\"branch\":\"feature/\\\\\"quoted\\\\\"\"\\}"));
+		assertTrue(lines[1], lines[1].endsWith(",\"branch\":\"feature-000\",\"module\":\"comp000\",\"trackedBranch\":\"feature-000\","
+				+ "\"oldGitlink\":null,\"newGitlink\":\"" + ObjectId.zeroId().name() + "\",\"updated\":true}"));
+		assertNull(field(lines[1], "repository"));
+		// the events of a fleet are tagged with their repository
+		assertEquals("file:///remotes/fleet-a.git", field(lines[2], "url"));
+		assertEquals("fleet-a", field(lines[3], "repository"));
+		assertEquals("OK", field(lines[3], "status"));
+	}
+
+	@Test
+	public void syncIsStreamed() throws Exception {
+		File eventsFile = new File(temporaryFolder.getRoot(), "events.ndjson");
+		StringBuilder markdown = new StringBuilder();
+		List<Integer> linesAtBranchDone = new ArrayList<Integer>();
+		try (Writer eventsWriter = Files.newBufferedWriter(eventsFile.toPath(), StandardCharsets.UTF_8)) {
+			// checks the events are in the file as soon as they happen
+			ReportSink fileChecker = new ReportSink() {
+				@Override
+				public void branchDone(String branchName) throws IOException {
+					List<String> written = FileUtils.readLines(eventsFile, StandardCharsets.UTF_8);
+					assertEquals("branchDone", field(written.get(written.size() - 1), "event"));
+					linesAtBranchDone.add(written.size());
+				}
+			};
+			syncCopy("default", m -> {});
+			syncCopy("configured", m -> {},
+					new CompositeReportSink(new NdjsonReportSink(eventsWriter), new MarkdownReportSink(markdown), fileChecker));
+		}
+		// reporting doesn't change the branches
+		assertEquals(branchTrees("default.git"), branchTrees("configured.git"));
+		assertEquals(BRANCHES.length, linesAtBranchDone.size());
+		for (int i = 1; i < linesAtBranchDone.size(); i++) {
+			assertTrue(linesAtBranchDone.get(i) > linesAtBranchDone.get(i - 1));
+		}
+
+		String ndjson = FileUtils.readFileToString(eventsFile, StandardCharsets.UTF_8);
+		assertEquals(BRANCHES.length, lines(ndjson, "branchDone").size());
+		List<String> tracked = lines(ndjson, "moduleTracked");
+		// each submodule on each branch
+		assertEquals(BRANCHES.length * 2, tracked.size());
+		for (String line : tracked) {
+			assertEquals(line, remoteTip(field(line, "module") + ".git", field(line, "trackedBranch")).name(), field(line, "newGitlink"));
+		}
+		for (String branchName : BRANCHES) {
+			String lastCommit = null;
+			for (String line : lines(ndjson, "commitCreated")) {
+				if (branchName.equals(field(line, "branch"))) {
+					lastCommit = field(line, "commit");
+				}
+			}
+			assertEquals(branchName, remoteTip("configured.git", branchName).name(), lastCommit);
+			assertTrue(markdown.toString(), markdown.indexOf("**Branch " + branchName + "**\n") >= 0);
+		}
+		for (String line : lines(ndjson, "branchPushed")) {
+			assertEquals(line, "OK", field(line, "status"));
+		}
+		assertTrue(markdown.toString(), markdown.indexOf("| comp000 ") >= 0);
+	}
+}
@@ -0,0 +1,179 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.junit.Test;
+
+/**
+ * Two managers in different shards sync the same remote at the same time,
+ * while another process pushes on one of the integration branches
+ */
+public class ShardedSyncTest extends SyncTestSupport {
+
+	static final String PARENT = SyntheticRepositoryGenerator.PARENT_REPOSITORY;
+	static final String[] BRANCHES = { "feature-000", "feature-001", "feature-002", "feature-003", "master" };
+	/** existing integration branch changed on the remote while it is being updated */
+	static final String CHANGED_BRANCH = "feature-000";
+
+	ObjectId externalCommit;
+
+	/**
+	 * Push a commit keeping the tree on top of a branch of the parent, as another process would
+	 */
+	protected ObjectId pushExternalCommit(String branchName) throws IOException {
+		try (Repository repository = openRemote(PARENT);
+				ObjectInserter inserter = repository.newObjectInserter();
+				RevWalk revWalk = new RevWalk(repository)) {
+			RevCommit parent = revWalk.parseCommit(remoteTip(PARENT, branchName));
+			PersonIdent ident = new PersonIdent(new PersonIdent("other", "other@localhost"), new Date());
+			CommitBuilder commit = new CommitBuilder();
+			commit.setTreeId(parent.getTree());
+			commit.setParentId(parent);
+			commit.setAuthor(ident);
+			commit.setCommitter(ident);
+			commit.setMessage("pushed by another process");
+			ObjectId tip = inserter.insert(commit);
+			inserter.flush();
+			setBranch(PARENT, branchName, tip);
+			return tip;
+		}
+	}
+
+	protected void syncShards(PushBatch pushBatch0, PushBatch pushBatch1) throws Exception {
+		List<GitModuleManager> managers = new ArrayList<GitModuleManager>();
+		List<RecordingReportSink> sinks = new ArrayList<RecordingReportSink>();
+		PushBatch[] pushBatches = { pushBatch0, pushBatch1 };
+		for (int shard = 0; shard < 2; shard++) {
+			GitModuleManager manager = newManager("shard" + shard);
+			manager.setShard(shard, 2);
+			manager.setPushBatch(pushBatches[shard]);
+			managers.add(manager);
+			sinks.add(new RecordingReportSink() {
+				@Override
+				public void branchStarted(String branchName) {
+					super.branchStarted(branchName);
+					if (branchName.equals(CHANGED_BRANCH) && externalCommit == null) {
+						try {
+							externalCommit = pushExternalCommit(branchName);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}
+				}
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			List<Future<SyncPlan>> syncs = new ArrayList<Future<SyncPlan>>();
+			for (int shard = 0; shard < 2; shard++) {
+				GitModuleManager manager = managers.get(shard);
+				RecordingReportSink sink = sinks.get(shard);
+				syncs.add(executor.submit(() -> manager.synchronize(90, sink, false)));
+			}
+			for (Future<SyncPlan> sync : syncs) {
+				sync.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		for (String branchName : BRANCHES) {
+			int owner = managers.get(0).isInShard(branchName) ? 0 : 1;
+			RecordingReportSink ownerSink = sinks.get(owner);
+			assertEquals(branchName, 0, sinks.get(1 - owner).count("branchStarted", branchName));
+			// a single update reaches the remote
+			assertEquals(branchName, 1, ownerSink.count("branchPushed", branchName + " OK"));
+			// only the branch changed on the remote is computed again
+			assertEquals(branchName, branchName.equals(CHANGED_BRANCH) ? 2 : 1, ownerSink.count("branchStarted", branchName));
+		}
+		int changedOwner = managers.get(0).isInShard(CHANGED_BRANCH) ? 0 : 1;
+		assertEquals(1, managers.get(changedOwner).getMetrics().getCounter(SyncMetrics.LEASE_RETRIES));
+		assertEquals(0, managers.get(1 - changedOwner).getMetrics().getCounter(SyncMetrics.LEASE_RETRIES));
+		// the commit of the other process is kept
+		ObjectId changedTip = remoteTip(PARENT, CHANGED_BRANCH);
+		assertNotEquals(externalCommit, changedTip);
+		try (Repository repository = openRemote(PARENT);
+				RevWalk revWalk = new RevWalk(repository)) {
+			assertTrue(revWalk.isMergedInto(revWalk.parseCommit(externalCommit), revWalk.parseCommit(changedTip)));
+		}
+	}
+
+	/**
+	 * The shard of an obsolete branch plans its deletion, then another worker moves the branch before the deletion is pushed
+	 */
+	protected RecordingReportSink deleteMovedBranch(PushBatch pushBatch) throws Exception {
+		// feature-002 only exists in comp000
+		setBranch("comp000.git", "feature-002", null);
+		GitModuleManager manager = newManager("shard");
+		manager.setShard(0, 2);
+		if (!manager.isInShard("feature-002")) {
+			manager.setShard(1, 2);
+		}
+		manager.setPushBatch(pushBatch);
+		manager.gitUpdateOrClone();
+		SyncPlan plan = manager.planSynchronization(manager.collectAllSubmodulesActiveRemoteBranches(90), null);
+		assertEquals(Collections.singleton("feature-002"), plan.getDeletedBranches());
+		ObjectId movedTip = pushExternalCommit("feature-002");
+		RecordingReportSink sink = new RecordingReportSink();
+		manager.executePlan(plan, sink);
+		manager.pushPendingUpdates(sink);
+		manager.closeTransports();
+		assertEquals(movedTip, remoteTip(PARENT, "feature-002"));
+		// the other branches of the shard are synced
+		for (String branchName : BRANCHES) {
+			if (manager.isInShard(branchName) && !branchName.equals("feature-002")) {
+				assertEquals(branchName, 1, sink.count("branchPushed", branchName + " OK"));
+			}
+		}
+		return sink;
+	}
+
+	@Test
+	public void movedBranchIsNotDeleted() throws Exception {
+		RecordingReportSink sink = deleteMovedBranch(null);
+		assertEquals(0, sink.count("branchDeleted", "feature-002"));
+		// the local remote branch is kept until the push succeeds
+		try (Repository local = Git.open(new File(temporaryFolder.getRoot(), "shard")).getRepository()) {
+			assertNotNull(local.exactRef("refs/remotes/origin/feature-002"));
+		}
+	}
+
+	@Test
+	public void movedBranchIsNotDeletedByTheBatch() throws Exception {
+		deleteMovedBranch(new PushBatch(0, false));
+	}
+
+	@Test
+	public void pushedBranches() throws Exception {
+		syncShards(null, null);
+	}
+
+	@Test
+	public void batchedBranches() throws Exception {
+		// the atomic push of the shard of the changed branch is rejected as a whole
+		assertTrue(newManager("shard1").isInShard(CHANGED_BRANCH));
+		syncShards(new PushBatch(0, false), new PushBatch(0, true));
+	}
+}
@@ -0,0 +1,152 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * hasStagedChanges() gives the same answer as the staged changes of Status for the paths it is asked about
+ */
+public class StagedChangesTest extends SyncTestSupport {
+
+	GitModuleManager manager;
+	Repository repository;
+	Git git;
+
+	@Before
+	public void cloneParent() throws Exception {
+		manager = newManager("local");
+		manager.gitUpdateOrClone();
+		repository = manager.openParentRepository();
+		git = new Git(repository);
+	}
+
+	@After
+	public void close() {
+		repository.close();
+		manager.closeTransports();
+	}
+
+	protected void stage(String path, ObjectId objectId, FileMode fileMode) throws Exception {
+		DirCache dirCache = repository.lockDirCache();
+		DirCacheEditor editor = dirCache.editor();
+		editor.add(new DirCacheEditor.PathEdit(path) {
+			@Override
+			public void apply(DirCacheEntry entry) {
+				entry.setObjectId(objectId);
+				entry.setFileMode(fileMode);
+			}
+		});
+		editor.commit();
+	}
+
+	protected void unstage(String path) throws Exception {
+		DirCache dirCache = repository.lockDirCache();
+		DirCacheEditor editor = dirCache.editor();
+		editor.add(new DirCacheEditor.DeletePath(path));
+		editor.commit();
+	}
+
+	protected ObjectId blob(String content) throws Exception {
+		try (ObjectInserter inserter = repository.newObjectInserter()) {
+			ObjectId blobId = inserter.insert(Constants.OBJ_BLOB, Constants.encode(content));
+			inserter.flush();
+			return blobId;
+		}
+	}
+
+	/**
+	 * Check hasStagedChanges() against the added, changed and removed paths of Status
+	 */
+	protected void assertStagedChanges(boolean expected, String... paths) throws Exception {
+		Collection<String> pathList = Arrays.asList(paths);
+		Status status = git.status().call();
+		Set<String> staged = new HashSet<String>(status.getAdded());
+		staged.addAll(status.getChanged());
+		staged.addAll(status.getRemoved());
+		staged.retainAll(pathList);
+		assertEquals(pathList.toString(), expected, !staged.isEmpty());
+		assertEquals(pathList.toString(), expected, manager.hasStagedChanges(repository, pathList));
+	}
+
+	@Test
+	public void cleanIndex() throws Exception {
+		assertStagedChanges(false, "comp000", "comp001", Constants.DOT_GIT_MODULES);
+	}
+
+	@Test
+	public void updatedGitlink() throws Exception {
+		stage("comp000", remoteTip("comp000.git", "feature-000"), FileMode.GITLINK);
+		assertStagedChanges(true, "comp000", Constants.DOT_GIT_MODULES);
+		// only the given paths are compared
+		assertStagedChanges(false, "comp001", Constants.DOT_GIT_MODULES);
+	}
+
+	@Test
+	public void updatedGitmodules() throws Exception {
+		stage(Constants.DOT_GIT_MODULES, blob("[submodule \"comp000\"]\n\tbranch = feature-000\n"), FileMode.REGULAR_FILE);
+		assertStagedChanges(true, "comp000", Constants.DOT_GIT_MODULES);
+	}
+
+	@Test
+	public void addedAndRemovedPaths() throws Exception {
+		stage("comp002", remoteTip("comp000.git", "master"), FileMode.GITLINK);
+		assertStagedChanges(true, "comp002");
+		unstage("comp001");
+		assertStagedChanges(true, "comp001");
+		assertStagedChanges(false, "comp000");
+	}
+
+	@Test
+	public void changedMode() throws Exception {
+		ObjectId gitmodules = repository.readDirCache().getEntry(Constants.DOT_GIT_MODULES).getObjectId();
+		stage(Constants.DOT_GIT_MODULES, gitmodules, FileMode.EXECUTABLE_FILE);
+		assertStagedChanges(true, Constants.DOT_GIT_MODULES);
+	}
+
+	@Test
+	public void unstagedChangesAreIgnored() throws Exception {
+		FileUtils.writeStringToFile(new File(repository.getWorkTree(), Constants.DOT_GIT_MODULES), "# modified\n", "UTF-8", true);
+		assertTrue(git.status().call().getModified().contains(Constants.DOT_GIT_MODULES));
+		assertStagedChanges(false, Constants.DOT_GIT_MODULES);
+		assertFalse(manager.hasStagedChanges(repository, Collections.singletonList("missing/path")));
+	}
+
+	@Test
+	public void nothingIsLeftStagedBySync() throws Exception {
+		// the sync commits every detected change, a second sync finds nothing to commit
+		manager.synchronize(90, ReportSink.NONE, false);
+		assertStagedChanges(false, "comp000", "comp001", Constants.DOT_GIT_MODULES);
+		RecordingReportSink sink = new RecordingReportSink();
+		GitModuleManager nextRun = newManager("local");
+		nextRun.setIncrementalSync(false);
+		nextRun.synchronize(90, sink, false);
+		nextRun.closeTransports();
+		for (String branchName : new String[] { "master", "feature-000", "feature-001", "feature-002", "feature-003" }) {
+			assertEquals(1, sink.count("branchDone", branchName));
+			assertEquals(0, sink.count("commitCreated", branchName));
+		}
+	}
+}
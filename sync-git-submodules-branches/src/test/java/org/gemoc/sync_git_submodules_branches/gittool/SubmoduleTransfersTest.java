@@ -0,0 +1,103 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+public class SubmoduleTransfersTest extends SyncTestSupport {
+
+	/**
+	 * Synchronize again the copy synchronized by syncCopy(copyName, ...), updating its local repository
+	 */
+	protected void syncAgain(String copyName, ManagerSetup setup) throws Exception {
+		GitModuleManager manager = newManager(copyName, generator.fileURL(new File(remotes, copyName + ".git")));
+		setup.configure(manager);
+		manager.synchronize(90, ReportSink.NONE, false);
+		manager.closeTransports();
+	}
+
+	@Test
+	public void sequentialTransfersGiveTheSameBranches() throws Exception {
+		// the default fetches the submodules concurrently
+		assertSameBranchesAsDefault(manager -> manager.setSubmoduleFetchThreads(1));
+		Map<String, ObjectId> before = branchTrees("default.git");
+		commit("comp000.git", "feature-002", "file", "new content");
+		commit("comp001.git", "feature-001", "file", "new content");
+		// the local repositories are updated
+		syncAgain("default", manager -> {});
+		syncAgain("configured", manager -> manager.setSubmoduleFetchThreads(1));
+		Map<String, ObjectId> after = branchTrees("default.git");
+		assertNotEquals(before, after);
+		assertEquals(after, branchTrees("configured.git"));
+	}
+
+	@Test
+	public void transfersRunConcurrently() throws Exception {
+		GitModuleManager manager = newManager("local");
+		manager.setSubmoduleFetchThreads(2);
+		// each transfer waits for the other one
+		CyclicBarrier barrier = new CyclicBarrier(2);
+		Map<String, GitModuleManager.SubmoduleTransfer> transfers = new LinkedHashMap<String, GitModuleManager.SubmoduleTransfer>();
+		for (String moduleName : new String[] { "comp000", "comp001" }) {
+			transfers.put(moduleName, submoduleMetrics -> {
+				try {
+					barrier.await(10, TimeUnit.SECONDS);
+				} catch (Exception e) {
+					throw new IOException(e);
+				}
+				submoduleMetrics.add(SyncMetrics.OBJECTS_FETCHED, 3);
+			});
+		}
+		manager.runSubmoduleTransfers("Fetching", transfers);
+		assertEquals(6, manager.getMetrics().getCounter(SyncMetrics.OBJECTS_FETCHED));
+		assertTrue(manager.getMetrics().toJson().contains("\"submoduleTransfers\": { \"millis\""));
+	}
+
+	@Test
+	public void failuresAreCollected() throws Exception {
+		GitModuleManager manager = newManager("local");
+		manager.setSubmoduleFetchThreads(1);
+		AtomicBoolean lastTransferDone = new AtomicBoolean();
+		Map<String, GitModuleManager.SubmoduleTransfer> transfers = new LinkedHashMap<String, GitModuleManager.SubmoduleTransfer>();
+		transfers.put("comp000", submoduleMetrics -> {
+			throw new TransportException("comp000 unreachable");
+		});
+		transfers.put("comp001", submoduleMetrics -> {
+			throw new TransportException("comp001 unreachable");
+		});
+		transfers.put("comp002", submoduleMetrics -> lastTransferDone.set(true));
+		try {
+			manager.runSubmoduleTransfers("Fetching", transfers);
+			fail();
+		} catch (TransportException e) {
+			assertEquals("Fetching submodules [comp000, comp001] failed", e.getMessage());
+			assertEquals(2, e.getSuppressed().length);
+		}
+		assertTrue(lastTransferDone.get());
+
+		// a single failure is thrown as is
+		transfers.remove("comp001");
+		transfers.put("comp000", submoduleMetrics -> {
+			throw new IOException("comp000 corrupted");
+		});
+		try {
+			manager.runSubmoduleTransfers("Fetching", transfers);
+			fail();
+		} catch (IOException e) {
+			assertEquals("comp000 corrupted", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class SyncMetricsTest extends SyncTestSupport {
+
+	static final String[] BRANCHES = { "master", "feature-000", "feature-001", "feature-002", "feature-003" };
+
+	protected SyncMetrics sampleMetrics() {
+		SyncMetrics metrics = new SyncMetrics();
+		metrics.record(SyncMetrics.PHASES, "push", metrics.start());
+		metrics.record(SyncMetrics.PHASES, "push", metrics.start());
+		metrics.record(SyncMetrics.BRANCHES, "feature/\"quoted\"", metrics.start());
+		metrics.add(SyncMetrics.REFS_SCANNED, 12);
+		metrics.increment(SyncMetrics.PUSHES);
+		return metrics;
+	}
+
+	/**
+	 * @return the value of an integer field following key in json, -1 if missing
+	 */
+	protected long jsonLong(String json, String key) {
+		Matcher matcher = Pattern.compile(Pattern.quote(key) + ": (\\d+)").matcher(json);
+		return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+	}
+
+	@Test
+	public void json() {
+		String json = sampleMetrics().toJson();
+		assertTrue(json, json.startsWith("{\n  \"startTime\": \""));
+		assertTrue(json, json.contains("\"phases\": {\n    \"push\": { \"millis\": "));
+		assertTrue(json, json.contains("\"count\": 2 }"));
+		assertTrue(json, json.contains("\"feature/\\\"quoted\\\"\": { \"millis\""));
+		assertTrue(json, json.contains("\"submodules\": {}"));
+		assertEquals(12, jsonLong(json, "\"refsScanned\""));
+		assertEquals(1, jsonLong(json, "\"pushes\""));
+		assertTrue(json, json.endsWith("\n  }\n}\n"));
+	}
+
+	@Test
+	public void emptyJson() {
+		String json = new SyncMetrics().toJson();
+		assertTrue(json, json.endsWith("\"repositories\": {},\n  \"counters\": {}\n}\n"));
+	}
+
+	@Test
+	public void prometheus() {
+		String text = sampleMetrics().toPrometheus();
+		assertTrue(text, text.contains("# TYPE sync_git_submodules_branches_duration_seconds gauge\n"));
+		assertTrue(text, Pattern.compile("(?m)^sync_git_submodules_branches_phase_seconds\\{phase=\"push\"\\} \\d+\\.\\d{3}$").matcher(text).find());
+		assertTrue(text, text.contains("sync_git_submodules_branches_branch_seconds{branch=\"feature/\\\"quoted\\\"\"} "));
+		assertTrue(text, text.contains("\nsync_git_submodules_branches_refs_scanned 12\n"));
+		assertTrue(text, text.contains("\nsync_git_submodules_branches_pushes 1\n"));
+		// every sample line is a metric name, optional labels and a value
+		for (String line : text.split("\n")) {
+			assertTrue(line, line.startsWith("# ") || line.matches("sync_git_submodules_branches_[a-z_]+(\\{[a-z]+=\".*\"\\})? [0-9.]+"));
+		}
+	}
+
+	@Test
+	public void metricsAreSummed() {
+		SyncMetrics total = sampleMetrics();
+		total.addAll(sampleMetrics());
+		assertEquals(24, total.getCounter(SyncMetrics.REFS_SCANNED));
+		assertTrue(total.toJson().contains("\"count\": 4 }"));
+	}
+
+	@Test
+	public void filesAreWritten() throws Exception {
+		File reportFile = new File(temporaryFolder.getRoot(), "reports/syncReport.md");
+		File jsonFile = SyncMetrics.defaultJsonFile(reportFile);
+		assertEquals(new File(temporaryFolder.getRoot(), "reports/syncReport.metrics.json"), jsonFile);
+		File prometheusFile = new File(temporaryFolder.getRoot(), "textfile/sync.prom");
+		SyncMetrics metrics = sampleMetrics();
+		metrics.writeJson(jsonFile);
+		metrics.writePrometheus(prometheusFile);
+		assertEquals(12, jsonLong(FileUtils.readFileToString(jsonFile, StandardCharsets.UTF_8), "\"refsScanned\""));
+		assertTrue(FileUtils.readFileToString(prometheusFile, StandardCharsets.UTF_8).contains("sync_git_submodules_branches_refs_scanned 12\n"));
+		// replaced in place, without a temporary file left behind
+		metrics.writePrometheus(prometheusFile);
+		assertFalse(new File(prometheusFile.getParentFile(), "sync.prom.tmp").exists());
+	}
+
+	@Test
+	public void syncIsMeasured() throws Exception {
+		// the metrics are always recorded, they don't change the branches of the default sync
+		GitModuleManager manager = assertSameBranchesAsDefault(m -> {});
+		SyncMetrics metrics = manager.getMetrics();
+		String json = metrics.toJson();
+		String text = metrics.toPrometheus();
+		for (String branchName : BRANCHES) {
+			assertTrue(json, jsonLong(json, "\"" + branchName + "\": { \"millis\"") >= 0);
+			assertTrue(text, text.contains("_branch_seconds{branch=\"" + branchName + "\"} "));
+		}
+		for (String moduleName : new String[] { "comp000", "comp001" }) {
+			assertTrue(json, json.contains("\"" + moduleName + "\": { \"millis\""));
+			assertTrue(text, text.contains("_submodule_seconds{submodule=\"" + moduleName + "\"} "));
+		}
+		for (String phase : new String[] { "clone", "discovery", "push" }) {
+			assertTrue(json, json.contains("\"" + phase + "\": { \"millis\""));
+		}
+		assertTrue(metrics.getCounter(SyncMetrics.REFS_SCANNED) > 0);
+		assertTrue(metrics.getCounter(SyncMetrics.COMMITS_PARSED) > 0);
+		assertTrue(metrics.getCounter(SyncMetrics.PUSHES) > 0);
+		assertEquals(metrics.getCounter(SyncMetrics.PUSHES), jsonLong(json, "\"pushes\""));
+	}
+}
@@ -0,0 +1,105 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.junit.Test;
+
+/**
+ * Each option changing how the sync works produces the same integration branches as the default sync
+ */
+public class SyncOptionsTest extends SyncTestSupport {
+
+	static final String PARENT = SyntheticRepositoryGenerator.PARENT_REPOSITORY;
+
+	@Test
+	public void concurrentDiscovery() throws Exception {
+		GitModuleManager manager = assertSameBranchesAsDefault(m -> m.setDiscoveryThreads(4));
+		GitModuleManager sequential = newManager("sequential");
+		sequential.gitUpdateOrClone();
+		assertEquals(sequential.collectAllSubmodulesActiveRemoteBranches(90), manager.collectAllSubmodulesActiveRemoteBranches(90));
+	}
+
+	@Test
+	public void batchedPushes() throws Exception {
+		GitModuleManager manager = assertSameBranchesAsDefault(m -> m.setPushBatch(new PushBatch(2, false)));
+		// 4 feature branches and master by chunks of 2
+		assertEquals(3, manager.getMetrics().getCounter(SyncMetrics.PUSHES));
+	}
+
+	@Test
+	public void atomicPush() throws Exception {
+		GitModuleManager manager = assertSameBranchesAsDefault(m -> m.setPushBatch(new PushBatch(0, true)));
+		assertEquals(1, manager.getMetrics().getCounter(SyncMetrics.PUSHES));
+	}
+
+	@Test
+	public void shallowFetch() throws Exception {
+		GitModuleManager manager = assertSameBranchesAsDefault(m -> m.setFetchMode(FetchMode.SHALLOW));
+		assertTrue(new File(temporaryFolder.getRoot(), "configured/.git/shallow").exists());
+		// the shallow update of the kept clone
+		commit("comp001.git", "feature-001", "next", "content");
+		newManager("default", generator.fileURL(new File(remotes, "default.git"))).synchronize(90, ReportSink.NONE, false);
+		manager.synchronize(90, ReportSink.NONE, false);
+		assertEquals(branchTrees("default.git"), branchTrees("configured.git"));
+	}
+
+	@Test
+	public void shallowSinceFetch() throws Exception {
+		assertSameBranchesAsDefault(m -> {
+			m.setFetchMode(FetchMode.SHALLOW_SINCE);
+			m.setShallowSinceDays(90);
+		});
+	}
+
+	@Test
+	public void lsRemoteDiscovery() throws Exception {
+		// an inactive branch, ignored by both discoveries
+		setBranch("comp000.git", "inactive", remoteTip("comp000.git", "master"));
+		commit("comp000.git", "inactive", "old", "content", new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(200)));
+		GitModuleManager manager = assertSameBranchesAsDefault(m -> m.setDiscoveryMode(DiscoveryMode.LS_REMOTE));
+		GitModuleManager cloneDiscovery = newManager("clone");
+		cloneDiscovery.gitUpdateOrClone();
+		assertEquals(cloneDiscovery.collectAllSubmodulesActiveRemoteBranches(90), manager.collectAllSubmodulesActiveRemoteBranches(90));
+	}
+
+	/**
+	 * @return the number of commits added to a branch of the copy of the parent by its sync
+	 */
+	protected int addedCommits(String copyName, String branchName) throws IOException {
+		try (Repository repository = openRemote(copyName + ".git");
+				RevWalk revWalk = new RevWalk(repository)) {
+			revWalk.markStart(revWalk.parseCommit(remoteTip(copyName + ".git", branchName)));
+			revWalk.markUninteresting(revWalk.parseCommit(remoteTip(PARENT, branchName)));
+			int count = 0;
+			while (revWalk.next() != null) {
+				count++;
+			}
+			return count;
+		}
+	}
+
+	@Test
+	public void singleCommitPerBranch() throws Exception {
+		assertSameBranchesAsDefault(m -> m.setSingleCommitPerBranch(true));
+		// both submodules updated
+		assertEquals(2, addedCommits("default", "feature-000"));
+		assertEquals(1, addedCommits("configured", "feature-000"));
+	}
+
+	@Test
+	public void singleCommitPerBranchInMemory() throws Exception {
+		assertSameBranchesAsDefault(m -> {
+			m.setSingleCommitPerBranch(true);
+			m.setCommitEngine(CommitEngine.INMEMORY);
+		});
+		assertEquals(1, addedCommits("configured", "feature-000"));
+	}
+}
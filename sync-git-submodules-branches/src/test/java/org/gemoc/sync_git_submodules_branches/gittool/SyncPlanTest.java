@@ -0,0 +1,98 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.junit.Test;
+
+public class SyncPlanTest extends SyncTestSupport {
+
+	static final String[] REPOSITORIES = { SyntheticRepositoryGenerator.PARENT_REPOSITORY, "comp000.git", "comp001.git" };
+
+	protected SyncPlan plan(GitModuleManager manager) throws Exception {
+		manager.gitUpdateOrClone();
+		return manager.planSynchronization(manager.collectAllSubmodulesActiveRemoteBranches(90), null);
+	}
+
+	/**
+	 * @return the tips of the branches of all the generated repositories
+	 */
+	protected Map<String, String> remoteBranches() throws IOException {
+		Map<String, String> branches = new TreeMap<String, String>();
+		for (String repositoryName : REPOSITORIES) {
+			try (Repository repository = openRemote(repositoryName)) {
+				for (Ref ref : repository.getRefDatabase().getRefsByPrefix(Constants.R_HEADS)) {
+					branches.put(repositoryName + " " + ref.getName(), ref.getObjectId().name());
+				}
+			}
+		}
+		return branches;
+	}
+
+	@Test
+	public void planListsTheBranchChanges() throws Exception {
+		// feature-002 only exists in comp000
+		setBranch("comp000.git", "feature-002", null);
+		SyncPlan plan = plan(newManager("local"));
+		assertEquals(new TreeSet<String>(Arrays.asList("feature-002")), plan.getDeletedBranches());
+		assertEquals(new TreeSet<String>(Arrays.asList("feature-001", "feature-003")), plan.getCreatedBranches());
+		assertEquals(null, plan.getBranch("feature-002"));
+		SyncPlan.BranchPlan branchPlan = plan.getBranch("feature-000");
+		assertFalse(branchPlan.isCreated());
+		assertTrue(branchPlan.isUpdated());
+		assertEquals(2, branchPlan.getModules().size());
+		for (SyncPlan.ModuleChange module : branchPlan.getModules()) {
+			assertEquals("feature-000", module.getTrackedBranch());
+			assertEquals(remoteTip(module.getModuleName() + ".git", "feature-000"), module.getNewGitlink());
+		}
+		// feature-001 only exists in comp001, comp000 stays on master
+		for (SyncPlan.ModuleChange module : plan.getBranch("feature-001").getModules()) {
+			assertEquals(module.getModuleName(), module.getModuleName().equals("comp001") ? "feature-001" : "master", module.getTrackedBranch());
+		}
+	}
+
+	@Test
+	public void dryRunOnlyReportsThePlan() throws Exception {
+		Map<String, String> branchesBefore = remoteBranches();
+		RecordingReportSink sink = new RecordingReportSink();
+		SyncPlan plan = newManager("local").synchronize(90, sink, true);
+		assertEquals(branchesBefore, remoteBranches());
+		RecordingReportSink planSink = new RecordingReportSink();
+		plan.report(planSink);
+		assertEquals(planSink.getEvents(), sink.getEvents());
+		// nothing checked out or created in the clone either
+		try (Repository local = new FileRepositoryBuilder().setWorkTree(new File(temporaryFolder.getRoot(), "local")).setup().build()) {
+			assertEquals("refs/heads/master", local.getFullBranch());
+			assertEquals(1, local.getRefDatabase().getRefsByPrefix(Constants.R_HEADS).size());
+		}
+	}
+
+	@Test
+	public void executedPlanLeavesNothingToDo() throws Exception {
+		GitModuleManager manager = newManager("local");
+		SyncPlan plan = manager.synchronize(90, new RecordingReportSink(), false);
+		// master too, the generated .gitmodules doesn't record the tracked branches
+		assertEquals(5, plan.getUpdatedBranchCount());
+		SyncPlan nextPlan = plan(newManager("other"));
+		assertTrue(nextPlan.getDeletedBranches().isEmpty());
+		assertTrue(nextPlan.getCreatedBranches().isEmpty());
+		assertEquals(0, nextPlan.getUpdatedBranchCount());
+		// the serialized plan is stable between runs, so it can be diffed
+		assertEquals(nextPlan.toJson(), plan(newManager("third")).toJson());
+		Map<?, ?> json = (Map<?, ?>) JsonReader.parse(nextPlan.toJson());
+		assertEquals(new TreeSet<String>(Arrays.asList("feature-000", "feature-001", "feature-002", "feature-003", "master")),
+				((Map<?, ?>) json.get("branches")).keySet());
+	}
+}
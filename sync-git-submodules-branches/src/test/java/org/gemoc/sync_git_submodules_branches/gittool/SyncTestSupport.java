@@ -0,0 +1,203 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Base of the tests running GitModuleManager on small repositories generated by SyntheticRepositoryGenerator:
+ * 2 submodules (comp000 and comp001), 4 active feature branches of 2 commits, 
+ * the parent has the integration branches of feature-000 and feature-002
+ */
+public abstract class SyncTestSupport {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	protected SyntheticRepositoryGenerator generator = new SyntheticRepositoryGenerator();
+	protected File remotes;
+	protected String parentURL;
+
+	@Before
+	public void generateRepositories() throws IOException {
+		generator.setSubmodules(2);
+		generator.setBranches(4);
+		generator.setCommits(2);
+		generator.setInactiveBranchRatio(0);
+		configureGenerator(generator);
+		remotes = temporaryFolder.newFolder("remotes");
+		parentURL = generator.generate(remotes);
+	}
+
+	/**
+	 * Change the shape of the generated repositories
+	 */
+	protected void configureGenerator(SyntheticRepositoryGenerator generator) {
+	}
+
+	/**
+	 * Configuration of a manager under test
+	 */
+	protected interface ManagerSetup {
+		void configure(GitModuleManager manager) throws Exception;
+	}
+
+	/**
+	 * @return a manager of the generated parent, working in its own local folder
+	 */
+	protected GitModuleManager newManager(String folderName) throws IOException {
+		return newManager(folderName, parentURL);
+	}
+
+	/**
+	 * @return a manager of the parent repository at remoteURL, working in its own local folder
+	 */
+	protected GitModuleManager newManager(String folderName, String remoteURL) throws IOException {
+		GitModuleManager manager = new GitModuleManager(remoteURL, new File(temporaryFolder.getRoot(), folderName).getAbsolutePath(),
+				new UsernamePasswordCredentialsProvider("", ""), "bot", "bot@localhost");
+		manager.setCommitMetadataCacheSize(0);
+		return manager;
+	}
+
+	/**
+	 * Synchronize a copy of the generated parent (its submodules are the generated ones) with a manager configured by setup
+	 * 
+	 * @param copyName name of the copy, also the name of the local folder of the manager
+	 * @return the manager, the branches are in the generated repository copyName.git
+	 */
+	protected GitModuleManager syncCopy(String copyName, ManagerSetup setup) throws Exception {
+		return syncCopy(copyName, setup, ReportSink.NONE);
+	}
+
+	/**
+	 * Synchronize a copy of the generated parent, reporting to reportSink
+	 */
+	protected GitModuleManager syncCopy(String copyName, ManagerSetup setup, ReportSink reportSink) throws Exception {
+		File copy = new File(remotes, copyName + ".git");
+		FileUtils.copyDirectory(new File(remotes, SyntheticRepositoryGenerator.PARENT_REPOSITORY), copy);
+		GitModuleManager manager = newManager(copyName, generator.fileURL(copy));
+		setup.configure(manager);
+		manager.synchronize(90, reportSink, false);
+		manager.closeTransports();
+		return manager;
+	}
+
+	/**
+	 * Check a sync configured by setup produces the same integration branches as the default sync: 
+	 * the same branches with the same trees, their commits may differ
+	 * 
+	 * @return the manager configured by setup, after its sync
+	 */
+	protected GitModuleManager assertSameBranchesAsDefault(ManagerSetup setup) throws Exception {
+		syncCopy("default", manager -> {});
+		GitModuleManager manager = syncCopy("configured", setup);
+		Map<String, ObjectId> expectedTrees = branchTrees("default.git");
+		// master and the 4 feature branches
+		assertEquals(5, expectedTrees.size());
+		assertNotEquals(branchTrees(SyntheticRepositoryGenerator.PARENT_REPOSITORY), expectedTrees);
+		assertEquals(expectedTrees, branchTrees("configured.git"));
+		return manager;
+	}
+
+	/**
+	 * @return the tree of each branch of a generated repository, indexed by branch name
+	 */
+	protected Map<String, ObjectId> branchTrees(String repositoryName) throws IOException {
+		Map<String, ObjectId> trees = new TreeMap<String, ObjectId>();
+		try (Repository repository = openRemote(repositoryName);
+				RevWalk revWalk = new RevWalk(repository)) {
+			for (Ref ref : repository.getRefDatabase().getRefsByPrefix(Constants.R_HEADS)) {
+				trees.put(ref.getName().substring(Constants.R_HEADS.length()), revWalk.parseCommit(ref.getObjectId()).getTree().getId());
+			}
+		}
+		return trees;
+	}
+
+	protected Repository openRemote(String repositoryName) throws IOException {
+		return new FileRepositoryBuilder().setGitDir(new File(remotes, repositoryName)).setMustExist(true).build();
+	}
+
+	/**
+	 * @return the tip of a branch of a generated repository, null if it doesn't exist
+	 */
+	protected ObjectId remoteTip(String repositoryName, String branchName) throws IOException {
+		try (Repository repository = openRemote(repositoryName)) {
+			Ref ref = repository.exactRef(Constants.R_HEADS + branchName);
+			return ref != null ? ref.getObjectId() : null;
+		}
+	}
+
+	/**
+	 * Add a commit writing content in file on top of a branch of a generated repository
+	 * 
+	 * @return the new tip
+	 */
+	protected ObjectId commit(String repositoryName, String branchName, String file, String content) throws IOException {
+		return commit(repositoryName, branchName, file, content, new Date());
+	}
+
+	/**
+	 * Add a commit dated when writing content in file on top of a branch of a generated repository
+	 * 
+	 * @return the new tip
+	 */
+	protected ObjectId commit(String repositoryName, String branchName, String file, String content, Date when) throws IOException {
+		try (Repository repository = openRemote(repositoryName);
+				ObjectInserter inserter = repository.newObjectInserter();
+				RevWalk revWalk = new RevWalk(repository)) {
+			RevCommit parent = revWalk.parseCommit(repository.exactRef(Constants.R_HEADS + branchName).getObjectId());
+			TreeFormatter tree = new TreeFormatter();
+			tree.append(file, FileMode.REGULAR_FILE, inserter.insert(Constants.OBJ_BLOB, Constants.encode(content)));
+			PersonIdent ident = new PersonIdent(new PersonIdent("test", "test@localhost"), when);
+			CommitBuilder commit = new CommitBuilder();
+			commit.setTreeId(inserter.insert(tree));
+			commit.setParentId(parent);
+			commit.setAuthor(ident);
+			commit.setCommitter(ident);
+			commit.setMessage("write " + file + " on " + branchName);
+			ObjectId tip = inserter.insert(commit);
+			inserter.flush();
+			setBranch(repositoryName, branchName, tip);
+			return tip;
+		}
+	}
+
+	/**
+	 * Create, move or (with a null id) delete a branch of a generated repository
+	 */
+	protected void setBranch(String repositoryName, String branchName, ObjectId id) throws IOException {
+		try (Repository repository = openRemote(repositoryName)) {
+			if (id == null) {
+				RefUpdate refUpdate = repository.updateRef(Constants.R_HEADS + branchName);
+				refUpdate.setForceUpdate(true);
+				refUpdate.delete();
+			} else {
+				generator.updateRef(repository, Constants.R_HEADS + branchName, id);
+			}
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generate local bare repositories usable as file:// remotes by GitModuleManager:
+ * <ul>
+ * <li><code>comp&lt;i&gt;.git</code>: the submodules, each with a master branch of <code>commits</code> commits
+ * and a share of the <code>branches</code> feature branches, each with <code>commits</code> commits on top of master</li>
+ * <li><code>parent.git</code>: the integration repository, its master branch references all the submodules.
+ * It also contains the parent branches of the inactive feature branches (to be deleted)
+ * and of half of the active ones (the other half has to be created)</li>
+ * </ul>
+ * The first <code>inactiveBranchRatio</code> share of the feature branches have commits older than <code>inactiveDays</code>.
+ * Everything is written directly in the object databases, no working tree nor native git is involved.
+ */
+public class SyntheticRepositoryGenerator {
+
+	static Logger logger = LoggerFactory.getLogger(SyntheticRepositoryGenerator.class);
+
+	public static final String PARENT_REPOSITORY = "parent.git";
+
+	int submodules = 5;
+	int branches = 10;
+	int commits = 20;
+	double inactiveBranchRatio = 0.2;
+	int inactiveDays = 365;
+
+	PersonIdent author = new PersonIdent("benchmark", "benchmark@localhost");
+
+	/**
+	 * @param submodules number of submodules of the parent repository
+	 */
+	public void setSubmodules(int submodules) {
+		this.submodules = Math.max(1, submodules);
+	}
+
+	/**
+	 * @param branches number of feature branches, spread over the submodules
+	 */
+	public void setBranches(int branches) {
+		this.branches = branches;
+	}
+
+	/**
+	 * @param commits number of commits of the master branch of each submodule and of each feature branch
+	 */
+	public void setCommits(int commits) {
+		this.commits = Math.max(1, commits);
+	}
+
+	/**
+	 * @param inactiveBranchRatio share (between 0 and 1) of the feature branches whose commits are older than inactiveDays
+	 */
+	public void setInactiveBranchRatio(double inactiveBranchRatio) {
+		this.inactiveBranchRatio = inactiveBranchRatio;
+	}
+
+	/**
+	 * @param inactiveDays age in days of the commits of the inactive branches
+	 */
+	public void setInactiveDays(int inactiveDays) {
+		this.inactiveDays = inactiveDays;
+	}
+
+	/**
+	 * @return name of the feature branch j
+	 */
+	public static String branchName(int j) {
+		return String.format("feature-%03d", j);
+	}
+
+	/**
+	 * @return true if the feature branch j is generated with old commits
+	 */
+	public boolean isInactive(int j) {
+		return j < Math.round(branches * inactiveBranchRatio);
+	}
+
+	/**
+	 * Generate the submodule repositories and the parent repository in folder
+	 *
+	 * @return the file:// URL of the parent repository
+	 * @throws IOException
+	 */
+	public String generate(File folder) throws IOException {
+		logger.info(String.format("generating %d submodules x %d branches x %d commits (%.0f%% inactive) in %s",
+				submodules, branches, commits, inactiveBranchRatio * 100, folder));
+		ObjectId[] masterTips = new ObjectId[submodules];
+		for (int i = 0; i < submodules; i++) {
+			try (Repository repository = createBareRepository(new File(folder, submoduleName(i) + ".git"))) {
+				masterTips[i] = generateSubmodule(repository, i);
+			}
+		}
+		try (Repository repository = createBareRepository(new File(folder, PARENT_REPOSITORY))) {
+			generateParent(repository, folder, masterTips);
+		}
+		return fileURL(new File(folder, PARENT_REPOSITORY));
+	}
+
+	/**
+	 * @return the file:// URL of the repository, in the form kept by JGit in the remote configuration of a clone
+	 */
+	protected String fileURL(File gitDir) {
+		return "file://" + gitDir.getAbsolutePath();
+	}
+
+	protected String submoduleName(int i) {
+		return String.format("comp%03d", i);
+	}
+
+	protected Repository createBareRepository(File gitDir) throws IOException {
+		Repository repository = new FileRepositoryBuilder().setGitDir(gitDir).setBare().build();
+		repository.create(true);
+		return repository;
+	}
+
+	/**
+	 * @return the tip of the master branch of the submodule i
+	 */
+	protected ObjectId generateSubmodule(Repository repository, int i) throws IOException {
+		long now = System.currentTimeMillis();
+		try (ObjectInserter inserter = repository.newObjectInserter()) {
+			ObjectId masterTip = generateCommits(inserter, null, "master", now - TimeUnit.HOURS.toMillis(commits));
+			updateRef(repository, Constants.R_HEADS + "master", masterTip);
+			for (int j = 0; j < branches; j++) {
+				// each feature branch lives in one submodule, one out of three also in the next submodule
+				if (j % submodules == i || (j % 3 == 0 && (j + 1) % submodules == i)) {
+					long start = isInactive(j) ? now - TimeUnit.DAYS.toMillis(inactiveDays) : now;
+					updateRef(repository, Constants.R_HEADS + branchName(j), generateCommits(inserter, masterTip, branchName(j), start));
+				}
+			}
+			inserter.flush();
+			return masterTip;
+		}
+	}
+
+	/**
+	 * Write commits commits modifying a single file on top of parent, one per minute starting at startMillis
+	 */
+	protected ObjectId generateCommits(ObjectInserter inserter, ObjectId parent, String branchName, long startMillis) throws IOException {
+		ObjectId tip = parent;
+		for (int k = 0; k < commits; k++) {
+			TreeFormatter tree = new TreeFormatter();
+			tree.append("README.md", FileMode.REGULAR_FILE,
+					inserter.insert(Constants.OBJ_BLOB, Constants.encode(branchName + " " + k + "\n")));
+			PersonIdent ident = new PersonIdent(author, new Date(startMillis + TimeUnit.MINUTES.toMillis(k)));
+			CommitBuilder commit = new CommitBuilder();
+			commit.setTreeId(inserter.insert(tree));
+			if (tip != null) {
+				commit.setParentId(tip);
+			}
+			commit.setAuthor(ident);
+			commit.setCommitter(ident);
+			commit.setMessage("commit " + k + " on " + branchName);
+			tip = inserter.insert(commit);
+		}
+		return tip;
+	}
+
+	protected void generateParent(Repository repository, File folder, ObjectId[] masterTips) throws IOException {
+		StringBuilder gitmodules = new StringBuilder();
+		for (int i = 0; i < submodules; i++) {
+			gitmodules.append("[submodule \"").append(submoduleName(i)).append("\"]\n")
+				.append("\tpath = ").append(submoduleName(i)).append('\n')
+				.append("\turl = ").append(fileURL(new File(folder, submoduleName(i) + ".git"))).append('\n');
+		}
+		try (ObjectInserter inserter = repository.newObjectInserter()) {
+			DirCache dirCache = DirCache.newInCore();
+			DirCacheBuilder builder = dirCache.builder();
+			DirCacheEntry modulesEntry = new DirCacheEntry(Constants.DOT_GIT_MODULES);
+			modulesEntry.setFileMode(FileMode.REGULAR_FILE);
+			modulesEntry.setObjectId(inserter.insert(Constants.OBJ_BLOB, Constants.encode(gitmodules.toString())));
+			builder.add(modulesEntry);
+			for (int i = 0; i < submodules; i++) {
+				DirCacheEntry gitlink = new DirCacheEntry(submoduleName(i));
+				gitlink.setFileMode(FileMode.GITLINK);
+				gitlink.setObjectId(masterTips[i]);
+				builder.add(gitlink);
+			}
+			builder.finish();
+
+			PersonIdent ident = new PersonIdent(author, new Date());
+			CommitBuilder commit = new CommitBuilder();
+			commit.setTreeId(dirCache.writeTree(inserter));
+			commit.setAuthor(ident);
+			commit.setCommitter(ident);
+			commit.setMessage("integration of " + submodules + " submodules");
+			ObjectId masterTip = inserter.insert(commit);
+			inserter.flush();
+			updateRef(repository, Constants.R_HEADS + "master", masterTip);
+			for (int j = 0; j < branches; j++) {
+				if (isInactive(j) || j % 2 == 0) {
+					updateRef(repository, Constants.R_HEADS + branchName(j), masterTip);
+				}
+			}
+		}
+	}
+
+	protected void updateRef(Repository repository, String refName, ObjectId id) throws IOException {
+		RefUpdate refUpdate = repository.updateRef(refName);
+		refUpdate.setNewObjectId(id);
+		refUpdate.setForceUpdate(true);
+		RefUpdate.Result result = refUpdate.update();
+		if (result != RefUpdate.Result.NEW && result != RefUpdate.Result.FORCED && result != RefUpdate.Result.NO_CHANGE) {
+			throw new IOException("cannot update " + refName + " in " + repository.getDirectory() + ": " + result);
+		}
+	}
+}
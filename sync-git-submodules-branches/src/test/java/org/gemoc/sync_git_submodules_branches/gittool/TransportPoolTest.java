@@ -0,0 +1,194 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jgit.errors.NoRemoteRepositoryException;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.Daemon;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.After;
+import org.junit.Test;
+
+public class TransportPoolTest extends SyncTestSupport {
+
+	static final String PARENT = SyntheticRepositoryGenerator.PARENT_REPOSITORY;
+
+	Daemon daemon;
+	AtomicInteger openConnections = new AtomicInteger();
+	AtomicInteger maxOpenConnections = new AtomicInteger();
+	AtomicInteger connections = new AtomicInteger();
+
+	@After
+	public void stopDaemon() throws InterruptedException {
+		if (daemon != null) {
+			daemon.stopAndWait();
+		}
+	}
+
+	/**
+	 * Serve the generated repositories through an in-process git daemon, any unknown name is served as the parent.
+	 * Each connection is kept open a little while to observe the concurrent ones
+	 *
+	 * @return the git:// URL of the daemon
+	 */
+	protected String startDaemon(long connectionMillis) throws IOException {
+		daemon = new Daemon(new InetSocketAddress("localhost", 0));
+		daemon.getService("git-receive-pack").setEnabled(true);
+		daemon.setRepositoryResolver((client, name) -> {
+			connections.incrementAndGet();
+			maxOpenConnections.accumulateAndGet(openConnections.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(connectionMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				openConnections.decrementAndGet();
+			}
+			File gitDir = new File(remotes, name.replaceFirst("^/", ""));
+			try {
+				return new FileRepositoryBuilder().setGitDir(gitDir.exists() ? gitDir : new File(remotes, PARENT)).setMustExist(true).build();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		daemon.start();
+		return "git://localhost:" + daemon.getAddress().getPort() + "/";
+	}
+
+	/**
+	 * @return an operation failing with exception the failures first times, recording the transports it runs on
+	 */
+	protected TransportPool.Operation<String> failingOperation(int failures, TransportException exception, List<Transport> transports) {
+		return transport -> {
+			transports.add(transport);
+			if (transports.size() <= failures) {
+				throw exception;
+			}
+			return "done";
+		};
+	}
+
+	@Test
+	public void transientFailuresAreRetriedOnANewTransport() throws IOException {
+		SyncMetrics metrics = new SyncMetrics();
+		List<Transport> transports = new ArrayList<Transport>();
+		try (TransportPool pool = new TransportPool(0, 3, 20)) {
+			long start = System.nanoTime();
+			assertEquals("done", pool.run(null, parentURL, null, metrics,
+					failingOperation(2, new TransportException("Connection reset"), transports)));
+			// 20 ms then 40 ms
+			assertTrue(System.nanoTime() - start >= 60_000_000L);
+			assertEquals(3, transports.size());
+			assertEquals(2, metrics.getCounter(SyncMetrics.TRANSPORT_RETRIES));
+			assertNotSame(transports.get(0), transports.get(1));
+			assertNotSame(transports.get(1), transports.get(2));
+			// the session is reused once it works
+			assertEquals("done", pool.run(null, parentURL, null, metrics, failingOperation(0, null, transports)));
+			assertSame(transports.get(2), transports.get(3));
+		}
+	}
+
+	@Test
+	public void retriesAreLimited() throws IOException {
+		List<Transport> transports = new ArrayList<Transport>();
+		try (TransportPool pool = new TransportPool(0, 2, 1)) {
+			pool.run(null, parentURL, null, null, failingOperation(10, new TransportException("Read timed out"), transports));
+			fail("the last failure is thrown");
+		} catch (TransportException e) {
+			assertEquals("Read timed out", e.getMessage());
+		}
+		assertEquals(3, transports.size());
+	}
+
+	@Test
+	public void permanentFailuresAreNotRetried() throws IOException {
+		for (TransportException failure : Arrays.asList(
+				new TransportException("git@host: not authorized"),
+				new NoRemoteRepositoryException(new URIish(), "not found"))) {
+			List<Transport> transports = new ArrayList<Transport>();
+			try (TransportPool pool = new TransportPool(0, 3, 1)) {
+				pool.run(null, parentURL, null, null, failingOperation(1, failure, transports));
+				fail("not retried");
+			} catch (TransportException e) {
+				assertSame(failure, e);
+			}
+			assertEquals(1, transports.size());
+		}
+	}
+
+	@Test
+	public void pushesWithoutLeaseAreNotRetried() throws IOException {
+		List<Transport> transports = new ArrayList<Transport>();
+		try (TransportPool pool = new TransportPool(0, 3, 1)) {
+			pool.run(null, parentURL, null, null, false, failingOperation(1, new TransportException("Connection reset"), transports));
+			fail("not retried");
+		} catch (TransportException e) {
+			assertEquals(1, transports.size());
+		}
+		TransportPool pool = new TransportPool(0, 3, 1);
+		List<RefSpec> refSpecs = Arrays.asList(new RefSpec("refs/heads/a:refs/heads/a"), new RefSpec().setSource(null).setDestination("refs/heads/b"));
+		assertTrue(pool.isRetryablePush(refSpecs, Collections.emptyMap(), true));
+		assertFalse(pool.isRetryablePush(refSpecs, Collections.singletonMap("refs/heads/a", ObjectId.zeroId()), false));
+		Map<String, ObjectId> leases = new HashMap<String, ObjectId>();
+		leases.put("refs/heads/a", ObjectId.zeroId());
+		leases.put("refs/heads/b", ObjectId.zeroId());
+		assertTrue(pool.isRetryablePush(refSpecs, leases, false));
+	}
+
+	@Test
+	public void connectionsPerHostAreLimited() throws Exception {
+		String daemonURL = startDaemon(100);
+		ExecutorService executor = Executors.newFixedThreadPool(6);
+		try (TransportPool pool = new TransportPool(2, 0, 0)) {
+			List<Future<?>> lsRemotes = new ArrayList<Future<?>>();
+			for (int i = 0; i < 6; i++) {
+				// a session per URL, all on the same host
+				String url = daemonURL + "repository" + i + ".git";
+				lsRemotes.add(executor.submit(() -> pool.lsRemote(url, null, null)));
+			}
+			for (Future<?> lsRemote : lsRemotes) {
+				assertFalse(((Collection<?>) lsRemote.get()).isEmpty());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(6, connections.get());
+		assertTrue("at most 2 connections at a time: " + maxOpenConnections.get(), maxOpenConnections.get() <= 2);
+	}
+
+	@Test
+	public void syncThroughGitDaemon() throws Exception {
+		parentURL = startDaemon(0) + PARENT;
+		GitModuleManager manager = newManager("local");
+		manager.setMaxConnectionsPerHost(1);
+		manager.synchronize(90, new RecordingReportSink(), false);
+		for (String branchName : new String[] { "feature-001", "feature-003" }) {
+			assertNotNull(branchName, remoteTip(PARENT, branchName));
+		}
+	}
+}
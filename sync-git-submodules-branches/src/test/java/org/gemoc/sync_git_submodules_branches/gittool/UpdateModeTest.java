@@ -0,0 +1,63 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+public class UpdateModeTest extends SyncTestSupport {
+
+	static final String PARENT = SyntheticRepositoryGenerator.PARENT_REPOSITORY;
+	static final String BRANCH = "feature-000";
+
+	/**
+	 * Clone the parent, create the local branch (with a local commit if diverged),
+	 * then move the remote branch and update the clone
+	 *
+	 * @return the local tip once the branch is checked out again
+	 */
+	protected ObjectId checkoutAfterRemoteChange(UpdateMode updateMode, boolean diverged) throws Exception {
+		GitModuleManager manager = newManager("local");
+		manager.setUpdateMode(updateMode);
+		manager.gitUpdateOrClone();
+		try (Git git = Git.open(new File(temporaryFolder.getRoot(), "local"))) {
+			manager.checkoutBranch(git, BRANCH);
+			if (diverged) {
+				git.commit().setMessage("local change").setCommitter("test", "test@localhost").call();
+			}
+			git.checkout().setName("master").call();
+		}
+		commit(PARENT, BRANCH, "README.md", "remote change\n");
+		manager.gitUpdateOrClone();
+		try (Git git = Git.open(new File(temporaryFolder.getRoot(), "local"))) {
+			manager.checkoutBranch(git, BRANCH);
+			return git.getRepository().exactRef(Constants.R_HEADS + BRANCH).getObjectId();
+		}
+	}
+
+	@Test
+	public void pullFastForwardsTheLocalBranch() throws Exception {
+		ObjectId localTip = checkoutAfterRemoteChange(UpdateMode.PULL, false);
+		assertEquals(remoteTip(PARENT, BRANCH), localTip);
+	}
+
+	@Test
+	public void pullKeepsADivergedLocalBranch() throws Exception {
+		ObjectId localTip = checkoutAfterRemoteChange(UpdateMode.PULL, true);
+		assertNotEquals(remoteTip(PARENT, BRANCH), localTip);
+		try (Git git = Git.open(new File(temporaryFolder.getRoot(), "local"))) {
+			assertEquals("local change", git.getRepository().parseCommit(localTip).getFullMessage());
+		}
+	}
+
+	@Test
+	public void fetchResetsADivergedLocalBranch() throws Exception {
+		ObjectId localTip = checkoutAfterRemoteChange(UpdateMode.FETCH, true);
+		assertEquals(remoteTip(PARENT, BRANCH), localTip);
+	}
+}
@@ -0,0 +1,53 @@
+package org.gemoc.sync_git_submodules_branches.gittool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class WebhookServerTest {
+
+	@Test
+	public void onlyTopLevelFieldsAreRead() {
+		Map<String, Object> event = WebhookServer.parseEvent("{"
+				+ "\"head_commit\": {\"ref\": \"refs/heads/nested\", \"after\": \"0000000000000000000000000000000000000000\"},"
+				+ "\"ref\": \"refs/heads/feature/a\\\"b\\u00e9\","
+				+ "\"after\": \"3c1f4a0e2b7d5f6a8b9c0d1e2f3a4b5c6d7e8f90\","
+				+ "\"repository\": {\"owner\": {\"url\": \"https://api.example.com/users/someone\"},"
+				+ "  \"clone_url\": \"https:\\/\\/example.com\\/org\\/compA.git\", \"size\": 12.5e3, \"private\": false, \"topics\": [], \"homepage\": null}"
+				+ "}");
+		assertEquals("refs/heads/feature/a\"bé", WebhookServer.getString(event, "ref"));
+		assertEquals("3c1f4a0e2b7d5f6a8b9c0d1e2f3a4b5c6d7e8f90", WebhookServer.getString(event, "after"));
+		assertEquals(Arrays.asList("https://example.com/org/compA.git"), WebhookServer.getRepositoryURLs(event));
+	}
+
+	@Test
+	public void gitlabProjectURLsAreRead() {
+		Map<String, Object> event = WebhookServer.parseEvent("{\"object_kind\":\"push\",\"ref\":\"refs/heads/main\","
+				+ "\"project\":{\"git_ssh_url\":\"git@example.com:org/compB.git\"},"
+				+ "\"repository\":{\"git_http_url\":\"https://example.com/org/compB.git\"}}");
+		assertEquals(Arrays.asList("https://example.com/org/compB.git", "git@example.com:org/compB.git"), 
+				WebhookServer.getRepositoryURLs(event));
+	}
+
+	@Test
+	public void emptyPayloadHasNoField() {
+		Map<String, Object> event = WebhookServer.parseEvent(" ");
+		assertNull(WebhookServer.getString(event, "ref"));
+		assertTrue(WebhookServer.getRepositoryURLs(event).isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidPayloadIsRejected() {
+		WebhookServer.parseEvent("{\"ref\": \"refs/heads/a\"");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nonObjectPayloadIsRejected() {
+		WebhookServer.parseEvent("[\"refs/heads/a\"]");
+	}
+}